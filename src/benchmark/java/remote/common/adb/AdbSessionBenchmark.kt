@@ -0,0 +1,111 @@
+package remote.common.adb
+
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import java.io.InputStream
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+
+/**
+ * [AdbSession] against a [FakeAdbd] over loopback: latency of commands issued together, typed on
+ * the shell one after another or run on exec streams side by side, and push throughput by the
+ * device's max payload and OKAY delay.
+ *
+ * Streams open one at a time and the fake answers each OPEN after 20 ms, so that bounds how fast
+ * exec streams can start however many may run at once.
+ */
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [28])
+class AdbSessionBenchmark {
+
+    companion object {
+        private const val COMMANDS = 32
+        private const val COMMAND_MS = 50
+        private const val PUSH_SIZE = 256L * 1024 * 1024
+    }
+
+    /**
+     * [size] bytes generated as they are read, in the short reads of a pipe
+     */
+    private class GeneratedInput(private val size: Long) : InputStream() {
+        private var position = 0L
+
+        override fun read(): Int = throw UnsupportedOperationException()
+
+        override fun read(b: ByteArray, off: Int, len: Int): Int {
+            if (position >= size) {
+                return -1
+            }
+            val count = minOf(len.toLong(), size - position, 16 * 1024L).toInt()
+            for (i in 0 until count step 512) {
+                b[off + i] = (position + i).toByte()
+            }
+            position += count
+            return count
+        }
+    }
+
+    private fun report(label: String, started: Long, latencies: LongArray) {
+        latencies.sort()
+        println("%-16s total %5.0f ms  p50 %5.0f ms  p95 %5.0f ms".format(label, (System.nanoTime() - started) / 1e6,
+            latencies[latencies.size / 2] / 1e6, latencies[latencies.size * 95 / 100] / 1e6))
+    }
+
+    private fun commands(label: String, maxExecStreams: Int, run: (AdbSession, String, (ShellResult) -> Unit) -> Unit) {
+        FakeAdbd().use { adbd ->
+            val session = adbd.connect(LinkedBlockingQueue(), maxExecStreams)
+            val latencies = LongArray(COMMANDS)
+            val done = CountDownLatch(COMMANDS)
+            val started = System.nanoTime()
+            for (i in 0 until COMMANDS) {
+                run(session, "sleep $COMMAND_MS; echo out$i") {
+                    latencies[i] = System.nanoTime() - started
+                    check(it.exitCode == 0 && it.output.trim() == "out$i") { "bad result of command $i: ${it.exitCode} ${it.output}" }
+                    done.countDown()
+                }
+            }
+            check(done.await(60, TimeUnit.SECONDS)) { "commands didn't finish" }
+            report(label, started, latencies)
+            session.disconnect()
+        }
+    }
+
+    @Test
+    fun commandLatency() {
+        commands("shell", 1) { session, command, callback -> session.sendCommand(command, callback = callback) }
+        for (streams in listOf(1, 4, 8, 16)) {
+            commands("exec x$streams", streams) { session, command, callback -> session.exec(command, callback = callback) }
+        }
+    }
+
+    private fun push(maxData: Int, okayDelayMicros: Long) {
+        FakeAdbd(maxData, okayDelayMicros).use { adbd ->
+            val events = LinkedBlockingQueue<AdbEvent>()
+            val session = adbd.connect(events)
+            val started = System.nanoTime()
+            session.pushFile(GeneratedInput(PUSH_SIZE), "/sdcard/movie.mp4", PUSH_SIZE)
+            var pushed: Any? = null
+            while (pushed == null) {
+                val event = events.poll(5, TimeUnit.MINUTES) ?: break
+                if (event.eventType == AdbEventType.FILE_PUSHED) {
+                    pushed = event.param
+                }
+            }
+            val seconds = (System.nanoTime() - started) / 1e9
+            check(pushed == true && adbd.pushedBytes.get() == PUSH_SIZE) { "push failed: $pushed, ${adbd.pushedBytes.get()} bytes" }
+            println("maxData %7d  OKAY after %4d us  %6.0f MB/s".format(maxData, okayDelayMicros, PUSH_SIZE / seconds / (1 shl 20)))
+            session.disconnect()
+        }
+    }
+
+    @Test
+    fun pushThroughput() {
+        push(4096, 0)
+        push(1024 * 1024, 0)
+        push(1024 * 1024, 300)
+        push(1024 * 1024, 1000)
+    }
+}
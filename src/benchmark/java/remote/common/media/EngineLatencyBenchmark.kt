@@ -0,0 +1,85 @@
+package remote.common.media
+
+import org.junit.Test
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+/**
+ * Request latency percentiles of the thread-per-connection engine against the selector engine,
+ * for keep-alive clients that ask for a 64 KB range, pause as a player between fetches does and
+ * ask again. Requests turned away with 503 or failed are counted, not timed.
+ */
+class EngineLatencyBenchmark {
+
+    companion object {
+        private const val REQUESTS = 40
+        private const val THINK_MS = 20L
+        private const val RANGE = 64 * 1024
+    }
+
+    private val content = ByteArray(16 * 1024 * 1024) { (it * 7).toByte() }
+
+    private class Result(val latenciesMicros: List<Long>, val refused: Int)
+
+    private fun clients(port: Int, path: String, clients: Int): Result {
+        val pool = Executors.newFixedThreadPool(clients)
+        val start = CountDownLatch(1)
+        val results = (0 until clients).map { client ->
+            pool.submit<Result> {
+                val latencies = ArrayList<Long>()
+                var refused = 0
+                start.await()
+                try {
+                    TestHttp(port).use { http ->
+                        for (i in 0 until REQUESTS) {
+                            val offset = ((client * 1_000_003L + i * 262_147L) % (content.size - RANGE))
+                            val began = System.nanoTime()
+                            val reply = http.request("GET", path, mapOf("Range" to "bytes=$offset-${offset + RANGE - 1}"))
+                            if (reply.status != 206) {
+                                refused += REQUESTS - i
+                                break
+                            }
+                            latencies.add((System.nanoTime() - began) / 1000)
+                            Thread.sleep(THINK_MS)
+                        }
+                    }
+                } catch (e: IOException) {
+                    refused += REQUESTS - latencies.size
+                }
+                Result(latencies, refused)
+            }
+        }
+        start.countDown()
+        val all = results.map { it.get(5, TimeUnit.MINUTES) }
+        pool.shutdown()
+        return Result(all.flatMap { it.latenciesMicros }, all.sumOf { it.refused })
+    }
+
+    private fun percentile(sorted: List<Long>, p: Int) = if (sorted.isEmpty()) 0.0 else sorted[minOf(sorted.size - 1, sorted.size * p / 100)] / 1000.0
+
+    @Test
+    fun latencyUnderKeptAliveClients() {
+        for (engine in StreamWebServer.Engine.values()) {
+            val server = StreamWebServer(engine, port = 0)
+            server.start()
+            try {
+                val port = server.nioEngine?.listeningPort ?: server.listeningPort
+                val path = server.publish(MemorySource("movie.mp4", "EngineLatencyBenchmark", ByteBuffer.wrap(content)))
+                // warm up
+                clients(port, path, 4)
+                for (count in listOf(8, 32, 128)) {
+                    val result = clients(port, path, count)
+                    val sorted = result.latenciesMicros.sorted()
+                    println("%-8s %4d clients  p50 %6.2f ms  p90 %6.2f ms  p99 %6.2f ms  max %7.2f ms  refused %d/%d".format(
+                        engine.name.lowercase(), count, percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99),
+                        percentile(sorted, 100), result.refused, count * REQUESTS))
+                }
+            } finally {
+                server.stop()
+            }
+        }
+    }
+}
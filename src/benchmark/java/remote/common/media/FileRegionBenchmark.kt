@@ -0,0 +1,127 @@
+package remote.common.media
+
+import fi.iki.elonen.NanoHTTPD
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.BufferedInputStream
+import java.io.File
+import java.io.FileInputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.lang.management.ManagementFactory
+import java.net.Socket
+
+/**
+ * Loopback throughput and server CPU of a whole-file GET: [FileRegionResponse] on both engines
+ * against the stream-copy response NanoHTTPD builds from a FileInputStream.
+ *
+ * CPU is the whole process, client included; the client does the same work for every server.
+ */
+class FileRegionBenchmark {
+
+    companion object {
+        private const val FILE_SIZE = 256L * 1024 * 1024
+        private const val ROUNDS = 8
+        private const val WARM_UP = 2
+    }
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    /**
+     * the response the server sent before FileRegionResponse: the body copied through a stream
+     */
+    private class StreamCopyServer(private val file: File) : NanoHTTPD("127.0.0.1", 0) {
+        override fun serve(session: IHTTPSession): Response {
+            return newFixedLengthResponse(Response.Status.OK, "video/mp4", FileInputStream(file), file.length())
+        }
+    }
+
+    private fun processCpuNanos(): Long {
+        val os = ManagementFactory.getOperatingSystemMXBean() as com.sun.management.OperatingSystemMXBean
+        return os.processCpuTime
+    }
+
+    /**
+     * GET [path] and drop the body
+     * @return body bytes read
+     */
+    private fun download(port: Int, path: String): Long {
+        Socket("127.0.0.1", port).use { socket ->
+            socket.getOutputStream().write("GET $path HTTP/1.1\r\nHost: 127.0.0.1\r\nConnection: close\r\n\r\n".toByteArray())
+            val input = BufferedInputStream(socket.getInputStream(), 64 * 1024)
+            var length = -1L
+            val line = StringBuilder()
+            while (true) {
+                val c = input.read()
+                if (c < 0) {
+                    throw IOException("headers cut short")
+                }
+                if (c.toByte() != '\n'.toByte()) {
+                    line.append(c.toChar())
+                    continue
+                }
+                val header = line.toString().trimEnd('\r')
+                line.setLength(0)
+                if (header.isEmpty()) {
+                    break
+                }
+                if (header.startsWith("Content-Length:", ignoreCase = true)) {
+                    length = header.substringAfter(':').trim().toLong()
+                }
+            }
+            val buffer = ByteArray(64 * 1024)
+            var total = 0L
+            while (total < length) {
+                val read = input.read(buffer)
+                if (read < 0) {
+                    break
+                }
+                total += read
+            }
+            return total
+        }
+    }
+
+    private fun measure(label: String, port: Int, path: String) {
+        repeat(WARM_UP) { download(port, path) }
+        val cpuStart = processCpuNanos()
+        val start = System.nanoTime()
+        var bytes = 0L
+        repeat(ROUNDS) { bytes += download(port, path) }
+        val seconds = (System.nanoTime() - start) / 1e9
+        val cpuMs = (processCpuNanos() - cpuStart) / 1e6
+        println("%-20s %8.0f MB/s %8.0f ms CPU/GB".format(label, bytes / seconds / (1 shl 20), cpuMs * (1 shl 30) / bytes))
+    }
+
+    @Test
+    fun wholeFileOverLoopback() {
+        val file = folder.newFile("movie.mp4")
+        RandomAccessFile(file, "rw").use { raf ->
+            val block = ByteArray(1024 * 1024) { (it * 31).toByte() }
+            for (i in 0 until FILE_SIZE / block.size) {
+                raf.write(block)
+            }
+        }
+
+        val streamCopy = StreamCopyServer(file)
+        streamCopy.start()
+        try {
+            measure("stream copy", streamCopy.listeningPort, "/movie.mp4")
+        } finally {
+            streamCopy.stop()
+        }
+
+        for (engine in StreamWebServer.Engine.values()) {
+            val server = StreamWebServer(engine, port = 0)
+            server.start()
+            try {
+                val port = server.nioEngine?.listeningPort ?: server.listeningPort
+                measure("region ${engine.name.lowercase()}", port, server.publish(FileSource(file)))
+            } finally {
+                server.stop()
+            }
+        }
+    }
+}
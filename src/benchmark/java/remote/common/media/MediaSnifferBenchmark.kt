@@ -0,0 +1,72 @@
+package remote.common.media
+
+import org.junit.Test
+
+/**
+ * Cost of resolving the type of a request's source: the extension lookup, a first sniff that
+ * reads the header and the cached sniff every later request pays.
+ */
+class MediaSnifferBenchmark {
+
+    companion object {
+        /**
+         * measured and warm-up sources together stay under the sniffer's cache size
+         */
+        private const val SOURCES = 600
+        private const val WARM_UP = 300
+        private const val ROUNDS = 50
+    }
+
+    private val headers = listOf(
+        MediaTypeTest.ftyp("isom"), MediaTypeTest.ebml("webm"), MediaTypeTest.ts(3), MediaTypeTest.PNG,
+        byteArrayOf(0xFF.toByte(), 0xD8.toByte(), 0xFF.toByte(), 0xE0.toByte()) + ByteArray(28),
+        "RIFF....WEBPVP8 ".toByteArray() + ByteArray(16), "ID3".toByteArray() + ByteArray(32), ByteArray(512)
+    )
+    private val names = listOf("a.mp4", "b.webm", "c.ts", "d.png", "e.jpg", "f.webp", "g.mp3", "h")
+
+    private fun report(label: String, nanos: Long, lookups: Int) {
+        println("%-24s %8.0f ns/lookup".format(label, nanos.toDouble() / lookups))
+    }
+
+    @Test
+    fun lookupCostPerRequest() {
+        val sources = (0 until SOURCES).map { MediaTypeTest.source(names[it % names.size], headers[it % headers.size]) }
+        // warm up with sources of their own, so the measured ones are sniffed for the first time below
+        val warmUp = (0 until WARM_UP).map { MediaTypeTest.source(names[it % names.size], headers[it % headers.size]) }
+        repeat(ROUNDS) {
+            for (source in warmUp) {
+                MediaType.getFileType(source)
+            }
+        }
+
+        var start = System.nanoTime()
+        repeat(ROUNDS) {
+            for (source in sources) {
+                MediaType.getFileType(source.name)
+            }
+        }
+        report("extension", System.nanoTime() - start, ROUNDS * SOURCES)
+
+        start = System.nanoTime()
+        for (source in sources) {
+            MediaSniffer.sniff(source)
+        }
+        report("first sniff", System.nanoTime() - start, SOURCES)
+
+        start = System.nanoTime()
+        repeat(ROUNDS) {
+            for (source in sources) {
+                MediaSniffer.sniff(source)
+            }
+        }
+        report("cached sniff", System.nanoTime() - start, ROUNDS * SOURCES)
+
+        start = System.nanoTime()
+        repeat(ROUNDS) {
+            for (source in sources) {
+                MediaType.getFileType(source)
+            }
+        }
+        report("getFileType(source)", System.nanoTime() - start, ROUNDS * SOURCES)
+    }
+}
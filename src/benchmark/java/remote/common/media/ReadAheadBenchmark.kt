@@ -0,0 +1,187 @@
+package remote.common.media
+
+import org.junit.Test
+import java.nio.ByteBuffer
+import java.nio.channels.WritableByteChannel
+import java.util.*
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.ReentrantLock
+
+/**
+ * Playback from slow storage with and without [ReadAhead]: players fetch 1 MB ranges from a
+ * source that reads like an SD card behind FUSE, keep a few of them buffered and play them at
+ * their bitrate. A chunk arriving after the playhead reached it is a stall.
+ */
+class ReadAheadBenchmark {
+
+    companion object {
+        private const val MB = 1024 * 1024
+        private const val CHUNK = MB
+        private const val CHUNKS = 24
+        /**
+         * 48 Mbps, a high bitrate 4K stream
+         */
+        private const val PACE_MS = 1000L / 6
+        /**
+         * chunks the player keeps fetched ahead of its playhead
+         */
+        private const val BUFFER_CHUNKS = 3
+        private const val BLOCK = 64 * 1024
+        /**
+         * storage reads 16 MB/s, one block at a time
+         */
+        private const val BLOCK_READ_MS = 4L
+    }
+
+    /**
+     * content behind a single slow device queue, with a page cache of the blocks read once
+     */
+    private class SlowStorage(size: Int, override val key: String) : MediaSource {
+        private val content = ByteArray(size)
+        private val cached = BitSet(size / BLOCK)
+        private val loading = BitSet(size / BLOCK)
+        // requests queue at the device in order
+        private val device = ReentrantLock(true)
+
+        override val name: String
+            get() = "movie.mp4"
+
+        override val length: Long
+            get() = content.size.toLong()
+
+        override val lastModified: Long
+            get() = 1000
+
+        private fun load(position: Long, count: Int) {
+            var block = (position / BLOCK).toInt()
+            val last = ((position + count - 1) / BLOCK).toInt()
+            while (block <= last) {
+                // a block some other read is loading is waited for, as the page cache does
+                val mine = synchronized(cached) {
+                    while (loading.get(block)) {
+                        (cached as Object).wait()
+                    }
+                    val miss = !cached.get(block)
+                    if (miss) {
+                        loading.set(block)
+                    }
+                    miss
+                }
+                if (mine) {
+                    device.lock()
+                    try {
+                        Thread.sleep(BLOCK_READ_MS)
+                    } finally {
+                        device.unlock()
+                    }
+                    synchronized(cached) {
+                        cached.set(block)
+                        loading.clear(block)
+                        (cached as Object).notifyAll()
+                    }
+                }
+                block++
+            }
+        }
+
+        override fun open(): MediaSource.Reader = object : MediaSource.Reader {
+            override fun read(dst: ByteBuffer, position: Long): Int {
+                if (position >= length) {
+                    return -1
+                }
+                val count = minOf(dst.remaining().toLong(), length - position).toInt()
+                load(position, count)
+                dst.put(content, position.toInt(), count)
+                return count
+            }
+
+            override fun transferTo(position: Long, count: Long, target: WritableByteChannel): Long {
+                load(position, count.toInt())
+                val buffer = ByteBuffer.wrap(content, position.toInt(), count.toInt())
+                while (buffer.hasRemaining()) {
+                    target.write(buffer)
+                }
+                return count
+            }
+
+            override fun close() {
+            }
+        }
+    }
+
+    private class Discard : WritableByteChannel {
+        override fun write(src: ByteBuffer): Int {
+            val count = src.remaining()
+            src.position(src.limit())
+            return count
+        }
+
+        override fun isOpen() = true
+
+        override fun close() {
+        }
+    }
+
+    private class Playback(val startupMs: Long, val stalls: Int, val stalledMs: Long, val fetchMs: List<Long>)
+
+    /**
+     * fetch chunks while the buffer has room, play them at the bitrate once the first arrived
+     */
+    private fun play(transfer: RegionTransfer, source: MediaSource, start: Long): Playback {
+        val fetchMs = ArrayList<Long>()
+        val target = Discard()
+        val began = System.nanoTime()
+        var playStart = 0L
+        var stalled = 0L
+        var stalls = 0
+        source.open().use { reader ->
+            for (i in 0 until CHUNKS) {
+                if (i >= BUFFER_CHUNKS) {
+                    // room once the chunk BUFFER_CHUNKS back has been played
+                    val room = playStart + stalled + (i - BUFFER_CHUNKS + 1) * PACE_MS * 1_000_000
+                    val wait = room - System.nanoTime()
+                    if (wait > 0) {
+                        Thread.sleep(wait / 1_000_000)
+                    }
+                }
+                val fetchStart = System.nanoTime()
+                transfer.send(source.key, source, reader, start + i.toLong() * CHUNK, CHUNK.toLong(), target)
+                val arrived = System.nanoTime()
+                fetchMs.add((arrived - fetchStart) / 1_000_000)
+                if (i == 0) {
+                    playStart = arrived
+                    continue
+                }
+                val needed = playStart + stalled + i * PACE_MS * 1_000_000
+                if (arrived > needed) {
+                    stalls++
+                    stalled += arrived - needed
+                }
+            }
+        }
+        return Playback((playStart - began) / 1_000_000, stalls, stalled / 1_000_000, fetchMs)
+    }
+
+    private fun run(label: String, readAhead: ReadAhead?, players: Int) {
+        val source = SlowStorage(players * CHUNKS * CHUNK, "ReadAheadBenchmark/$label")
+        val transfer = RegionTransfer(null, readAhead)
+        val pool = Executors.newFixedThreadPool(players)
+        val results = (0 until players).map { player ->
+            pool.submit<Playback> { play(transfer, source, player.toLong() * CHUNKS * CHUNK) }
+        }.map { it.get(5, TimeUnit.MINUTES) }
+        pool.shutdown()
+        val fetchMs = results.flatMap { it.fetchMs }.sorted()
+        println("%-28s startup %4d ms  stalls %2d for %4d ms  fetch p50 %4d ms  p95 %4d ms".format(label,
+            results.maxOf { it.startupMs }, results.sumOf { it.stalls }, results.sumOf { it.stalledMs },
+            fetchMs[fetchMs.size / 2], fetchMs[fetchMs.size * 95 / 100]))
+    }
+
+    @Test
+    fun playbackFromSlowStorage() {
+        for (players in 1..2) {
+            run("$players player(s), no read-ahead", null, players)
+            run("$players player(s), read-ahead", ReadAhead(), players)
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package remote.common.media
+
+import org.junit.Test
+import java.util.*
+
+/**
+ * Search-as-you-type cost of [TitleIndex] against what the library did before it: a
+ * `title LIKE '%query%' ORDER BY title LIMIT n` query, which the database answers by lower casing
+ * and scanning every title. The scan is emulated in memory, so the figures leave out the cursor
+ * and row decoding the real query paid on top.
+ */
+class TitleIndexBenchmark {
+
+    companion object {
+        private const val TITLES = 50_000
+        private const val LIMIT = 20
+        private const val ROUNDS = 20
+        private val WORDS = listOf("star", "wars", "trek", "matrix", "return", "night", "day", "king", "queen", "lost",
+            "city", "river", "summer", "winter", "holiday", "beach", "birthday", "party", "family", "trip", "concert",
+            "garden", "mountain", "snow", "amélie", "léon", "école", "vacances", "noël", "hochzeit")
+        /**
+         * what a user types, one keystroke at a time
+         */
+        private val TYPED = listOf("s", "su", "sum", "summ", "summe", "summer", "summer b", "summer be", "summer bea",
+            "h", "ho", "hol", "holi", "holid", "k", "ki", "kin", "king", "lo", "los", "lost c")
+    }
+
+    private val titles = Random(7).let { random ->
+        List(TITLES) { i ->
+            val words = List(2 + random.nextInt(3)) { WORDS[random.nextInt(WORDS.size)] }
+            words.joinToString(" ").replaceFirstChar { it.uppercaseChar() } + " " + (2000 + i % 25)
+        }
+    }
+
+    /**
+     * the LIKE query: every title lower cased and searched, the matches sorted for the limit
+     */
+    private fun likeScan(query: String): List<String> {
+        val needle = query.lowercase(Locale.ROOT)
+        val matches = ArrayList<String>()
+        for (title in titles) {
+            if (title.lowercase(Locale.ROOT).contains(needle)) {
+                matches.add(title)
+            }
+        }
+        matches.sort()
+        return matches.take(LIMIT)
+    }
+
+    private fun report(label: String, nanos: LongArray) {
+        nanos.sort()
+        println("%-12s mean %8.1f us  p50 %8.1f us  p95 %8.1f us  max %8.1f us".format(label, nanos.average() / 1000,
+            nanos[nanos.size / 2] / 1000.0, nanos[nanos.size * 95 / 100] / 1000.0, nanos[nanos.size - 1] / 1000.0))
+    }
+
+    private fun measure(label: String, search: (String) -> List<*>) {
+        // warm up
+        repeat(ROUNDS / 2) { TYPED.forEach { search(it) } }
+        val nanos = LongArray(ROUNDS * TYPED.size)
+        var i = 0
+        repeat(ROUNDS) {
+            for (query in TYPED) {
+                val start = System.nanoTime()
+                search(query)
+                nanos[i++] = System.nanoTime() - start
+            }
+        }
+        report(label, nanos)
+    }
+
+    @Test
+    fun searchAsYouType() {
+        val index = TitleIndex()
+        val start = System.nanoTime()
+        for ((i, title) in titles.withIndex()) {
+            index.add("/sdcard/Movies/$i.mp4", title)
+        }
+        println("index of %d titles built in %d ms".format(TITLES, (System.nanoTime() - start) / 1_000_000))
+
+        measure("title index") { index.search(it, LIMIT) }
+        measure("like scan") { likeScan(it) }
+    }
+}
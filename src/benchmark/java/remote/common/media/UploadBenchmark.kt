@@ -0,0 +1,120 @@
+package remote.common.media
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.BufferedInputStream
+import java.io.File
+import java.io.RandomAccessFile
+import java.net.Socket
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * A body past 2 GB, generated while it is sent, streamed into [UploadReceiver]: throughput, and
+ * the heap the server holds meanwhile, which must not grow with the body.
+ */
+class UploadBenchmark {
+
+    companion object {
+        private const val MB = 1024 * 1024
+        private const val BODY = 2L * 1024 * MB + 12_345
+        /**
+         * what the receive buffers and NanoHTTPD's header buffer may take, well under the body
+         */
+        private const val MAX_HEAP_GROWTH = 32L * MB
+        private const val SAMPLE_MS = 50L
+    }
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private fun usedHeap(): Long {
+        val runtime = Runtime.getRuntime()
+        return runtime.totalMemory() - runtime.freeMemory()
+    }
+
+    private fun settledHeap(): Long {
+        repeat(3) {
+            System.gc()
+            Thread.sleep(50)
+        }
+        return usedHeap()
+    }
+
+    /**
+     * byte [position] of the body, cheap enough to generate at the rate it is sent
+     */
+    private fun pattern(position: Long) = (position xor (position ushr 13)).toByte()
+
+    @Test
+    fun streamsABodyPastTwoGigabytes() {
+        val dir = folder.newFolder("uploads")
+        val server = StreamWebServer(port = 0)
+        val receiver = server.enableUploads(dir)
+        server.start()
+        try {
+            val before = settledHeap()
+            val peak = AtomicLong(before)
+            val sampling = Thread {
+                while (!Thread.currentThread().isInterrupted) {
+                    // garbage from the client is collected before the sample, what stays is held
+                    System.gc()
+                    peak.set(maxOf(peak.get(), usedHeap()))
+                    try {
+                        Thread.sleep(SAMPLE_MS)
+                    } catch (e: InterruptedException) {
+                        return@Thread
+                    }
+                }
+            }
+            sampling.start()
+
+            val start = System.nanoTime()
+            val status = Socket("127.0.0.1", server.listeningPort).use { socket ->
+                val out = socket.getOutputStream()
+                out.write("PUT ${receiver.path}big.bin HTTP/1.1\r\nHost: 127.0.0.1\r\nContent-Length: $BODY\r\n\r\n".toByteArray(Charsets.US_ASCII))
+                val chunk = ByteArray(MB)
+                var sent = 0L
+                while (sent < BODY) {
+                    val count = minOf(chunk.size.toLong(), BODY - sent).toInt()
+                    for (i in 0 until count) {
+                        chunk[i] = pattern(sent + i)
+                    }
+                    out.write(chunk, 0, count)
+                    sent += count
+                }
+                out.flush()
+                val reply = BufferedInputStream(socket.getInputStream())
+                val line = StringBuilder()
+                while (true) {
+                    val c = reply.read()
+                    if (c < 0 || c.toByte() == '\n'.toByte()) {
+                        break
+                    }
+                    line.append(c.toChar())
+                }
+                line.split(" ")[1].toInt()
+            }
+            val seconds = (System.nanoTime() - start) / 1e9
+            sampling.interrupt()
+            sampling.join()
+
+            assertEquals(201, status)
+            val file = File(dir, "big.bin")
+            assertEquals(BODY, file.length())
+            RandomAccessFile(file, "r").use { raf ->
+                for (position in listOf(0L, Int.MAX_VALUE.toLong(), BODY - 1)) {
+                    raf.seek(position)
+                    assertEquals(pattern(position), raf.read().toByte())
+                }
+            }
+            val growth = peak.get() - before
+            println("%d MB in %.1f s, %.0f MB/s, heap grew %d KB at most".format(BODY / MB, seconds, BODY / seconds / MB, growth / 1024))
+            assertTrue("heap grew ${growth / 1024} KB", growth < MAX_HEAP_GROWTH)
+        } finally {
+            server.stop()
+        }
+    }
+}
@@ -8,34 +8,42 @@ import android.util.Base64
 import android.util.Log
 import remote.common.utils.Logger
 import com.cgutman.adblib.AdbBase64
-import com.cgutman.adblib.AdbConnection
 import com.cgutman.adblib.AdbCrypto
-import com.cgutman.adblib.AdbStream
-import remote.common.utils.ByteUtils
 import java.io.*
-import java.lang.StringBuilder
-import java.net.Socket
-import java.nio.charset.Charset
-
+import java.util.concurrent.CopyOnWriteArrayList
+
+/**
+ * Keeps a session per device, keyed by `ip:port`, so switching between devices reuses a live
+ * connection instead of a new socket and RSA handshake. The calls without a device id go to the
+ * current device, the last one passed to [connect]. Sessions other than the current one are closed
+ * once idle for [idleTimeoutMs], or the least recently used when there are more than [maxSessions].
+ */
 object AdbController {
     private const val TAG = "AdbController"
     private val base64Impl = AdbBase64 { arg0 -> Base64.encodeToString(arg0, Base64.NO_WRAP) }
     private var adbCrypto: AdbCrypto? = null
-    private var adbShellStream: AdbStream? = null
-    private var adbSyncStream: AdbStream? = null
-    private var adbConnection: AdbConnection? = null
     private var adbThread = HandlerThread("adb_thread")
     private var adbHandler: Handler? = null
-    private var connected = false
-    private var deviceIp = ""
-    private var devicePort = 0
-    private var eventListeners: MutableList<AdbEventListener> = arrayListOf()
-    private var readThread: Thread? = null
+    private var eventListeners: MutableList<AdbEventListener> = CopyOnWriteArrayList()
+
+    /**
+     * live sessions by device id, least recently used first
+     */
+    private val sessions = LinkedHashMap<String, AdbSession>(8, 0.75f, true)
+    @Volatile
+    private var currentSession: AdbSession? = null
+
+    /**
+     * how long a session other than the current one stays open unused
+     */
+    var idleTimeoutMs = 5 * 60 * 1000L
+    var maxSessions = 8
 
     private var MSG_CONNECT = 1
     private var MSG_DISCONNECT = 2
-    private var MSG_COMMAND = 3
-    private var MSG_PUSH = 4
+    private var MSG_EVICT = 3
+
+    private const val EVICT_INTERVAL_MS = 30 * 1000L
 
     fun init(context: Context) {
         adbThread.start()
@@ -45,26 +53,11 @@ object AdbController {
                     var param = it.obj as AdbConnectParam
                     doConnect(param.ip, param.port)
                 }
-                MSG_COMMAND -> {
-                    if (!connected) {
-                        notifyEvent(AdbEventType.ERROR, null, "设备未连接，请先连接设备")
-                    }
-
-                    val command = it.obj as String
-                    if (adbShellStream?.isClosed == true) {
-                        disconnect()
-                    } else {
-                        Logger.d(TAG, "(request)response=${command}")
-                        adbShellStream?.write(command.toByteArray())
-                    }
-                }
                 MSG_DISCONNECT -> {
-                    doDisconnect()
+                    (it.obj as? AdbSession)?.disconnect()
                 }
-                MSG_PUSH -> {
-                    var param = it.obj as PushParam
-                    var result = doPush(param.inputStream, param.remotePath)
-                    notifyEvent(AdbEventType.FILE_PUSHED, null, result)
+                MSG_EVICT -> {
+                    evictSessions()
                 }
             }
             true
@@ -73,8 +66,10 @@ object AdbController {
     }
 
     fun release() {
-        disconnect()
         adbHandler?.removeCallbacksAndMessages(null)
+        for (session in getSessions()) {
+            session.disconnect()
+        }
         adbThread.looper.quit()
     }
 
@@ -90,6 +85,9 @@ object AdbController {
         }
     }
 
+    /**
+     * make the device current, reusing its session when one is open
+     */
     fun connect(deviceIp: String, devicePort: Int) {
         var msg = Message.obtain()
         msg.what = MSG_CONNECT
@@ -98,164 +96,202 @@ object AdbController {
     }
 
     private fun doConnect(deviceIp: String, devicePort: Int): Boolean {
-        var errorMsg: String? = null
-        notifyEvent(AdbEventType.STATUS, AdbStatus.CONNECTING, deviceIp)
         if (adbCrypto == null) {
-            errorMsg = "adbCrypto is null, please call init() first";
+            notifyEvent(AdbEventType.STATUS, AdbStatus.CONNECTING, deviceIp)
+            val errorMsg = "adbCrypto is null, please call init() first"
             Log.e(TAG, errorMsg)
             notifyEvent(AdbEventType.ERROR, null, errorMsg)
             return false
         }
 
-        if (connected) {
-            if (AdbController.deviceIp == deviceIp && AdbController.devicePort == devicePort) {
-                errorMsg = "this ip is already connnected, no need to reconnect"
-                Log.i(TAG, errorMsg)
-                return false
+        val deviceId = AdbSession.deviceIdOf(deviceIp, devicePort)
+        val pooled = getSession(deviceId)
+        if (pooled != null) {
+            pooled.touch()
+            currentSession = pooled
+            Logger.d(TAG, "switch to $deviceId")
+            if (pooled.connected) {
+                notifyEvent(AdbEventType.STATUS, AdbStatus.CONNECTED, deviceIp, deviceId)
             }
-            disconnect()
+            // else CONNECTED follows once its handshake is done
+            evictSessions()
+            return true
         }
 
-        try {
-            var socket = Socket(deviceIp, devicePort)
-            adbConnection = AdbConnection.create(socket, adbCrypto)
-            adbConnection?.connect()
-            adbShellStream = adbConnection?.open("shell:")
-        } catch (e: Exception) {
-            e.printStackTrace()
-            errorMsg = "connect error!"
-            Log.i(TAG, errorMsg, e)
-            notifyEvent(AdbEventType.ERROR, null, errorMsg)
-            disconnect()
-            return false
+        val session = AdbSession(deviceIp, devicePort, adbCrypto!!, ::onSessionEvent)
+        synchronized(sessions) {
+            sessions[deviceId] = session
         }
-
-        AdbController.deviceIp = deviceIp
-        AdbController.devicePort = devicePort
-        connected = true
-        notifyEvent(AdbEventType.STATUS, AdbStatus.CONNECTED, deviceIp)
-
-        // Start the receiving thread
-        readThread = Thread(Runnable {
-            var responseBuilder = StringBuilder()
-            while (adbShellStream?.isClosed == false){
-                try {
-                    // Print each thing we read from the shell stream
-                    var response = String(adbShellStream!!.read(), Charset.forName("US-ASCII"))
-                    if (!response.endsWith("/ \$ ")) {
-                        responseBuilder.append(response)
-                    } else {
-                        responseBuilder.append(response)
-                        var fullResponse = responseBuilder.toString()
-                        Logger.d(TAG, "response=${fullResponse}")
-                        notifyEvent(AdbEventType.RESPONSE, null, fullResponse)
-                        responseBuilder = StringBuilder()
-                    }
-
-                } catch (e: Exception) {
-                    e.printStackTrace()
-                    disconnect()
-                    return@Runnable
-                }
-            }
-        })
-        readThread?.start()
-
+        currentSession = session
+        session.connect()
+        evictSessions()
         return true
     }
 
+    /**
+     * disconnect the current device
+     */
     fun disconnect() {
+        disconnect(currentSession?.deviceId ?: return)
+    }
+
+    fun disconnect(deviceId: String) {
         var msg = Message.obtain()
         msg.what = MSG_DISCONNECT
+        msg.obj = getSession(deviceId) ?: return
         adbHandler?.sendMessage(msg)
     }
 
     fun doDisconnect() {
-        if (adbShellStream != null) {
-            adbShellStream?.close()
-            adbShellStream = null
-        }
-        if (adbSyncStream != null) {
-            adbSyncStream?.close()
-            adbSyncStream = null
-        }
-        if (adbConnection != null) {
-            adbConnection?.close()
-            adbConnection = null
+        currentSession?.disconnect()
+    }
+
+    /**
+     * `ip:port` of the current device, null when none
+     */
+    val currentDeviceId: String?
+        get() = currentSession?.deviceId
+
+    /**
+     * @return the open session of a device, null if there's none
+     */
+    fun getSession(deviceId: String): AdbSession? {
+        return synchronized(sessions) { sessions[deviceId] }?.takeUnless { it.closed }
+    }
+
+    fun getSessions(): List<AdbSession> {
+        return synchronized(sessions) { ArrayList(sessions.values) }
+    }
+
+    /**
+     * run [command] on the current device
+     * @param callback gets the command's own output and exit code, see [AdbSession.sendCommand]
+     */
+    fun sendCommand(command: String, timeoutMs: Long = AdbSession.COMMAND_TIMEOUT_MS, callback: ((ShellResult) -> Unit)? = null) {
+        val session = currentSession
+        if (session == null) {
+            notifyEvent(AdbEventType.ERROR, null, "设备未连接，请先连接设备")
+            callback?.invoke(ShellResult(command, "", -1))
+            return
         }
-        connected = false
-        notifyEvent(AdbEventType.STATUS, AdbStatus.DISCONNECTED, deviceIp)
-        notifyEvent(AdbEventType.ERROR, null, "连接已断开，请重新连接")
+        sendCommand(session.deviceId, command, timeoutMs, callback)
     }
 
-    fun sendCommand(command: String) {
+    fun sendCommand(deviceId: String, command: String, timeoutMs: Long = AdbSession.COMMAND_TIMEOUT_MS, callback: ((ShellResult) -> Unit)? = null) {
         if (command.isEmpty()) {
             Log.e(TAG, "sendCommand cmd is empty")
             return
         }
-        var msg = Message.obtain()
-        msg.what = MSG_COMMAND
-        msg.obj = command
-        adbHandler?.sendMessage(msg)
+        val session = getSession(deviceId)
+        if (session == null) {
+            notifyEvent(AdbEventType.ERROR, null, "设备未连接，请先连接设备", deviceId)
+            callback?.invoke(ShellResult(command, "", -1))
+            return
+        }
+        session.sendCommand(command, timeoutMs, callback)
     }
 
-    fun pushFile(inputStream: InputStream, remotePath: String) {
-        var msg = Message.obtain()
-        msg.what = MSG_PUSH
-        msg.obj = PushParam(inputStream, remotePath)
-        adbHandler?.sendMessage(msg)
+    /**
+     * run [command] on a stream of its own on the current device, see [AdbSession.exec]
+     */
+    fun exec(command: String, timeoutMs: Long = AdbSession.COMMAND_TIMEOUT_MS, callback: (ShellResult) -> Unit) {
+        val session = currentSession
+        if (session == null) {
+            callback(ShellResult(command, "", -1))
+            return
+        }
+        session.exec(command, timeoutMs, callback)
     }
 
-    private fun doPush(inputStream: InputStream, remotePath: String): Boolean {
-        var result = false
-        try {
-            if (adbSyncStream == null) {
-                adbSyncStream = adbConnection?.open("sync:")
-            }
-            val sendId = "SEND"
-            val mode = ",33206"
-            val length = (remotePath + mode).length
-
-            adbSyncStream?.write(ByteUtils.concat(sendId.toByteArray(), ByteUtils.intToByteArray(length)))
-            adbSyncStream?.write(remotePath.toByteArray())
-            adbSyncStream?.write(mode.toByteArray())
-
-            val buff = ByteArray(adbConnection!!.maxData)
-            val byteDATA = "DATA".toByteArray()
-            val byteExtra = ByteArray(byteDATA.size+4)
-            System.arraycopy(byteDATA, 0, byteExtra, 0, byteDATA.size)
-            val byteLengthTmp = ByteArray(4)
-
-            var sent: Long = 0
-            while (true) {
-                val read = inputStream.read(buff)
-                if (read < 0) {
-                    break
+    /**
+     * run [commands] concurrently on the current device, see [AdbSession.execAll]
+     */
+    fun execAll(commands: List<String>, timeoutMs: Long = AdbSession.COMMAND_TIMEOUT_MS, callback: (List<ShellResult>) -> Unit) {
+        val session = currentSession
+        if (session == null) {
+            callback(commands.map { ShellResult(it, "", -1) })
+            return
+        }
+        session.execAll(commands, timeoutMs, callback)
+    }
+
+    /**
+     * push to the current device, reporting [AdbEventType.PUSH_PROGRESS] then [AdbEventType.FILE_PUSHED]
+     * @param length bytes in [inputStream] for progress events, -1 if unknown
+     */
+    fun pushFile(inputStream: InputStream, remotePath: String, length: Long = -1) {
+        val session = currentSession
+        if (session == null) {
+            notifyEvent(AdbEventType.FILE_PUSHED, null, false)
+            return
+        }
+        session.pushFile(inputStream, remotePath, length)
+    }
+
+    fun pushFile(deviceId: String, inputStream: InputStream, remotePath: String, length: Long = -1) {
+        val session = getSession(deviceId)
+        if (session == null) {
+            notifyEvent(AdbEventType.FILE_PUSHED, null, false, deviceId)
+            return
+        }
+        session.pushFile(inputStream, remotePath, length)
+    }
+
+    /**
+     * stop the current device's running push and drop its queued ones
+     */
+    fun cancelPush() {
+        currentSession?.cancelPush()
+    }
+
+    fun cancelPush(deviceId: String) {
+        getSession(deviceId)?.cancelPush()
+    }
+
+    /**
+     * close sessions idle past [idleTimeoutMs], then the least recently used over [maxSessions];
+     * the current session and sessions pushing or running execs are kept, and checked again later
+     */
+    private fun evictSessions() {
+        val now = System.currentTimeMillis()
+        val evicted = ArrayList<AdbSession>()
+        var kept = 0
+        synchronized(sessions) {
+            var open = sessions.values.count { !it.closed }
+            for (session in sessions.values) {
+                if (session === currentSession || session.closed) {
+                    continue
                 }
-                ByteUtils.intToBytes(read, byteLengthTmp)
-                System.arraycopy(byteLengthTmp, 0, byteExtra, byteDATA.size, 4)
-                adbSyncStream?.write(byteExtra)
-                if (read == buff.size) {
-                    adbSyncStream?.write(buff)
+                if (!session.busy && (now - session.lastUsed > idleTimeoutMs || open > maxSessions)) {
+                    evicted.add(session)
+                    open--
                 } else {
-                    val tmp = ByteArray(read)
-                    System.arraycopy(buff, 0, tmp, 0, read)
-                    adbSyncStream?.write(tmp)
+                    kept++
                 }
-                sent += read.toLong()
-                Logger.d(TAG, "push sent=${sent/1024}KB")
             }
+        }
+        for (session in evicted) {
+            Logger.d(TAG, "close idle session ${session.deviceId}")
+            session.disconnect()
+        }
+        adbHandler?.removeMessages(MSG_EVICT)
+        if (kept > 0) {
+            adbHandler?.sendEmptyMessageDelayed(MSG_EVICT, minOf(EVICT_INTERVAL_MS, idleTimeoutMs))
+        }
+    }
 
-            adbSyncStream?.write(ByteUtils.concat("DONE".toByteArray(), ByteUtils.intToByteArray(System.currentTimeMillis().toInt())))
-            val res = adbSyncStream?.read()
-            // TODO: test if res contains "OKEY" or "FAIL"
-            result = String(res!!).startsWith("OKAY")
-            adbSyncStream?.write(ByteUtils.concat("QUIT".toByteArray(), ByteUtils.intToByteArray(0)))
-        } catch (e: Exception) {
-            e.printStackTrace()
-            return false
+    private fun onSessionEvent(session: AdbSession, event: AdbEvent) {
+        if (event.eventType == AdbEventType.STATUS && event.status == AdbStatus.DISCONNECTED) {
+            synchronized(sessions) {
+                if (sessions[session.deviceId] === session) {
+                    sessions.remove(session.deviceId)
+                }
+            }
+            if (currentSession === session) {
+                currentSession = null
+            }
         }
-        return result
+        notifyEvent(event)
     }
 
     private fun setupCrypto(dirFile: File, pubKeyFile: String, privKeyFile: String): AdbCrypto? {
@@ -285,9 +321,13 @@ object AdbController {
         return c
     }
 
-    private fun notifyEvent(type: AdbEventType, status: AdbStatus?, param: Any) {
+    private fun notifyEvent(type: AdbEventType, status: AdbStatus?, param: Any, deviceId: String? = null) {
+        notifyEvent(AdbEvent(type, status, param, deviceId))
+    }
+
+    private fun notifyEvent(event: AdbEvent) {
         eventListeners.forEach {
-            it.onAdbEvent(AdbEvent(type, status, param))
+            it.onAdbEvent(event)
         }
     }
 
@@ -298,10 +338,11 @@ object AdbController {
 
     data class PushParam(
         var inputStream: InputStream,
-        var remotePath: String
+        var remotePath: String,
+        var length: Long = -1
     )
 
     interface AdbEventListener {
         fun onAdbEvent(adbEvent: AdbEvent)
     }
-}
\ No newline at end of file
+}
@@ -1,20 +1,47 @@
 package remote.common.adb
 
+/**
+ * @param deviceId `ip:port` of the device the event is about, null when it's about none
+ */
 data class AdbEvent(
     val eventType: AdbEventType,
     val status: AdbStatus?,
-    val param: Any
+    val param: Any,
+    val deviceId: String? = null
 )
 
 enum class AdbEventType {
     STATUS,
     ERROR,
     RESPONSE,
-    FILE_PUSHED
+    FILE_PUSHED,
+    PUSH_PROGRESS
 }
 
 enum class AdbStatus {
     CONNECTING,
     CONNECTED,
     DISCONNECTED
-}
\ No newline at end of file
+}
+
+/**
+ * param of [AdbEventType.PUSH_PROGRESS]
+ * @param total bytes to push, -1 when unknown
+ */
+data class PushProgress(
+    val remotePath: String,
+    val sent: Long,
+    val total: Long
+)
+
+/**
+ * outcome of a shell command
+ * @param output what the command printed, up to a limit
+ * @param exitCode its exit code, -1 when it timed out or the connection closed first
+ */
+class ShellResult(
+    val command: String,
+    val output: String,
+    val exitCode: Int,
+    val timedOut: Boolean = false
+)
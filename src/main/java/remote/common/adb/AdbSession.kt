@@ -0,0 +1,802 @@
+package remote.common.adb
+
+import android.os.Handler
+import android.os.HandlerThread
+import android.os.Message
+import android.util.Log
+import com.cgutman.adblib.AdbConnection
+import com.cgutman.adblib.AdbCrypto
+import com.cgutman.adblib.AdbStream
+import remote.common.utils.ByteUtils
+import remote.common.utils.Logger
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.io.InputStream
+import java.io.InterruptedIOException
+import java.io.OutputStream
+import java.net.Socket
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.ScheduledThreadPoolExecutor
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * One device's connection, kept open by [AdbController] while the user switches between devices.
+ *
+ * Commands run on the session's shell lane and pushes on its bulk lane, each its own thread, so
+ * devices don't wait on each other and a push doesn't hold up a keypress. Events are tagged with
+ * [deviceId]. A session that disconnects is finished; connecting again takes a new one.
+ */
+class AdbSession(
+    val deviceIp: String,
+    val devicePort: Int,
+    private val adbCrypto: AdbCrypto,
+    private val listener: (AdbSession, AdbEvent) -> Unit,
+    maxExecStreams: Int = 4
+) {
+
+    companion object {
+        private const val TAG = "AdbSession"
+
+        private const val MSG_CONNECT = 1
+        private const val MSG_DISCONNECT = 2
+        private const val MSG_COMMAND = 3
+        private const val MSG_PUSH = 4
+
+        /**
+         * sync DATA chunks in flight between the reader and the writer of a push
+         */
+        private const val PUSH_BUFFERS = 4
+        private const val SYNC_DATA_MAX = 64 * 1024
+        private const val PROGRESS_INTERVAL_MS = 250L
+
+        const val COMMAND_TIMEOUT_MS = 30 * 1000L
+        /**
+         * output kept per command, the rest is dropped
+         */
+        private const val MAX_OUTPUT = 1024 * 1024
+        private val INTERRUPT = byteArrayOf(0x03)
+        private val EXEC_START = byteArrayOf('\n'.toByte())
+
+        /**
+         * AdbConnection.open waits for the device's OKAY without a timeout, and misses one that
+         * arrives before it starts waiting
+         */
+        private const val OPEN_TIMEOUT_MS = 5 * 1000L
+
+        /**
+         * timeouts of opens and execs, shared by all sessions
+         */
+        private val watchdog = ScheduledThreadPoolExecutor(1, ThreadFactory { r ->
+            val thread = Thread(r, "adb_watchdog")
+            thread.isDaemon = true
+            thread
+        }).apply {
+            removeOnCancelPolicy = true
+        }
+
+        fun deviceIdOf(deviceIp: String, devicePort: Int) = "$deviceIp:$devicePort"
+    }
+
+    val deviceId = deviceIdOf(deviceIp, devicePort)
+
+    @Volatile
+    var connected = false
+        private set
+
+    /**
+     * disconnected or failed to connect, the session can't be used again
+     */
+    @Volatile
+    var closed = false
+        private set
+
+    /**
+     * last time a command or push was sent, or the session was switched to
+     */
+    @Volatile
+    var lastUsed = System.currentTimeMillis()
+        private set
+
+    /**
+     * a push or exec is running or queued
+     */
+    val busy: Boolean
+        get() = pushes.get() > 0 || execs.get() > 0
+
+    @Volatile
+    private var adbConnection: AdbConnection? = null
+    @Volatile
+    private var adbShellStream: AdbStream? = null
+    @Volatile
+    private var adbSyncStream: AdbStream? = null
+    private var readThread: Thread? = null
+
+    // shell lane: connect, commands, disconnect
+    private val shellThread = HandlerThread("adb_shell_$deviceId")
+    private val shellHandler: Handler
+    // bulk lane: pushes, so a long copy never holds up a keypress
+    private val pushThread = HandlerThread("adb_push_$deviceId")
+    private val pushHandler: Handler
+    private val pushes = AtomicInteger()
+
+    // exec lane: commands on streams of their own, at most maxExecStreams open at once
+    private val execThreads = AtomicInteger()
+    private val execExecutor = ThreadPoolExecutor(
+        maxExecStreams, maxExecStreams, 30, TimeUnit.SECONDS,
+        LinkedBlockingQueue(),
+        ThreadFactory { r ->
+            val thread = Thread(r, "adb_exec_${deviceId}_${execThreads.incrementAndGet()}")
+            thread.isDaemon = true
+            thread
+        }
+    ).apply {
+        allowCoreThreadTimeOut(true)
+    }
+    private val execs = AtomicInteger()
+
+    /**
+     * AdbConnection keeps its streams in a plain HashMap, streams are opened one at a time
+     */
+    private val openLock = Object()
+
+    /**
+     * both lanes write to the one connection socket, shell writes go first. Each packet is made
+     * atomic by the socket's [PacketOutputStream], this only orders the lanes.
+     */
+    private val connectionWriteLock = Object()
+    private val shellWriters = AtomicInteger()
+
+    /**
+     * bumped by [cancelPush], a push stops once it differs from the value it started with
+     */
+    private val pushGeneration = AtomicInteger()
+
+    /**
+     * @param typed [command] wrapped in its markers
+     */
+    private class PendingCommand(val id: Int, val command: String, val typed: String, val callback: ((ShellResult) -> Unit)?) {
+        val output = ByteArrayOutputStream()
+        @Volatile
+        var timeout: Runnable? = null
+    }
+
+    /**
+     * commands sent and not finished, by id; guarded by itself
+     */
+    private val pendingCommands = HashMap<Int, PendingCommand>()
+
+    /**
+     * Commands are typed one at a time: the ^C sent to one that timed out flushes the pty's
+     * typeahead, which would silently drop commands typed behind it. [inFlight] is the one typed,
+     * the rest wait in [queuedCommands]; both guarded by [pendingCommands].
+     */
+    private var inFlight: PendingCommand? = null
+    private val queuedCommands = ArrayDeque<PendingCommand>()
+    private val commandIds = AtomicInteger()
+    @Volatile
+    private var runningCommandId = -1
+
+    private val shellParser = ShellOutputParser(object : ShellOutputParser.Listener {
+        override fun onStart(id: Int) {
+            runningCommandId = id
+        }
+
+        override fun onOutput(id: Int, data: ByteArray, offset: Int, length: Int) {
+            val pending = synchronized(pendingCommands) { pendingCommands[id] } ?: return
+            val room = MAX_OUTPUT - pending.output.size()
+            if (room > 0) {
+                pending.output.write(data, offset, minOf(length, room))
+            }
+        }
+
+        override fun onEnd(id: Int, exitCode: Int) {
+            runningCommandId = -1
+            val pending = synchronized(pendingCommands) { pendingCommands.remove(id) }
+            if (pending != null) {
+                cancelTimeout(pending)
+                finish(pending, exitCode, false)
+            }
+            typeNextLater(id)
+        }
+    })
+
+    init {
+        shellThread.start()
+        shellHandler = Handler(shellThread.looper) {
+            when (it.what) {
+                MSG_CONNECT -> doConnect()
+                MSG_COMMAND -> doCommand(it.obj as PendingCommand)
+                MSG_DISCONNECT -> doDisconnect()
+            }
+            true
+        }
+        pushThread.start()
+        pushHandler = Handler(pushThread.looper) {
+            if (it.what == MSG_PUSH) {
+                pushes.incrementAndGet()
+                try {
+                    var result = doPush(it.obj as AdbController.PushParam, it.arg1)
+                    notifyEvent(AdbEventType.FILE_PUSHED, null, result)
+                } finally {
+                    pushes.decrementAndGet()
+                }
+            }
+            true
+        }
+    }
+
+    fun connect() {
+        shellHandler.sendEmptyMessage(MSG_CONNECT)
+    }
+
+    fun disconnect() {
+        shellHandler.sendEmptyMessage(MSG_DISCONNECT)
+    }
+
+    fun touch() {
+        lastUsed = System.currentTimeMillis()
+    }
+
+    /**
+     * run [command] on the shell lane; its output is reported as a [AdbEventType.RESPONSE] event
+     * and to [callback], on the session's read thread or, after [timeoutMs], on the shell lane.
+     * A command leaving a quote, escape or here-document open isn't sent and gets exit code -1.
+     */
+    fun sendCommand(command: String, timeoutMs: Long = COMMAND_TIMEOUT_MS, callback: ((ShellResult) -> Unit)? = null) {
+        touch()
+        val id = commandIds.incrementAndGet()
+        val typed = try {
+            ShellOutputParser.wrap(id, command)
+        } catch (e: IllegalArgumentException) {
+            Log.i(TAG, "command not sent", e)
+            callback?.invoke(ShellResult(command, "", -1))
+            return
+        }
+        val pending = PendingCommand(id, command, typed, callback)
+        var msg = Message.obtain()
+        msg.what = MSG_COMMAND
+        msg.obj = pending
+        if (!shellHandler.sendMessage(msg)) {
+            finish(pending, -1, false)
+            return
+        }
+        val timeout = Runnable { onTimeout(pending) }
+        pending.timeout = timeout
+        shellHandler.postDelayed(timeout, timeoutMs)
+    }
+
+    /**
+     * push in the bulk lane, reporting [AdbEventType.PUSH_PROGRESS] then [AdbEventType.FILE_PUSHED]
+     * @param length bytes in [inputStream] for progress events, -1 if unknown
+     */
+    fun pushFile(inputStream: InputStream, remotePath: String, length: Long = -1) {
+        touch()
+        var msg = Message.obtain()
+        msg.what = MSG_PUSH
+        msg.arg1 = pushGeneration.get()
+        msg.obj = AdbController.PushParam(inputStream, remotePath, length)
+        if (!pushHandler.sendMessage(msg)) {
+            // the session closed meanwhile
+            notifyEvent(AdbEventType.FILE_PUSHED, null, false)
+        }
+    }
+
+    /**
+     * stop the running push and drop queued ones; the running one reports FILE_PUSHED false
+     */
+    fun cancelPush() {
+        pushGeneration.incrementAndGet()
+        pushHandler.removeMessages(MSG_PUSH)
+    }
+
+    /**
+     * run [command] on an `exec:` stream of its own, beside the shell and other execs, and pass
+     * its output and exit code to [callback] on an exec thread. At most maxExecStreams run at
+     * once, later ones wait their turn. The exec service has no pty, so output lines end in \n.
+     */
+    fun exec(command: String, timeoutMs: Long = COMMAND_TIMEOUT_MS, callback: (ShellResult) -> Unit) {
+        touch()
+        execs.incrementAndGet()
+        try {
+            execExecutor.execute {
+                try {
+                    callback(doExec(command, timeoutMs))
+                } finally {
+                    execs.decrementAndGet()
+                }
+            }
+        } catch (e: RejectedExecutionException) {
+            execs.decrementAndGet()
+            callback(ShellResult(command, "", -1))
+        }
+    }
+
+    /**
+     * [exec] each of [commands], then pass their results to [callback] in the same order
+     */
+    fun execAll(commands: List<String>, timeoutMs: Long = COMMAND_TIMEOUT_MS, callback: (List<ShellResult>) -> Unit) {
+        if (commands.isEmpty()) {
+            callback(emptyList())
+            return
+        }
+        val results = arrayOfNulls<ShellResult>(commands.size)
+        val remaining = AtomicInteger(commands.size)
+        for ((i, command) in commands.withIndex()) {
+            exec(command, timeoutMs) {
+                results[i] = it
+                if (remaining.decrementAndGet() == 0) {
+                    callback(results.map { result -> result!! })
+                }
+            }
+        }
+    }
+
+    private fun doExec(command: String, timeoutMs: Long): ShellResult {
+        val stream = try {
+            if (closed || adbConnection == null) {
+                return ShellResult(command, "", -1)
+            }
+            // AdbLib drops what's queued on a stream once the device closes it, and fails open
+            // if that happens before open returns. The command waits for a line on stdin before
+            // it starts and after its end marker, so the device doesn't close first.
+            openStream("exec:read -r _; " + ShellOutputParser.wrap(0, command).trimEnd('\n') + "; read -r _")
+        } catch (e: Exception) {
+            Log.i(TAG, "open exec stream error", e)
+            return ShellResult(command, "", -1)
+        }
+        val output = ByteArrayOutputStream()
+        var result = -1
+        val parser = ShellOutputParser(object : ShellOutputParser.Listener {
+            override fun onStart(id: Int) {
+            }
+
+            override fun onOutput(id: Int, data: ByteArray, offset: Int, length: Int) {
+                val room = MAX_OUTPUT - output.size()
+                if (room > 0) {
+                    output.write(data, offset, minOf(length, room))
+                }
+            }
+
+            override fun onEnd(id: Int, exitCode: Int) {
+                result = exitCode
+            }
+        })
+        val timedOut = AtomicBoolean()
+        val timeout = watchdog.schedule({
+            timedOut.set(true)
+            closeQuietly(stream)
+        }, timeoutMs, TimeUnit.MILLISECONDS)
+        try {
+            writeShell(stream, EXEC_START)
+            // AdbLib acks each packet as it arrives and queues it without limit, so the only
+            // backpressure here is draining the queue promptly
+            while (result < 0) {
+                parser.feed(stream.read())
+            }
+        } catch (e: IOException) {
+            // closed by the device, the timeout or a disconnect
+        } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt()
+        } finally {
+            timeout.cancel(false)
+            closeQuietly(stream)
+        }
+        return ShellResult(command, output.toString("UTF-8"), result, timedOut.get() && result < 0)
+    }
+
+    /**
+     * open a stream to [destination], giving up after [OPEN_TIMEOUT_MS]. The OPEN, like the CLSE
+     * of [closeQuietly], goes out whole through the socket's [PacketOutputStream].
+     */
+    private fun openStream(destination: String): AdbStream {
+        val connection = adbConnection ?: throw IOException("not connected")
+        synchronized(openLock) {
+            val guard = OpenGuard(Thread.currentThread())
+            val timeout = watchdog.schedule(guard, OPEN_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+            try {
+                return connection.open(destination)
+            } catch (e: InterruptedException) {
+                if (guard.disarm()) {
+                    throw IOException("open $destination timed out")
+                }
+                throw e
+            } finally {
+                timeout.cancel(false)
+                if (guard.disarm()) {
+                    // fired just as open returned
+                    Thread.interrupted()
+                }
+            }
+        }
+    }
+
+    /**
+     * interrupts a thread stuck in AdbConnection.open, unless disarmed first; once [disarm]
+     * returns the thread can't be interrupted by it any more
+     */
+    private class OpenGuard(private val caller: Thread) : Runnable {
+        private var armed = true
+        private var fired = false
+
+        @Synchronized
+        override fun run() {
+            if (armed) {
+                fired = true
+                caller.interrupt()
+            }
+        }
+
+        /**
+         * @return true if the thread was interrupted
+         */
+        @Synchronized
+        fun disarm(): Boolean {
+            armed = false
+            return fired
+        }
+    }
+
+    private fun closeQuietly(stream: AdbStream) {
+        try {
+            stream.close()
+        } catch (e: IOException) {
+            Log.i(TAG, "close stream error", e)
+        }
+    }
+
+    private fun doConnect() {
+        notifyEvent(AdbEventType.STATUS, AdbStatus.CONNECTING, deviceIp)
+        try {
+            var socket = PacketSocket(deviceIp, devicePort)
+            adbConnection = AdbConnection.create(socket, adbCrypto)
+            adbConnection?.connect()
+            adbShellStream = openStream("shell:")
+            writeShell(adbShellStream!!, ShellOutputParser.SETUP.toByteArray())
+        } catch (e: Exception) {
+            e.printStackTrace()
+            val errorMsg = "connect error!"
+            Log.i(TAG, errorMsg, e)
+            notifyEvent(AdbEventType.ERROR, null, errorMsg)
+            doDisconnect()
+            return
+        }
+
+        connected = true
+        notifyEvent(AdbEventType.STATUS, AdbStatus.CONNECTED, deviceIp)
+
+        // Start the receiving thread
+        readThread = Thread(Runnable {
+            while (adbShellStream?.isClosed == false){
+                try {
+                    shellParser.feed(adbShellStream!!.read())
+                } catch (e: Exception) {
+                    e.printStackTrace()
+                    disconnect()
+                    return@Runnable
+                }
+            }
+        }, "adb_read_$deviceId")
+        readThread?.start()
+    }
+
+    private fun doCommand(pending: PendingCommand) {
+        if (!connected) {
+            notifyEvent(AdbEventType.ERROR, null, "设备未连接，请先连接设备")
+        }
+        val stream = adbShellStream
+        if (stream == null || stream.isClosed) {
+            cancelCommand(pending)
+            doDisconnect()
+            return
+        }
+        Logger.d(TAG, "(request)response=${pending.command}")
+        val typeNow = synchronized(pendingCommands) {
+            pendingCommands[pending.id] = pending
+            if (inFlight == null) {
+                inFlight = pending
+                true
+            } else {
+                queuedCommands.add(pending)
+                false
+            }
+        }
+        if (typeNow) {
+            type(pending)
+        }
+    }
+
+    /**
+     * on the shell lane, type the in-flight command
+     */
+    private fun type(pending: PendingCommand) {
+        try {
+            val stream = adbShellStream ?: throw IOException("shell closed")
+            writeShell(stream, pending.typed.toByteArray())
+        } catch (e: IOException) {
+            Log.i(TAG, "send command error", e)
+            cancelCommand(pending)
+            doDisconnect()
+        }
+    }
+
+    private fun typeNextLater(endedId: Int) {
+        shellHandler.post { typeNext(endedId) }
+    }
+
+    /**
+     * on the shell lane, type the next queued command once the one in flight, [endedId], is done
+     */
+    private fun typeNext(endedId: Int) {
+        val next = synchronized(pendingCommands) {
+            if (inFlight?.id != endedId) {
+                return
+            }
+            inFlight = queuedCommands.removeFirstOrNull()
+            inFlight
+        } ?: return
+        type(next)
+    }
+
+    /**
+     * on the shell lane, give up on a command; interrupt it if it's the one typed
+     */
+    private fun onTimeout(pending: PendingCommand) {
+        val typed = synchronized(pendingCommands) {
+            if (pendingCommands.remove(pending.id) == null) {
+                return
+            }
+            queuedCommands.remove(pending)
+            inFlight === pending
+        }
+        Log.i(TAG, "command timed out: ${pending.command}")
+        if (typed) {
+            // nothing is typed behind it for the ^C to flush
+            try {
+                adbShellStream?.let { writeShell(it, INTERRUPT) }
+            } catch (e: IOException) {
+                Log.i(TAG, "interrupt command error", e)
+            }
+        }
+        finish(pending, -1, true)
+        if (typed) {
+            typeNext(pending.id)
+        }
+    }
+
+    private fun cancelCommand(pending: PendingCommand) {
+        synchronized(pendingCommands) {
+            pendingCommands.remove(pending.id)
+            queuedCommands.remove(pending)
+            if (inFlight === pending) {
+                inFlight = null
+            }
+        }
+        cancelTimeout(pending)
+        finish(pending, -1, false)
+    }
+
+    private fun cancelTimeout(pending: PendingCommand) {
+        pending.timeout?.let { shellHandler.removeCallbacks(it) }
+    }
+
+    private fun finish(pending: PendingCommand, exitCode: Int, timedOut: Boolean) {
+        val output = pending.output.toString("UTF-8")
+        if (exitCode >= 0) {
+            Logger.d(TAG, "response=${output}")
+            notifyEvent(AdbEventType.RESPONSE, null, output)
+        }
+        pending.callback?.invoke(ShellResult(pending.command, output, exitCode, timedOut))
+    }
+
+    private fun doDisconnect() {
+        if (closed) {
+            return
+        }
+        closed = true
+        cancelPush()
+        // queued execs find the session closed, running ones see their streams close
+        execExecutor.shutdown()
+        if (adbShellStream != null) {
+            adbShellStream?.close()
+            adbShellStream = null
+        }
+        if (adbSyncStream != null) {
+            adbSyncStream?.close()
+            adbSyncStream = null
+        }
+        if (adbConnection != null) {
+            adbConnection?.close()
+            adbConnection = null
+        }
+        connected = false
+        val unfinished = synchronized(pendingCommands) {
+            inFlight = null
+            queuedCommands.clear()
+            ArrayList(pendingCommands.values).also { pendingCommands.clear() }
+        }
+        for (pending in unfinished) {
+            finish(pending, -1, false)
+        }
+        notifyEvent(AdbEventType.STATUS, AdbStatus.DISCONNECTED, deviceIp)
+        notifyEvent(AdbEventType.ERROR, null, "连接已断开，请重新连接")
+        shellHandler.removeCallbacksAndMessages(null)
+        shellThread.looper.quit()
+        // let a running push see its stream closed and report
+        pushThread.looper.quitSafely()
+    }
+
+    /**
+     * write on the shell lane, ahead of any bulk write waiting for the connection
+     */
+    private fun writeShell(stream: AdbStream, data: ByteArray) {
+        shellWriters.incrementAndGet()
+        try {
+            synchronized(connectionWriteLock) {
+                stream.write(data)
+            }
+        } finally {
+            shellWriters.decrementAndGet()
+            synchronized(connectionWriteLock) {
+                connectionWriteLock.notifyAll()
+            }
+        }
+    }
+
+    /**
+     * write on the bulk lane once no shell write is waiting
+     */
+    private fun writeBulk(stream: AdbStream, data: ByteArray) {
+        synchronized(connectionWriteLock) {
+            while (shellWriters.get() > 0) {
+                connectionWriteLock.wait()
+            }
+            stream.write(data)
+        }
+    }
+
+    /**
+     * send [inputStream] over the sync protocol. A [PushChunkRing] reads chunks ahead while this
+     * thread writes them, each as a single WRTE that waits for the device's OKAY.
+     * @param generation [pushGeneration] when the push was queued
+     */
+    private fun doPush(param: AdbController.PushParam, generation: Int): Boolean {
+        val inputStream = param.inputStream
+        val remotePath = param.remotePath
+        if (generation != pushGeneration.get()) {
+            return false
+        }
+        var result = false
+        var chunks: PushChunkRing? = null
+        try {
+            val connection = adbConnection!!
+            if (adbSyncStream == null) {
+                adbSyncStream = openStream("sync:")
+            }
+            val syncStream = adbSyncStream!!
+            val pathAndMode = "$remotePath,33206".toByteArray()
+            writeBulk(syncStream, ByteUtils.concat("SEND".toByteArray(), ByteUtils.intToByteArray(pathAndMode.size), pathAndMode))
+
+            val payloadSize = minOf(connection.maxData - PushChunkRing.HEADER_SIZE, SYNC_DATA_MAX)
+            chunks = PushChunkRing(inputStream, payloadSize, PUSH_BUFFERS)
+            chunks.start("adb_push_reader_$deviceId")
+
+            var sent: Long = 0
+            var progressTime = System.currentTimeMillis()
+            while (true) {
+                val chunk = chunks.take()
+                if (generation != pushGeneration.get()) {
+                    throw InterruptedIOException("push of $remotePath cancelled at ${sent/1024}KB")
+                }
+                if (chunk.length > 0) {
+                    // AdbStream writes whole arrays, only the last chunk needs one of its own size
+                    writeBulk(syncStream, if (chunk.length == payloadSize) chunk.data else chunk.data.copyOf(PushChunkRing.HEADER_SIZE + chunk.length))
+                    sent += chunk.length.toLong()
+                }
+                val now = System.currentTimeMillis()
+                if (now - progressTime >= PROGRESS_INTERVAL_MS || chunk.length < payloadSize) {
+                    progressTime = now
+                    notifyEvent(AdbEventType.PUSH_PROGRESS, null, PushProgress(remotePath, sent, param.length))
+                }
+                if (chunk.length < payloadSize) {
+                    break
+                }
+                chunks.recycle(chunk)
+            }
+            Logger.d(TAG, "push sent=${sent/1024}KB")
+
+            writeBulk(syncStream, ByteUtils.concat("DONE".toByteArray(), ByteUtils.intToByteArray(System.currentTimeMillis().toInt())))
+            val failure = readSyncStatus(syncStream)
+            if (failure != null) {
+                Log.i(TAG, "push of $remotePath failed: $failure")
+                notifyEvent(AdbEventType.ERROR, null, failure)
+            }
+            result = failure == null
+            writeBulk(syncStream, ByteUtils.concat("QUIT".toByteArray(), ByteUtils.intToByteArray(0)))
+        } catch (e: Exception) {
+            e.printStackTrace()
+            // the sync stream may be mid-file, the device drops the partial file when it closes
+            try {
+                adbSyncStream?.close()
+            } catch (e: IOException) {
+                Log.i(TAG, "close sync stream error", e)
+            }
+            adbSyncStream = null
+            return false
+        } finally {
+            chunks?.close()
+        }
+        return result
+    }
+
+    /**
+     * read the sync status answering DONE: OKAY, or FAIL with a length and a message
+     * @return the FAIL message, null for OKAY
+     */
+    private fun readSyncStatus(stream: AdbStream): String? {
+        val status = ByteArrayOutputStream()
+        var messageLength = -1
+        while (messageLength < 0 || status.size() < 8 + messageLength) {
+            status.write(stream.read())
+            val bytes = status.toByteArray()
+            if (messageLength < 0 && bytes.size >= 8) {
+                val id = String(bytes, 0, 4, Charsets.US_ASCII)
+                when (id) {
+                    "OKAY" -> return null
+                    "FAIL" -> messageLength = (bytes[4].toInt() and 0xff) or (bytes[5].toInt() and 0xff shl 8) or
+                            (bytes[6].toInt() and 0xff shl 16) or (bytes[7].toInt() and 0xff shl 24)
+                    else -> throw IOException("unexpected sync status $id")
+                }
+                if (messageLength !in 0..SYNC_DATA_MAX) {
+                    throw IOException("bad sync FAIL length $messageLength")
+                }
+            }
+        }
+        return String(status.toByteArray(), 8, messageLength, Charsets.UTF_8)
+    }
+
+    private fun notifyEvent(type: AdbEventType, status: AdbStatus?, param: Any) {
+        listener(this, AdbEvent(type, status, param, deviceId))
+    }
+
+    /**
+     * Socket handing AdbLib a [PacketOutputStream]. AdbConnection takes its output stream once, in
+     * create.
+     */
+    private class PacketSocket(host: String, port: Int) : Socket(host, port) {
+        private val output = PacketOutputStream(super.getOutputStream())
+
+        override fun getOutputStream(): OutputStream = output
+    }
+
+    /**
+     * AdbLib writes each packet to the socket with a single write call but takes no lock: the
+     * lanes' WRTEs, OPENs from open(), CLSEs from close() on exec, watchdog and push threads, and
+     * the OKAYs its own thread sends for what the device writes. Serializing the write calls keeps
+     * any of them from landing inside another, e.g. a 64 KB push WRTE.
+     */
+    private class PacketOutputStream(private val out: OutputStream) : OutputStream() {
+        @Synchronized
+        override fun write(b: Int) {
+            out.write(b)
+        }
+
+        @Synchronized
+        override fun write(b: ByteArray, off: Int, len: Int) {
+            out.write(b, off, len)
+        }
+
+        @Synchronized
+        override fun flush() {
+            out.flush()
+        }
+
+        override fun close() {
+            out.close()
+        }
+    }
+}
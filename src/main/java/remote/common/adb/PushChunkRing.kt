@@ -0,0 +1,118 @@
+package remote.common.adb
+
+import remote.common.utils.ByteUtils
+import java.io.Closeable
+import java.io.IOException
+import java.io.InputStream
+import java.util.concurrent.ArrayBlockingQueue
+
+/**
+ * Sync DATA chunks of a push, read from its input on a thread of their own so reading the file
+ * overlaps sending the chunks before.
+ *
+ * A fixed ring of [buffers] arrays is filled in input order and handed back with [recycle] once
+ * sent, so a push allocates nothing per chunk. Each array holds the DATA header in front of up to
+ * [payloadSize] bytes, so a chunk goes out as a single WRTE.
+ */
+internal class PushChunkRing(private val input: InputStream, val payloadSize: Int, buffers: Int) : Closeable {
+
+    companion object {
+        const val HEADER_SIZE = 8
+        private val DATA = "DATA".toByteArray()
+    }
+
+    /**
+     * [data] holds the header then [length] bytes of payload, a chunk shorter than the payload
+     * size is the last one
+     */
+    class Chunk(val data: ByteArray) {
+        var length = 0
+    }
+
+    private val free = ArrayBlockingQueue<Chunk>(buffers)
+    private val filled = ArrayBlockingQueue<Chunk>(buffers)
+    // set before the failed chunk is queued, which publishes it to the taking thread
+    private var readError: IOException? = null
+    private var reader: Thread? = null
+
+    init {
+        repeat(buffers) {
+            val chunk = Chunk(ByteArray(HEADER_SIZE + payloadSize))
+            System.arraycopy(DATA, 0, chunk.data, 0, DATA.size)
+            free.add(chunk)
+        }
+    }
+
+    fun start(threadName: String) {
+        reader = Thread({ fill() }, threadName).apply {
+            isDaemon = true
+            start()
+        }
+    }
+
+    /**
+     * wait for the next chunk, its header filled in
+     * @throws IOException if reading the input failed
+     */
+    @Throws(IOException::class, InterruptedException::class)
+    fun take(): Chunk {
+        val chunk = filled.take()
+        if (chunk.length < 0) {
+            throw readError!!
+        }
+        ByteUtils.intToBytes(chunk.length, chunk.data, DATA.size)
+        return chunk
+    }
+
+    /**
+     * hand a sent chunk back to be filled again
+     */
+    @Throws(InterruptedException::class)
+    fun recycle(chunk: Chunk) {
+        free.put(chunk)
+    }
+
+    /**
+     * stop the reader, for pushes ending before their last chunk
+     */
+    override fun close() {
+        reader?.interrupt()
+    }
+
+    private fun fill() {
+        try {
+            while (true) {
+                val chunk = free.take()
+                try {
+                    chunk.length = readFully(chunk.data, HEADER_SIZE, payloadSize)
+                } catch (e: IOException) {
+                    readError = e
+                    chunk.length = -1
+                }
+                filled.put(chunk)
+                // a short chunk is the last one
+                if (chunk.length < payloadSize) {
+                    break
+                }
+            }
+        } catch (e: InterruptedException) {
+            // the push failed on the writing side
+        }
+    }
+
+    /**
+     * read until [length] bytes are in [buffer] or the input ends
+     * @return bytes read
+     */
+    private fun readFully(buffer: ByteArray, offset: Int, length: Int): Int {
+        var total = 0
+        while (total < length) {
+            val read = input.read(buffer, offset + total, length - total)
+            if (read < 0) {
+                break
+            }
+            total += read
+        }
+        return total
+    }
+}
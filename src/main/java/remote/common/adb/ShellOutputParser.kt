@@ -0,0 +1,257 @@
+package remote.common.adb
+
+/**
+ * Splits the byte stream of an interactive `shell:` into the output of each command.
+ *
+ * [wrap] brackets a command with two `printf`s writing markers between RS (0x1E) bytes: `B<id>`
+ * before it runs and `E<id>:<exit code>` after, on a line of its own so a trailing comment can't
+ * swallow it. The pty echoes the typed `\036` as four plain characters, so only the printed
+ * markers hold the RS byte. Bytes between the markers go to [Listener.onOutput] as slices of the
+ * packet, the echo and prompts outside them are dropped, and nothing is decoded to text on the way.
+ */
+class ShellOutputParser(private val listener: Listener) {
+
+    companion object {
+        private const val RS: Byte = 0x1E
+        private val RS_BYTES = byteArrayOf(RS)
+        private const val MAX_MARKER = 24
+
+        /**
+         * typed once when the shell opens: with no prompt and no line editing the pty echoes all
+         * lines of a command as they're typed, before the begin marker, and nothing comes between
+         * its output and the end marker
+         */
+        const val SETUP = "PS1=''; PS2=''; set +o emacs +o vi 2>/dev/null\n"
+
+        private val HEREDOC = Regex("<<(-?)[ \t]*\\\\?(['\"]?)([^ \t\n;&|<>()'\"\\\\]+)\\2")
+
+        /**
+         * the lines to type for [command], whose output is reported under [id]
+         * @throws IllegalArgumentException if [command] leaves a quote, escape or here-document
+         * open, which would take in the end marker's line
+         */
+        fun wrap(id: Int, command: String): String {
+            val line = command.trim()
+            checkComplete(line)
+            return "printf '\\036B$id\\036\\n'; $line\nprintf '\\036E$id:%d\\036\\n' \$?\n"
+        }
+
+        /**
+         * check [command] closes its quotes, escapes, here-documents and pipelines. It's a scan
+         * of the shell's quoting, not a parse: a missing `fi` or `)` still gets through.
+         */
+        private fun checkComplete(command: String) {
+            var i = 0
+            val heredocs = ArrayList<MatchResult>()
+            while (i < command.length) {
+                when (command[i]) {
+                    '\\' -> {
+                        require(i + 1 < command.length) { "command ends in an escape: $command" }
+                        i++
+                    }
+                    '\'' -> {
+                        val end = command.indexOf('\'', i + 1)
+                        require(end > 0) { "unterminated ' in: $command" }
+                        i = end
+                    }
+                    '"' -> {
+                        i++
+                        while (i < command.length && command[i] != '"') {
+                            if (command[i] == '\\') {
+                                i++
+                            }
+                            i++
+                        }
+                        require(i < command.length) { "unterminated \" in: $command" }
+                    }
+                    '#' -> if (i == 0 || command[i - 1] in " \t\n;&|()") {
+                        // a comment runs to the end of its line, quotes in it don't count
+                        val end = command.indexOf('\n', i)
+                        i = if (end < 0) command.length else end - 1
+                    }
+                    '<' -> if (command.startsWith("<<<", i)) {
+                        i += 2
+                    } else {
+                        val heredoc = HEREDOC.find(command, i)
+                        if (heredoc != null && heredoc.range.first == i) {
+                            heredocs.add(heredoc)
+                            i = heredoc.range.last
+                        }
+                    }
+                    '\n' -> {
+                        // the bodies of here-documents started on the line end the line after them
+                        for (heredoc in heredocs) {
+                            i = heredocEnd(command, i + 1, heredoc)
+                        }
+                        heredocs.clear()
+                    }
+                }
+                i++
+            }
+            require(heredocs.isEmpty()) { "unterminated here-document in: $command" }
+            require(!command.endsWith("|") && !command.endsWith("&&")) { "command continues past its end: $command" }
+        }
+
+        /**
+         * @param start the first line of the body
+         * @return index of the line break ending the delimiter line, or the end of [command]
+         */
+        private fun heredocEnd(command: String, start: Int, heredoc: MatchResult): Int {
+            val stripTabs = heredoc.groupValues[1].isNotEmpty()
+            val delimiter = heredoc.groupValues[3]
+            var lineStart = start
+            while (lineStart < command.length) {
+                var lineEnd = command.indexOf('\n', lineStart)
+                if (lineEnd < 0) {
+                    lineEnd = command.length
+                }
+                val bodyLine = command.substring(lineStart, lineEnd)
+                if ((if (stripTabs) bodyLine.trimStart('\t') else bodyLine) == delimiter) {
+                    return lineEnd
+                }
+                lineStart = lineEnd + 1
+            }
+            throw IllegalArgumentException("unterminated here-document in: $command")
+        }
+    }
+
+    interface Listener {
+        fun onStart(id: Int)
+        fun onOutput(id: Int, data: ByteArray, offset: Int, length: Int)
+        fun onEnd(id: Int, exitCode: Int)
+    }
+
+    private val marker = ByteArray(MAX_MARKER)
+    private var markerLength = -1
+    private var current = -1
+    // the pty ends the begin marker's line with \r\n, which isn't output
+    private var skipLineEnd = false
+
+    fun feed(data: ByteArray, length: Int = data.size) {
+        var start = 0
+        var i = 0
+        while (i < length) {
+            val b = data[i]
+            if (markerLength >= 0) {
+                if (b == RS) {
+                    if (onMarker()) {
+                        markerLength = -1
+                        start = i + 1
+                    } else {
+                        // not a marker of ours, this RS may open one
+                        flushMarker()
+                        markerLength = 0
+                    }
+                } else if (markerLength < MAX_MARKER) {
+                    marker[markerLength++] = b
+                } else {
+                    // not a marker of ours, the RS and what followed were output
+                    flushMarker()
+                    markerLength = -1
+                    start = i
+                    continue
+                }
+            } else if (skipLineEnd && (b == '\r'.toByte() || b == '\n'.toByte())) {
+                start = i + 1
+                skipLineEnd = b == '\r'.toByte()
+            } else if (b == RS) {
+                emit(data, start, i)
+                markerLength = 0
+                skipLineEnd = false
+            } else {
+                skipLineEnd = false
+            }
+            i++
+        }
+        if (markerLength < 0) {
+            emit(data, start, length)
+        }
+    }
+
+    /**
+     * forget a command cut short, what follows it is dropped until the next begin marker
+     */
+    fun reset() {
+        current = -1
+        markerLength = -1
+        skipLineEnd = false
+    }
+
+    /**
+     * @return false if the bytes between the two RS aren't a marker
+     */
+    private fun onMarker(): Boolean {
+        if (markerLength < 2) {
+            return false
+        }
+        when (marker[0]) {
+            'B'.toByte() -> {
+                val id = parseInt(1, markerLength)
+                if (id >= 0) {
+                    current = id
+                    skipLineEnd = true
+                    listener.onStart(id)
+                    return true
+                }
+            }
+            'E'.toByte() -> {
+                val colon = indexOf(':'.toByte())
+                val id = if (colon > 1) parseInt(1, colon) else -1
+                val exitCode = if (id >= 0) parseInt(colon + 1, markerLength) else -1
+                if (exitCode >= 0) {
+                    if (id == current) {
+                        current = -1
+                    }
+                    skipLineEnd = true
+                    listener.onEnd(id, exitCode)
+                    return true
+                }
+            }
+        }
+        return false
+    }
+
+    /**
+     * hand bytes taken as a marker back as output
+     */
+    private fun flushMarker() {
+        if (current < 0) {
+            return
+        }
+        listener.onOutput(current, RS_BYTES, 0, 1)
+        listener.onOutput(current, marker, 0, markerLength)
+    }
+
+    private fun emit(data: ByteArray, from: Int, to: Int) {
+        if (current >= 0 && to > from) {
+            listener.onOutput(current, data, from, to - from)
+        }
+    }
+
+    private fun indexOf(b: Byte): Int {
+        for (i in 0 until markerLength) {
+            if (marker[i] == b) {
+                return i
+            }
+        }
+        return -1
+    }
+
+    /**
+     * @return the decimal number in marker[from, to), -1 if it isn't one
+     */
+    private fun parseInt(from: Int, to: Int): Int {
+        if (from >= to || to - from > 9) {
+            return -1
+        }
+        var value = 0
+        for (i in from until to) {
+            val digit = marker[i] - '0'.toByte()
+            if (digit < 0 || digit > 9) {
+                return -1
+            }
+            value = value * 10 + digit
+        }
+        return value
+    }
+}
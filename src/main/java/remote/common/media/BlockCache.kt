@@ -0,0 +1,218 @@
+package remote.common.media
+
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.channels.WritableByteChannel
+import java.util.*
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Size-bounded cache of file blocks held in direct buffers, shared by all requests of a
+ * [StreamWebServer].
+ *
+ * Blocks are keyed by file identity and block index. Header and tail blocks, where containers
+ * keep their headers and indexes (ftyp/moov, EBML/Cues...), are always admitted and sit in a
+ * protected segment that is evicted last. Other blocks are admitted only when bytes of them that
+ * were already sent are requested again while the block is still remembered as a recent miss, so
+ * one long sequential read, even in requests smaller than a block, doesn't flush the cache; until
+ * then they are sent straight from the source, with transferTo for files.
+ */
+class BlockCache(maxBytes: Long = 16L * 1024 * 1024) {
+
+    companion object {
+        const val BLOCK_SIZE = 256 * 1024
+        private const val HOT_BYTES = 1024L * 1024
+    }
+
+    private class BlockKey(val fileKey: String, val index: Long) {
+        override fun equals(other: Any?): Boolean {
+            return other is BlockKey && other.index == index && other.fileKey == fileKey
+        }
+
+        override fun hashCode(): Int = fileKey.hashCode() * 31 + index.hashCode()
+    }
+
+    /**
+     * A cached block. The cache holds one reference, every reader holds one while it writes the
+     * buffer, and the buffer is recycled once the block is evicted and the last reader is done.
+     */
+    private inner class Block(val buffer: ByteBuffer) {
+        private val refs = AtomicInteger(1)
+
+        fun retain(): Block {
+            refs.incrementAndGet()
+            return this
+        }
+
+        fun release() {
+            if (refs.decrementAndGet() == 0) {
+                recycle(buffer)
+            }
+        }
+    }
+
+    private val maxBlocks = maxOf(1, (maxBytes / BLOCK_SIZE).toInt())
+    private val protectedBlocks = LinkedHashMap<BlockKey, Block>(16, 0.75f, true)
+    private val probationBlocks = LinkedHashMap<BlockKey, Block>(16, 0.75f, true)
+    /**
+     * blocks sent from the source, with the file position their bytes were sent up to
+     */
+    private val recentMisses = object : LinkedHashMap<BlockKey, Long>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<BlockKey, Long>?): Boolean {
+            return size > maxBlocks * 4
+        }
+    }
+    private val freeBuffers = ArrayDeque<ByteBuffer>()
+
+    private val hits = AtomicLong()
+    private val misses = AtomicLong()
+    private val evictions = AtomicLong()
+
+    val hitCount: Long
+        get() = hits.get()
+
+    val missCount: Long
+        get() = misses.get()
+
+    val evictionCount: Long
+        get() = evictions.get()
+
+    /**
+     * write [count] bytes of a file starting at [position] to [target], serving cached blocks from
+     * memory and caching the blocks that qualify
+     * @param fileKey identity of the file content, must change when the file changes
+     * @param fileLength current file length, used to find header and tail blocks
+     * @return bytes written, always [count]
+     */
+    @Throws(IOException::class)
+    fun transfer(fileKey: String, reader: MediaSource.Reader, fileLength: Long, position: Long, count: Long, target: WritableByteChannel): Long {
+        var current = position
+        val end = position + count
+        // uncached blocks in a row are sent with one transferTo
+        var bypassStart = -1L
+        while (current < end) {
+            val index = current / BLOCK_SIZE
+            val blockStart = index * BLOCK_SIZE
+            val blockEnd = minOf(blockStart + BLOCK_SIZE, end)
+            val block = acquire(BlockKey(fileKey, index), isHot(blockStart, fileLength), reader, blockStart, fileLength, current, blockEnd)
+            if (block == null) {
+                if (bypassStart < 0) {
+                    bypassStart = current
+                }
+            } else {
+                if (bypassStart >= 0) {
+                    reader.transferTo(bypassStart, current - bypassStart, target)
+                    bypassStart = -1
+                }
+                try {
+                    val slice = block.buffer.duplicate()
+                    val from = (current - blockStart).toInt()
+                    val to = (blockEnd - blockStart).toInt()
+                    if (to > slice.limit()) {
+                        throw IOException("block $index of $fileKey is shorter than requested")
+                    }
+                    slice.limit(to).position(from)
+                    while (slice.hasRemaining()) {
+                        target.write(slice)
+                    }
+                } finally {
+                    block.release()
+                }
+            }
+            current = blockEnd
+        }
+        if (bypassStart >= 0) {
+            reader.transferTo(bypassStart, end - bypassStart, target)
+        }
+        return count
+    }
+
+    /**
+     * drop every cached block, buffers still being written are recycled when their reader is done
+     */
+    fun clear() {
+        val dropped = ArrayList<Block>()
+        synchronized(this) {
+            dropped.addAll(protectedBlocks.values)
+            dropped.addAll(probationBlocks.values)
+            protectedBlocks.clear()
+            probationBlocks.clear()
+            recentMisses.clear()
+        }
+        dropped.forEach { it.release() }
+    }
+
+    private fun isHot(blockStart: Long, fileLength: Long): Boolean {
+        return blockStart < HOT_BYTES || blockStart + BLOCK_SIZE > fileLength - HOT_BYTES
+    }
+
+    /**
+     * @param from start of the bytes of the block about to be sent
+     * @param to end of the bytes of the block about to be sent
+     * @return the retained block, loading it if it should be cached, or null if it should be sent from the file
+     */
+    private fun acquire(key: BlockKey, hot: Boolean, reader: MediaSource.Reader, blockStart: Long, fileLength: Long, from: Long, to: Long): Block? {
+        synchronized(this) {
+            val cached = protectedBlocks[key] ?: probationBlocks[key]
+            if (cached != null) {
+                hits.incrementAndGet()
+                return cached.retain()
+            }
+            misses.incrementAndGet()
+            if (!hot) {
+                val sentUntil = recentMisses[key]
+                // reading on from where the last miss stopped is still one pass, not reuse
+                if (sentUntil == null || from >= sentUntil) {
+                    recentMisses[key] = to
+                    return null
+                }
+            }
+        }
+        val buffer = load(reader, blockStart, minOf(BLOCK_SIZE.toLong(), fileLength - blockStart).toInt())
+        val evicted = ArrayList<Block>()
+        val block: Block
+        synchronized(this) {
+            val raced = protectedBlocks[key] ?: probationBlocks[key]
+            if (raced != null) {
+                freeBuffers.add(buffer)
+                return raced.retain()
+            }
+            recentMisses.remove(key)
+            while (protectedBlocks.size + probationBlocks.size >= maxBlocks) {
+                val segment = if (probationBlocks.isNotEmpty()) probationBlocks else protectedBlocks
+                val eldest = segment.entries.iterator()
+                evicted.add(eldest.next().value)
+                eldest.remove()
+                evictions.incrementAndGet()
+            }
+            block = Block(buffer)
+            (if (hot) protectedBlocks else probationBlocks)[key] = block
+            block.retain()
+        }
+        evicted.forEach { it.release() }
+        return block
+    }
+
+    private fun load(reader: MediaSource.Reader, blockStart: Long, size: Int): ByteBuffer {
+        val buffer = synchronized(this) { freeBuffers.pollFirst() } ?: ByteBuffer.allocateDirect(BLOCK_SIZE)
+        buffer.clear()
+        buffer.limit(size)
+        while (buffer.hasRemaining()) {
+            val read = reader.read(buffer, blockStart + buffer.position())
+            if (read < 0) {
+                break
+            }
+        }
+        buffer.flip()
+        return buffer
+    }
+
+    private fun recycle(buffer: ByteBuffer) {
+        synchronized(this) {
+            if (freeBuffers.size < maxBlocks) {
+                freeBuffers.add(buffer)
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package remote.common.media
+
+import android.util.Log
+import fi.iki.elonen.NanoHTTPD
+import java.util.*
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * [NanoHTTPD.AsyncRunner] running client connections on a bounded pool instead of a new thread
+ * per connection.
+ *
+ * Up to [maxThreads] connections are served at once and up to [queueLimit] more wait for a
+ * worker; idle workers exit after [keepAliveSeconds]. Connections beyond that are answered with
+ * 503 by [onRejected] and closed.
+ *
+ * A worker is only held while its connection makes progress: an idle keep-alive connection is
+ * closed by the socket read timeout NanoHTTPD sets on accept, and a client that stops reading a
+ * body by [StreamWebServer]'s [WriteTimeout].
+ */
+class BoundedAsyncRunner(
+    maxThreads: Int = 8,
+    queueLimit: Int = 32,
+    keepAliveSeconds: Long = 30,
+    private val onRejected: (NanoHTTPD.ClientHandler) -> Unit = { it.close() }
+) : NanoHTTPD.AsyncRunner {
+
+    companion object {
+        const val TAG = "BoundedAsyncRunner"
+    }
+
+    private val threadCount = AtomicInteger()
+    private val rejected = AtomicLong()
+    private val running = Collections.synchronizedList(ArrayList<NanoHTTPD.ClientHandler>())
+    private val executor = ThreadPoolExecutor(
+        maxThreads, maxThreads, keepAliveSeconds, TimeUnit.SECONDS,
+        ArrayBlockingQueue(queueLimit),
+        ThreadFactory { r ->
+            val thread = Thread(r, "StreamWebServer-${threadCount.incrementAndGet()}")
+            thread.isDaemon = true
+            thread
+        }
+    ).apply {
+        allowCoreThreadTimeOut(true)
+    }
+
+    /**
+     * connections currently being served by a worker
+     */
+    val activeCount: Int
+        get() = executor.activeCount
+
+    /**
+     * accepted connections waiting for a free worker
+     */
+    val queuedCount: Int
+        get() = executor.queue.size
+
+    /**
+     * connections turned away because the pool and its queue were full
+     */
+    val rejectedCount: Long
+        get() = rejected.get()
+
+    override fun exec(code: NanoHTTPD.ClientHandler) {
+        running.add(code)
+        try {
+            executor.execute(code)
+        } catch (e: RejectedExecutionException) {
+            running.remove(code)
+            rejected.incrementAndGet()
+            Log.w(TAG, "server saturated, active=$activeCount queued=$queuedCount")
+            onRejected(code)
+        }
+    }
+
+    override fun closed(code: NanoHTTPD.ClientHandler) {
+        running.remove(code)
+    }
+
+    override fun closeAll() {
+        val handlers = synchronized(running) { ArrayList(running) }
+        for (handler in handlers) {
+            handler.close()
+        }
+    }
+}
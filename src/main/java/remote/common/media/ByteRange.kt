@@ -0,0 +1,90 @@
+package remote.common.media
+
+/**
+ * Inclusive byte range [start, end] of a resource, as used by `Range`/`Content-Range` headers.
+ */
+class ByteRange(val start: Long, val end: Long) {
+
+    val length: Long
+        get() = end - start + 1
+
+    override fun toString(): String = "$start-$end"
+
+    companion object {
+        /**
+         * ranges closer than this are merged, the gap costs less than another part header
+         */
+        private const val MERGE_GAP = 80L
+
+        /**
+         * resolve a `bytes=` header value into sorted ranges, merging overlapping, adjacent
+         * and nearly adjacent ones so that every byte is read once
+         * @param value header value without the `bytes=` unit
+         * @param totalLength resource length in bytes
+         * @return satisfiable ranges (empty if none is), or null if the value is malformed
+         */
+        fun parseList(value: String, totalLength: Long): List<ByteRange>? {
+            val ranges = ArrayList<ByteRange>()
+            for (spec in value.split(',')) {
+                if (spec.isBlank()) {
+                    continue
+                }
+                if (spec.indexOf('-') < 0) {
+                    return null
+                }
+                parseSpec(spec, totalLength)?.let { ranges.add(it) }
+            }
+            return coalesce(ranges)
+        }
+
+        /**
+         * sort ranges by offset and merge those that overlap or are at most [MERGE_GAP] bytes apart
+         */
+        fun coalesce(ranges: List<ByteRange>): List<ByteRange> {
+            if (ranges.size < 2) {
+                return ranges
+            }
+            val sorted = ranges.sortedBy { it.start }
+            val merged = ArrayList<ByteRange>(sorted.size)
+            var current = sorted[0]
+            for (i in 1 until sorted.size) {
+                val next = sorted[i]
+                current = if (next.start <= current.end + 1 + MERGE_GAP) {
+                    ByteRange(current.start, maxOf(current.end, next.end))
+                } else {
+                    merged.add(current)
+                    next
+                }
+            }
+            merged.add(current)
+            return merged
+        }
+
+        /**
+         * resolve one range spec (`first-last`, `first-` or `-suffix`) against the resource length
+         * @param spec range spec without the `bytes=` unit
+         * @param totalLength resource length in bytes
+         * @return range clamped to the resource, or null if the spec is malformed or not satisfiable
+         */
+        fun parseSpec(spec: String, totalLength: Long): ByteRange? {
+            val dash = spec.indexOf('-')
+            if (dash < 0 || totalLength <= 0) {
+                return null
+            }
+            val first = spec.substring(0, dash).trim()
+            val last = spec.substring(dash + 1).trim()
+            return try {
+                if (first.isEmpty()) {
+                    val suffix = last.toLong()
+                    if (suffix <= 0) null else ByteRange(maxOf(0L, totalLength - suffix), totalLength - 1)
+                } else {
+                    val start = first.toLong()
+                    val end = if (last.isEmpty()) totalLength - 1 else minOf(last.toLong(), totalLength - 1)
+                    if (start < 0 || start >= totalLength || start > end) null else ByteRange(start, end)
+                }
+            } catch (e: NumberFormatException) {
+                null
+            }
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package remote.common.media
+
+import remote.common.utils.Logger
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.io.IOException
+import java.io.InputStream
+import java.nio.ByteBuffer
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.FutureTask
+import java.util.zip.GZIPOutputStream
+
+/**
+ * gzip representations of text content served by [StreamWebServer]: html control pages,
+ * playlists, subtitles...
+ *
+ * A `<name>.gz` file next to a file, at least as new as the file, is served as is. Otherwise
+ * content up to [maxInlineLength] is compressed once and kept in memory under its content key,
+ * which includes the ETag, so a changed file gets compressed again; concurrent requests for the
+ * same content wait for one compression. Larger content is left to be compressed while it streams.
+ */
+class CompressedVariants(
+    private val maxBytes: Long = 4L * 1024 * 1024,
+    private val maxInlineLength: Long = 1024L * 1024
+) {
+
+    companion object {
+        const val TAG = "CompressedVariants"
+        private const val READ_SIZE = 16 * 1024
+
+        /**
+         * check an `Accept-Encoding` header
+         * @return true if gzip is listed, or covered by `*`, without `q=0`
+         */
+        fun acceptsGzip(acceptEncoding: String?): Boolean {
+            if (acceptEncoding == null) {
+                return false
+            }
+            var wildcard = false
+            for (item in acceptEncoding.split(',')) {
+                val parts = item.split(';')
+                val coding = parts[0].trim().lowercase()
+                if (coding != "gzip" && coding != "x-gzip" && coding != "*") {
+                    continue
+                }
+                var accepted = true
+                for (i in 1 until parts.size) {
+                    val param = parts[i].trim()
+                    if (param.startsWith("q=")) {
+                        accepted = (param.substring(2).trim().toDoubleOrNull() ?: 0.0) > 0.0
+                    }
+                }
+                if (coding == "*") {
+                    wildcard = accepted
+                } else {
+                    return accepted
+                }
+            }
+            return wildcard
+        }
+    }
+
+    private val variants = LinkedHashMap<String, ByteArray>(16, 0.75f, true)
+    private var cachedBytes = 0L
+    private val pending = ConcurrentHashMap<String, FutureTask<ByteArray>>()
+
+    /**
+     * @return the up to date `.gz` sibling of a file source, or null if there is none
+     */
+    fun precompressed(source: MediaSource): FileSource? {
+        val file = (source as? FileSource)?.file ?: return null
+        val gz = File(file.path + ".gz")
+        return if (gz.isFile && gz.lastModified() >= file.lastModified()) FileSource(gz) else null
+    }
+
+    /**
+     * @param contentKey identity of the content, must change when the content changes
+     * @param length current length of [source]
+     * @return the compressed content, or null if it's too long to be compressed in memory
+     */
+    @Throws(IOException::class)
+    fun get(contentKey: String, source: MediaSource, length: Long): ByteArray? {
+        synchronized(this) {
+            variants[contentKey]?.let { return it }
+        }
+        if (length > maxInlineLength) {
+            return null
+        }
+        val created = FutureTask { compressAndCache(contentKey, source, length) }
+        val running = pending.putIfAbsent(contentKey, created)
+        if (running == null) {
+            try {
+                created.run()
+            } finally {
+                pending.remove(contentKey, created)
+            }
+        }
+        try {
+            return (running ?: created).get()
+        } catch (e: ExecutionException) {
+            throw e.cause as? IOException ?: IOException(e.cause)
+        }
+    }
+
+    private fun compressAndCache(contentKey: String, source: MediaSource, length: Long): ByteArray {
+        synchronized(this) {
+            // compressed by a request that finished just before this one started
+            variants[contentKey]?.let { return it }
+        }
+        val compressed = compress(source, length)
+        synchronized(this) {
+            if (compressed.size <= maxBytes && variants.put(contentKey, compressed) == null) {
+                cachedBytes += compressed.size
+                val eldest = variants.entries.iterator()
+                while (cachedBytes > maxBytes && eldest.hasNext()) {
+                    cachedBytes -= eldest.next().value.size
+                    eldest.remove()
+                }
+            }
+        }
+        return compressed
+    }
+
+    /**
+     * stream [source] from the start, for content compressed while it is sent
+     */
+    fun openStream(source: MediaSource): InputStream = SourceInputStream(source)
+
+    fun clear() {
+        synchronized(this) {
+            variants.clear()
+            cachedBytes = 0
+        }
+    }
+
+    private fun compress(source: MediaSource, length: Long): ByteArray {
+        val output = ByteArrayOutputStream((length / 4).toInt() + 64)
+        GZIPOutputStream(output, READ_SIZE).use { gzip ->
+            source.open().use { reader ->
+                val buffer = ByteBuffer.allocate(READ_SIZE)
+                var position = 0L
+                while (position < length) {
+                    buffer.clear()
+                    val read = reader.read(buffer, position)
+                    if (read < 0) {
+                        break
+                    }
+                    gzip.write(buffer.array(), 0, read)
+                    position += read
+                }
+            }
+        }
+        Logger.d(TAG, "compressed ${source.name} from $length to ${output.size()} bytes")
+        return output.toByteArray()
+    }
+}
@@ -0,0 +1,79 @@
+package remote.common.media
+
+import android.util.Log
+import fi.iki.elonen.NanoHTTPD
+import remote.common.utils.Logger
+import java.io.Closeable
+import java.io.OutputStream
+import java.nio.channels.Channels
+
+/**
+ * Response whose body is the region [offset, offset + length) of a [MediaSource], sent with a
+ * fixed Content-Length and without chunked framing. The source is opened only while the body is
+ * written and exactly [length] bytes are read from it.
+ *
+ * When the connection was accepted through [StreamWebServer]'s channel-backed server socket,
+ * file and descriptor regions are pushed with FileChannel.transferTo, so the kernel copies
+ * straight from the page cache to the socket (sendfile) instead of going through a user-space
+ * buffer. The server's
+ * [RegionTransfer] adds its block cache and read-ahead on top of that.
+ *
+ * [owner], when set, is closed with the response, which NanoHTTPD does once it's sent.
+ */
+class FileRegionResponse(
+    status: IStatus,
+    mimeType: String,
+    private val source: MediaSource,
+    private val offset: Long,
+    private val length: Long,
+    private val transfer: RegionTransfer = RegionTransfer(null, null),
+    private val fileKey: String = source.key,
+    private val owner: Closeable? = null
+) : NanoHTTPD.Response(status, mimeType, null, 0) {
+
+    companion object {
+        const val TAG = "FileRegionResponse"
+
+    }
+
+    /**
+     * Body bytes actually written to the client, at most the announced Content-Length.
+     */
+    var bytesSent: Long = 0
+        private set
+
+    init {
+        addHeader("Content-Length", length.toString())
+    }
+
+    override fun send(outputStream: OutputStream) {
+        // no data stream is attached, so the base class only writes the status line and headers
+        super.send(outputStream)
+        if (requestMethod == NanoHTTPD.Method.HEAD || length <= 0) {
+            return
+        }
+        val started = transfer.stats?.bodyStarted() ?: 0
+        try {
+            source.open().use { reader ->
+                val target = StreamWebServer.connectionChannel.get() ?: Channels.newChannel(outputStream)
+                bytesSent += transfer.send(fileKey, source, reader, offset, length, target)
+            }
+            outputStream.flush()
+            Logger.d(TAG, "sent $bytesSent bytes of ${source.name} from $offset")
+        } catch (e: Exception) {
+            // the client has been promised `length` bytes, the connection can't be reused
+            Log.i(TAG, "send region of ${source.name} failed", e)
+            closeConnection(true)
+        } finally {
+            transfer.stats?.bodySent(started, bytesSent)
+        }
+    }
+
+    override fun close() {
+        try {
+            owner?.close()
+        } finally {
+            super.close()
+        }
+    }
+}
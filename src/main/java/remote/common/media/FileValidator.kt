@@ -0,0 +1,132 @@
+package remote.common.media
+
+import java.io.File
+import java.text.ParseException
+import java.text.SimpleDateFormat
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Cache validators of a served file: a strong ETag built from size and mtime, and the
+ * Last-Modified date. Instances are cached per source key and rebuilt once the size or mtime changes.
+ *
+ * Without an mtime (0, e.g. picked content) a tag from the size alone would match a same-size
+ * replacement, so there are no validators: none are sent and no condition is ever met.
+ */
+class FileValidator private constructor(val length: Long, val lastModified: Long) {
+
+    /**
+     * false when the mtime is unknown and nothing should be validated
+     */
+    val isKnown = lastModified > 0
+
+    /**
+     * strong ETag of the identity representation, also part of cache keys even when not [isKnown]
+     */
+    val eTag = "\"${length.toString(16)}-${lastModified.toString(16)}\""
+
+    /**
+     * strong ETag of the gzip encoded representation, which must differ from [eTag]
+     */
+    val gzipETag = variantETag("gz")
+    val lastModifiedHttp: String? = if (isKnown) httpDateFormat.get()!!.format(Date(lastModified)) else null
+
+    /**
+     * strong ETag of content derived from this file, e.g. its HLS playlist
+     */
+    fun variantETag(variant: String) = "\"${length.toString(16)}-${lastModified.toString(16)}-$variant\""
+
+    /**
+     * check an `If-None-Match` header against this file
+     * @param current tag of the representation about to be sent, [eTag] or [gzipETag]
+     * @return true if one of the listed tags (or `*`) matches, weak tags compared weakly
+     */
+    fun matchesAny(ifNoneMatch: String, current: String = eTag): Boolean {
+        if (!isKnown) {
+            return false
+        }
+        for (tag in ifNoneMatch.split(',')) {
+            val candidate = tag.trim()
+            if (candidate == "*" || candidate.removePrefix("W/") == current) {
+                return true
+            }
+        }
+        return false
+    }
+
+    /**
+     * check an `If-Modified-Since` header against this file
+     * @return true if the file hasn't changed since that date, false if it has, the date is invalid or the mtime unknown
+     */
+    fun isNotModifiedSince(ifModifiedSince: String): Boolean {
+        if (!isKnown) {
+            return false
+        }
+        val since = parseHttpDate(ifModifiedSince) ?: return false
+        // HTTP dates have second precision
+        return lastModified / 1000 <= since / 1000
+    }
+
+    /**
+     * check an `If-Range` header, which must match exactly: strong ETag or identical date
+     * @return true if the requested range may be served
+     */
+    fun matchesIfRange(ifRange: String): Boolean {
+        if (!isKnown) {
+            return false
+        }
+        val value = ifRange.trim()
+        if (value.startsWith("\"") || value.startsWith("W/")) {
+            return value == eTag
+        }
+        val date = parseHttpDate(value) ?: return false
+        return date / 1000 == lastModified / 1000
+    }
+
+    companion object {
+        private const val MAX_CACHED = 1024
+
+        private val cache = ConcurrentHashMap<String, FileValidator>()
+
+        private val httpDateFormat = object : ThreadLocal<SimpleDateFormat>() {
+            override fun initialValue(): SimpleDateFormat {
+                val format = SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US)
+                format.timeZone = TimeZone.getTimeZone("GMT")
+                return format
+            }
+        }
+
+        /**
+         * get validators for the file's current size and mtime
+         * @param file file to validate
+         * @return cached validators if the file is unchanged, new ones otherwise
+         */
+        fun of(file: File): FileValidator = of(FileSource(file))
+
+        /**
+         * get validators for the source's current size and mtime, cached by [MediaSource.key]
+         */
+        fun of(source: MediaSource): FileValidator {
+            val length = source.length
+            val lastModified = source.lastModified
+            val cached = cache[source.key]
+            if (cached != null && cached.length == length && cached.lastModified == lastModified) {
+                return cached
+            }
+            if (cache.size >= MAX_CACHED) {
+                cache.clear()
+            }
+            val validator = FileValidator(length, lastModified)
+            cache[source.key] = validator
+            return validator
+        }
+
+        private fun parseHttpDate(value: String): Long? {
+            return try {
+                httpDateFormat.get()!!.parse(value.trim())?.time
+            } catch (e: ParseException) {
+                null
+            }
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package remote.common.media
+
+import android.os.Build
+import android.os.FileObserver
+import java.io.File
+
+/**
+ * [FileObserver] of a file or directory, built with the File constructor on Q and later where the
+ * path one is deprecated
+ */
+internal object FileWatcher {
+
+    /**
+     * @return an observer of [file] passing its events to [listener], not watching yet
+     */
+    fun create(file: File, mask: Int, listener: (event: Int, path: String?) -> Unit): FileObserver {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            return object : FileObserver(file, mask) {
+                override fun onEvent(event: Int, path: String?) = listener(event, path)
+            }
+        }
+        @Suppress("DEPRECATION")
+        return object : FileObserver(file.path, mask) {
+            override fun onEvent(event: Int, path: String?) = listener(event, path)
+        }
+    }
+}
@@ -0,0 +1,372 @@
+package remote.common.media
+
+import remote.common.utils.Logger
+import java.io.IOException
+import java.io.InterruptedIOException
+import java.nio.ByteBuffer
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.FutureTask
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+
+/**
+ * HLS playlists for MPEG-TS files, so players can start and seek without buffering one long
+ * progressive stream.
+ *
+ * The file is scanned once: PAT and PMT give the video stream (or the first audio stream when
+ * there's no video), whose PES timestamps time the segments. Segments are cut at random access
+ * points, or at any PES start when the muxer never flags them, once [targetDurationUs] has
+ * passed; a cut moves back to a PAT written just before it so most segments start with the
+ * tables. The playlist addresses the segments as byte ranges of the file itself, which is served
+ * unchanged. Indexes are cached per content key and a scan runs once for concurrent requests.
+ *
+ * Scans run on threads of their own. A request waits [SCAN_WAIT_MS] for the whole index, then
+ * takes the segments found so far as an EVENT playlist the player reloads until the scan is done,
+ * so a long file on slow storage doesn't hold the request or its worker.
+ */
+class HlsSegmenter(private val targetDurationUs: Long = 6_000_000L) {
+
+    companion object {
+        const val TAG = "HlsSegmenter"
+
+        /**
+         * Playlist name under the published path of a TS file: `/_src/<token>/index.m3u8`.
+         */
+        const val PLAYLIST_NAME = "index.m3u8"
+        const val PLAYLIST_MIME_TYPE = "application/vnd.apple.mpegurl"
+
+        private const val PACKET_SIZE = 188
+        private const val READ_PACKETS = 512
+        private const val MAX_CACHED = 64
+        /**
+         * how far before a cut a PAT may be to start the segment there
+         */
+        private const val MAX_PAT_DISTANCE = 16L * PACKET_SIZE
+        private const val PTS_WRAP = 1L shl 33
+        private const val PID_PAT = 0
+        private const val SCAN_THREADS = 2
+        /**
+         * how long a playlist request waits for the scan to finish before it takes a partial index
+         */
+        const val SCAN_WAIT_MS = 500L
+        private const val SCAN_POLL_MS = 50L
+
+        private val VIDEO_STREAM_TYPES = intArrayOf(0x01, 0x02, 0x10, 0x1B, 0x24, 0xEA)
+        private val AUDIO_STREAM_TYPES = intArrayOf(0x03, 0x04, 0x0F, 0x11, 0x81, 0x87)
+
+        /**
+         * scan a TS file for segment boundaries
+         * @return the index, or null if it isn't a 188 byte packet TS with timestamps
+         */
+        @Throws(IOException::class)
+        fun scan(source: MediaSource, length: Long, targetDurationUs: Long): SegmentIndex? {
+            return scan(source, length, Scanner(targetDurationUs))
+        }
+
+        private fun scan(source: MediaSource, length: Long, scanner: Scanner): SegmentIndex? {
+            source.open().use { reader ->
+                val buffer = ByteBuffer.allocate(PACKET_SIZE * READ_PACKETS)
+                val packet = buffer.array()
+                var position = 0L
+                while (position + PACKET_SIZE <= length) {
+                    buffer.clear()
+                    buffer.limit(minOf(buffer.capacity().toLong(), length - position).toInt())
+                    val read = reader.read(buffer, position)
+                    if (read < PACKET_SIZE) {
+                        break
+                    }
+                    if (position == 0L && !startsWithPackets(packet, read)) {
+                        // M2TS and other framings can't be cut into plain TS byte ranges
+                        return null
+                    }
+                    var offset = 0
+                    while (offset + PACKET_SIZE <= read) {
+                        if (packet[offset] != 0x47.toByte()) {
+                            // lost sync, look for the next packet start
+                            offset++
+                            continue
+                        }
+                        scanner.onPacket(packet, offset, position + offset)
+                        offset += PACKET_SIZE
+                    }
+                    position += offset
+                }
+            }
+            return scanner.finish(length)
+        }
+
+        private fun startsWithPackets(data: ByteArray, length: Int): Boolean {
+            var i = 0
+            while (i < minOf(length, 4 * PACKET_SIZE)) {
+                if (data[i] != 0x47.toByte()) {
+                    return false
+                }
+                i += PACKET_SIZE
+            }
+            return true
+        }
+    }
+
+    /**
+     * a byte range of the TS file holding [durationUs] of media
+     */
+    class Segment(val offset: Long, val length: Long, val durationUs: Long)
+
+    /**
+     * @param complete false while the file is still being scanned, more segments follow
+     */
+    class SegmentIndex(val segments: List<Segment>, val complete: Boolean = true) {
+
+        /**
+         * EXT-X-TARGETDURATION, the longest segment rounded up to seconds
+         */
+        val targetDuration = ((segments.maxOf { it.durationUs } + 999_999) / 1_000_000).toInt()
+
+        /**
+         * @param segmentUri uri of the TS file, relative to the playlist
+         * @return a VOD playlist, or an EVENT one starting at the beginning while [complete] is false
+         */
+        fun toPlaylist(segmentUri: String): String {
+            val sb = StringBuilder(96 + segments.size * (segmentUri.length + 48))
+            sb.append("#EXTM3U\n")
+            sb.append("#EXT-X-VERSION:4\n")
+            sb.append("#EXT-X-TARGETDURATION:").append(targetDuration).append('\n')
+            sb.append("#EXT-X-MEDIA-SEQUENCE:0\n")
+            if (complete) {
+                sb.append("#EXT-X-PLAYLIST-TYPE:VOD\n")
+            } else {
+                sb.append("#EXT-X-PLAYLIST-TYPE:EVENT\n")
+                sb.append("#EXT-X-START:TIME-OFFSET=0\n")
+            }
+            for (segment in segments) {
+                sb.append("#EXTINF:").append(String.format(Locale.ROOT, "%.3f", segment.durationUs / 1_000_000.0)).append(",\n")
+                sb.append("#EXT-X-BYTERANGE:").append(segment.length).append('@').append(segment.offset).append('\n')
+                sb.append(segmentUri).append('\n')
+            }
+            if (complete) {
+                sb.append("#EXT-X-ENDLIST\n")
+            }
+            return sb.toString()
+        }
+    }
+
+    private class Scan(val scanner: Scanner, val task: FutureTask<SegmentIndex?>)
+
+    private val indexes = ConcurrentHashMap<String, Scan>()
+
+    private val executor = ThreadPoolExecutor(
+        SCAN_THREADS, SCAN_THREADS, 30, TimeUnit.SECONDS, LinkedBlockingQueue(),
+        { r -> Thread(r, "StreamWebServer-hls").apply { isDaemon = true } }
+    ).apply {
+        allowCoreThreadTimeOut(true)
+    }
+
+    /**
+     * @param contentKey identity of the content, must change when the content changes
+     * @param length current length of [source]
+     * @return the cached index, or the segments found so far if the scan takes longer than
+     * [SCAN_WAIT_MS]; null if it can't be segmented
+     */
+    @Throws(IOException::class)
+    fun index(contentKey: String, source: MediaSource, length: Long): SegmentIndex? {
+        var indexing = indexes[contentKey]
+        if (indexing == null) {
+            if (indexes.size >= MAX_CACHED) {
+                indexes.clear()
+            }
+            val scanner = Scanner(targetDurationUs)
+            val created = Scan(scanner, FutureTask { scan(source, length, scanner) })
+            indexing = indexes.putIfAbsent(contentKey, created) ?: created.also { executor.execute(it.task) }
+        }
+        try {
+            var waitMs = SCAN_WAIT_MS
+            while (true) {
+                try {
+                    return indexing.task.get(waitMs, TimeUnit.MILLISECONDS)
+                } catch (e: TimeoutException) {
+                    // until the first segment is cut there's nothing to play
+                    val segments = indexing.scanner.segments()
+                    if (segments.isNotEmpty()) {
+                        return SegmentIndex(segments, false)
+                    }
+                    waitMs = SCAN_POLL_MS
+                }
+            }
+        } catch (e: ExecutionException) {
+            // let the next request try again
+            indexes.remove(contentKey, indexing)
+            throw e.cause as? IOException ?: IOException(e.cause)
+        } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt()
+            throw InterruptedIOException("index of ${source.name} interrupted")
+        }
+    }
+
+    fun clear() {
+        indexes.clear()
+    }
+
+    private class Scanner(private val targetDurationUs: Long) {
+        private var pmtPid = -1
+        private var timingPid = -1
+        private var timingIsVideo = false
+        private var sawRandomAccess = false
+        private var lastPatOffset = -1L
+
+        private var wrapOffset = 0L
+        private var lastPts = -1L
+        private var maxPts = -1L
+
+        private var segmentOffset = 0L
+        private var segmentPts = -1L
+        // guarded by itself, requests read it while the scan goes on
+        private val segments = ArrayList<Segment>()
+
+        fun segments(): List<Segment> = synchronized(segments) { ArrayList(segments) }
+
+        fun onPacket(packet: ByteArray, offset: Int, position: Long) {
+            val pid = (packet[offset + 1].toInt() and 0x1F shl 8) or (packet[offset + 2].toInt() and 0xFF)
+            val unitStart = packet[offset + 1].toInt() and 0x40 != 0
+            val control = packet[offset + 3].toInt() shr 4 and 0x03
+            var payload = offset + 4
+            var randomAccess = false
+            if (control and 0x02 != 0) {
+                val adaptationLength = packet[offset + 4].toInt() and 0xFF
+                if (adaptationLength > 0) {
+                    randomAccess = packet[offset + 5].toInt() and 0x40 != 0
+                }
+                payload += 1 + adaptationLength
+            }
+            val end = offset + PACKET_SIZE
+            if (control and 0x01 == 0 || payload >= end || !unitStart) {
+                return
+            }
+            when (pid) {
+                PID_PAT -> {
+                    lastPatOffset = position
+                    if (pmtPid < 0) {
+                        pmtPid = parsePat(packet, payload, end)
+                    }
+                }
+                pmtPid -> if (timingPid < 0) {
+                    parsePmt(packet, payload, end)
+                }
+                timingPid -> onPes(packet, payload, end, position, randomAccess)
+            }
+        }
+
+        /**
+         * @return the PMT pid of the first program, -1 if none fits in the packet
+         */
+        private fun parsePat(packet: ByteArray, payload: Int, end: Int): Int {
+            val section = payload + 1 + (packet[payload].toInt() and 0xFF)
+            if (section + 8 > end || packet[section].toInt() != 0x00) {
+                return -1
+            }
+            val sectionEnd = minOf(section + 3 + sectionLength(packet, section) - 4, end)
+            var i = section + 8
+            while (i + 4 <= sectionEnd) {
+                val program = (packet[i].toInt() and 0xFF shl 8) or (packet[i + 1].toInt() and 0xFF)
+                if (program != 0) {
+                    return (packet[i + 2].toInt() and 0x1F shl 8) or (packet[i + 3].toInt() and 0xFF)
+                }
+                i += 4
+            }
+            return -1
+        }
+
+        /**
+         * pick the stream timing the segments: the first video stream, else the first audio stream
+         */
+        private fun parsePmt(packet: ByteArray, payload: Int, end: Int) {
+            val section = payload + 1 + (packet[payload].toInt() and 0xFF)
+            if (section + 12 > end || packet[section].toInt() != 0x02) {
+                return
+            }
+            val sectionEnd = minOf(section + 3 + sectionLength(packet, section) - 4, end)
+            val programInfoLength = (packet[section + 10].toInt() and 0x0F shl 8) or (packet[section + 11].toInt() and 0xFF)
+            var audioPid = -1
+            var i = section + 12 + programInfoLength
+            while (i + 5 <= sectionEnd) {
+                val streamType = packet[i].toInt() and 0xFF
+                val pid = (packet[i + 1].toInt() and 0x1F shl 8) or (packet[i + 2].toInt() and 0xFF)
+                if (streamType in VIDEO_STREAM_TYPES) {
+                    timingPid = pid
+                    timingIsVideo = true
+                    return
+                }
+                if (audioPid < 0 && streamType in AUDIO_STREAM_TYPES) {
+                    audioPid = pid
+                }
+                i += 5 + ((packet[i + 3].toInt() and 0x0F shl 8) or (packet[i + 4].toInt() and 0xFF))
+            }
+            timingPid = audioPid
+        }
+
+        private fun onPes(packet: ByteArray, payload: Int, end: Int, position: Long, randomAccess: Boolean) {
+            // start code, stream id, length, flags, header length, then the PTS if flagged
+            if (payload + 14 > end || packet[payload].toInt() != 0 || packet[payload + 1].toInt() != 0 ||
+                packet[payload + 2].toInt() != 1 || packet[payload + 7].toInt() and 0x80 == 0) {
+                return
+            }
+            val pts = unwrap(readPts(packet, payload + 9))
+            if (pts > maxPts) {
+                maxPts = pts
+            }
+            sawRandomAccess = sawRandomAccess || randomAccess
+            if (segmentPts < 0) {
+                segmentPts = pts
+                return
+            }
+            // without random access flags from the muxer every PES start is taken as a cut point
+            val cutPoint = randomAccess || !timingIsVideo || !sawRandomAccess
+            if (!cutPoint || pts - segmentPts < targetDurationUs * 9 / 100) {
+                return
+            }
+            val start = if (lastPatOffset > segmentOffset && position - lastPatOffset <= MAX_PAT_DISTANCE) lastPatOffset else position
+            synchronized(segments) {
+                segments.add(Segment(segmentOffset, start - segmentOffset, (pts - segmentPts) * 100 / 9))
+            }
+            segmentOffset = start
+            segmentPts = pts
+        }
+
+        /**
+         * PTS ticks are 90 kHz and wrap at 33 bits
+         */
+        private fun unwrap(pts: Long): Long {
+            if (lastPts >= 0 && pts + wrapOffset < lastPts - PTS_WRAP / 2) {
+                wrapOffset += PTS_WRAP
+            }
+            lastPts = pts + wrapOffset
+            return lastPts
+        }
+
+        private fun readPts(packet: ByteArray, i: Int): Long {
+            return ((packet[i].toLong() shr 1 and 0x07) shl 30) or
+                    ((packet[i + 1].toLong() and 0xFF) shl 22) or
+                    ((packet[i + 2].toLong() and 0xFE) shl 14) or
+                    ((packet[i + 3].toLong() and 0xFF) shl 7) or
+                    ((packet[i + 4].toLong() and 0xFE) shr 1)
+        }
+
+        private fun sectionLength(packet: ByteArray, section: Int): Int {
+            return (packet[section + 1].toInt() and 0x0F shl 8) or (packet[section + 2].toInt() and 0xFF)
+        }
+
+        fun finish(length: Long): SegmentIndex? {
+            if (segmentPts < 0) {
+                Logger.d(TAG, "no timestamps found")
+                return null
+            }
+            synchronized(segments) {
+                segments.add(Segment(segmentOffset, length - segmentOffset, maxOf((maxPts - segmentPts) * 100 / 9, 1)))
+            }
+            return SegmentIndex(segments())
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package remote.common.media
+
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.graphics.Matrix
+import android.media.ExifInterface
+import android.os.Build
+import remote.common.utils.Logger
+import java.io.BufferedOutputStream
+import java.io.File
+import java.io.FileNotFoundException
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.security.MessageDigest
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.FutureTask
+import java.util.concurrent.Semaphore
+
+/**
+ * Downscaled copies of photos for renderers that show at most 1080p or 4K, so casting a 48 MP
+ * JPEG doesn't send 15 MB over Wi-Fi.
+ *
+ * A variant is decoded with the largest power of two subsampling that keeps it above the target
+ * box, scaled to fit and turned upright from its EXIF orientation, then encoded once into [dir].
+ * Files there are named after the source key, size, mtime and target box, form an LRU bounded by
+ * [maxBytes] and keep their recency in their mtime across restarts. Concurrent requests for the
+ * same variant wait for one encode.
+ */
+class ImageVariants internal constructor(
+    private val dir: File,
+    private val maxBytes: Long,
+    /**
+     * writes [MediaSource] fitted to [Target] into the file, the bitmap pipeline unless a test
+     * stands in for it
+     * @return true if written as PNG, false as JPEG, null if the image already fits or can't be decoded
+     */
+    private val encoder: ((MediaSource, Target, File) -> Boolean?)?
+) {
+
+    constructor(dir: File, maxBytes: Long = 64L * 1024 * 1024) : this(dir, maxBytes, null)
+
+    companion object {
+        const val TAG = "ImageVariants"
+        private const val JPEG_QUALITY = 90
+        private const val MIN_SIZE = 64
+        private const val MAX_SIZE = 8192
+
+        /**
+         * pixel memory of the decodes running at once, in KB. A subsampled decode and its scaled
+         * copy, both ARGB, take ~18 MB for 1080p but ~73 MB for 4K from a 48 MP photo; a decode
+         * over the whole budget runs alone.
+         */
+        private const val DECODE_BUDGET_KB = 64 * 1024
+
+        /**
+         * renderer profiles accepted in the `profile` query parameter
+         */
+        private val PROFILES = mapOf(
+            "720p" to Target(1280, 720),
+            "1080p" to Target(1920, 1080),
+            "4k" to Target(3840, 2160),
+            "2160p" to Target(3840, 2160)
+        )
+
+        fun isScalableFileType(fileType: Int): Boolean {
+            return fileType == MediaType.FILE_TYPE_JPEG || fileType == MediaType.FILE_TYPE_PNG ||
+                    fileType == MediaType.FILE_TYPE_WEBP || fileType == MediaType.FILE_TYPE_BMP
+        }
+
+        /**
+         * read the box to fit from `w` and `h`, either may be left out, or from `profile`
+         * @return the target, null if none was requested
+         */
+        fun parseTarget(params: Map<String?, String?>?): Target? {
+            if (params == null) {
+                return null
+            }
+            params["profile"]?.let { return PROFILES[it.lowercase()] }
+            val width = params["w"]?.toIntOrNull()
+            val height = params["h"]?.toIntOrNull()
+            if (width == null && height == null) {
+                return null
+            }
+            return Target(clamp(width ?: MAX_SIZE), clamp(height ?: MAX_SIZE))
+        }
+
+        private fun clamp(size: Int) = size.coerceIn(MIN_SIZE, MAX_SIZE)
+    }
+
+    /**
+     * box a variant must fit in, in pixels
+     */
+    class Target(val width: Int, val height: Int) {
+        override fun toString() = "${width}x$height"
+    }
+
+    /**
+     * an encoded variant opened for one response, so trimming the cache can't delete it before
+     * it's sent; the caller closes [source]
+     */
+    class Variant(val source: ChannelSource, val mimeType: String)
+
+    /**
+     * how to decode a photo: [width] and [height] upright, scaled by [scale] after subsampling
+     */
+    private class Decode(val orientation: Int, val width: Int, val height: Int, val scale: Double, val sampleSize: Int, val budgetKb: Int)
+
+    /**
+     * cached file name to length, in access order
+     */
+    private val files = LinkedHashMap<String, Long>(16, 0.75f, true)
+    private var cachedBytes = 0L
+    private val pending = ConcurrentHashMap<String, FutureTask<Variant?>>()
+    // fair, so a large decode isn't starved by small ones
+    private val decodeBudget = Semaphore(DECODE_BUDGET_KB, true)
+
+    init {
+        dir.mkdirs()
+        val existing = dir.listFiles() ?: emptyArray()
+        Arrays.sort(existing) { a, b -> a.lastModified().compareTo(b.lastModified()) }
+        for (file in existing) {
+            if (file.name.endsWith(".tmp")) {
+                file.delete()
+            } else {
+                files[file.name] = file.length()
+                cachedBytes += file.length()
+            }
+        }
+        trim()
+    }
+
+    /**
+     * @return the variant of [source] fitting [target], null if the image already fits or can't be decoded
+     */
+    @Throws(IOException::class)
+    fun get(source: MediaSource, validator: FileValidator, target: Target): Variant? {
+        val name = nameOf(source, validator, target)
+        cached(name)?.let { return it }
+        val created = FutureTask { cached(name) ?: create(source, target, name) }
+        val running = pending.putIfAbsent(name, created)
+        if (running == null) {
+            try {
+                created.run()
+            } finally {
+                pending.remove(name, created)
+            }
+        }
+        try {
+            if (running == null) {
+                return created.get()
+            }
+            // the variant opened by the encoding request is its own
+            return running.get()?.let { cached(name) }
+        } catch (e: ExecutionException) {
+            throw e.cause as? IOException ?: IOException(e.cause)
+        }
+    }
+
+    fun clear() {
+        synchronized(files) {
+            for (name in files.keys) {
+                File(dir, name).delete()
+            }
+            files.clear()
+            cachedBytes = 0
+        }
+    }
+
+    private fun cached(name: String): Variant? {
+        for ((extension, mimeType) in arrayOf(".jpg" to "image/jpeg", ".png" to "image/png")) {
+            val file = File(dir, name + extension)
+            val variant = synchronized(files) {
+                if (files[file.name] == null) {
+                    null
+                } else {
+                    open(file, mimeType) ?: run {
+                        files.remove(file.name)?.let { cachedBytes -= it }
+                        null
+                    }
+                }
+            } ?: continue
+            file.setLastModified(System.currentTimeMillis())
+            return variant
+        }
+        return null
+    }
+
+    /**
+     * open [file] holding the lock of [files], so [trim] can't delete it first; once open, deleting
+     * it only unlinks it and it's still sent whole
+     */
+    private fun open(file: File, mimeType: String): Variant? {
+        val raf = try {
+            RandomAccessFile(file, "r")
+        } catch (e: FileNotFoundException) {
+            return null
+        }
+        return Variant(ChannelSource(file.name, file.path, raf.channel, file.lastModified(), raf), mimeType)
+    }
+
+    private fun create(source: MediaSource, target: Target, name: String): Variant? {
+        val temp = File(dir, "$name.tmp")
+        val alpha = (encoder ?: ::encode)(source, target, temp) ?: return null
+        val extension = if (alpha) ".png" else ".jpg"
+        val file = File(dir, name + extension)
+        if (!temp.renameTo(file)) {
+            temp.delete()
+            throw IOException("rename ${temp.path} failed")
+        }
+        val variant = synchronized(files) {
+            files[file.name] = file.length()
+            cachedBytes += file.length()
+            open(file, if (alpha) "image/png" else "image/jpeg") ?: throw IOException("open ${file.path} failed")
+        }
+        trim()
+        Logger.d(TAG, "encoded ${source.name} for $target, ${source.length} -> ${file.length()} bytes")
+        return variant
+    }
+
+    private fun encode(source: MediaSource, target: Target, out: File): Boolean? {
+        val plan = plan(source, target) ?: return null
+        // the pixels stay allocated until the variant is encoded
+        decodeBudget.acquire(plan.budgetKb)
+        try {
+            val bitmap = decode(source, plan) ?: return null
+            val alpha = bitmap.hasAlpha()
+            try {
+                BufferedOutputStream(FileOutputStream(out)).use {
+                    bitmap.compress(if (alpha) Bitmap.CompressFormat.PNG else Bitmap.CompressFormat.JPEG, JPEG_QUALITY, it)
+                }
+            } finally {
+                bitmap.recycle()
+            }
+            return alpha
+        } finally {
+            decodeBudget.release(plan.budgetKb)
+        }
+    }
+
+    /**
+     * @return how to decode [source] to fit [target], null if it already fits or isn't an image
+     */
+    private fun plan(source: MediaSource, target: Target): Decode? {
+        val options = BitmapFactory.Options()
+        options.inJustDecodeBounds = true
+        decodeSource(source, options)
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null
+        }
+        val orientation = orientationOf(source)
+        val transposed = orientation in ExifInterface.ORIENTATION_TRANSPOSE..ExifInterface.ORIENTATION_ROTATE_270
+        val width = if (transposed) options.outHeight else options.outWidth
+        val height = if (transposed) options.outWidth else options.outHeight
+        if (width <= target.width && height <= target.height) {
+            return null
+        }
+        val scale = minOf(target.width.toDouble() / width, target.height.toDouble() / height)
+        var sampleSize = 1
+        while (width / (sampleSize * 2) >= width * scale && height / (sampleSize * 2) >= height * scale) {
+            sampleSize *= 2
+        }
+        // 4 bytes per ARGB pixel, for the subsampled decode and its scaled copy
+        val decodedBytes = (width / sampleSize).toLong() * (height / sampleSize) * 4
+        val scaledBytes = (width * scale).toLong() * (height * scale).toLong() * 4
+        val budgetKb = ((decodedBytes + scaledBytes) / 1024).coerceIn(1, DECODE_BUDGET_KB.toLong()).toInt()
+        return Decode(orientation, width, height, scale, sampleSize, budgetKb)
+    }
+
+    private fun decode(source: MediaSource, plan: Decode): Bitmap? {
+        val options = BitmapFactory.Options()
+        options.inSampleSize = plan.sampleSize
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888
+        val decoded = decodeSource(source, options) ?: return null
+        val orientation = plan.orientation
+        val transposed = orientation in ExifInterface.ORIENTATION_TRANSPOSE..ExifInterface.ORIENTATION_ROTATE_270
+        val decodedWidth = if (transposed) decoded.height else decoded.width
+        val matrix = Matrix()
+        val fit = (plan.width * plan.scale / decodedWidth).toFloat()
+        matrix.postScale(fit, fit)
+        when (orientation) {
+            ExifInterface.ORIENTATION_FLIP_HORIZONTAL -> matrix.postScale(-1f, 1f)
+            ExifInterface.ORIENTATION_ROTATE_180 -> matrix.postRotate(180f)
+            ExifInterface.ORIENTATION_FLIP_VERTICAL -> matrix.postScale(1f, -1f)
+            ExifInterface.ORIENTATION_TRANSPOSE -> { matrix.postRotate(90f); matrix.postScale(-1f, 1f) }
+            ExifInterface.ORIENTATION_ROTATE_90 -> matrix.postRotate(90f)
+            ExifInterface.ORIENTATION_TRANSVERSE -> { matrix.postRotate(-90f); matrix.postScale(-1f, 1f) }
+            ExifInterface.ORIENTATION_ROTATE_270 -> matrix.postRotate(-90f)
+        }
+        val result = Bitmap.createBitmap(decoded, 0, 0, decoded.width, decoded.height, matrix, true)
+        if (result !== decoded) {
+            decoded.recycle()
+        }
+        return result
+    }
+
+    private fun decodeSource(source: MediaSource, options: BitmapFactory.Options): Bitmap? {
+        if (source is FileSource) {
+            return BitmapFactory.decodeFile(source.file.path, options)
+        }
+        return SourceInputStream(source).buffered().use { BitmapFactory.decodeStream(it, null, options) }
+    }
+
+    /**
+     * EXIF orientation of a JPEG, normal for anything else. Picked content is read as a stream,
+     * which ExifInterface takes from API 24, older releases send it as stored.
+     */
+    private fun orientationOf(source: MediaSource): Int {
+        if (MediaType.getFileType(source)?.fileType != MediaType.FILE_TYPE_JPEG) {
+            return ExifInterface.ORIENTATION_NORMAL
+        }
+        return try {
+            val exif = when {
+                source is FileSource -> ExifInterface(source.file.path)
+                Build.VERSION.SDK_INT >= Build.VERSION_CODES.N -> SourceInputStream(source).buffered().use { ExifInterface(it) }
+                else -> return ExifInterface.ORIENTATION_NORMAL
+            }
+            exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL)
+        } catch (e: IOException) {
+            ExifInterface.ORIENTATION_NORMAL
+        }
+    }
+
+    private fun trim() {
+        synchronized(files) {
+            val eldest = files.entries.iterator()
+            // the newest variant stays even when it alone is over the limit, it's about to be sent
+            while (cachedBytes > maxBytes && files.size > 1) {
+                val entry = eldest.next()
+                File(dir, entry.key).delete()
+                cachedBytes -= entry.value
+                eldest.remove()
+            }
+        }
+    }
+
+    private fun nameOf(source: MediaSource, validator: FileValidator, target: Target): String {
+        val digest = MessageDigest.getInstance("SHA-1")
+            .digest("${source.key}|${validator.length}|${validator.lastModified}|$target".toByteArray())
+        val sb = StringBuilder(digest.size * 2)
+        for (b in digest) {
+            sb.append(String.format("%02x", b))
+        }
+        return sb.toString()
+    }
+}
@@ -0,0 +1,145 @@
+package remote.common.media
+
+import android.os.FileObserver
+import android.util.Log
+import fi.iki.elonen.NanoHTTPD
+import remote.common.utils.Logger
+import java.io.Closeable
+import java.io.OutputStream
+import java.io.PrintWriter
+import java.nio.channels.Channels
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.ReentrantLock
+
+/**
+ * Waits for a source that is still being written to grow. Files are watched with a
+ * [FileObserver], which also reports when the writer closes them; the length is polled every
+ * [pollMillis] as well, so a missed event only costs latency.
+ */
+class GrowthWatcher(private val source: MediaSource, private val pollMillis: Long = 200) : Closeable {
+
+    private val lock = ReentrantLock()
+    private val changed = lock.newCondition()
+
+    @Volatile
+    private var writerClosed = false
+
+    private val observer = (source as? FileSource)?.let {
+        val mask = FileObserver.MODIFY or FileObserver.CLOSE_WRITE or FileObserver.DELETE_SELF or FileObserver.MOVE_SELF
+        FileWatcher.create(it.file, mask) { event, _ -> onEvent(event) }
+    }
+
+    init {
+        observer?.startWatching()
+    }
+
+    /**
+     * an event of the [FileObserver], anything but MODIFY means the writer is done
+     */
+    internal fun onEvent(event: Int) {
+        if ((event and FileObserver.ALL_EVENTS) != FileObserver.MODIFY) {
+            writerClosed = true
+        }
+        lock.lock()
+        try {
+            changed.signalAll()
+        } finally {
+            lock.unlock()
+        }
+    }
+
+    /**
+     * wait until the source is longer than [length]
+     * @return false if the writer closed the file, the file is gone or nothing was written for [idleTimeoutMillis]
+     */
+    fun awaitLength(length: Long, idleTimeoutMillis: Long): Boolean {
+        val deadline = System.currentTimeMillis() + idleTimeoutMillis
+        while (true) {
+            if (source.length > length) {
+                return true
+            }
+            val now = System.currentTimeMillis()
+            if (writerClosed || !source.exists() || now >= deadline) {
+                // the last write may have landed right before the close
+                return source.length > length
+            }
+            lock.lock()
+            try {
+                changed.await(minOf(pollMillis, deadline - now), TimeUnit.MILLISECONDS)
+            } finally {
+                lock.unlock()
+            }
+        }
+    }
+
+    override fun close() {
+        observer?.stopWatching()
+    }
+}
+
+/**
+ * Response following a file that is still being written, e.g. a recording cast while it runs.
+ *
+ * The body starts at [offset] and is sent with chunked framing, one chunk per stretch of new
+ * data, until the writer closes the file or it stops growing for [idleTimeoutMillis]. Each
+ * stretch goes out through [RegionTransfer] like a regular file region.
+ */
+class LiveFileResponse(
+    mimeType: String,
+    private val source: MediaSource,
+    private val offset: Long,
+    private val transfer: RegionTransfer,
+    private val idleTimeoutMillis: Long = 10_000
+) : NanoHTTPD.Response(Status.OK, mimeType, null, 0) {
+
+    companion object {
+        const val TAG = "LiveFileResponse"
+        private val CRLF = "\r\n".toByteArray(Charsets.US_ASCII)
+        private val LAST_CHUNK = "0\r\n\r\n".toByteArray(Charsets.US_ASCII)
+    }
+
+    var bytesSent: Long = 0
+        private set
+
+    override fun sendContentLengthHeaderIfNotAlreadyPresent(pw: PrintWriter, defaultSize: Long): Long {
+        // called by the base class in place of its own chunked header, which needs a data stream
+        printHeader(pw, "Transfer-Encoding", "chunked")
+        return 0
+    }
+
+    override fun send(outputStream: OutputStream) {
+        super.send(outputStream)
+        if (requestMethod == NanoHTTPD.Method.HEAD) {
+            return
+        }
+        val started = transfer.stats?.bodyStarted() ?: 0
+        try {
+            GrowthWatcher(source).use { watcher ->
+                source.open().use { reader ->
+                    val target = StreamWebServer.connectionChannel.get() ?: Channels.newChannel(outputStream)
+                    var position = offset
+                    while (true) {
+                        val length = source.length
+                        if (length > position) {
+                            transfer.write(target, (length - position).toString(16).toByteArray(Charsets.US_ASCII))
+                            transfer.write(target, CRLF)
+                            bytesSent += transfer.send(source.key, source, reader, position, length - position, target)
+                            transfer.write(target, CRLF)
+                            position = length
+                        } else if (!watcher.awaitLength(position, idleTimeoutMillis)) {
+                            break
+                        }
+                    }
+                    transfer.write(target, LAST_CHUNK)
+                }
+            }
+            outputStream.flush()
+            Logger.d(TAG, "followed ${source.name} from $offset, sent $bytesSent bytes")
+        } catch (e: Exception) {
+            Log.i(TAG, "follow ${source.name} failed", e)
+            closeConnection(true)
+        } finally {
+            transfer.stats?.bodySent(started, bytesSent)
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package remote.common.media
+
+import android.content.Context
+import android.os.FileObserver
+import androidx.room.*
+import androidx.room.RoomDatabase
+import kotlinx.coroutines.*
+import remote.common.utils.Logger
+import java.io.File
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.Executors
+
+/**
+ * Index of the castable media under a few storage roots, kept in a Room table so browsing
+ * screens page through a query instead of walking storage.
+ *
+ * A scan walks directories in parallel, classifies files by extension through [MediaType] and
+ * only writes rows whose mtime changed; rows of files that are gone are deleted. After a scan the
+ * directories holding media are watched with [FileObserver] and changes rescan just the affected
+ * directory.
+ *
+ * Titles are also held in a [TitleIndex] for search as you type, loaded from the table before
+ * the first scan and updated with the rows each scan writes or deletes.
+ */
+object MediaLibrary {
+    const val TAG = "MediaLibrary"
+
+    const val CATEGORY_AUDIO = 1
+    const val CATEGORY_VIDEO = 2
+    const val CATEGORY_IMAGE = 3
+
+    private const val WALK_THREADS = 4
+    private const val BATCH_SIZE = 500
+    private const val MAX_WATCHED_DIRS = 256
+    private const val RESCAN_DELAY = 1000L
+    private const val IN_ISDIR = 0x40000000
+    private const val WATCH_EVENTS = FileObserver.CREATE or FileObserver.CLOSE_WRITE or FileObserver.MOVED_TO or
+            FileObserver.DELETE or FileObserver.MOVED_FROM or FileObserver.DELETE_SELF
+
+    @Entity(tableName = "media_item", indices = [Index(value = ["category", "title", "path"])])
+    data class MediaItem (
+        @PrimaryKey
+        var path: String,
+        var fileType: Int,
+        var category: Int,
+        var mimeType: String,
+        var size: Long,
+        var lastModified: Long,
+        var title: String,
+    )
+
+    data class Stamp (
+        var path: String,
+        var lastModified: Long,
+    )
+
+    data class Title (
+        var path: String,
+        var title: String,
+    )
+
+    @Dao
+    interface MediaItemDao {
+        /**
+         * rows whose path is in [from, to), i.e. everything under a directory
+         */
+        @Query("SELECT path, lastModified FROM media_item WHERE path >= :from AND path < :to")
+        suspend fun getStamps(from: String, to: String): List<Stamp>
+
+        @Query("SELECT path, title FROM media_item")
+        suspend fun getTitles(): List<Title>
+
+        @Insert(onConflict = OnConflictStrategy.REPLACE)
+        suspend fun upsert(items: List<MediaItem>)
+
+        @Query("DELETE FROM media_item WHERE path IN (:paths)")
+        suspend fun delete(paths: List<String>)
+
+        /**
+         * keyset page ordered by title then path, starting after the given row
+         */
+        @Query("SELECT * FROM media_item WHERE category = :category AND (title > :afterTitle OR (title = :afterTitle AND path > :afterPath)) ORDER BY title, path LIMIT :limit")
+        suspend fun getPage(category: Int, afterTitle: String, afterPath: String, limit: Int): List<MediaItem>
+
+        @Query("SELECT COUNT(*) FROM media_item WHERE category = :category")
+        suspend fun count(category: Int): Int
+    }
+
+    @Database(entities = [MediaItem::class], version = 1, exportSchema = false)
+    abstract class MediaLibraryDatabase : RoomDatabase() {
+        val mediaItemDao: MediaItemDao by lazy { createMediaItemDao() }
+        abstract fun createMediaItemDao(): MediaItemDao
+    }
+
+    private lateinit var dao: MediaItemDao
+    private var roots: List<File> = emptyList()
+
+    private val walkDispatcher = Executors.newFixedThreadPool(WALK_THREADS) { r ->
+        Thread(r, "MediaLibrary-walk").apply { isDaemon = true }
+    }.asCoroutineDispatcher()
+
+    private val titleIndex = TitleIndex()
+
+    private val observers = HashMap<String, FileObserver>()
+
+    /**
+     * directories waiting for a rescan, with whether their subdirectories need one too
+     */
+    private val pendingDirs = HashMap<String, Boolean>()
+
+    /**
+     * called on the main thread after a scan changed the index
+     */
+    var onIndexChanged: (() -> Unit)? = null
+
+    /**
+     * open the index and rescan [roots] in the background
+     */
+    fun init(context: Context, roots: List<File>) {
+        val db = Room.databaseBuilder(context, MediaLibraryDatabase::class.java, "media_library.db")
+            .build()
+        init(db.mediaItemDao, roots)
+        rescan()
+    }
+
+    /**
+     * keep the index of [roots] in [dao], without scanning yet
+     */
+    internal fun init(dao: MediaItemDao, roots: List<File>) {
+        this.dao = dao
+        this.roots = roots
+    }
+
+    /**
+     * rescan every root, only changed files are written
+     */
+    fun rescan() {
+        GlobalScope.launch(Dispatchers.IO) {
+            if (titleIndex.size == 0) {
+                for (row in dao.getTitles()) {
+                    titleIndex.add(row.path, row.title)
+                }
+            }
+            var changed = 0
+            for (root in roots) {
+                changed += scan(root, true)
+            }
+            notifyChanged(changed)
+        }
+    }
+
+    fun getPage(category: Int, after: MediaItem?, limit: Int, onResult: (List<MediaItem>) -> Unit) {
+        GlobalScope.launch(Dispatchers.Main) {
+            var page = withContext(Dispatchers.IO) {
+                dao.getPage(category, after?.title ?: "", after?.path ?: "", limit)
+            }
+            onResult.invoke(page)
+        }
+    }
+
+    fun getCount(category: Int, onResult: (Int) -> Unit) {
+        GlobalScope.launch(Dispatchers.Main) {
+            var count = withContext(Dispatchers.IO) {
+                dao.count(category)
+            }
+            onResult.invoke(count)
+        }
+    }
+
+    /**
+     * search titles of every category
+     * @param onResult called on the main thread with the paths and titles of the best matches
+     */
+    fun search(query: String, limit: Int, onResult: (List<TitleIndex.Hit>) -> Unit) {
+        GlobalScope.launch(Dispatchers.Main) {
+            var hits = withContext(Dispatchers.Default) {
+                titleIndex.search(query, limit)
+            }
+            onResult.invoke(hits)
+        }
+    }
+
+    /**
+     * @return the index category of a file type, or 0 if it isn't castable media
+     */
+    fun getCategory(fileType: Int): Int {
+        return when {
+            MediaType.isVideoFileType(fileType) -> CATEGORY_VIDEO
+            MediaType.isAudioFileType(fileType) -> CATEGORY_AUDIO
+            MediaType.isImageFileType(fileType) -> CATEGORY_IMAGE
+            else -> 0
+        }
+    }
+
+    /**
+     * bring the rows under [dir] in line with storage
+     * @param recursive also scan subdirectories, otherwise only the files directly in [dir]
+     * @return number of rows written or deleted
+     */
+    internal suspend fun scan(dir: File, recursive: Boolean): Int {
+        val dirPath = dir.path.trimEnd('/')
+        val known = HashMap<String, Long>()
+        // '0' sorts right after '/', so the range covers exactly the paths under the directory
+        for (stamp in dao.getStamps("$dirPath/", "${dirPath}0")) {
+            if (recursive || stamp.path.lastIndexOf('/') == dirPath.length) {
+                known[stamp.path] = stamp.lastModified
+            }
+        }
+        val changed = ConcurrentLinkedQueue<MediaItem>()
+        val seen = ConcurrentHashMap<String, Boolean>()
+        val mediaDirs = ConcurrentLinkedQueue<File>()
+        withContext(walkDispatcher) {
+            walk(dir, recursive, known, changed, seen, mediaDirs)
+        }
+        val removed = known.keys.filter { !seen.containsKey(it) }
+        for (batch in changed.toList().chunked(BATCH_SIZE)) {
+            dao.upsert(batch)
+        }
+        for (batch in removed.chunked(BATCH_SIZE)) {
+            dao.delete(batch)
+        }
+        for (item in changed) {
+            titleIndex.add(item.path, item.title)
+        }
+        for (path in removed) {
+            titleIndex.remove(path)
+        }
+        watch(mediaDirs)
+        Logger.d(TAG, "scanned $dirPath, ${seen.size} files, ${changed.size} changed, ${removed.size} removed")
+        return changed.size + removed.size
+    }
+
+    private suspend fun walk(dir: File, recursive: Boolean, known: Map<String, Long>, changed: ConcurrentLinkedQueue<MediaItem>,
+                             seen: ConcurrentHashMap<String, Boolean>, mediaDirs: ConcurrentLinkedQueue<File>): Unit = coroutineScope {
+        val children = dir.listFiles() ?: return@coroutineScope
+        if (children.any { it.name == ".nomedia" }) {
+            return@coroutineScope
+        }
+        var hasMedia = false
+        for (child in children) {
+            if (child.name.startsWith(".")) {
+                continue
+            }
+            val type = MediaType.getFileType(child.name)
+            val category = type?.let { getCategory(it.fileType) } ?: 0
+            if (category != 0) {
+                if (!child.isFile) {
+                    continue
+                }
+                val lastModified = child.lastModified()
+                hasMedia = true
+                seen[child.path] = true
+                if (known[child.path] != lastModified) {
+                    changed.add(MediaItem(child.path, type!!.fileType, category, type.mimeType, child.length(), lastModified,
+                        MediaType.getFileTitle(child.path)))
+                }
+            } else if (recursive && child.isDirectory) {
+                launch { walk(child, true, known, changed, seen, mediaDirs) }
+            }
+        }
+        if (hasMedia) {
+            mediaDirs.add(dir)
+        }
+    }
+
+    private fun watch(dirs: Collection<File>) {
+        synchronized(observers) {
+            for (dir in roots + dirs) {
+                if (observers.size >= MAX_WATCHED_DIRS) {
+                    return
+                }
+                if (observers.containsKey(dir.path)) {
+                    continue
+                }
+                val observer = FileWatcher.create(dir, WATCH_EVENTS) { event, path ->
+                    when {
+                        event and FileObserver.DELETE_SELF != 0 -> unwatch(dir)
+                        path == null -> return@create
+                        // a new or removed directory needs a full scan of its own
+                        event and IN_ISDIR != 0 -> schedule(File(dir, path), true)
+                        else -> schedule(dir, false)
+                    }
+                }
+                observer.startWatching()
+                observers[dir.path] = observer
+            }
+        }
+    }
+
+    private fun unwatch(dir: File) {
+        synchronized(observers) {
+            observers.remove(dir.path)?.stopWatching()
+        }
+        dir.parentFile?.let { schedule(it, false) }
+        schedule(dir, true)
+    }
+
+    /**
+     * rescan [dir] shortly, events of one burst of writes are handled together
+     */
+    private fun schedule(dir: File, recursive: Boolean) {
+        synchronized(pendingDirs) {
+            val first = pendingDirs.isEmpty()
+            pendingDirs[dir.path] = recursive || pendingDirs[dir.path] == true
+            if (!first) {
+                return
+            }
+        }
+        GlobalScope.launch(Dispatchers.IO) {
+            delay(RESCAN_DELAY)
+            val dirs = synchronized(pendingDirs) {
+                HashMap(pendingDirs).also { pendingDirs.clear() }
+            }
+            var changed = 0
+            for ((path, recursiveScan) in dirs) {
+                changed += scan(File(path), recursiveScan)
+            }
+            notifyChanged(changed)
+        }
+    }
+
+    private suspend fun notifyChanged(changed: Int) {
+        if (changed > 0) {
+            withContext(Dispatchers.Main) {
+                onIndexChanged?.invoke()
+            }
+        }
+    }
+}
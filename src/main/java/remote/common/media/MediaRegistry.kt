@@ -0,0 +1,171 @@
+package remote.common.media
+
+import android.net.Uri
+import java.io.File
+import java.security.SecureRandom
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Media published by a [StreamWebServer], addressed by opaque tokens instead of file paths.
+ *
+ * Publishing resolves the mime type once, see [MediaType.getFileType], and keeps the validators
+ * of the content, so serving a token costs one map lookup; the size and mtime are checked again at
+ * most every [REVALIDATE_MILLIS]. Only published content can be reached through a token.
+ */
+class MediaRegistry {
+
+    companion object {
+        /**
+         * Path prefix of published media, followed by `<token>/<name>`.
+         */
+        const val PATH_PREFIX = "/_src/"
+        private const val TOKEN_BYTES = 12
+        private const val REVALIDATE_MILLIS = 1000L
+        private val HEX = "0123456789abcdef".toCharArray()
+    }
+
+    /**
+     * A published source with its precomputed response metadata.
+     */
+    class Entry(val source: MediaSource, val path: String, val live: Boolean = false) {
+        private val fileType = MediaType.getFileType(source)
+
+        /**
+         * mime type from the source name or the content, empty when unknown
+         */
+        val mimeType: String = fileType?.mimeType ?: ""
+
+        /**
+         * text content that may be sent gzip encoded
+         */
+        val compressible = fileType != null && MediaType.isCompressibleFileType(fileType.fileType)
+
+        /**
+         * MPEG-TS content, which can also be played through an HLS playlist
+         */
+        val segmentable = fileType?.fileType == MediaType.FILE_TYPE_MP2TS
+
+        /**
+         * photo that [ImageVariants] can downscale
+         */
+        val scalable = fileType != null && ImageVariants.isScalableFileType(fileType.fileType)
+
+        /**
+         * validators of the content and the identity used by the block cache and read-ahead,
+         * replaced together when the content changes
+         */
+        class Metadata(val validator: FileValidator, val contentKey: String)
+
+        @Volatile
+        var metadata = metadataOf(FileValidator.of(source))
+            private set
+        @Volatile
+        private var available = source.exists()
+        @Volatile
+        private var checkedAt = System.currentTimeMillis()
+
+        /**
+         * @return false if the content is gone, checking the source again when the last check is stale
+         */
+        fun refresh(): Boolean {
+            val now = System.currentTimeMillis()
+            if (now - checkedAt >= REVALIDATE_MILLIS) {
+                available = source.exists()
+                if (available) {
+                    val validator = FileValidator.of(source)
+                    if (validator !== metadata.validator) {
+                        metadata = metadataOf(validator)
+                    }
+                }
+                checkedAt = now
+            }
+            return available
+        }
+
+        private fun metadataOf(validator: FileValidator) = Metadata(validator, source.key + validator.eTag)
+    }
+
+    private val random = SecureRandom()
+    private val entries = ConcurrentHashMap<String, Entry>()
+    private val tokensByKey = ConcurrentHashMap<String, String>()
+
+    /**
+     * publish a file
+     * @param live the file is still being written, see [LiveFileResponse]
+     * @return the path to pass to [StreamWebServer.getHttpUrl], the same one while it stays published
+     */
+    fun publish(file: File, live: Boolean = false): String = publish(FileSource(file), live)
+
+    /**
+     * publish a source, e.g. a [ChannelSource] of picked content. Publishing another source with
+     * the same key, e.g. the same Uri opened again, or another [live] flag keeps the path and
+     * serves the new source and flag; the caller still owns and closes the source it replaces.
+     * @param live the source is still being written, see [LiveFileResponse]
+     * @return the path to pass to [StreamWebServer.getHttpUrl], its last segment is the source
+     * name so players can pick the format from the extension
+     */
+    fun publish(source: MediaSource, live: Boolean = false): String {
+        synchronized(this) {
+            val published = tokensByKey[source.key]?.let { token -> entries[token]?.let { token to it } }
+            if (published != null) {
+                val (token, entry) = published
+                if (entry.source !== source || entry.live != live) {
+                    // same content, same token: replace the entry rather than leave a second one
+                    entries[token] = Entry(source, entry.path, live)
+                }
+                return entry.path
+            }
+            val token = newToken()
+            val entry = Entry(source, PATH_PREFIX + token + "/" + Uri.encode(source.name), live)
+            entries[token] = entry
+            tokensByKey[source.key] = token
+            return entry.path
+        }
+    }
+
+    /**
+     * stop serving a published path, the caller still owns and closes its source
+     */
+    fun unpublish(path: String) {
+        synchronized(this) {
+            val entry = token(path)?.let { entries.remove(it) } ?: return
+            tokensByKey.remove(entry.source.key)
+        }
+    }
+
+    /**
+     * @return the entry published at [path], null if there is none or its content is gone
+     */
+    fun lookup(path: String): Entry? {
+        val entry = token(path)?.let { entries[it] } ?: return null
+        return entry.takeIf { it.refresh() }
+    }
+
+    val size: Int
+        get() = entries.size
+
+    private fun token(path: String): String? {
+        if (!path.startsWith(PATH_PREFIX)) {
+            return null
+        }
+        val end = path.indexOf('/', PATH_PREFIX.length)
+        return if (end < 0) path.substring(PATH_PREFIX.length) else path.substring(PATH_PREFIX.length, end)
+    }
+
+    private fun newToken(): String {
+        val bytes = ByteArray(TOKEN_BYTES)
+        while (true) {
+            random.nextBytes(bytes)
+            val chars = CharArray(bytes.size * 2)
+            for (i in bytes.indices) {
+                val v = bytes[i].toInt() and 0xFF
+                chars[i * 2] = HEX[v ushr 4]
+                chars[i * 2 + 1] = HEX[v and 0x0F]
+            }
+            val token = String(chars)
+            if (!entries.containsKey(token)) {
+                return token
+            }
+        }
+    }
+}
@@ -0,0 +1,361 @@
+package remote.common.media
+
+import android.util.Log
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Content sniffing for files whose extension is missing or wrong.
+ *
+ * Only the first [SNIFF_LENGTH] bytes are read, into a buffer reused by the calling thread. The
+ * signatures are grouped by their first byte into a 256 entry table when the object is created,
+ * so a lookup tests the few signatures starting with the byte found, plus the ones that start at
+ * an offset (ftyp boxes, M2TS sync bytes). Results are cached per source key and rebuilt once the
+ * size or mtime changes.
+ */
+object MediaSniffer {
+    const val TAG = "MediaSniffer"
+
+    /**
+     * bytes read from the start of the content
+     */
+    const val SNIFF_LENGTH = 512
+
+    private const val MAX_CACHED = 1024
+    private const val TS_PACKET = 188
+
+    private val MPEG1_SAMPLE_RATES = intArrayOf(44100, 48000, 32000)
+    // bitrates in kbps for the bitrate indexes 1 to 14
+    private val MPEG1_LAYER1_KBPS = intArrayOf(32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448)
+    private val MPEG1_LAYER2_KBPS = intArrayOf(32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384)
+    private val MPEG1_LAYER3_KBPS = intArrayOf(32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320)
+    private val MPEG2_LAYER1_KBPS = intArrayOf(32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256)
+    private val MPEG2_LAYER23_KBPS = intArrayOf(8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160)
+
+    private val MP4 = MediaType.MediaFileType(MediaType.FILE_TYPE_MP4, "video/mp4")
+    private val M4A = MediaType.MediaFileType(MediaType.FILE_TYPE_M4A, "audio/mp4")
+    private val M4V = MediaType.MediaFileType(MediaType.FILE_TYPE_M4V, "video/mp4")
+    private val THREE_GPP = MediaType.MediaFileType(MediaType.FILE_TYPE_3GPP, "video/3gpp")
+    private val THREE_GPP2 = MediaType.MediaFileType(MediaType.FILE_TYPE_3GPP2, "video/3gpp2")
+    private val MKV = MediaType.MediaFileType(MediaType.FILE_TYPE_MKV, "video/x-matroska")
+    private val WEBM = MediaType.MediaFileType(MediaType.FILE_TYPE_WEBM, "video/webm")
+    private val MP2TS = MediaType.MediaFileType(MediaType.FILE_TYPE_MP2TS, "video/mp2ts")
+    private val MP2PS = MediaType.MediaFileType(MediaType.FILE_TYPE_MP2PS, "video/mp2p")
+    private val AVI = MediaType.MediaFileType(MediaType.FILE_TYPE_AVI, "video/avi")
+    private val ASF = MediaType.MediaFileType(MediaType.FILE_TYPE_ASF, "video/x-ms-asf")
+    private val MP3 = MediaType.MediaFileType(MediaType.FILE_TYPE_MP3, "audio/mpeg")
+    private val AAC = MediaType.MediaFileType(MediaType.FILE_TYPE_AAC, "audio/aac")
+    private val WAV = MediaType.MediaFileType(MediaType.FILE_TYPE_WAV, "audio/x-wav")
+    private val OGG = MediaType.MediaFileType(MediaType.FILE_TYPE_OGG, "application/ogg")
+    private val FLAC = MediaType.MediaFileType(MediaType.FILE_TYPE_FLAC, "audio/flac")
+    private val AMR = MediaType.MediaFileType(MediaType.FILE_TYPE_AMR, "audio/amr")
+    private val AWB = MediaType.MediaFileType(MediaType.FILE_TYPE_AWB, "audio/amr-wb")
+    private val MID = MediaType.MediaFileType(MediaType.FILE_TYPE_MID, "audio/midi")
+    private val JPEG = MediaType.MediaFileType(MediaType.FILE_TYPE_JPEG, "image/jpeg")
+    private val PNG = MediaType.MediaFileType(MediaType.FILE_TYPE_PNG, "image/png")
+    private val GIF = MediaType.MediaFileType(MediaType.FILE_TYPE_GIF, "image/gif")
+    private val BMP = MediaType.MediaFileType(MediaType.FILE_TYPE_BMP, "image/x-ms-bmp")
+    private val WEBP = MediaType.MediaFileType(MediaType.FILE_TYPE_WEBP, "image/webp")
+    private val M3U = MediaType.MediaFileType(MediaType.FILE_TYPE_M3U, "audio/x-mpegurl")
+    private val HTTPLIVE = MediaType.MediaFileType(MediaType.FILE_TYPE_HTTPLIVE, "application/vnd.apple.mpegurl")
+    private val PDF = MediaType.MediaFileType(MediaType.FILE_TYPE_PDF, "application/pdf")
+    private val ZIP = MediaType.MediaFileType(MediaType.FILE_TYPE_ZIP, "application/zip")
+    private val XML = MediaType.MediaFileType(MediaType.FILE_TYPE_XML, "text/xml")
+    private val HTML = MediaType.MediaFileType(MediaType.FILE_TYPE_HTML, "text/html")
+
+    /**
+     * @param pattern bytes expected at [offset], masked with [mask] when set
+     * @param refine decides the type from the whole header once the pattern matched, null to reject
+     */
+    private class Signature(
+        val offset: Int,
+        val pattern: ByteArray,
+        val type: MediaType.MediaFileType?,
+        val mask: ByteArray? = null,
+        val refine: ((ByteArray, Int) -> MediaType.MediaFileType?)? = null
+    ) {
+        fun match(header: ByteArray, length: Int): MediaType.MediaFileType? {
+            if (offset + pattern.size > length) {
+                return null
+            }
+            for (i in pattern.indices) {
+                val b = if (mask == null) header[offset + i] else (header[offset + i].toInt() and mask[i].toInt()).toByte()
+                if (b != pattern[i]) {
+                    return null
+                }
+            }
+            return if (refine != null) refine.invoke(header, length) else type
+        }
+    }
+
+    private class Sniffed(val length: Long, val lastModified: Long, val type: MediaType.MediaFileType?)
+
+    /**
+     * signatures at offset 0 indexed by their first byte
+     */
+    private val table = arrayOfNulls<Array<Signature>>(256)
+
+    /**
+     * signatures that can't be indexed by the first byte
+     */
+    private val unanchored: Array<Signature>
+
+    private val cache = ConcurrentHashMap<String, Sniffed>()
+
+    private val headers = object : ThreadLocal<ByteArray>() {
+        override fun initialValue(): ByteArray = ByteArray(SNIFF_LENGTH)
+    }
+
+    init {
+        val anchored = listOf(
+            Signature(0, bytes(0x1A, 0x45, 0xDF, 0xA3), MKV, refine = ::refineEbml),
+            Signature(0, bytes(0x00, 0x00, 0x01, 0xBA), MP2PS),
+            Signature(0, ascii("RIFF"), null, refine = ::refineRiff),
+            Signature(0, bytes(0x30, 0x26, 0xB2, 0x75, 0x8E, 0x66, 0xCF, 0x11), ASF),
+            Signature(0, ascii("ID3"), MP3),
+            // MPEG audio frame sync, layer bits set
+            Signature(0, bytes(0xFF, 0xE0), MP3, bytes(0xFF, 0xE0), ::refineMpegAudio),
+            Signature(0, ascii("OggS"), OGG),
+            Signature(0, ascii("fLaC"), FLAC),
+            Signature(0, ascii("#!AMR-WB\n"), AWB),
+            Signature(0, ascii("#!AMR\n"), AMR),
+            Signature(0, ascii("MThd"), MID),
+            Signature(0, bytes(0xFF, 0xD8, 0xFF), JPEG),
+            Signature(0, bytes(0x89, 0x50, 0x4E, 0x47, 0x0D, 0x0A, 0x1A, 0x0A), PNG),
+            Signature(0, ascii("GIF87a"), GIF),
+            Signature(0, ascii("GIF89a"), GIF),
+            Signature(0, ascii("BM"), BMP, refine = ::refineBmp),
+            Signature(0, ascii("#EXTM3U"), M3U, refine = ::refinePlaylist),
+            Signature(0, ascii("%PDF-"), PDF),
+            Signature(0, bytes(0x50, 0x4B, 0x03, 0x04), ZIP),
+            Signature(0, ascii("<?xml"), XML),
+            // case insensitive: the mask clears the lower case bit of the letters
+            Signature(0, ascii("<!DOCTYPE HTML"), HTML, bytes(0xFF, 0xFF, 0xDF, 0xDF, 0xDF, 0xDF, 0xDF, 0xDF, 0xDF, 0xFF, 0xDF, 0xDF, 0xDF, 0xDF)),
+            Signature(0, ascii("<HTML"), HTML, bytes(0xFF, 0xDF, 0xDF, 0xDF, 0xDF)),
+            Signature(0, bytes(0x47), MP2TS, refine = ::refineTs)
+        )
+        val grouped = HashMap<Int, MutableList<Signature>>()
+        for (signature in anchored) {
+            grouped.getOrPut(signature.pattern[0].toInt() and 0xFF) { ArrayList() }.add(signature)
+        }
+        for ((first, signatures) in grouped) {
+            table[first] = signatures.toTypedArray()
+        }
+        unanchored = arrayOf(
+            Signature(4, ascii("ftyp"), MP4, refine = ::refineFtyp),
+            // M2TS: 4 byte timestamp before every packet
+            Signature(4, bytes(0x47), MP2TS, refine = ::refineM2ts)
+        )
+    }
+
+    /**
+     * identify content from its first bytes
+     * @param length number of valid bytes in [header]
+     * @return the detected type, or null if no signature matched
+     */
+    fun sniff(header: ByteArray, length: Int): MediaType.MediaFileType? {
+        if (length <= 0) {
+            return null
+        }
+        table[header[0].toInt() and 0xFF]?.let { signatures ->
+            for (signature in signatures) {
+                signature.match(header, length)?.let { return it }
+            }
+        }
+        for (signature in unanchored) {
+            signature.match(header, length)?.let { return it }
+        }
+        return null
+    }
+
+    /**
+     * identify a source from its first bytes, cached until its size or mtime changes
+     * @return the detected type, or null if no signature matched or it can't be read
+     */
+    fun sniff(source: MediaSource): MediaType.MediaFileType? {
+        val length = source.length
+        val lastModified = source.lastModified
+        val cached = cache[source.key]
+        if (cached != null && cached.length == length && cached.lastModified == lastModified) {
+            return cached.type
+        }
+        val header = headers.get()!!
+        val type = try {
+            source.open().use { reader ->
+                val buffer = ByteBuffer.wrap(header)
+                while (buffer.hasRemaining() && buffer.position() < length) {
+                    if (reader.read(buffer, buffer.position().toLong()) < 0) {
+                        break
+                    }
+                }
+                sniff(header, buffer.position())
+            }
+        } catch (e: IOException) {
+            Log.i(TAG, "sniff ${source.name} failed", e)
+            return null
+        }
+        if (cache.size >= MAX_CACHED) {
+            cache.clear()
+        }
+        cache[source.key] = Sniffed(length, lastModified, type)
+        return type
+    }
+
+    private fun refineFtyp(header: ByteArray, length: Int): MediaType.MediaFileType? {
+        if (length < 12) {
+            return MP4
+        }
+        return when {
+            startsWith(header, length, 8, "M4A ") || startsWith(header, length, 8, "M4B ") -> M4A
+            startsWith(header, length, 8, "M4V ") -> M4V
+            startsWith(header, length, 8, "3gp") -> THREE_GPP
+            startsWith(header, length, 8, "3g2") -> THREE_GPP2
+            // HEIF/AVIF images share the box layout but are not video
+            startsWith(header, length, 8, "hei") || startsWith(header, length, 8, "mif1") || startsWith(header, length, 8, "msf1") ||
+                    startsWith(header, length, 8, "avif") -> null
+            else -> MP4
+        }
+    }
+
+    private fun refineEbml(header: ByteArray, length: Int): MediaType.MediaFileType {
+        // DocType element (0x4282) in the EBML header
+        for (i in 4 until length - 6) {
+            if (header[i] == 0x42.toByte() && header[i + 1] == 0x82.toByte()) {
+                return if (startsWith(header, length, i + 3, "webm")) WEBM else MKV
+            }
+        }
+        return MKV
+    }
+
+    private fun refineRiff(header: ByteArray, length: Int): MediaType.MediaFileType? {
+        return when {
+            length < 12 -> null
+            startsWith(header, length, 8, "WEBP") -> WEBP
+            startsWith(header, length, 8, "WAVE") -> WAV
+            startsWith(header, length, 8, "AVI ") -> AVI
+            else -> null
+        }
+    }
+
+    /**
+     * an ADTS or MPEG audio frame header with valid fields, followed by the next frame's sync when
+     * that falls within the header. A UTF-16LE BOM (FF FE) has the sync bits too.
+     */
+    private fun refineMpegAudio(header: ByteArray, length: Int): MediaType.MediaFileType? {
+        if (length < 6) {
+            return null
+        }
+        val b1 = header[1].toInt() and 0xFF
+        val b2 = header[2].toInt() and 0xFF
+        val type: MediaType.MediaFileType
+        val frameLength: Int
+        if ((b1 and 0xF6) == 0xF0) {
+            // ADTS: MPEG-4 or MPEG-2 sync with layer 00, 13 bit frame length from byte 3
+            if ((b2 shr 2) and 0x0F >= 13) {
+                return null
+            }
+            type = AAC
+            frameLength = ((header[3].toInt() and 0x03) shl 11) or ((header[4].toInt() and 0xFF) shl 3) or
+                    ((header[5].toInt() and 0xFF) shr 5)
+            if (frameLength < 7) {
+                return null
+            }
+        } else {
+            val version = (b1 shr 3) and 0x03
+            val layer = (b1 shr 1) and 0x03
+            val bitrateIndex = b2 shr 4
+            val rateIndex = (b2 shr 2) and 0x03
+            // reserved version, layer, sample rate, and the free and bad bitrates
+            if (version == 1 || layer == 0 || rateIndex == 3 || bitrateIndex == 0 || bitrateIndex == 0x0F) {
+                return null
+            }
+            type = MP3
+            frameLength = mpegFrameLength(version, layer, bitrateIndex, rateIndex, (b2 shr 1) and 0x01)
+        }
+        if (frameLength + 1 < length &&
+            (header[frameLength] != 0xFF.toByte() || (header[frameLength + 1].toInt() and 0xE0) != 0xE0)) {
+            return null
+        }
+        return type
+    }
+
+    /**
+     * @param version 0 MPEG-2.5, 2 MPEG-2, 3 MPEG-1
+     * @param layer 1 layer III, 2 layer II, 3 layer I
+     */
+    private fun mpegFrameLength(version: Int, layer: Int, bitrateIndex: Int, rateIndex: Int, padding: Int): Int {
+        val mpeg1 = version == 3
+        val kbps = when {
+            layer == 3 -> if (mpeg1) MPEG1_LAYER1_KBPS else MPEG2_LAYER1_KBPS
+            !mpeg1 -> MPEG2_LAYER23_KBPS
+            layer == 2 -> MPEG1_LAYER2_KBPS
+            else -> MPEG1_LAYER3_KBPS
+        }[bitrateIndex - 1]
+        val sampleRate = MPEG1_SAMPLE_RATES[rateIndex] shr (3 - version).coerceAtMost(2)
+        return when {
+            layer == 3 -> (12 * kbps * 1000 / sampleRate + padding) * 4
+            layer == 1 && !mpeg1 -> 72 * kbps * 1000 / sampleRate + padding
+            else -> 144 * kbps * 1000 / sampleRate + padding
+        }
+    }
+
+    private fun refineBmp(header: ByteArray, length: Int): MediaType.MediaFileType? {
+        // reserved fields are zero and the info header size is one of the known ones
+        if (length < 18 || header[6].toInt() != 0 || header[7].toInt() != 0 || header[8].toInt() != 0 || header[9].toInt() != 0) {
+            return null
+        }
+        val infoSize = header[14].toInt() and 0xFF
+        return if (infoSize == 12 || infoSize == 40 || infoSize == 56 || infoSize == 108 || infoSize == 124) BMP else null
+    }
+
+    private fun refinePlaylist(header: ByteArray, length: Int): MediaType.MediaFileType {
+        for (i in 7 until length - 6) {
+            if (header[i] == '#'.toByte() && startsWith(header, length, i, "#EXT-X-")) {
+                return HTTPLIVE
+            }
+        }
+        return M3U
+    }
+
+    private fun refineTs(header: ByteArray, length: Int): MediaType.MediaFileType? {
+        return if (syncEvery(header, length, 0, TS_PACKET)) MP2TS else null
+    }
+
+    private fun refineM2ts(header: ByteArray, length: Int): MediaType.MediaFileType? {
+        return if (syncEvery(header, length, 4, TS_PACKET + 4)) MP2TS else null
+    }
+
+    /**
+     * @return true if at least two packets fit in the header and each starts with the sync byte
+     */
+    private fun syncEvery(header: ByteArray, length: Int, first: Int, packetSize: Int): Boolean {
+        if (first + packetSize >= length) {
+            return false
+        }
+        var i = first
+        while (i < length) {
+            if (header[i] != 0x47.toByte()) {
+                return false
+            }
+            i += packetSize
+        }
+        return true
+    }
+
+    private fun startsWith(header: ByteArray, length: Int, offset: Int, text: String): Boolean {
+        if (offset < 0 || offset + text.length > length) {
+            return false
+        }
+        for (i in text.indices) {
+            if (header[offset + i] != text[i].toByte()) {
+                return false
+            }
+        }
+        return true
+    }
+
+    private fun bytes(vararg values: Int): ByteArray = ByteArray(values.size) { values[it].toByte() }
+
+    private fun ascii(text: String): ByteArray = text.toByteArray(Charsets.US_ASCII)
+}
@@ -0,0 +1,233 @@
+package remote.common.media
+
+import android.content.Context
+import android.net.Uri
+import android.os.ParcelFileDescriptor
+import java.io.Closeable
+import java.io.File
+import java.io.FileDescriptor
+import java.io.FileInputStream
+import java.io.IOException
+import java.io.InputStream
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.channels.WritableByteChannel
+
+/**
+ * Seekable media content served by [StreamWebServer]: a file path, an already open descriptor
+ * (MediaStore/SAF content) or bytes in memory. All reads are positional, so concurrent requests
+ * can share one source.
+ */
+interface MediaSource {
+    /**
+     * display name, its extension is used to pick the mime type
+     */
+    val name: String
+
+    /**
+     * stable identity of the source, used to key caches together with the size and mtime
+     */
+    val key: String
+
+    val length: Long
+
+    /**
+     * modification time in ms, 0 if unknown, in which case responses carry no validators
+     */
+    val lastModified: Long
+
+    /**
+     * @return false if the content is gone
+     */
+    fun exists(): Boolean = true
+
+    /**
+     * open a reader for one request, the caller closes it
+     */
+    @Throws(IOException::class)
+    fun open(): Reader
+
+    interface Reader : Closeable {
+        /**
+         * read into [dst] from [position] of the content
+         * @return bytes read, -1 at the end of the content
+         */
+        @Throws(IOException::class)
+        fun read(dst: ByteBuffer, position: Long): Int
+
+        /**
+         * write [count] bytes from [position] of the content to [target]
+         * @return bytes written, always [count]
+         */
+        @Throws(IOException::class)
+        fun transferTo(position: Long, count: Long, target: WritableByteChannel): Long
+    }
+}
+
+/**
+ * Reader over a [FileChannel], regions go out with transferTo.
+ */
+class ChannelReader(private val channel: FileChannel, private val owner: Closeable?) : MediaSource.Reader {
+    override fun read(dst: ByteBuffer, position: Long): Int = channel.read(dst, position)
+
+    override fun transferTo(position: Long, count: Long, target: WritableByteChannel): Long {
+        return RegionTransfer.transferRegion(channel, position, count, target)
+    }
+
+    override fun close() {
+        owner?.close()
+    }
+}
+
+/**
+ * Content of a file path, opened for each request.
+ */
+class FileSource(val file: File) : MediaSource {
+    override val name: String
+        get() = file.name
+
+    override val key: String
+        get() = file.path
+
+    override val length: Long
+        get() = file.length()
+
+    override val lastModified: Long
+        get() = file.lastModified()
+
+    override fun exists(): Boolean = file.isFile
+
+    override fun open(): MediaSource.Reader {
+        val raf = RandomAccessFile(file, "r")
+        return ChannelReader(raf.channel, raf)
+    }
+}
+
+/**
+ * Content of an open [FileChannel], typically from a [ParcelFileDescriptor], shared by all
+ * requests without copying it anywhere. [owner] is closed by [close].
+ */
+class ChannelSource(
+    override val name: String,
+    override val key: String,
+    private val channel: FileChannel,
+    override val lastModified: Long = 0,
+    private val owner: Closeable? = null
+) : MediaSource, Closeable {
+
+    companion object {
+        /**
+         * @param descriptor descriptor the source takes ownership of
+         */
+        fun fromDescriptor(name: String, key: String, descriptor: ParcelFileDescriptor, lastModified: Long = 0): ChannelSource {
+            return fromFileDescriptor(name, key, descriptor.fileDescriptor, descriptor, lastModified)
+        }
+
+        /**
+         * @param owner closed with the source, it owns [fd]
+         */
+        internal fun fromFileDescriptor(name: String, key: String, fd: FileDescriptor, owner: Closeable, lastModified: Long = 0): ChannelSource {
+            return ChannelSource(name, key, FileInputStream(fd).channel, lastModified, owner)
+        }
+
+        /**
+         * open picked MediaStore/SAF content for streaming
+         * @param name display name, its extension picks the mime type
+         */
+        @Throws(IOException::class)
+        fun fromUri(context: Context, uri: Uri, name: String = uri.lastPathSegment ?: "content"): ChannelSource {
+            val descriptor = context.contentResolver.openFileDescriptor(uri, "r")
+                ?: throw IOException("can't open $uri")
+            return fromDescriptor(name, uri.toString(), descriptor)
+        }
+    }
+
+    override val length: Long
+        get() = channel.size()
+
+    override fun exists(): Boolean = channel.isOpen
+
+    override fun open(): MediaSource.Reader = ChannelReader(channel, null)
+
+    override fun close() {
+        channel.close()
+        owner?.close()
+    }
+}
+
+/**
+ * Content held in memory.
+ */
+class MemorySource(
+    override val name: String,
+    override val key: String,
+    bytes: ByteBuffer,
+    override val lastModified: Long = System.currentTimeMillis()
+) : MediaSource {
+
+    private val content = bytes.asReadOnlyBuffer()
+
+    override val length: Long
+        get() = content.limit().toLong()
+
+    override fun open(): MediaSource.Reader = object : MediaSource.Reader {
+        override fun read(dst: ByteBuffer, position: Long): Int {
+            if (position >= length) {
+                return -1
+            }
+            val slice = slice(position, minOf(dst.remaining().toLong(), length - position))
+            val count = slice.remaining()
+            dst.put(slice)
+            return count
+        }
+
+        override fun transferTo(position: Long, count: Long, target: WritableByteChannel): Long {
+            if (position + count > length) {
+                throw IOException("$name ended at $length, expected ${position + count}")
+            }
+            val slice = slice(position, count)
+            while (slice.hasRemaining()) {
+                target.write(slice)
+            }
+            return count
+        }
+
+        override fun close() {
+        }
+    }
+
+    private fun slice(position: Long, count: Long): ByteBuffer {
+        val slice = content.duplicate()
+        slice.limit((position + count).toInt())
+        slice.position(position.toInt())
+        return slice
+    }
+}
+
+/**
+ * InputStream over a source from its start, opened on the first read and closed with the stream
+ */
+class SourceInputStream(private val source: MediaSource) : InputStream() {
+    private var reader: MediaSource.Reader? = null
+    private var position = 0L
+
+    override fun read(): Int {
+        val one = ByteArray(1)
+        return if (read(one, 0, 1) < 0) -1 else one[0].toInt() and 0xFF
+    }
+
+    override fun read(b: ByteArray, off: Int, len: Int): Int {
+        val reader = reader ?: source.open().also { reader = it }
+        val read = reader.read(ByteBuffer.wrap(b, off, len), position)
+        if (read > 0) {
+            position += read
+        }
+        return read
+    }
+
+    override fun close() {
+        reader?.close()
+        reader = null
+    }
+}
@@ -136,6 +136,16 @@ object MediaType {
                 fileType <= LAST_DRM_FILE_TYPE)
     }
 
+    /**
+     * check is text content worth compressing or not
+     * @param fileType file type integer value
+     * @return if is text , markup or playlist type , return true ; otherwise , return false ;
+     */
+    fun isCompressibleFileType(fileType: Int): Boolean {
+        return (fileType == FILE_TYPE_TEXT || fileType == FILE_TYPE_HTML ||
+                fileType == FILE_TYPE_XML || isPlayListFileType(fileType))
+    }
+
     /**
      * get file's extension by file' path
      * @param path file's path
@@ -146,6 +156,40 @@ object MediaType {
         return if (lastDot < 0) null else sFileTypeMap.get(path.substring(lastDot + 1).toUpperCase(Locale.ROOT))
     }
 
+    /**
+     * get file type from the extension of a source, or from its content when the extension is
+     * missing, unknown or names another container than the one found, e.g. a `.jpg` that is a PNG.
+     * The extension wins within one container: a `.m4a` branded `isom` stays audio and an XHTML
+     * `.html` stays html.
+     * @param source source to identify, its first bytes are read once per size and mtime
+     * @return MediaFileType if the content or extension is known , or null
+     */
+    fun getFileType(source: MediaSource): MediaFileType? {
+        val byName = getFileType(source.name)
+        val sniffed = MediaSniffer.sniff(source) ?: return byName
+        return if (byName != null && containerOf(byName.fileType) == containerOf(sniffed.fileType)) byName else sniffed
+    }
+
+    /**
+     * @return the file type standing for the container of [fileType], shared by the types that
+     * content sniffing can't tell apart reliably
+     */
+    private fun containerOf(fileType: Int): Int {
+        return when (fileType) {
+            FILE_TYPE_MP4, FILE_TYPE_M4A, FILE_TYPE_M4V, FILE_TYPE_3GPP, FILE_TYPE_3GPP2 -> FILE_TYPE_MP4
+            FILE_TYPE_MKV, FILE_TYPE_MKA, FILE_TYPE_WEBM -> FILE_TYPE_MKV
+            FILE_TYPE_ASF, FILE_TYPE_WMA, FILE_TYPE_WMV -> FILE_TYPE_ASF
+            // an ID3 tag can precede both
+            FILE_TYPE_MP3, FILE_TYPE_AAC -> FILE_TYPE_MP3
+            FILE_TYPE_MID, FILE_TYPE_SMF -> FILE_TYPE_MID
+            FILE_TYPE_M3U, FILE_TYPE_PLS, FILE_TYPE_WPL, FILE_TYPE_HTTPLIVE -> FILE_TYPE_M3U
+            FILE_TYPE_TEXT, FILE_TYPE_HTML, FILE_TYPE_XML -> FILE_TYPE_TEXT
+            // office documents may be zip packages
+            FILE_TYPE_ZIP, FILE_TYPE_MS_WORD, FILE_TYPE_MS_EXCEL, FILE_TYPE_MS_POWERPOINT -> FILE_TYPE_ZIP
+            else -> fileType
+        }
+    }
+
     /**
      * check the given mime type is mime type media or not
      * @param mimeType mime type to check
@@ -258,6 +302,7 @@ object MediaType {
         addFileType("TXT", FILE_TYPE_TEXT, "text/plain")
         addFileType("HTM", FILE_TYPE_HTML, "text/html")
         addFileType("HTML", FILE_TYPE_HTML, "text/html")
+        addFileType("XML", FILE_TYPE_XML, "text/xml")
         addFileType("PDF", FILE_TYPE_PDF, "application/pdf")
         addFileType("DOC", FILE_TYPE_MS_WORD, "application/msword")
         addFileType("XLS", FILE_TYPE_MS_EXCEL, "application/vnd.ms-excel")
@@ -0,0 +1,73 @@
+package remote.common.media
+
+import android.util.Log
+import fi.iki.elonen.NanoHTTPD
+import remote.common.utils.Logger
+import java.io.OutputStream
+import java.nio.channels.Channels
+import java.util.*
+
+/**
+ * `multipart/byteranges` response for a request with several ranges.
+ *
+ * [ranges] must be sorted and non-overlapping (see [ByteRange.parseList]), so the source is opened
+ * once and read front to back while each part is written. Part bodies go through the same
+ * [RegionTransfer] path as [FileRegionResponse].
+ */
+class MultipartRangeResponse(
+    mimeType: String,
+    private val source: MediaSource,
+    private val totalLength: Long,
+    private val ranges: List<ByteRange>,
+    private val transfer: RegionTransfer = RegionTransfer(null, null),
+    private val fileKey: String = source.key
+) : NanoHTTPD.Response(Status.PARTIAL_CONTENT, "multipart/byteranges; boundary=$BOUNDARY", null, 0) {
+
+    companion object {
+        const val TAG = "MultipartRangeResponse"
+        private val BOUNDARY = "STREAM_" + UUID.randomUUID().toString().replace("-", "")
+    }
+
+    private val partHeaders = ranges.map {
+        val contentType = if (mimeType.isEmpty()) "" else "Content-Type: $mimeType\r\n"
+        "\r\n--$BOUNDARY\r\n${contentType}Content-Range: bytes $it/$totalLength\r\n\r\n"
+            .toByteArray(Charsets.US_ASCII)
+    }
+    private val closeDelimiter = "\r\n--$BOUNDARY--\r\n".toByteArray(Charsets.US_ASCII)
+
+    var bytesSent: Long = 0
+        private set
+
+    init {
+        var contentLength = closeDelimiter.size.toLong()
+        for (i in ranges.indices) {
+            contentLength += partHeaders[i].size + ranges[i].length
+        }
+        addHeader("Content-Length", contentLength.toString())
+    }
+
+    override fun send(outputStream: OutputStream) {
+        super.send(outputStream)
+        if (requestMethod == NanoHTTPD.Method.HEAD) {
+            return
+        }
+        val started = transfer.stats?.bodyStarted() ?: 0
+        try {
+            source.open().use { reader ->
+                val target = StreamWebServer.connectionChannel.get() ?: Channels.newChannel(outputStream)
+                for (i in ranges.indices) {
+                    bytesSent += transfer.write(target, partHeaders[i])
+                    bytesSent += transfer.send(fileKey, source, reader, ranges[i].start, ranges[i].length, target)
+                }
+                bytesSent += transfer.write(target, closeDelimiter)
+            }
+            outputStream.flush()
+            Logger.d(TAG, "sent ${ranges.size} parts, $bytesSent bytes of ${source.name}")
+        } catch (e: Exception) {
+            Log.i(TAG, "send parts of ${source.name} failed", e)
+            closeConnection(true)
+        } finally {
+            transfer.stats?.bodySent(started, bytesSent)
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package remote.common.media
+
+import android.util.Log
+import fi.iki.elonen.NanoHTTPD
+import java.io.Closeable
+import java.io.IOException
+import java.net.InetSocketAddress
+import java.net.SocketException
+import java.net.SocketTimeoutException
+import java.nio.ByteBuffer
+import java.nio.channels.SelectionKey
+import java.nio.channels.Selector
+import java.nio.channels.ServerSocketChannel
+import java.nio.channels.SocketChannel
+import java.util.*
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Selector based connection engine for [StreamWebServer].
+ *
+ * Idle keep-alive connections are parked on one selector thread instead of each holding a
+ * worker. When a request arrives the connection is switched to blocking mode and one exchange is
+ * run on a small worker pool through the server's regular NanoHTTPD session, so requests still
+ * end up in StreamWebServer.serve(uri, headers...) and file bodies still use transferTo. After the
+ * response the connection goes back to the selector.
+ */
+class NioHttpEngine(
+    private val server: StreamWebServer,
+    private val port: Int,
+    private val workerThreads: Int = 4,
+    private val queueLimit: Int = 64,
+    private val idleTimeoutMillis: Long = 30_000
+) {
+
+    companion object {
+        const val TAG = "NioHttpEngine"
+        private const val SELECT_TIMEOUT = 1000L
+        private val SERVICE_UNAVAILABLE = ("HTTP/1.1 503 Service Unavailable\r\n" +
+                "Retry-After: 1\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").toByteArray(Charsets.US_ASCII)
+    }
+
+    private inner class Connection(val channel: SocketChannel) {
+        val session: NanoHTTPD.IHTTPSession = server.newSession(channel.socket())
+        val closed = AtomicBoolean()
+        @Volatile
+        var lastActive = System.currentTimeMillis()
+    }
+
+    @Volatile
+    private var running = false
+    private var selector: Selector? = null
+    private var serverChannel: ServerSocketChannel? = null
+    private var selectorThread: Thread? = null
+    private var workers: ThreadPoolExecutor? = null
+    private val returning = ConcurrentLinkedQueue<Connection>()
+    private val openConnections = AtomicInteger()
+
+    /**
+     * open client connections, idle or busy
+     */
+    val connectionCount: Int
+        get() = openConnections.get()
+
+    /**
+     * connections with a request being served
+     */
+    val activeCount: Int
+        get() = workers?.activeCount ?: 0
+
+    /**
+     * connections with a request waiting for a worker
+     */
+    val queuedCount: Int
+        get() = workers?.queue?.size ?: 0
+
+    val isAlive: Boolean
+        get() = running
+
+    /**
+     * port the engine accepts on, -1 until started
+     */
+    val listeningPort: Int
+        get() = serverChannel?.socket()?.localPort ?: -1
+
+    @Throws(IOException::class)
+    fun start(readTimeout: Int) {
+        val selector = Selector.open()
+        val serverChannel = ServerSocketChannel.open()
+        try {
+            serverChannel.socket().reuseAddress = true
+            serverChannel.socket().bind(server.hostname?.let { InetSocketAddress(it, port) } ?: InetSocketAddress(port))
+            serverChannel.configureBlocking(false)
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT)
+        } catch (e: IOException) {
+            serverChannel.close()
+            selector.close()
+            throw e
+        }
+        this.selector = selector
+        this.serverChannel = serverChannel
+        val threadCount = AtomicInteger()
+        workers = ThreadPoolExecutor(workerThreads, workerThreads, 30, TimeUnit.SECONDS, ArrayBlockingQueue(queueLimit),
+            { r -> Thread(r, "StreamWebServer-nio-${threadCount.incrementAndGet()}").apply { isDaemon = true } }
+        ).apply {
+            allowCoreThreadTimeOut(true)
+        }
+        running = true
+        selectorThread = Thread({ loop(selector, readTimeout) }, "StreamWebServer-selector").apply {
+            isDaemon = true
+            start()
+        }
+    }
+
+    fun stop() {
+        running = false
+        selector?.wakeup()
+        try {
+            selectorThread?.join()
+        } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt()
+        }
+        workers?.shutdownNow()
+        selectorThread = null
+    }
+
+    private fun loop(selector: Selector, readTimeout: Int) {
+        val ready = ArrayList<Connection>()
+        try {
+            while (running) {
+                selector.select(SELECT_TIMEOUT)
+                registerReturning(selector)
+                val keys = selector.selectedKeys().iterator()
+                while (keys.hasNext()) {
+                    val key = keys.next()
+                    keys.remove()
+                    if (!key.isValid) {
+                        continue
+                    }
+                    if (key.isAcceptable) {
+                        accept(selector, readTimeout)
+                    } else if (key.isReadable) {
+                        key.cancel()
+                        ready.add(key.attachment() as Connection)
+                    }
+                }
+                if (ready.isNotEmpty()) {
+                    // flush the cancelled keys so the channels can be switched to blocking mode
+                    selector.selectNow()
+                    ready.forEach { dispatch(it) }
+                    ready.clear()
+                }
+                closeIdle(selector)
+            }
+        } catch (e: IOException) {
+            Log.e(TAG, "selector loop failed", e)
+        } finally {
+            for (key in selector.keys()) {
+                (key.attachment() as? Connection)?.let { close(it) }
+            }
+            while (true) {
+                close(returning.poll() ?: break)
+            }
+            closeQuietly(serverChannel)
+            closeQuietly(selector)
+            running = false
+        }
+    }
+
+    private fun accept(selector: Selector, readTimeout: Int) {
+        val channel = serverChannel?.accept() ?: return
+        openConnections.incrementAndGet()
+        server.stats.connectionOpened()
+        val connection = Connection(channel)
+        try {
+            channel.configureBlocking(false)
+            channel.socket().soTimeout = readTimeout
+            channel.socket().tcpNoDelay = true
+            channel.register(selector, SelectionKey.OP_READ, connection)
+        } catch (e: IOException) {
+            Log.i(TAG, "accept failed", e)
+            close(connection)
+        }
+    }
+
+    private fun registerReturning(selector: Selector) {
+        while (true) {
+            val connection = returning.poll() ?: return
+            try {
+                connection.channel.register(selector, SelectionKey.OP_READ, connection)
+            } catch (e: IOException) {
+                close(connection)
+            }
+        }
+    }
+
+    private fun dispatch(connection: Connection) {
+        try {
+            connection.channel.configureBlocking(true)
+            workers!!.execute { exchange(connection) }
+        } catch (e: RejectedExecutionException) {
+            Log.w(TAG, "server saturated, active=$activeCount queued=$queuedCount")
+            try {
+                connection.channel.write(ByteBuffer.wrap(SERVICE_UNAVAILABLE))
+            } catch (ignored: IOException) {
+            }
+            close(connection)
+        } catch (e: IOException) {
+            close(connection)
+        }
+    }
+
+    /**
+     * serve requests of a connection on a worker until its input is drained, then park it again
+     */
+    private fun exchange(connection: Connection) {
+        StreamWebServer.connectionChannel.set(connection.channel)
+        try {
+            do {
+                connection.session.execute()
+            } while (connection.channel.isOpen && connection.session.inputStream.available() > 0)
+            if (!connection.channel.isOpen) {
+                close(connection)
+                return
+            }
+            connection.channel.configureBlocking(false)
+            connection.lastActive = System.currentTimeMillis()
+            returning.add(connection)
+            selector?.wakeup()
+        } catch (e: Exception) {
+            if (!(e is SocketException && "NanoHttpd Shutdown" == e.message || e is SocketTimeoutException)) {
+                Log.i(TAG, "connection broken", e)
+            }
+            close(connection)
+        } finally {
+            StreamWebServer.connectionChannel.remove()
+            server.scheduler.leave()
+        }
+    }
+
+    private fun closeIdle(selector: Selector) {
+        val expired = System.currentTimeMillis() - idleTimeoutMillis
+        for (key in selector.keys()) {
+            val connection = key.attachment() as? Connection ?: continue
+            if (connection.lastActive < expired) {
+                key.cancel()
+                close(connection)
+            }
+        }
+    }
+
+    private fun close(connection: Connection) {
+        if (connection.closed.compareAndSet(false, true)) {
+            closeQuietly(connection.channel)
+            openConnections.decrementAndGet()
+            server.stats.connectionClosed()
+        }
+    }
+
+    private fun closeQuietly(closeable: Closeable?) {
+        try {
+            closeable?.close()
+        } catch (ignored: IOException) {
+        }
+    }
+}
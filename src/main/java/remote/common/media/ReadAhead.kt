@@ -0,0 +1,180 @@
+package remote.common.media
+
+import android.util.Log
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.util.*
+import java.util.concurrent.LinkedBlockingDeque
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+
+/**
+ * Per-stream access pattern tracker that reads ahead of sequential streams on a background thread.
+ *
+ * Every read of a served file is reported through [onRead]. A read that starts where an earlier
+ * one of the same file ended continues that stream and doubles its read-ahead window, from
+ * [minWindow] up to [maxWindow]; any other read starts a new stream without read-ahead, so random
+ * access costs no extra I/O. Streams are told apart by position, not by connection, since a player
+ * may fetch one stream over several connections: two players on one file, or a player reading its
+ * audio and video tracks at different offsets, each keep their own window. Data read ahead is
+ * discarded: the point is to have it in the page cache (Java has no fadvise) before transferTo
+ * needs it, which hides slow SD card and FUSE reads from playback.
+ *
+ * Reads for clients run through [demand], and read-ahead waits while any is running, up to
+ * [MAX_YIELD_MS] per read: on a busy card a stream read ahead early would otherwise delay what
+ * another player needs now.
+ */
+class ReadAhead(
+    private val minWindow: Long = 1024L * 1024,
+    private val maxWindow: Long = 8L * 1024 * 1024
+) {
+
+    companion object {
+        const val TAG = "ReadAhead"
+        private const val MAX_TRACKED_FILES = 32
+        private const val MAX_STREAMS_PER_FILE = 4
+        private const val MAX_PENDING = 4
+        private const val READ_SIZE = 256 * 1024
+        /**
+         * a read starting this close to the previous end still counts as sequential
+         */
+        private const val SEQUENTIAL_SLACK = 64L * 1024
+        /**
+         * longest read-ahead waits for client reads, so it still gets on while they run back to back
+         */
+        private const val MAX_YIELD_MS = 100L
+    }
+
+    private class Stream(var nextPosition: Long) {
+        var window = 0L
+        var prefetchedUntil = 0L
+        /**
+         * set once the stream is forgotten, so queued prefetches of it give up
+         */
+        var dropped = false
+
+        fun continuedBy(position: Long): Boolean {
+            return position >= nextPosition - SEQUENTIAL_SLACK && position <= nextPosition + SEQUENTIAL_SLACK
+        }
+    }
+
+    /**
+     * streams of each file, least recently read first; guarded by itself
+     */
+    private val files = object : LinkedHashMap<String, ArrayList<Stream>>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, ArrayList<Stream>>): Boolean {
+            if (size <= MAX_TRACKED_FILES) {
+                return false
+            }
+            eldest.value.forEach { it.dropped = true }
+            return true
+        }
+    }
+
+    private val executor = ThreadPoolExecutor(
+        1, 1, 30, TimeUnit.SECONDS, LinkedBlockingDeque(MAX_PENDING),
+        { r -> Thread(r, "StreamWebServer-readahead").apply { isDaemon = true } },
+        ThreadPoolExecutor.DiscardOldestPolicy()
+    ).apply {
+        allowCoreThreadTimeOut(true)
+    }
+
+    private val buffer = ByteBuffer.allocateDirect(READ_SIZE)
+
+    /**
+     * guards [demandReads], the client reads running
+     */
+    private val demandLock = Object()
+    private var demandReads = 0
+
+    /**
+     * report that [position, end) of a source is about to be read for a client
+     * @param fileKey identity of the file content
+     */
+    fun onRead(fileKey: String, source: MediaSource, position: Long, end: Long) {
+        val stream: Stream
+        val from: Long
+        val to: Long
+        synchronized(files) {
+            val streams = files[fileKey] ?: ArrayList<Stream>().also { files[fileKey] = it }
+            val continued = streams.firstOrNull { it.continuedBy(position) }
+            if (continued == null) {
+                // a new reader or a seek, nothing to go by yet
+                if (streams.size >= MAX_STREAMS_PER_FILE) {
+                    streams.removeAt(0).dropped = true
+                }
+                streams.add(Stream(end))
+                return
+            }
+            stream = continued
+            streams.remove(stream)
+            streams.add(stream)
+            stream.window = if (stream.window == 0L) minWindow else minOf(stream.window * 2, maxWindow)
+            stream.nextPosition = end
+            from = maxOf(end, stream.prefetchedUntil)
+            to = end + stream.window
+            if (from >= to) {
+                return
+            }
+            stream.prefetchedUntil = to
+        }
+        executor.execute { prefetch(stream, source, from, to) }
+    }
+
+    /**
+     * run a read for a client, holding read-ahead back meanwhile
+     */
+    fun <T> demand(read: () -> T): T {
+        synchronized(demandLock) {
+            demandReads++
+        }
+        try {
+            return read()
+        } finally {
+            synchronized(demandLock) {
+                if (--demandReads == 0) {
+                    demandLock.notifyAll()
+                }
+            }
+        }
+    }
+
+    private fun prefetch(stream: Stream, source: MediaSource, from: Long, to: Long) {
+        try {
+            source.open().use { reader ->
+                var position = from
+                val end = minOf(to, source.length)
+                while (position < end && isCurrent(stream)) {
+                    awaitNoDemand()
+                    buffer.clear()
+                    val read = reader.read(buffer, position)
+                    if (read <= 0) {
+                        break
+                    }
+                    position += read
+                }
+            }
+        } catch (e: IOException) {
+            Log.i(TAG, "read ahead of ${source.name} failed", e)
+        }
+    }
+
+    private fun awaitNoDemand() {
+        synchronized(demandLock) {
+            val deadline = System.currentTimeMillis() + MAX_YIELD_MS
+            while (demandReads > 0) {
+                val left = deadline - System.currentTimeMillis()
+                if (left <= 0) {
+                    return
+                }
+                demandLock.wait(left)
+            }
+        }
+    }
+
+    private fun isCurrent(stream: Stream): Boolean {
+        synchronized(files) {
+            return !stream.dropped
+        }
+    }
+}
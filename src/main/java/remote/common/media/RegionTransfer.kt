@@ -0,0 +1,122 @@
+package remote.common.media
+
+import java.io.EOFException
+import java.io.IOException
+import java.io.InterruptedIOException
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.channels.WritableByteChannel
+
+/**
+ * Sends regions of a [MediaSource] to a client channel for the [StreamWebServer] responses, reading through the
+ * server's [BlockCache] and reporting reads to its [ReadAhead] tracker. Responses record their
+ * bodies in [stats]. With a [scheduler], each step of a region waits for its turn first. With a
+ * [writeTimeout], a step the client doesn't take within its limit closes the connection.
+ */
+class RegionTransfer(
+    private val blockCache: BlockCache?,
+    private val readAhead: ReadAhead?,
+    val stats: ServerStats? = null,
+    private val scheduler: RequestScheduler? = null,
+    private val writeTimeout: WriteTimeout? = null
+) {
+
+    companion object {
+        /**
+         * long regions are sent in steps of this size so read-ahead keeps pace with the client
+         */
+        private const val STEP = 1024L * 1024
+
+        /**
+         * scheduled regions are sent in smaller steps so a higher priority request waits less
+         */
+        private const val SCHEDULED_STEP = 256L * 1024
+
+        /**
+         * copy [count] bytes of [fileChannel] starting at [position] to [target] with transferTo
+         * @return bytes transferred, always [count]
+         * @throws EOFException if the file ends before the region does
+         */
+        fun transferRegion(fileChannel: FileChannel, position: Long, count: Long, target: WritableByteChannel): Long {
+            var current = position
+            val end = position + count
+            while (current < end) {
+                val sent = fileChannel.transferTo(current, end - current, target)
+                if (sent <= 0) {
+                    throw EOFException("file ended at $current, expected $end")
+                }
+                current += sent
+            }
+            return count
+        }
+    }
+
+    /**
+     * copy [count] bytes of [source] starting at [position] to [target]
+     * @param fileKey identity of the content, must change when the content changes
+     * @param reader open reader of [source]
+     * @return bytes transferred, always [count]
+     */
+    @Throws(IOException::class)
+    fun send(fileKey: String, source: MediaSource, reader: MediaSource.Reader, position: Long, count: Long, target: WritableByteChannel): Long {
+        val fileLength = source.length
+        var current = position
+        val end = position + count
+        val step = when {
+            scheduler != null -> SCHEDULED_STEP
+            readAhead != null || writeTimeout != null -> STEP
+            else -> count
+        }
+        while (current < end) {
+            val stepEnd = minOf(end, current + step)
+            val turn = try {
+                scheduler?.acquire()
+            } catch (e: InterruptedException) {
+                throw InterruptedIOException("interrupted waiting for a turn")
+            }
+            try {
+                readAhead?.onRead(fileKey, source, current, stepEnd)
+                val stepStart = current
+                if (writeTimeout != null) {
+                    writeTimeout.run(target) { transferStep(fileKey, reader, fileLength, stepStart, stepEnd, target) }
+                } else {
+                    transferStep(fileKey, reader, fileLength, stepStart, stepEnd, target)
+                }
+            } finally {
+                scheduler?.release(turn)
+            }
+            current = stepEnd
+        }
+        return count
+    }
+
+    /**
+     * write all of [bytes] to [target], e.g. the part headers around regions
+     * @return bytes written, always the size of [bytes]
+     */
+    @Throws(IOException::class)
+    fun write(target: WritableByteChannel, bytes: ByteArray): Int {
+        val buffer = ByteBuffer.wrap(bytes)
+        while (buffer.hasRemaining()) {
+            if (writeTimeout != null) {
+                writeTimeout.run(target) { target.write(buffer) }
+            } else {
+                target.write(buffer)
+            }
+        }
+        return bytes.size
+    }
+
+    private fun transferStep(fileKey: String, reader: MediaSource.Reader, fileLength: Long, start: Long, end: Long, target: WritableByteChannel) {
+        if (readAhead != null) {
+            readAhead.demand { transferFrom(fileKey, reader, fileLength, start, end, target) }
+        } else {
+            transferFrom(fileKey, reader, fileLength, start, end, target)
+        }
+    }
+
+    private fun transferFrom(fileKey: String, reader: MediaSource.Reader, fileLength: Long, start: Long, end: Long, target: WritableByteChannel) {
+        blockCache?.transfer(fileKey, reader, fileLength, start, end - start, target)
+            ?: reader.transferTo(start, end - start, target)
+    }
+}
@@ -0,0 +1,234 @@
+package remote.common.media
+
+import fi.iki.elonen.NanoHTTPD
+import java.util.*
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.Condition
+import java.util.concurrent.locks.ReentrantLock
+
+/**
+ * Orders the response bodies of concurrent requests so the playing stream gets disk and network
+ * first while thumbnails, playlists and prefetches are served alongside it.
+ *
+ * [StreamWebServer] classifies each request with [classify] and marks the serving thread with
+ * [enter] until it [leave]s; [RegionTransfer] then asks for a turn before each step of the body. Turns are handed
+ * out in class order, first come first served within a class, with at most [maxActive] steps in
+ * flight. While playback has started or finished a step within [playbackIdleMillis], image and
+ * background steps are limited to [lowPriorityActive] at a time, which leaves the link to the
+ * player; once it idles (a player with a full buffer stops reading) they run freely again. A turn
+ * held for more than [stallMillis] is a write the client isn't taking, it no longer counts against
+ * the limits and is ended for good by the server's [WriteTimeout]. The wait for each turn is
+ * recorded per class in [ServerStats].
+ */
+class RequestScheduler(
+    private val stats: ServerStats? = null,
+    private val maxActive: Int = 4,
+    private val lowPriorityActive: Int = 1,
+    private val playbackIdleMillis: Long = 2000,
+    private val stallMillis: Long = 2000
+) {
+
+    /**
+     * request classes, highest priority first
+     */
+    enum class RequestClass {
+        /**
+         * audio and video bodies, progressive or ranged, and live streams
+         */
+        PLAYBACK,
+
+        /**
+         * playlists, stats, HEAD requests and other small text
+         */
+        METADATA,
+
+        /**
+         * photos, thumbnails and their variants
+         */
+        IMAGE,
+
+        /**
+         * prefetches announced by the client
+         */
+        BACKGROUND;
+
+        val label = name.lowercase()
+    }
+
+    companion object {
+        /**
+         * @param mimeType mime type of the served content, empty when unknown
+         */
+        fun classify(mimeType: String, method: NanoHTTPD.Method?, headers: Map<String, String>, params: Map<String?, String?>?): RequestClass {
+            val purpose = headers["sec-purpose"] ?: headers["purpose"] ?: headers["x-purpose"] ?: headers["x-moz"]
+            if (purpose?.contains("prefetch", true) == true || params?.get("prefetch") != null) {
+                return RequestClass.BACKGROUND
+            }
+            if (method == NanoHTTPD.Method.HEAD) {
+                return RequestClass.METADATA
+            }
+            return when {
+                mimeType.startsWith("video/") || mimeType.startsWith("audio/") -> RequestClass.PLAYBACK
+                mimeType.startsWith("image/") -> RequestClass.IMAGE
+                else -> RequestClass.METADATA
+            }
+        }
+    }
+
+    /**
+     * a step's hold on the link, from [acquire] to [release]
+     */
+    class Turn internal constructor(val requestClass: RequestClass, internal val grantedNanos: Long) {
+        /**
+         * held past stallMillis and no longer counted
+         */
+        internal var stalled = false
+    }
+
+    private class Waiter(val requestClass: RequestClass, val sequence: Long, val condition: Condition)
+
+    private val lock = ReentrantLock()
+    private val waiting = PriorityQueue<Waiter>(16, compareBy<Waiter>({ it.requestClass.ordinal }, { it.sequence }))
+    private var sequence = 0L
+    private val held = ArrayList<Turn>()
+    private var active = 0
+    private var lowActive = 0
+    private var lastPlaybackNanos = 0L
+
+    private val current = ThreadLocal<RequestClass?>()
+
+    /**
+     * mark the requests served by this thread from now on
+     * @param requestClass class of the request, null to send its body unscheduled
+     */
+    fun enter(requestClass: RequestClass?) {
+        current.set(requestClass)
+    }
+
+    /**
+     * forget the class of this thread's requests once they are served, so a pooled thread doesn't
+     * carry it into the next connection
+     */
+    fun leave() {
+        current.remove()
+    }
+
+    /**
+     * wait for a turn to send the next step of the current request's body
+     * @return the turn, to pass to [release]; null when the request isn't scheduled
+     */
+    @Throws(InterruptedException::class)
+    fun acquire(): Turn? {
+        val requestClass = current.get() ?: return null
+        val started = System.nanoTime()
+        val turn: Turn
+        lock.lock()
+        try {
+            if (waiting.isEmpty() && canRun(requestClass, started)) {
+                turn = grant(requestClass, started)
+            } else {
+                val waiter = Waiter(requestClass, sequence++, lock.newCondition())
+                waiting.add(waiter)
+                try {
+                    while (waiting.peek() !== waiter || !canRun(requestClass, System.nanoTime())) {
+                        // the low priority limit lapses with playback and turns stall, wake up to notice
+                        waiter.condition.await(minOf(playbackIdleMillis, stallMillis), TimeUnit.MILLISECONDS)
+                    }
+                } catch (e: InterruptedException) {
+                    waiting.remove(waiter)
+                    signalNext()
+                    throw e
+                }
+                waiting.poll()
+                turn = grant(requestClass, System.nanoTime())
+                // several turns may have been freed at once
+                signalNext()
+            }
+        } finally {
+            lock.unlock()
+        }
+        stats?.requestQueued(requestClass, (System.nanoTime() - started) / 1000)
+        return turn
+    }
+
+    /**
+     * end a turn taken by [acquire]
+     */
+    fun release(turn: Turn?) {
+        if (turn == null) {
+            return
+        }
+        lock.lock()
+        try {
+            held.remove(turn)
+            if (!turn.stalled) {
+                uncount(turn)
+            }
+            if (turn.requestClass == RequestClass.PLAYBACK) {
+                lastPlaybackNanos = System.nanoTime()
+            }
+            signalNext()
+        } finally {
+            lock.unlock()
+        }
+    }
+
+    private fun canRun(requestClass: RequestClass, now: Long): Boolean {
+        expireStalled(now)
+        if (active >= maxActive) {
+            return false
+        }
+        if (!isLow(requestClass) || lowActive < lowPriorityActive) {
+            return true
+        }
+        return !isPlaying(now)
+    }
+
+    private fun grant(requestClass: RequestClass, now: Long): Turn {
+        val turn = Turn(requestClass, now)
+        held.add(turn)
+        active++
+        if (isLow(requestClass)) {
+            lowActive++
+        }
+        if (requestClass == RequestClass.PLAYBACK) {
+            lastPlaybackNanos = now
+        }
+        return turn
+    }
+
+    private fun uncount(turn: Turn) {
+        active--
+        if (isLow(turn.requestClass)) {
+            lowActive--
+        }
+    }
+
+    /**
+     * stop counting turns whose step has been blocked past [stallMillis]
+     */
+    private fun expireStalled(now: Long) {
+        val limit = TimeUnit.MILLISECONDS.toNanos(stallMillis)
+        for (turn in held) {
+            if (!turn.stalled && now - turn.grantedNanos > limit) {
+                turn.stalled = true
+                uncount(turn)
+            }
+        }
+    }
+
+    /**
+     * a playback step started or ended recently, a playback turn that's merely held doesn't count
+     */
+    private fun isPlaying(now: Long): Boolean {
+        return lastPlaybackNanos != 0L && now - lastPlaybackNanos < TimeUnit.MILLISECONDS.toNanos(playbackIdleMillis)
+    }
+
+    private fun isLow(requestClass: RequestClass): Boolean {
+        return requestClass == RequestClass.IMAGE || requestClass == RequestClass.BACKGROUND
+    }
+
+    private fun signalNext() {
+        waiting.peek()?.condition?.signal()
+    }
+}
@@ -0,0 +1,193 @@
+package remote.common.media
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * Lock-free counters of a [StreamWebServer], rendered as JSON or Prometheus text by `/_stats`.
+ *
+ * The serving path only does a handful of atomic increments per request and per response body;
+ * everything else happens when the endpoint is read.
+ */
+class ServerStats {
+
+    /**
+     * Histogram with power-of-two buckets: bucket i counts values in [2^(i-1), 2^i), the last
+     * bucket everything larger.
+     */
+    class Histogram(val unit: String, private val scale: Double, bucketCount: Int = 25) {
+        private val buckets = AtomicLongArray(bucketCount)
+        private val total = AtomicLong()
+        private val count = AtomicLong()
+
+        fun record(value: Long) {
+            val v = if (value < 0) 0 else value
+            val index = minOf(64 - java.lang.Long.numberOfLeadingZeros(v), buckets.length() - 1)
+            buckets.incrementAndGet(index)
+            total.addAndGet(v)
+            count.incrementAndGet()
+        }
+
+        fun appendJson(sb: StringBuilder) {
+            sb.append("{\"unit\":\"").append(unit).append("\",\"count\":").append(count.get())
+                .append(",\"sum\":").append(total.get()).append(",\"buckets\":{")
+            for (i in 0 until buckets.length()) {
+                if (i > 0) {
+                    sb.append(',')
+                }
+                sb.append('"').append(upperBound(i)).append("\":").append(buckets.get(i))
+            }
+            sb.append("}}")
+        }
+
+        /**
+         * @param labels extra labels of a series, e.g. `class="image",`; the caller then writes
+         * the TYPE line once for all of them
+         */
+        fun appendPrometheus(sb: StringBuilder, name: String, labels: String = "") {
+            if (labels.isEmpty()) {
+                sb.append("# TYPE ").append(name).append(" histogram\n")
+            }
+            var cumulative = 0L
+            for (i in 0 until buckets.length()) {
+                cumulative += buckets.get(i)
+                val le = if (i == buckets.length() - 1) "+Inf" else (upperBound(i) * scale).toString()
+                sb.append(name).append("_bucket{").append(labels).append("le=\"").append(le).append("\"} ").append(cumulative).append('\n')
+            }
+            val series = if (labels.isEmpty()) "" else "{" + labels.trimEnd(',') + "}"
+            sb.append(name).append("_sum").append(series).append(' ').append(total.get() * scale).append('\n')
+            sb.append(name).append("_count").append(series).append(' ').append(count.get()).append('\n')
+        }
+
+        private fun upperBound(index: Int): Long = 1L shl index
+    }
+
+    private val requestStart = ThreadLocal<Long>()
+
+    private val requests = AtomicLong()
+    private val rangeRequests = AtomicLong()
+    private val fullRequests = AtomicLong()
+    private val notModified = AtomicLong()
+    private val bytesServed = AtomicLong()
+    private val activeConnections = AtomicInteger()
+    private val requestsByMime = ConcurrentHashMap<String, AtomicLong>()
+
+    /**
+     * time from the request reaching serve() to the first body byte
+     */
+    val timeToFirstByte = Histogram("us", 1e-6)
+
+    /**
+     * body throughput of each response
+     */
+    val throughput = Histogram("KiB/s", 1024.0)
+
+    /**
+     * wait for each body step's turn in the [RequestScheduler], per request class
+     */
+    val queueTime = Array(RequestScheduler.RequestClass.values().size) { Histogram("us", 1e-6) }
+
+    fun connectionOpened() {
+        activeConnections.incrementAndGet()
+    }
+
+    fun connectionClosed() {
+        activeConnections.decrementAndGet()
+    }
+
+    /**
+     * count a request for a file and start its time-to-first-byte clock
+     * @param mimeType mime type from [MediaType], empty when unknown
+     */
+    fun requestStarted(mimeType: String, range: Boolean) {
+        requestStart.set(System.nanoTime())
+        requests.incrementAndGet()
+        (if (range) rangeRequests else fullRequests).incrementAndGet()
+        val key = if (mimeType.isEmpty()) "unknown" else mimeType
+        (requestsByMime[key] ?: requestsByMime.getOrPut(key) { AtomicLong() }).incrementAndGet()
+    }
+
+    fun requestQueued(requestClass: RequestScheduler.RequestClass, micros: Long) {
+        queueTime[requestClass.ordinal].record(micros)
+    }
+
+    fun notModified() {
+        notModified.incrementAndGet()
+    }
+
+    /**
+     * @return the clock value to pass to [bodySent], taken right before the first body byte
+     */
+    fun bodyStarted(): Long {
+        val now = System.nanoTime()
+        requestStart.get()?.let { timeToFirstByte.record((now - it) / 1000) }
+        return now
+    }
+
+    fun bodySent(startNanos: Long, bytes: Long) {
+        bytesServed.addAndGet(bytes)
+        val micros = (System.nanoTime() - startNanos) / 1000
+        if (bytes > 0 && micros > 0) {
+            throughput.record(bytes * 1_000_000 / 1024 / micros)
+        }
+    }
+
+    fun toJson(): String {
+        val sb = StringBuilder(1024)
+        sb.append("{\"requests\":").append(requests.get())
+            .append(",\"rangeRequests\":").append(rangeRequests.get())
+            .append(",\"fullRequests\":").append(fullRequests.get())
+            .append(",\"notModified\":").append(notModified.get())
+            .append(",\"bytesServed\":").append(bytesServed.get())
+            .append(",\"activeConnections\":").append(activeConnections.get())
+            .append(",\"requestsByMime\":{")
+        var first = true
+        for ((mime, count) in requestsByMime) {
+            if (!first) {
+                sb.append(',')
+            }
+            first = false
+            sb.append('"').append(mime).append("\":").append(count.get())
+        }
+        sb.append("},\"timeToFirstByte\":")
+        timeToFirstByte.appendJson(sb)
+        sb.append(",\"throughput\":")
+        throughput.appendJson(sb)
+        sb.append(",\"queueTime\":{")
+        for (requestClass in RequestScheduler.RequestClass.values()) {
+            if (requestClass.ordinal > 0) {
+                sb.append(',')
+            }
+            sb.append('"').append(requestClass.label).append("\":")
+            queueTime[requestClass.ordinal].appendJson(sb)
+        }
+        sb.append("}}")
+        return sb.toString()
+    }
+
+    fun toPrometheus(): String {
+        val sb = StringBuilder(4096)
+        sb.append("# TYPE stream_requests_total counter\n")
+        sb.append("stream_requests_total{kind=\"range\"} ").append(rangeRequests.get()).append('\n')
+        sb.append("stream_requests_total{kind=\"full\"} ").append(fullRequests.get()).append('\n')
+        sb.append("# TYPE stream_not_modified_total counter\n")
+        sb.append("stream_not_modified_total ").append(notModified.get()).append('\n')
+        sb.append("# TYPE stream_bytes_served_total counter\n")
+        sb.append("stream_bytes_served_total ").append(bytesServed.get()).append('\n')
+        sb.append("# TYPE stream_active_connections gauge\n")
+        sb.append("stream_active_connections ").append(activeConnections.get()).append('\n')
+        sb.append("# TYPE stream_requests_by_mime_total counter\n")
+        for ((mime, count) in requestsByMime) {
+            sb.append("stream_requests_by_mime_total{mime=\"").append(mime).append("\"} ").append(count.get()).append('\n')
+        }
+        timeToFirstByte.appendPrometheus(sb, "stream_time_to_first_byte_seconds")
+        throughput.appendPrometheus(sb, "stream_throughput_bytes_per_second")
+        sb.append("# TYPE stream_queue_time_seconds histogram\n")
+        for (requestClass in RequestScheduler.RequestClass.values()) {
+            queueTime[requestClass.ordinal].appendPrometheus(sb, "stream_queue_time_seconds", "class=\"${requestClass.label}\",")
+        }
+        return sb.toString()
+    }
+}
@@ -2,21 +2,86 @@ package remote.common.media
 
 import android.content.Context
 import android.net.wifi.WifiManager
+import android.util.Log
 import fi.iki.elonen.NanoHTTPD
 import java.io.File
-import java.io.FileInputStream
+import java.io.FilterOutputStream
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.net.Socket
+import java.nio.ByteBuffer
+import java.nio.channels.ServerSocketChannel
+import java.nio.channels.SocketChannel
 
-class StreamWebServer: NanoHTTPD(PORT) {
+/**
+ * @param engine connection handling: one pooled worker per connection, or a selector that parks
+ * idle keep-alive connections and only takes a worker per request
+ * @param servePaths also serve any readable file by its raw path, otherwise only media published
+ * in [registry] can be requested
+ * @param port port to listen on, 0 picks a free one
+ */
+class StreamWebServer(
+    val engine: Engine = Engine.BLOCKING,
+    val servePaths: Boolean = false,
+    val port: Int = PORT
+): NanoHTTPD(port) {
+
+    enum class Engine {
+        BLOCKING,
+        NIO
+    }
 
     companion object {
         const val TAG = "StreamWebServer"
         const val PORT = 8088
 
-        fun getHttpUrl(context: Context, filePath: String): String {
+        /**
+         * Requests with more ranges than this (after coalescing) are answered with the full body.
+         */
+        private const val MAX_RANGES = 32
+
+        /**
+         * Metrics endpoint, JSON by default, Prometheus text with `?format=prometheus`.
+         */
+        const val STATS_PATH = "/_stats"
+
+        /**
+         * How long a range request of live content waits for the requested bytes to be written.
+         */
+        private const val LIVE_RANGE_WAIT_MILLIS = 5000L
+
+        /**
+         * CR LF CR LF, the blank line ending response headers
+         */
+        private const val HEADER_END = 0x0d0a0d0a
+
+        private val SERVICE_UNAVAILABLE = ("HTTP/1.1 503 Service Unavailable\r\n" +
+                "Retry-After: 1\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").toByteArray(Charsets.US_ASCII)
+
+        /**
+         * Channel of the connection served by the current thread, null when the socket has none.
+         */
+        internal val connectionChannel = ThreadLocal<SocketChannel?>()
+
+        /**
+         * @param filePath path returned by [publish]; a raw file path is only served when
+         * [servePaths] is set, the instance [getHttpUrl] publishes it otherwise
+         */
+        @Deprecated("raw file paths are not served by default, use the server's getHttpUrl")
+        fun getHttpUrl(context: Context, filePath: String): String = urlOf(context, filePath, PORT)
+
+        private fun urlOf(context: Context, path: String, port: Int): String {
             var ip = getLocalIPAddress(context)
-            return "http://${ip}:$PORT${filePath}"
+            return "http://${ip}:$port${path}"
         }
 
+        /**
+         * @param filePath path of a published TS file
+         * @return path of its HLS playlist
+         */
+        fun getHlsPath(filePath: String): String = filePath.substringBeforeLast('/') + "/" + HlsSegmenter.PLAYLIST_NAME
+
         private fun getLocalIPAddress(context: Context): String? {
             val wifiManager = context.getSystemService(Context.WIFI_SERVICE) as WifiManager
             if (wifiManager != null) {
@@ -32,52 +97,505 @@ class StreamWebServer: NanoHTTPD(PORT) {
         }
     }
 
+    /**
+     * Worker pool serving client connections, exposes active/queued counts.
+     */
+    val workers = BoundedAsyncRunner(onRejected = { (it as ChannelClientHandler).rejectBusy() })
+
+    /**
+     * Blocks shared by concurrent requests, mostly container headers and indexes.
+     */
+    val blockCache = BlockCache()
+
+    /**
+     * Sequential-access tracker warming the page cache ahead of playback.
+     */
+    val readAhead = ReadAhead()
+
+    /**
+     * Serving counters, published at [STATS_PATH].
+     */
+    val stats = ServerStats()
+
+    /**
+     * Turns of concurrent response bodies, playback first.
+     */
+    val scheduler = RequestScheduler(stats)
+
+    /**
+     * Limit of each body write, so a client that stops reading doesn't hold its worker.
+     */
+    val writeTimeout = WriteTimeout()
+
+    private val transfer = RegionTransfer(blockCache, readAhead, stats, scheduler, writeTimeout)
+
+    /**
+     * growing content skips the block cache, whose blocks assume a fixed length
+     */
+    private val liveTransfer = RegionTransfer(null, readAhead, stats, scheduler, writeTimeout)
+
+    private val memoryTransfer = RegionTransfer(null, null, stats, scheduler, writeTimeout)
+
+    /**
+     * How long a live response waits for its file to grow before it ends.
+     */
+    var liveIdleTimeoutMillis = 10_000L
+
+    /**
+     * gzip representations of text content.
+     */
+    val compressedVariants = CompressedVariants()
+
+    /**
+     * Segment indexes of TS files played through HLS.
+     */
+    val hlsSegmenter = HlsSegmenter()
+
+    /**
+     * Downscaled photos, requested with `w`/`h` or `profile` query parameters; off until
+     * [enableImageVariants] gives it a cache directory.
+     */
+    var imageVariants: ImageVariants? = null
+        private set
+
+    /**
+     * Files uploaded to [UploadReceiver.path], off until [enableUploads] gives it a directory.
+     */
+    var uploads: UploadReceiver? = null
+        private set
+
+    /**
+     * Published media, served by token.
+     */
+    val registry = MediaRegistry()
+
+    /**
+     * Selector engine, set when [engine] is [Engine.NIO].
+     */
+    val nioEngine = if (engine == Engine.NIO) NioHttpEngine(this, port) else null
+
+    init {
+        setAsyncRunner(workers)
+        // sockets accepted from a ServerSocketChannel expose their SocketChannel, which lets
+        // FileRegionResponse hand file regions to the kernel with transferTo
+        setServerSocketFactory { ServerSocketChannel.open().socket() }
+    }
+
+    override fun start(timeout: Int, daemon: Boolean) {
+        nioEngine?.start(timeout) ?: super.start(timeout, daemon)
+    }
+
+    override fun stop() {
+        nioEngine?.stop() ?: super.stop()
+    }
+
+    /**
+     * create a NanoHTTPD session reading requests from and writing responses to [socket]
+     */
+    internal fun newSession(socket: Socket): IHTTPSession {
+        return HTTPSession(tempFileManagerFactory.create(), socket.getInputStream(), socket.getOutputStream(), socket.inetAddress)
+    }
+
+    /**
+     * publish a file and get its url
+     * @param live the file is still being written and clients should follow it as it grows
+     */
+    fun getHttpUrl(context: Context, file: File, live: Boolean = false): String = urlOf(context, publish(FileSource(file), live), port)
+
+    /**
+     * @param path path returned by [publish], or a file path, which is published unless
+     * [servePaths] is set
+     */
+    fun getHttpUrl(context: Context, path: String): String {
+        if (path.startsWith(MediaRegistry.PATH_PREFIX) || servePaths) {
+            return urlOf(context, path, port)
+        }
+        return getHttpUrl(context, File(path))
+    }
+
+    /**
+     * publish a source, e.g. a [ChannelSource] of picked content, and get its url
+     */
+    fun getHttpUrl(context: Context, source: MediaSource, live: Boolean = false): String = urlOf(context, publish(source, live), port)
+
+    /**
+     * publish a TS file and get the url of an HLS playlist playing it in segments
+     */
+    fun getHlsUrl(context: Context, file: File): String = urlOf(context, getHlsPath(publish(FileSource(file))), port)
+
+    /**
+     * serve downscaled photos when a target size is requested, cached under the app's cache dir
+     * @param maxBytes disk space the cached variants may take
+     */
+    fun enableImageVariants(context: Context, maxBytes: Long = 64L * 1024 * 1024) {
+        imageVariants = ImageVariants(File(context.cacheDir, "image_variants"), maxBytes)
+    }
+
+    /**
+     * accept files sent with `PUT` or `POST` to [UploadReceiver.path]`<name>` into [dir]
+     *
+     * Anyone on the network who learns that path can write files of any size into [dir] until the
+     * server stops: it travels in plain HTTP, so hand it only to the receiver expected to upload, keep
+     * [dir] to a folder of its own that nothing executes or trusts, and call this again for a new
+     * path once that receiver is done.
+     */
+    fun enableUploads(dir: File): UploadReceiver {
+        return UploadReceiver(dir).also { uploads = it }
+    }
+
+    /**
+     * @see MediaRegistry.publish
+     */
+    fun publish(source: MediaSource, live: Boolean = false): String = registry.publish(source, live)
+
+    /**
+     * @see MediaRegistry.unpublish
+     */
+    fun unpublish(path: String) = registry.unpublish(path)
+
+    private fun resolve(uri: String): MediaRegistry.Entry? {
+        if (uri.startsWith(MediaRegistry.PATH_PREFIX)) {
+            return registry.lookup(uri)
+        }
+        if (!servePaths) {
+            return null
+        }
+        val source = FileSource(File(uri))
+        return if (source.exists()) MediaRegistry.Entry(source, uri) else null
+    }
+
+    override fun createClientHandler(finalAccept: Socket, inputStream: InputStream): ClientHandler {
+        return ChannelClientHandler(inputStream, finalAccept)
+    }
+
+    /**
+     * uploads stream their bodies to disk themselves, other requests with a body are refused
+     * before NanoHTTPD copies it into a temp file
+     */
+    override fun serve(session: IHTTPSession): Response {
+        val method = session.method
+        if (method != Method.PUT && method != Method.POST) {
+            return super.serve(session)
+        }
+        scheduler.enter(null)
+        val uploads = uploads
+        if (uploads != null && session.uri.startsWith(UploadReceiver.PATH_PREFIX)) {
+            return uploads.receive(session)
+        }
+        val response = newFixedLengthResponse(Response.Status.METHOD_NOT_ALLOWED, MIME_PLAINTEXT, "Method Not Allowed")
+        response.closeConnection(true)
+        return response
+    }
+
     override fun serve(uri: String, method: Method?, headers: Map<String, String>, params: Map<String?, String?>?, files: Map<String?, String?>?): Response? {
-        var fileType = MediaType.getFileType(uri)
-        var range: String? = null
-        for (key in headers.keys) {
-            if ("range" == key) {
-                range = headers[key]
+        if (uri == STATS_PATH) {
+            scheduler.enter(null)
+            return getStatsResponse(params?.get("format"))
+        }
+        val entry = resolve(uri)
+            ?: return newFixedLengthResponse(Response.Status.NOT_FOUND, MIME_PLAINTEXT, "Not Found")
+        if (entry.segmentable && !entry.live && uri == getHlsPath(entry.path)) {
+            scheduler.enter(RequestScheduler.RequestClass.METADATA)
+            return getHlsResponse(entry, headers)
+        }
+        scheduler.enter(RequestScheduler.classify(entry.mimeType, method, headers, params))
+        stats.requestStarted(entry.mimeType, headers.containsKey("range"))
+        if (entry.live) {
+            return getLiveResponse(entry, headers["range"])
+        }
+        val metadata = entry.metadata
+        val validator = metadata.validator
+        if (entry.scalable) {
+            ImageVariants.parseTarget(params)?.let { target ->
+                getImageVariantResponse(entry, metadata, target, headers)?.let { return it }
             }
         }
-        return range?.let { getPartialResponse(fileType?.mimeType?:"", it, uri) } ?: getFullResponse(fileType?.mimeType?:"", uri)
+        // a range is only valid for the representation named by If-Range, otherwise send everything
+        val range = headers["range"]?.takeIf { headers["if-range"]?.let { validator.matchesIfRange(it) } ?: true }
+        // ranges always address the identity representation
+        val gzip = entry.compressible && range == null && CompressedVariants.acceptsGzip(headers["accept-encoding"])
+        val eTag = if (gzip) validator.gzipETag else validator.eTag
+        if (isNotModified(headers, validator, eTag)) {
+            stats.notModified()
+            return addValidators(newFixedLengthResponse(Response.Status.NOT_MODIFIED, null, null, 0), entry, validator, eTag)
+        }
+        val gzipResponse = if (gzip) getGzipResponse(entry, metadata, method, headers["accept-encoding"]!!) else null
+        if (gzipResponse != null) {
+            return addValidators(gzipResponse, entry, validator, eTag)
+        }
+        val response = range?.let { getPartialResponse(entry, metadata, it) } ?: getFullResponse(entry, metadata)
+        return addValidators(response, entry, validator, validator.eTag)
     }
 
-    private fun getFullResponse(mimeType: String, filePath: String): Response? {
-        val fis = FileInputStream(filePath)
-        return newChunkedResponse(Response.Status.OK, mimeType, fis)
+    /**
+     * the file responses set their own framing, only other responses may be compressed by NanoHTTPD
+     */
+    override fun useGzipWhenAccepted(r: Response): Boolean {
+        return when (r) {
+            is FileRegionResponse, is MultipartRangeResponse, is LiveFileResponse -> false
+            is GzipStreamResponse -> true
+            else -> super.useGzipWhenAccepted(r)
+        }
     }
 
-    private fun getPartialResponse(mimeType: String, rangeHeader: String, filePath: String): Response? {
-        val file = File(filePath)
-        val rangeValue = rangeHeader.trim().substring("bytes=".length)
-        val fileLength: Long = file.length()
-        val start: Long
-        var end: Long
-
-        if (rangeValue.endsWith("-")) {
-            start = rangeValue.substringBefore("-").toLong()
-            end = fileLength-1
-        } else {
-            val range = rangeValue.split("-").toTypedArray()
-            start = range[0].toLong()
-            end = if (range.size > 1 && range[1].isNotEmpty()) range[1].toLong() else fileLength - 1
-        }
-
-        if (end > fileLength - 1) {
-            end = fileLength - 1
-        }
-        return if (start <= end) {
-            val contentLength = end - start + 1
-            var fileInputStream = FileInputStream(file)
-            fileInputStream.skip(start)
-            val response = newChunkedResponse(Response.Status.PARTIAL_CONTENT, mimeType, fileInputStream)
-            response.addHeader("Content-Length", contentLength.toString() + "")
-            response.addHeader("Content-Range", "bytes $start-$end/$fileLength")
-            response.addHeader("Content-Type", mimeType)
-            response
+    private fun getStatsResponse(format: String?): Response {
+        val response = if (format == "prometheus") {
+            newFixedLengthResponse(Response.Status.OK, "text/plain; version=0.0.4", stats.toPrometheus())
         } else {
+            newFixedLengthResponse(Response.Status.OK, "application/json", stats.toJson())
+        }
+        response.addHeader("Cache-Control", "no-store")
+        return response
+    }
+
+    /**
+     * The HLS playlist of a TS file, whose segments are byte ranges of the file's own url.
+     */
+    private fun getHlsResponse(entry: MediaRegistry.Entry, headers: Map<String, String>): Response {
+        stats.requestStarted(HlsSegmenter.PLAYLIST_MIME_TYPE, false)
+        val metadata = entry.metadata
+        val validator = metadata.validator
+        val eTag = validator.variantETag("hls")
+        if (isNotModified(headers, validator, eTag)) {
+            stats.notModified()
+            return addValidators(newFixedLengthResponse(Response.Status.NOT_MODIFIED, null, null, 0), entry, validator, eTag)
+        }
+        val index = try {
+            hlsSegmenter.index(metadata.contentKey, entry.source, validator.length)
+        } catch (e: IOException) {
+            Log.i(TAG, "index ${entry.source.name} failed", e)
             null
+        } ?: return newFixedLengthResponse(Response.Status.NOT_FOUND, MIME_PLAINTEXT, "Not Found")
+        val playlist = index.toPlaylist(entry.path.substringAfterLast('/'))
+        if (!index.complete) {
+            // the player reloads it until the scan is done
+            val response = newFixedLengthResponse(Response.Status.OK, HlsSegmenter.PLAYLIST_MIME_TYPE, playlist)
+            response.addHeader("Cache-Control", "no-cache")
+            return response
+        }
+        return addValidators(newFixedLengthResponse(Response.Status.OK, HlsSegmenter.PLAYLIST_MIME_TYPE, playlist), entry, validator, eTag)
+    }
+
+    /**
+     * @return the photo downscaled to fit [target], or null if it already fits and should be sent as is
+     */
+    private fun getImageVariantResponse(entry: MediaRegistry.Entry, metadata: MediaRegistry.Entry.Metadata, target: ImageVariants.Target, headers: Map<String, String>): Response? {
+        val variants = imageVariants ?: return null
+        val validator = metadata.validator
+        val eTag = validator.variantETag(target.toString())
+        if (isNotModified(headers, validator, eTag)) {
+            stats.notModified()
+            return addValidators(newFixedLengthResponse(Response.Status.NOT_MODIFIED, null, null, 0), entry, validator, eTag)
+        }
+        val variant = try {
+            variants.get(entry.source, validator, target)
+        } catch (e: IOException) {
+            Log.i(TAG, "scale ${entry.source.name} failed", e)
+            null
+        } ?: return null
+        val source = variant.source
+        val response = FileRegionResponse(Response.Status.OK, variant.mimeType, source, 0, source.length, transfer, owner = source)
+        return addValidators(response, entry, validator, eTag)
+    }
+
+    /**
+     * evaluate If-None-Match, or If-Modified-Since when no tag was sent
+     */
+    private fun isNotModified(headers: Map<String, String>, validator: FileValidator, eTag: String): Boolean {
+        val ifNoneMatch = headers["if-none-match"]
+        if (ifNoneMatch != null) {
+            return validator.matchesAny(ifNoneMatch, eTag)
+        }
+        return headers["if-modified-since"]?.let { validator.isNotModifiedSince(it) } ?: false
+    }
+
+    private fun addValidators(response: Response, entry: MediaRegistry.Entry, validator: FileValidator, eTag: String): Response {
+        if (validator.isKnown) {
+            response.addHeader("ETag", eTag)
+            response.addHeader("Last-Modified", validator.lastModifiedHttp)
+        }
+        if (entry.compressible) {
+            response.addHeader("Vary", "Accept-Encoding")
+        }
+        return response
+    }
+
+    /**
+     * @return the gzip encoded body: a `.gz` file next to the file, the cached compressed content,
+     * or the content compressed while it is sent; null if the identity body should be sent
+     */
+    private fun getGzipResponse(entry: MediaRegistry.Entry, metadata: MediaRegistry.Entry.Metadata, method: Method?, acceptEncoding: String): Response? {
+        val precompressed = compressedVariants.precompressed(entry.source)
+        val response = if (precompressed != null) {
+            val length = precompressed.length
+            FileRegionResponse(Response.Status.OK, entry.mimeType, precompressed, 0, length, transfer, precompressed.key + FileValidator.of(precompressed).eTag)
+        } else {
+            val compressed = try {
+                compressedVariants.get(metadata.contentKey, entry.source, metadata.validator.length)
+            } catch (e: IOException) {
+                Log.i(TAG, "compress ${entry.source.name} failed", e)
+                return null
+            }
+            if (compressed != null) {
+                val source = MemorySource(entry.source.name, "gzip:" + metadata.contentKey, ByteBuffer.wrap(compressed))
+                FileRegionResponse(Response.Status.OK, entry.mimeType, source, 0, compressed.size.toLong(), memoryTransfer)
+            } else if (method != Method.HEAD && acceptEncoding.contains("gzip")) {
+                // NanoHTTPD adds the Content-Encoding header itself, but only looks for "gzip" in
+                // Accept-Encoding and would write a compressed body for HEAD as well
+                return GzipStreamResponse(entry.mimeType, compressedVariants.openStream(entry.source), writeTimeout, stats)
+            } else {
+                return null
+            }
+        }
+        response.addHeader("Content-Encoding", "gzip")
+        return response
+    }
+
+    /**
+     * Content too long to compress in memory, gzip encoded and chunked by NanoHTTPD as it's read.
+     * The body counts in [stats] as sent, compressed and in chunks.
+     */
+    private class GzipStreamResponse(mimeType: String, data: InputStream, private val writeTimeout: WriteTimeout, private val stats: ServerStats) : Response(Status.OK, mimeType, data, -1) {
+        init {
+            setChunkedTransfer(true)
+        }
+
+        override fun send(outputStream: OutputStream) {
+            val body = BodyCountingStream(writeTimeout.wrap(outputStream), stats)
+            try {
+                super.send(body)
+            } finally {
+                if (body.startNanos != 0L) {
+                    stats.bodySent(body.startNanos, body.bodyBytes)
+                }
+            }
+        }
+    }
+
+    /**
+     * counts the bytes written after the blank line ending the headers
+     */
+    private class BodyCountingStream(out: OutputStream, private val stats: ServerStats) : FilterOutputStream(out) {
+        /**
+         * last bytes of the headers written so far
+         */
+        private var tail = 0
+        var startNanos = 0L
+            private set
+        var bodyBytes = 0L
+            private set
+
+        override fun write(b: Int) {
+            write(byteArrayOf(b.toByte()), 0, 1)
+        }
+
+        override fun write(b: ByteArray, off: Int, len: Int) {
+            var bodyStart = off
+            if (startNanos == 0L) {
+                bodyStart = off + len
+                for (i in off until off + len) {
+                    tail = (tail shl 8) or (b[i].toInt() and 0xff)
+                    if (tail == HEADER_END) {
+                        startNanos = stats.bodyStarted()
+                        bodyStart = i + 1
+                        break
+                    }
+                }
+            }
+            bodyBytes += off + len - bodyStart
+            out.write(b, off, len)
+        }
+    }
+
+    private fun getFullResponse(entry: MediaRegistry.Entry, metadata: MediaRegistry.Entry.Metadata): Response {
+        val response = FileRegionResponse(Response.Status.OK, entry.mimeType, entry.source, 0, metadata.validator.length, transfer, metadata.contentKey)
+        response.addHeader("Accept-Ranges", "bytes")
+        return response
+    }
+
+    /**
+     * @return the partial response, or null when the header is not a byte range and the full body should be sent
+     */
+    private fun getPartialResponse(entry: MediaRegistry.Entry, metadata: MediaRegistry.Entry.Metadata, rangeHeader: String): Response? {
+        val rangeValue = rangeHeader.trim()
+        if (!rangeValue.startsWith("bytes=")) {
+            return null
+        }
+        val fileLength = metadata.validator.length
+        val ranges = ByteRange.parseList(rangeValue.substring("bytes=".length), fileLength)
+        if (ranges == null || ranges.size > MAX_RANGES) {
+            return null
+        }
+        if (ranges.isEmpty()) {
+            val response = newFixedLengthResponse(Response.Status.RANGE_NOT_SATISFIABLE, MIME_PLAINTEXT, "")
+            response.addHeader("Content-Range", "bytes */$fileLength")
+            return response
+        }
+        if (ranges.size > 1) {
+            val response = MultipartRangeResponse(entry.mimeType, entry.source, fileLength, ranges, transfer, metadata.contentKey)
+            response.addHeader("Accept-Ranges", "bytes")
+            return response
+        }
+        val range = ranges[0]
+        val response = FileRegionResponse(Response.Status.PARTIAL_CONTENT, entry.mimeType, entry.source, range.start, range.length, transfer, metadata.contentKey)
+        response.addHeader("Accept-Ranges", "bytes")
+        response.addHeader("Content-Range", "bytes $range/$fileLength")
+        return response
+    }
+
+    /**
+     * Content that is still being written has no stable validators or length: a plain request
+     * follows it with [LiveFileResponse], a range waits until the data it starts at exists and
+     * gets what has been written so far with an unknown complete length.
+     */
+    private fun getLiveResponse(entry: MediaRegistry.Entry, rangeHeader: String?): Response {
+        val source = entry.source
+        val spec = rangeHeader?.trim()?.takeIf { it.startsWith("bytes=") && !it.contains(',') }?.substring("bytes=".length)
+        val first = spec?.substringBefore('-', "")?.trim()?.toLongOrNull()
+        if (first == null) {
+            val response = LiveFileResponse(entry.mimeType, source, 0, liveTransfer, liveIdleTimeoutMillis)
+            response.addHeader("Cache-Control", "no-cache")
+            return response
+        }
+        val last = spec.substringAfter('-').trim().toLongOrNull()
+        GrowthWatcher(source).use { it.awaitLength(last ?: first, LIVE_RANGE_WAIT_MILLIS) }
+        val length = source.length
+        if (first >= length || (last != null && last < first)) {
+            val response = newFixedLengthResponse(Response.Status.RANGE_NOT_SATISFIABLE, MIME_PLAINTEXT, "")
+            response.addHeader("Content-Range", "bytes */$length")
+            return response
+        }
+        val range = ByteRange(first, minOf(last ?: Long.MAX_VALUE, length - 1))
+        val response = FileRegionResponse(Response.Status.PARTIAL_CONTENT, entry.mimeType, source, range.start, range.length, liveTransfer, source.key)
+        response.addHeader("Accept-Ranges", "bytes")
+        response.addHeader("Content-Range", "bytes $range/*")
+        response.addHeader("Cache-Control", "no-cache")
+        return response
+    }
+
+    private inner class ChannelClientHandler(inputStream: InputStream, private val socket: Socket) : ClientHandler(inputStream, socket) {
+        override fun run() {
+            connectionChannel.set(socket.channel)
+            stats.connectionOpened()
+            try {
+                super.run()
+            } finally {
+                stats.connectionClosed()
+                connectionChannel.remove()
+                scheduler.leave()
+            }
+        }
+
+        /**
+         * answer 503 without reading the request and close, used when no worker can take the connection
+         */
+        fun rejectBusy() {
+            try {
+                socket.getOutputStream().write(SERVICE_UNAVAILABLE)
+            } catch (e: IOException) {
+                Log.i(TAG, "send 503 failed", e)
+            }
+            close()
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,357 @@
+package remote.common.media
+
+import java.text.Normalizer
+import java.util.*
+import java.util.concurrent.locks.ReentrantReadWriteLock
+
+/**
+ * In-memory title search over the media library for as-you-type queries.
+ *
+ * Titles are normalized (lower case, accents and punctuation dropped) and split into words. A
+ * sorted word dictionary maps each word to the titles containing it, so a query word matches
+ * every word it is a prefix of and a query with several words returns the titles matching all of
+ * them. When that finds fewer than the requested hits, titles sharing enough trigrams with the
+ * query words are added, which tolerates typos from a TV keyboard.
+ *
+ * Ranking only reads int arrays, which matters with tens of thousands of candidates for a one
+ * letter query: word postings hold `id shl 1`, with the low bit set when it is the first word of
+ * the title, and title lengths are kept next to the ids. Removed titles are only marked dead; the
+ * postings are rebuilt once dead entries pile up.
+ */
+class TitleIndex {
+
+    companion object {
+        private const val EXACT_WORD_BONUS = 100
+        private const val FIRST_WORD_BONUS = 200
+        private const val PREFIX_BASE = 10_000
+        /**
+         * minimum share of the query trigrams, in percent, for a fuzzy hit
+         */
+        private const val MIN_TRIGRAM_SHARE = 50
+        private const val MIN_DEAD_FOR_COMPACTION = 1024
+        private val COMBINING_MARKS = Regex("\\p{Mn}+")
+    }
+
+    class Hit(val path: String, val title: String, val score: Int)
+
+    private class IntList {
+        var data = IntArray(4)
+        var size = 0
+
+        fun add(value: Int) {
+            if (size == data.size) {
+                data = data.copyOf(size * 2)
+            }
+            data[size++] = value
+        }
+    }
+
+    /**
+     * per-thread query state, entries are valid when their stamp equals the query generation so
+     * nothing has to be cleared between queries
+     */
+    private class Scratch {
+        var stamps = IntArray(0)
+        var counts = IntArray(0)
+        var scores = IntArray(0)
+        var generation = 0
+        val candidates = IntList()
+
+        fun ensure(capacity: Int) {
+            if (stamps.size < capacity) {
+                stamps = IntArray(capacity)
+                counts = IntArray(capacity)
+                scores = IntArray(capacity)
+                generation = 0
+            }
+        }
+
+        fun next(): Int {
+            candidates.size = 0
+            generation++
+            return generation
+        }
+    }
+
+    private val lock = ReentrantReadWriteLock()
+    private val paths = ArrayList<String?>()
+    private val titles = ArrayList<String>()
+    /**
+     * title length per id, -1 once removed
+     */
+    private val lengths = IntList()
+    private val ids = HashMap<String, Int>()
+    private val words = TreeMap<String, IntList>()
+    private val trigrams = HashMap<Long, IntList>()
+    private var dead = 0
+
+    private val scratch = object : ThreadLocal<Scratch>() {
+        override fun initialValue(): Scratch = Scratch()
+    }
+
+    val size: Int
+        get() {
+            lock.readLock().lock()
+            try {
+                return ids.size
+            } finally {
+                lock.readLock().unlock()
+            }
+        }
+
+    /**
+     * index a title, replacing the one indexed for [path] before
+     */
+    fun add(path: String, title: String) {
+        val normalized = normalize(title)
+        lock.writeLock().lock()
+        try {
+            removeLocked(path)
+            val id = paths.size
+            paths.add(path)
+            titles.add(title)
+            lengths.add(title.length)
+            ids[path] = id
+            indexLocked(id, normalized)
+        } finally {
+            lock.writeLock().unlock()
+        }
+    }
+
+    fun remove(path: String) {
+        lock.writeLock().lock()
+        try {
+            removeLocked(path)
+        } finally {
+            lock.writeLock().unlock()
+        }
+    }
+
+    fun clear() {
+        lock.writeLock().lock()
+        try {
+            paths.clear()
+            titles.clear()
+            lengths.size = 0
+            ids.clear()
+            words.clear()
+            trigrams.clear()
+            dead = 0
+        } finally {
+            lock.writeLock().unlock()
+        }
+    }
+
+    /**
+     * @return up to [limit] titles matching [query], best first: titles whose words start with
+     * every query word, then titles close to the query words
+     */
+    fun search(query: String, limit: Int): List<Hit> {
+        val queryWords = normalize(query)
+        if (queryWords.isEmpty() || limit <= 0) {
+            return emptyList()
+        }
+        val best = PriorityQueue<Hit>(limit + 1, compareBy<Hit> { it.score }.thenByDescending { it.path })
+        lock.readLock().lock()
+        try {
+            val state = scratch.get()!!
+            state.ensure(lengths.size)
+            val found = prefixMatches(state, queryWords, best, limit)
+            if (found < limit) {
+                fuzzyMatches(state, queryWords, best, limit)
+            }
+        } finally {
+            lock.readLock().unlock()
+        }
+        val hits = ArrayList<Hit>(best.size)
+        while (best.isNotEmpty()) {
+            hits.add(best.poll()!!)
+        }
+        hits.reverse()
+        return hits
+    }
+
+    private fun prefixMatches(state: Scratch, queryWords: List<String>, best: PriorityQueue<Hit>, limit: Int): Int {
+        val generation = state.next()
+        for ((index, queryWord) in queryWords.withIndex()) {
+            for ((word, postings) in words.tailMap(queryWord)) {
+                if (!word.startsWith(queryWord)) {
+                    break
+                }
+                val exact = if (word.length == queryWord.length) EXACT_WORD_BONUS else 0
+                for (i in 0 until postings.size) {
+                    val posting = postings.data[i]
+                    val id = posting ushr 1
+                    if (index == 0) {
+                        // the first query word ranks higher at the start of the title
+                        val bonus = if (posting and 1 != 0) exact + FIRST_WORD_BONUS else exact
+                        if (state.stamps[id] != generation) {
+                            if (lengths.data[id] < 0) {
+                                continue
+                            }
+                            state.stamps[id] = generation
+                            state.counts[id] = 1
+                            state.scores[id] = bonus
+                            state.candidates.add(id)
+                        } else if (bonus > state.scores[id]) {
+                            state.scores[id] = bonus
+                        }
+                    } else if (state.stamps[id] == generation && state.counts[id] == index) {
+                        state.counts[id] = index + 1
+                        state.scores[id] += exact
+                    }
+                }
+            }
+        }
+        var found = 0
+        var floor = Int.MIN_VALUE
+        val candidates = state.candidates
+        for (i in 0 until candidates.size) {
+            val id = candidates.data[i]
+            if (state.counts[id] != queryWords.size) {
+                continue
+            }
+            found++
+            val score = PREFIX_BASE + state.scores[id] - lengths.data[id]
+            if (score > floor) {
+                floor = offer(best, limit, id, score)
+            }
+        }
+        // remember the prefix hits so the fuzzy pass skips them
+        for (i in 0 until candidates.size) {
+            val id = candidates.data[i]
+            state.counts[id] = if (state.counts[id] == queryWords.size) -1 else 0
+        }
+        return found
+    }
+
+    private fun fuzzyMatches(state: Scratch, queryWords: List<String>, best: PriorityQueue<Hit>, limit: Int) {
+        val prefixGeneration = state.generation
+        val queryTrigrams = HashSet<Long>()
+        for (word in queryWords) {
+            forEachTrigram(word) { queryTrigrams.add(it) }
+        }
+        val generation = state.next()
+        for (trigram in queryTrigrams) {
+            val postings = trigrams[trigram] ?: continue
+            for (i in 0 until postings.size) {
+                val id = postings.data[i]
+                val stamp = state.stamps[id]
+                if (stamp == prefixGeneration && state.counts[id] == -1 || lengths.data[id] < 0) {
+                    continue
+                }
+                if (stamp != generation) {
+                    state.stamps[id] = generation
+                    state.scores[id] = 1
+                    state.candidates.add(id)
+                } else {
+                    state.scores[id]++
+                }
+            }
+        }
+        var floor = if (best.size >= limit) best.peek()!!.score else Int.MIN_VALUE
+        val candidates = state.candidates
+        for (i in 0 until candidates.size) {
+            val id = candidates.data[i]
+            val share = state.scores[id] * 100 / queryTrigrams.size
+            val score = share * 10 - lengths.data[id]
+            if (share >= MIN_TRIGRAM_SHARE && score > floor) {
+                floor = offer(best, limit, id, score)
+            }
+        }
+    }
+
+    /**
+     * add a hit to the bounded min-heap of the best ones
+     * @return the score a later hit must beat to get in
+     */
+    private fun offer(best: PriorityQueue<Hit>, limit: Int, id: Int, score: Int): Int {
+        best.add(Hit(paths[id]!!, titles[id], score))
+        if (best.size > limit) {
+            best.poll()
+        }
+        return if (best.size >= limit) best.peek()!!.score else Int.MIN_VALUE
+    }
+
+    private fun indexLocked(id: Int, normalized: List<String>) {
+        val indexedTrigrams = HashSet<Long>()
+        for ((i, word) in normalized.withIndex()) {
+            // a title repeating a word is listed once
+            if (normalized.indexOf(word) == i) {
+                (words[word] ?: IntList().also { words[word] = it }).add(id shl 1 or if (i == 0) 1 else 0)
+            }
+            forEachTrigram(word) { trigram ->
+                if (indexedTrigrams.add(trigram)) {
+                    (trigrams[trigram] ?: IntList().also { trigrams[trigram] = it }).add(id)
+                }
+            }
+        }
+    }
+
+    /**
+     * mark the title of [path] dead, compacting once dead entries pile up
+     */
+    private fun removeLocked(path: String) {
+        val id = ids.remove(path) ?: return
+        paths[id] = null
+        lengths.data[id] = -1
+        dead++
+        if (dead >= MIN_DEAD_FOR_COMPACTION && dead > ids.size / 4) {
+            compactLocked()
+        }
+    }
+
+    private fun compactLocked() {
+        val livePaths = ArrayList<String>(ids.size)
+        val liveTitles = ArrayList<String>(ids.size)
+        for (id in paths.indices) {
+            paths[id]?.let {
+                livePaths.add(it)
+                liveTitles.add(titles[id])
+            }
+        }
+        paths.clear()
+        titles.clear()
+        lengths.size = 0
+        ids.clear()
+        words.clear()
+        trigrams.clear()
+        dead = 0
+        for (i in livePaths.indices) {
+            val normalized = normalize(liveTitles[i])
+            paths.add(livePaths[i])
+            titles.add(liveTitles[i])
+            lengths.add(liveTitles[i].length)
+            ids[livePaths[i]] = i
+            indexLocked(i, normalized)
+        }
+    }
+
+    /**
+     * trigrams of a word padded with a boundary mark on each side, so short words have some too
+     */
+    private inline fun forEachTrigram(word: String, action: (Long) -> Unit) {
+        val padded = " $word "
+        for (i in 0..padded.length - 3) {
+            action((padded[i].toLong() shl 32) or (padded[i + 1].toLong() shl 16) or padded[i + 2].toLong())
+        }
+    }
+
+    private fun normalize(text: String): List<String> {
+        val plain = COMBINING_MARKS.replace(Normalizer.normalize(text, Normalizer.Form.NFD), "")
+        val result = ArrayList<String>()
+        val word = StringBuilder()
+        for (c in plain) {
+            if (Character.isLetterOrDigit(c)) {
+                word.append(Character.toLowerCase(c))
+            } else if (word.isNotEmpty()) {
+                result.add(word.toString())
+                word.setLength(0)
+            }
+        }
+        if (word.isNotEmpty()) {
+            result.add(word.toString())
+        }
+        return result
+    }
+}
@@ -0,0 +1,258 @@
+package remote.common.media
+
+import android.util.Log
+import fi.iki.elonen.NanoHTTPD
+import fi.iki.elonen.NanoHTTPD.IHTTPSession
+import fi.iki.elonen.NanoHTTPD.Response
+import remote.common.utils.Logger
+import java.io.EOFException
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.security.MessageDigest
+import java.security.SecureRandom
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Files sent back to us by receivers on the LAN, with `PUT` or `POST` to [path]`<name>` and the
+ * raw file as the body. [path] holds a random token, as published media paths do, so only a
+ * receiver we handed it to can write here; other upload paths are answered `404`.
+ *
+ * The body goes straight from the socket into `<name>.part` through a FileChannel and a fixed
+ * per-thread buffer, without NanoHTTPD's temp file copy, so memory stays flat whatever the size.
+ * The part file is renamed to `<name>` once complete.
+ *
+ * Interrupted uploads resume the usual way: an empty body with a `Content-Range` of `bytes *` over
+ * the total asks how much arrived, answered `308` with `Range: bytes=0-<last>`, then the rest is sent with
+ * `Content-Range: bytes <first>-<last>/<total>`.
+ */
+class UploadReceiver(val dir: File) {
+
+    companion object {
+        const val TAG = "UploadReceiver"
+
+        /**
+         * Path prefix of uploads, followed by `<token>/<name>`.
+         */
+        const val PATH_PREFIX = "/_upload/"
+
+        private const val BUFFER_SIZE = 256 * 1024
+        private const val PART_SUFFIX = ".part"
+        private const val MAX_NAME_LENGTH = 200
+        private const val TOKEN_BYTES = 12
+        private val HEX = "0123456789abcdef".toCharArray()
+        private val CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".toByteArray(Charsets.US_ASCII)
+
+        private val RESUME_INCOMPLETE = object : Response.IStatus {
+            override fun getDescription() = "308 Resume Incomplete"
+            override fun getRequestStatus() = 308
+        }
+    }
+
+    /**
+     * `Content-Range` of an upload request, [first] -1 for a status query
+     */
+    private class ContentRange(val first: Long, val last: Long, val total: Long)
+
+    private val token = newToken()
+
+    /**
+     * path to upload to, followed by the file name; a new receiver gets a new one
+     */
+    val path = "$PATH_PREFIX$token/"
+
+    /**
+     * called on the serving thread with each completed file
+     */
+    var onUploaded: ((File) -> Unit)? = null
+
+    private val inProgress = ConcurrentHashMap<String, Boolean>()
+
+    private val buffers = object : ThreadLocal<ByteBuffer>() {
+        override fun initialValue(): ByteBuffer = ByteBuffer.allocate(BUFFER_SIZE)
+    }
+
+    init {
+        dir.mkdirs()
+    }
+
+    fun receive(session: IHTTPSession): Response {
+        val uri = session.uri
+        val slash = uri.indexOf('/', PATH_PREFIX.length)
+        if (slash < 0 || !MessageDigest.isEqual(token.toByteArray(), uri.substring(PATH_PREFIX.length, slash).toByteArray())) {
+            return reject(Response.Status.NOT_FOUND, "Not Found")
+        }
+        val method = session.method
+        if (method != NanoHTTPD.Method.PUT && method != NanoHTTPD.Method.POST) {
+            return reject(Response.Status.METHOD_NOT_ALLOWED, "Method Not Allowed")
+        }
+        val name = uri.substring(slash + 1)
+        if (!isValidName(name)) {
+            return reject(Response.Status.BAD_REQUEST, "Bad Name")
+        }
+        val headers = session.headers
+        val length = headers["content-length"]?.trim()?.toLongOrNull()
+            ?: return reject(Response.Status.LENGTH_REQUIRED, "Length Required")
+        val range = headers["content-range"]?.let { parseContentRange(it) ?: return reject(Response.Status.BAD_REQUEST, "Bad Content-Range") }
+        if (inProgress.putIfAbsent(name, true) != null) {
+            return reject(Response.Status.CONFLICT, "Upload In Progress")
+        }
+        try {
+            val part = File(dir, name + PART_SUFFIX)
+            if (range != null && range.first < 0) {
+                return progress(part, length == 0L)
+            }
+            if (range != null && range.last - range.first + 1 != length) {
+                return reject(Response.Status.BAD_REQUEST, "Length Mismatch")
+            }
+            val first = range?.first ?: 0
+            val total = range?.total ?: length
+            val current = if (part.isFile) part.length() else 0
+            if (first > current) {
+                return progress(part, false)
+            }
+            if (total >= 0 && dir.usableSpace < total - first) {
+                return reject(Response.Status.PAYLOAD_TOO_LARGE, "Not Enough Space")
+            }
+            if (headers["expect"]?.equals("100-continue", true) == true) {
+                sendContinue()
+            }
+            val received = try {
+                write(session, part, first, length, range == null)
+            } catch (e: IOException) {
+                Log.i(TAG, "upload $name stopped", e)
+                return reject(Response.Status.INTERNAL_ERROR, "Upload Failed")
+            }
+            if (total < 0 || received < total) {
+                return progress(part, true)
+            }
+            if (received > total) {
+                // left over from an earlier upload of a longer file
+                RandomAccessFile(part, "rw").use { it.setLength(total) }
+            }
+            val file = File(dir, name)
+            if (!part.renameTo(file)) {
+                return reject(Response.Status.INTERNAL_ERROR, "Rename Failed")
+            }
+            Logger.d(TAG, "received ${file.path}, $total bytes")
+            onUploaded?.invoke(file)
+            val response = NanoHTTPD.newFixedLengthResponse(Response.Status.CREATED, NanoHTTPD.MIME_PLAINTEXT, "")
+            response.addHeader("Location", path + name)
+            return response
+        } finally {
+            inProgress.remove(name)
+        }
+    }
+
+    /**
+     * copy [length] body bytes to [part] from [first]
+     * @param truncate drop what [part] holds beyond the body, for uploads that aren't resumed
+     * @return bytes of [part] received so far
+     */
+    private fun write(session: IHTTPSession, part: File, first: Long, length: Long, truncate: Boolean): Long {
+        val input = session.inputStream
+        val buffer = buffers.get()!!
+        RandomAccessFile(part, "rw").use { file ->
+            val channel = file.channel
+            if (truncate) {
+                channel.truncate(first + length)
+            }
+            var position = first
+            val end = first + length
+            while (position < end) {
+                buffer.clear()
+                val read = input.read(buffer.array(), 0, minOf(buffer.capacity().toLong(), end - position).toInt())
+                if (read < 0) {
+                    throw EOFException("body ended at ${position - first} of $length bytes")
+                }
+                buffer.limit(read)
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position)
+                }
+            }
+            return maxOf(channel.size(), end)
+        }
+    }
+
+    /**
+     * report how much of an upload arrived
+     * @param keepAlive false when a request body was left unread and the connection must close
+     */
+    private fun progress(part: File, keepAlive: Boolean): Response {
+        val received = if (part.isFile) part.length() else 0
+        val response = NanoHTTPD.newFixedLengthResponse(RESUME_INCOMPLETE, NanoHTTPD.MIME_PLAINTEXT, "")
+        if (received > 0) {
+            response.addHeader("Range", "bytes=0-${received - 1}")
+        }
+        response.closeConnection(!keepAlive)
+        return response
+    }
+
+    /**
+     * answer without reading the body, so the connection can't be reused
+     */
+    private fun reject(status: Response.IStatus, message: String): Response {
+        val response = NanoHTTPD.newFixedLengthResponse(status, NanoHTTPD.MIME_PLAINTEXT, message)
+        response.closeConnection(true)
+        return response
+    }
+
+    /**
+     * let a client waiting on `Expect: 100-continue` send the body now instead of after its timeout
+     */
+    private fun sendContinue() {
+        val channel = StreamWebServer.connectionChannel.get() ?: return
+        try {
+            val buffer = ByteBuffer.wrap(CONTINUE)
+            while (buffer.hasRemaining()) {
+                channel.write(buffer)
+            }
+        } catch (e: IOException) {
+            Log.i(TAG, "send 100 Continue failed", e)
+        }
+    }
+
+    private fun newToken(): String {
+        val bytes = ByteArray(TOKEN_BYTES)
+        SecureRandom().nextBytes(bytes)
+        val chars = CharArray(bytes.size * 2)
+        for (i in bytes.indices) {
+            val v = bytes[i].toInt() and 0xFF
+            chars[i * 2] = HEX[v ushr 4]
+            chars[i * 2 + 1] = HEX[v and 0x0F]
+        }
+        return String(chars)
+    }
+
+    private fun isValidName(name: String): Boolean {
+        return name.isNotEmpty() && name.length <= MAX_NAME_LENGTH && !name.startsWith(".") &&
+                !name.contains('/') && !name.contains('\\') && !name.contains('\u0000') && !name.endsWith(PART_SUFFIX)
+    }
+
+    /**
+     * parse `bytes <first>-<last>/<total>`, or `bytes *` over the total for a status query; the total may be `*`
+     */
+    private fun parseContentRange(value: String): ContentRange? {
+        val spec = value.trim()
+        if (!spec.startsWith("bytes ")) {
+            return null
+        }
+        val slash = spec.indexOf('/')
+        if (slash < 0) {
+            return null
+        }
+        val totalText = spec.substring(slash + 1).trim()
+        val total = if (totalText == "*") -1 else totalText.toLongOrNull() ?: return null
+        val rangeText = spec.substring("bytes ".length, slash).trim()
+        if (rangeText == "*") {
+            return ContentRange(-1, -1, total)
+        }
+        val first = rangeText.substringBefore('-').trim().toLongOrNull() ?: return null
+        val last = rangeText.substringAfter('-', "").trim().toLongOrNull() ?: return null
+        if (first < 0 || last < first || (total >= 0 && last >= total)) {
+            return null
+        }
+        return ContentRange(first, last, total)
+    }
+}
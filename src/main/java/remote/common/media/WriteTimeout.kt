@@ -0,0 +1,172 @@
+package remote.common.media
+
+import android.util.Log
+import java.io.Closeable
+import java.io.FilterOutputStream
+import java.io.IOException
+import java.io.OutputStream
+import java.net.SocketTimeoutException
+import java.nio.channels.SocketChannel
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ScheduledThreadPoolExecutor
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Sockets have a read timeout but no write timeout, so a client that stops reading (a paused
+ * player with a full buffer, a TV gone off the network) would hold its worker in a blocked write
+ * for as long as the connection lives. Each write of a response body runs through [run], which
+ * closes the connection when the write hasn't returned after [timeoutMillis]; the write then
+ * fails and the worker is freed.
+ *
+ * A connection has one deadline, pushed back by each write it starts, and a single sweeper checks
+ * them all every quarter of the timeout, so a write costs a field update rather than a timer task.
+ * A stalled write is closed between [timeoutMillis] and a quarter more after it started.
+ */
+class WriteTimeout(val timeoutMillis: Long = 20_000) {
+
+    companion object {
+        const val TAG = "WriteTimeout"
+
+        private const val MIN_SWEEP_MS = 10L
+
+        private val timer = ScheduledThreadPoolExecutor(1, ThreadFactory { r ->
+            val thread = Thread(r, "StreamWebServer-timeout")
+            thread.isDaemon = true
+            thread
+        })
+
+        private fun nowMillis() = System.nanoTime() / 1_000_000
+    }
+
+    /**
+     * the deadline of one connection's writes; guarded by itself
+     */
+    private class Watch(val connection: Closeable) {
+        var writes = 0
+        var deadline = 0L
+        // written since the last sweep, a watch idle for a whole sweep is dropped
+        var touched = false
+        var removed = false
+        @Volatile
+        var expired = false
+    }
+
+    private val watches = ConcurrentHashMap<Closeable, Watch>()
+    private val sweeping = AtomicBoolean()
+    private val sweepMillis = maxOf(timeoutMillis / 4, MIN_SWEEP_MS)
+
+    /**
+     * run [write], closing [connection] if it takes longer than [timeoutMillis]
+     * @throws SocketTimeoutException if the write failed because it was closed
+     */
+    @Throws(IOException::class)
+    fun <T> run(connection: Closeable, write: () -> T): T {
+        val watch = begin(connection)
+        try {
+            return write()
+        } catch (e: IOException) {
+            if (watch.expired) {
+                throw SocketTimeoutException("write stalled for $timeoutMillis ms")
+            }
+            throw e
+        } finally {
+            synchronized(watch) {
+                watch.writes--
+            }
+        }
+    }
+
+    /**
+     * [output] with each write and flush run through [run]
+     */
+    fun wrap(output: OutputStream): OutputStream = object : FilterOutputStream(output) {
+        override fun write(b: Int) {
+            run(output) { output.write(b) }
+        }
+
+        override fun write(b: ByteArray, off: Int, len: Int) {
+            run(output) { output.write(b, off, len) }
+        }
+
+        override fun flush() {
+            run(output) { output.flush() }
+        }
+    }
+
+    private fun begin(connection: Closeable): Watch {
+        while (true) {
+            val watch = watches[connection] ?: Watch(connection).let { watches.putIfAbsent(connection, it) ?: it }
+            synchronized(watch) {
+                // else the sweeper dropped it meanwhile
+                if (!watch.removed) {
+                    watch.writes++
+                    watch.deadline = nowMillis() + timeoutMillis
+                    watch.touched = true
+                    startSweeping()
+                    return watch
+                }
+            }
+        }
+    }
+
+    private fun startSweeping() {
+        if (sweeping.compareAndSet(false, true)) {
+            timer.schedule({ sweep() }, sweepMillis, TimeUnit.MILLISECONDS)
+        }
+    }
+
+    /**
+     * close the connections whose write passed its deadline, drop the idle ones, and come back
+     * while any are left
+     */
+    private fun sweep() {
+        val now = nowMillis()
+        for (watch in watches.values) {
+            val stalled = synchronized(watch) {
+                if (watch.writes == 0) {
+                    if (!watch.touched) {
+                        watch.removed = true
+                        watches.remove(watch.connection, watch)
+                    }
+                    watch.touched = false
+                    false
+                } else if (now >= watch.deadline && !watch.expired) {
+                    watch.expired = true
+                    true
+                } else {
+                    false
+                }
+            }
+            if (stalled) {
+                close(watch.connection)
+            }
+        }
+        if (watches.isEmpty()) {
+            sweeping.set(false)
+            // a write may have begun after the check and seen the sweeper still running
+            if (watches.isEmpty()) {
+                return
+            }
+            if (!sweeping.compareAndSet(false, true)) {
+                return
+            }
+        }
+        timer.schedule({ sweep() }, sweepMillis, TimeUnit.MILLISECONDS)
+    }
+
+    private fun close(connection: Closeable) {
+        Log.i(TAG, "write stalled for $timeoutMillis ms, closing the connection")
+        try {
+            // closing a channel doesn't wake a thread blocked in transferTo (sendfile) on
+            // it, shutting the socket down does
+            (connection as? SocketChannel)?.socket()?.shutdownOutput()
+        } catch (e: IOException) {
+        }
+        try {
+            connection.close()
+        } catch (e: IOException) {
+        }
+    }
+}
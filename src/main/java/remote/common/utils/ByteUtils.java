@@ -29,8 +29,12 @@ public class ByteUtils {
     }
 
     public static void intToBytes(int n, byte[] array) {
+        intToBytes(n, array, 0);
+    }
+
+    public static void intToBytes(int n, byte[] array, int offset) {
         for (int i = 0; i < 4; i++) {
-            array[i] = (byte) (n >> (24 - (3-i) * 8));
+            array[offset + i] = (byte) (n >> (24 - (3-i) * 8));
         }
     }
 }
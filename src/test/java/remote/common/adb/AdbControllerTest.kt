@@ -0,0 +1,146 @@
+package remote.common.adb
+
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+import org.robolectric.annotation.Config
+import java.io.InputStream
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+
+/**
+ * Sessions [AdbController] keeps open for devices other than the current one, each device a
+ * [FakeAdbd].
+ */
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [28])
+class AdbControllerTest {
+
+    companion object {
+        private var initialized = false
+    }
+
+    private val devices = ArrayList<FakeAdbd>()
+    private val events = LinkedBlockingQueue<AdbEvent>()
+    private val listener = object : AdbController.AdbEventListener {
+        override fun onAdbEvent(adbEvent: AdbEvent) {
+            events.add(adbEvent)
+        }
+    }
+    private val idleTimeoutMs = AdbController.idleTimeoutMs
+    private val maxSessions = AdbController.maxSessions
+
+    @Before
+    fun setUp() {
+        if (!initialized) {
+            // the controller's thread can only be started once
+            AdbController.init(RuntimeEnvironment.getApplication())
+            initialized = true
+        }
+        AdbController.addEventListener(listener)
+    }
+
+    @After
+    fun tearDown() {
+        AdbController.removeEventListener(listener)
+        for (session in AdbController.getSessions()) {
+            session.disconnect()
+        }
+        for (device in devices) {
+            device.close()
+        }
+        awaitClosed(*devices.toTypedArray())
+        AdbController.idleTimeoutMs = idleTimeoutMs
+        AdbController.maxSessions = maxSessions
+    }
+
+    /**
+     * make a new device current, once its session is connected
+     */
+    private fun connect(): FakeAdbd {
+        val device = FakeAdbd()
+        devices.add(device)
+        switchTo(device)
+        return device
+    }
+
+    /**
+     * make [device] current and wait for its CONNECTED
+     */
+    private fun switchTo(device: FakeAdbd) {
+        val deviceId = deviceId(device)
+        AdbController.connect("127.0.0.1", device.port)
+        while (true) {
+            val event = events.poll(5, TimeUnit.SECONDS) ?: throw AssertionError("$deviceId didn't connect")
+            if (event.deviceId == deviceId && event.status == AdbStatus.CONNECTED) {
+                break
+            }
+        }
+        assertEquals(deviceId, AdbController.currentDeviceId)
+    }
+
+    private fun deviceId(device: FakeAdbd) = AdbSession.deviceIdOf("127.0.0.1", device.port)
+
+    private fun awaitClosed(vararg devices: FakeAdbd, timeoutMs: Long = 5000) {
+        val deadline = System.currentTimeMillis() + timeoutMs
+        for (device in devices) {
+            while (AdbController.getSession(deviceId(device)) != null && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10)
+            }
+            assertNull(deviceId(device), AdbController.getSession(deviceId(device)))
+        }
+    }
+
+    @Test
+    fun closesSessionsLeftIdle() {
+        AdbController.idleTimeoutMs = 300
+        val first = connect()
+        val second = connect()
+        val pushing = connect()
+        val release = CountDownLatch(1)
+        val input = object : InputStream() {
+            override fun read(): Int = throw UnsupportedOperationException()
+
+            override fun read(b: ByteArray, off: Int, len: Int): Int {
+                release.await(10, TimeUnit.SECONDS)
+                return -1
+            }
+        }
+        AdbController.pushFile(input, "/sdcard/held.mp4")
+        val current = connect()
+
+        // closed on a later check, without another connect
+        awaitClosed(first, second)
+        Thread.sleep(600)
+        // a pushing session stays until its push is done
+        assertNotNull(AdbController.getSession(deviceId(pushing)))
+        release.countDown()
+        awaitClosed(pushing)
+        // the current one stays however long it is unused
+        Thread.sleep(600)
+        assertSame(AdbController.getSession(deviceId(current)), AdbController.getSessions().single())
+    }
+
+    @Test
+    fun closesTheLeastRecentlyUsedOverTheLimit() {
+        AdbController.maxSessions = 2
+        val first = connect()
+        val second = connect()
+        val third = connect()
+        awaitClosed(first)
+
+        // switching back makes the second more recently used than the third
+        switchTo(second)
+        val fourth = connect()
+        awaitClosed(third)
+        assertEquals(setOf(deviceId(second), deviceId(fourth)), AdbController.getSessions().map { it.deviceId }.toSet())
+    }
+}
@@ -0,0 +1,131 @@
+package remote.common.adb
+
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import java.io.ByteArrayInputStream
+import java.io.InputStream
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+
+/**
+ * Lanes of an [AdbSession] against a [FakeAdbd]: commands beside a running push, and pushes
+ * cancelled while running or queued.
+ */
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [28])
+class AdbSessionTest {
+
+    companion object {
+        private const val PUSH_SIZE = 4 * 1024 * 1024
+    }
+
+    private val adbd = FakeAdbd()
+    private val events = LinkedBlockingQueue<AdbEvent>()
+    private val session = adbd.connect(events)
+    private val release = CountDownLatch(1)
+
+    @After
+    fun tearDown() {
+        release.countDown()
+        session.disconnect()
+        adbd.close()
+    }
+
+    /**
+     * [PUSH_SIZE] bytes, stopping halfway until [release] is counted down
+     */
+    private inner class HeldInput : InputStream() {
+        private var position = 0
+
+        override fun read(): Int = throw UnsupportedOperationException()
+
+        override fun read(b: ByteArray, off: Int, len: Int): Int {
+            if (position == PUSH_SIZE) {
+                return -1
+            }
+            if (position == PUSH_SIZE / 2) {
+                release.await(10, TimeUnit.SECONDS)
+            }
+            val count = minOf(len, PUSH_SIZE / 2 - position % (PUSH_SIZE / 2))
+            position += count
+            return count
+        }
+    }
+
+    /**
+     * @return the param of the next FILE_PUSHED, null if none comes within [timeoutMs]
+     */
+    private fun nextPushed(timeoutMs: Long = 10_000): Any? {
+        val deadline = System.currentTimeMillis() + timeoutMs
+        while (true) {
+            val event = events.poll(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS) ?: return null
+            if (event.eventType == AdbEventType.FILE_PUSHED) {
+                return event.param
+            }
+        }
+    }
+
+    private fun awaitPushing() {
+        val deadline = System.currentTimeMillis() + 10_000
+        while (adbd.pushedBytes.get() < PUSH_SIZE / 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10)
+        }
+        assertEquals(PUSH_SIZE / 2L, adbd.pushedBytes.get())
+    }
+
+    @Test
+    fun runsCommandsWhileAPushIsUnderWay() {
+        session.pushFile(HeldInput(), "/sdcard/movie.mp4", PUSH_SIZE.toLong())
+        awaitPushing()
+        assertTrue(session.busy)
+
+        val results = LinkedBlockingQueue<ShellResult>()
+        session.sendCommand("echo shell") { results.add(it) }
+        session.exec("echo exec; ret 3") { results.add(it) }
+        val first = results.poll(5, TimeUnit.SECONDS)
+        val second = results.poll(5, TimeUnit.SECONDS)
+        assertNotNull(first)
+        assertNotNull(second)
+        val byCommand = listOf(first!!, second!!).associateBy { it.command }
+        assertEquals("shell\r\n", byCommand["echo shell"]!!.output)
+        assertEquals(0, byCommand["echo shell"]!!.exitCode)
+        assertEquals("exec\n", byCommand["echo exec; ret 3"]!!.output)
+        assertEquals(3, byCommand["echo exec; ret 3"]!!.exitCode)
+        // the push is still waiting on its input
+        assertNull(events.firstOrNull { it.eventType == AdbEventType.FILE_PUSHED })
+
+        release.countDown()
+        assertEquals(true, nextPushed())
+        assertEquals(PUSH_SIZE.toLong(), adbd.pushedBytes.get())
+    }
+
+    @Test
+    fun cancelStopsTheRunningPushAndDropsQueuedOnes() {
+        session.pushFile(HeldInput(), "/sdcard/a.mp4", PUSH_SIZE.toLong())
+        session.pushFile(ByteArrayInputStream(ByteArray(1000)), "/sdcard/b.mp4", 1000)
+        session.pushFile(ByteArrayInputStream(ByteArray(1000)), "/sdcard/c.mp4", 1000)
+        awaitPushing()
+        session.cancelPush()
+        release.countDown()
+        assertEquals(false, nextPushed())
+        // the queued pushes are dropped without a word
+        assertNull(nextPushed(300))
+        assertEquals(1, adbd.pushes.get())
+        assertFalse(session.busy)
+
+        // pushes queued after the cancel go through, on a new sync stream
+        session.pushFile(ByteArrayInputStream(ByteArray(1000)), "/sdcard/d.mp4", 1000)
+        assertEquals(true, nextPushed())
+        assertEquals(2, adbd.pushes.get())
+        assertEquals(PUSH_SIZE / 2L + 1000, adbd.pushedBytes.get())
+    }
+}
@@ -0,0 +1,424 @@
+package remote.common.adb
+
+import com.cgutman.adblib.AdbCrypto
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.Closeable
+import java.io.DataInputStream
+import java.io.EOFException
+import java.io.IOException
+import java.io.OutputStream
+import java.net.InetAddress
+import java.net.ServerSocket
+import java.net.Socket
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.util.*
+import java.util.concurrent.BlockingQueue
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * adbd on a loopback port for one connection, without auth.
+ *
+ * `shell:` streams echo what is typed, as a pty does, and end lines with \r\n; `exec:` streams run
+ * the command line they are opened with and end lines with \n. Both understand the commands the
+ * tests type: `printf '<format>' [$?]`, `echo <text>`, `sleep <ms>`, `ret <code>`, `read -r _`
+ * and `big <bytes>`; anything else is not found. `sync:` streams take pushes, answering DONE with
+ * OKAY, or with FAIL and [failPush] when set, and count what arrives.
+ *
+ * @param okayDelayMicros how long each push WRTE waits for its OKAY, as over a slow link
+ */
+class FakeAdbd(private val maxData: Int = 1024 * 1024, private val okayDelayMicros: Long = 0) : Closeable {
+
+    companion object {
+        private const val A_CNXN = 0x4e584e43
+        private const val A_OPEN = 0x4e45504f
+        private const val A_OKAY = 0x59414b4f
+        private const val A_CLSE = 0x45534c43
+        private const val A_WRTE = 0x45545257
+        private const val HEADER_SIZE = 24
+        /**
+         * AdbConnection.open misses an OKAY arriving before it starts waiting
+         */
+        private const val OPEN_DELAY_MS = 20L
+        private const val RS = "\u001e"
+        private const val CONNECT_TIMEOUT_S = 5L
+
+        /**
+         * one key for every test, generating it takes a while
+         */
+        val crypto: AdbCrypto by lazy { AdbCrypto.generateAdbKeyPair { Base64.getEncoder().encodeToString(it) } }
+    }
+
+    private val server = ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"))
+    @Volatile
+    private var socket: Socket? = null
+    @Volatile
+    private var output: OutputStream? = null
+    private val streams = ConcurrentHashMap<Int, DeviceStream>()
+    private val streamIds = AtomicInteger()
+
+    val port: Int
+        get() = server.localPort
+
+    /**
+     * message to answer the DONE of pushes with, null to take them
+     */
+    @Volatile
+    var failPush: String? = null
+
+    /**
+     * pushes started with SEND
+     */
+    val pushes = AtomicInteger()
+
+    /**
+     * DATA bytes received over all pushes
+     */
+    val pushedBytes = AtomicLong()
+
+    /**
+     * exec streams opened
+     */
+    val execs = AtomicInteger()
+
+    init {
+        Thread({ serve() }, "fake_adbd_$port").apply {
+            isDaemon = true
+            start()
+        }
+    }
+
+    /**
+     * @return a session connected to this adbd, its events added to [events]
+     */
+    fun connect(events: BlockingQueue<AdbEvent>, maxExecStreams: Int = 4): AdbSession {
+        val session = AdbSession("127.0.0.1", port, crypto, { _, event -> events.add(event) }, maxExecStreams)
+        session.connect()
+        while (true) {
+            val event = events.poll(CONNECT_TIMEOUT_S, TimeUnit.SECONDS) ?: throw IOException("no CONNECTED from the session")
+            if (event.status == AdbStatus.CONNECTED) {
+                return session
+            }
+        }
+    }
+
+    override fun close() {
+        server.close()
+        socket?.close()
+    }
+
+    private fun serve() {
+        try {
+            val socket = server.accept()
+            this.socket = socket
+            socket.tcpNoDelay = true
+            output = BufferedOutputStream(socket.getOutputStream())
+            val input = DataInputStream(BufferedInputStream(socket.getInputStream(), 1024 * 1024))
+            val header = ByteArray(HEADER_SIZE)
+            while (true) {
+                input.readFully(header)
+                val fields = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN)
+                val command = fields.int
+                val arg0 = fields.int
+                val arg1 = fields.int
+                val payload = ByteArray(fields.int)
+                input.readFully(payload)
+                when (command) {
+                    A_CNXN -> send(A_CNXN, 0x01000000, maxData, "device::\u0000".toByteArray())
+                    A_OPEN -> open(arg0, String(payload, Charsets.UTF_8).trimEnd('\u0000'))
+                    A_WRTE -> streams[arg1]?.onWrite(payload)
+                    A_CLSE -> streams.remove(arg1)?.onClose()
+                }
+            }
+        } catch (e: EOFException) {
+        } catch (e: IOException) {
+        } finally {
+            for (stream in streams.values) {
+                stream.onClose()
+            }
+            streams.clear()
+        }
+    }
+
+    @Synchronized
+    private fun send(command: Int, arg0: Int, arg1: Int, payload: ByteArray = ByteArray(0)) {
+        val out = output ?: return
+        val packet = ByteBuffer.allocate(HEADER_SIZE + payload.size).order(ByteOrder.LITTLE_ENDIAN)
+        packet.putInt(command).putInt(arg0).putInt(arg1).putInt(payload.size)
+            .putInt(payload.sumOf { it.toInt() and 0xff }).putInt(command.inv()).put(payload)
+        try {
+            out.write(packet.array())
+            out.flush()
+        } catch (e: IOException) {
+            // the host went away, the reader sees it too
+        }
+    }
+
+    private fun open(remoteId: Int, destination: String) {
+        val id = streamIds.incrementAndGet()
+        val stream = when {
+            destination.startsWith("shell:") -> ShellStream(id, remoteId)
+            destination.startsWith("exec:") -> {
+                execs.incrementAndGet()
+                ExecStream(id, remoteId, destination.substring("exec:".length))
+            }
+            destination.startsWith("sync:") -> SyncStream(id, remoteId)
+            else -> {
+                send(A_CLSE, 0, remoteId)
+                return
+            }
+        }
+        streams[id] = stream
+        Thread({
+            Thread.sleep(OPEN_DELAY_MS)
+            send(A_OKAY, id, remoteId)
+            stream.onOpen()
+        }, "fake_adbd_open_$id").apply {
+            isDaemon = true
+            start()
+        }
+    }
+
+    private abstract inner class DeviceStream(val id: Int, val remoteId: Int) {
+        open fun onOpen() {
+        }
+
+        abstract fun onWrite(data: ByteArray)
+
+        open fun onClose() {
+        }
+
+        fun write(data: ByteArray) {
+            var offset = 0
+            while (offset < data.size) {
+                val count = minOf(maxData, data.size - offset)
+                send(A_WRTE, id, remoteId, data.copyOfRange(offset, offset + count))
+                offset += count
+            }
+        }
+
+        fun okay() = send(A_OKAY, id, remoteId)
+    }
+
+    /**
+     * runs command lines one statement at a time, holding their exit codes for `$?`
+     */
+    private inner class Interpreter(private val newline: String, private val flush: (String) -> Unit, private val readLine: () -> Boolean) {
+        private var last = 0
+
+        /**
+         * what the shell prints when it waits for a line, set with `PS1='<prompt>'`
+         */
+        var prompt = "$ "
+
+        /**
+         * @return false once a `read` found the input closed
+         */
+        fun run(line: String): Boolean {
+            val out = StringBuilder()
+            for (statement in line.split("; ")) {
+                val args = statement.trim().split(" ")
+                when (args[0]) {
+                    "printf" -> {
+                        val format = statement.substringAfter('\'').substringBefore('\'')
+                        out.append(format.replace("\\036", RS).replace("\\n", newline).replace("%d", last.toString()))
+                        last = 0
+                    }
+                    "echo" -> {
+                        out.append(statement.substringAfter("echo ")).append(newline)
+                        last = 0
+                    }
+                    "ret" -> last = args[1].toInt()
+                    "set", "PS2=''" -> last = 0
+                    "sleep" -> {
+                        flush(out.toString())
+                        out.setLength(0)
+                        Thread.sleep(args[1].toLong())
+                        last = 0
+                    }
+                    "read" -> {
+                        flush(out.toString())
+                        out.setLength(0)
+                        if (!readLine()) {
+                            return false
+                        }
+                        last = 0
+                    }
+                    "big" -> {
+                        val line = "x".repeat(49) + newline
+                        repeat(args[1].toInt() / line.length) { out.append(line) }
+                        last = 0
+                    }
+                    else -> if (statement.startsWith("PS1=")) {
+                        prompt = statement.substringAfter('\'').substringBefore('\'')
+                        last = 0
+                    } else {
+                        out.append("sh: ${args[0]}: not found").append(newline)
+                        last = 127
+                    }
+                }
+            }
+            flush(out.toString())
+            return true
+        }
+    }
+
+    private inner class ShellStream(id: Int, remoteId: Int) : DeviceStream(id, remoteId) {
+        private val typed = StringBuilder()
+        private val lines = LinkedBlockingQueue<String>()
+        private val interpreter = Interpreter("\r\n", { if (it.isNotEmpty()) write(it.toByteArray(Charsets.ISO_8859_1)) }, { true })
+        private val worker = Thread({
+            while (streams.containsKey(id)) {
+                try {
+                    interpreter.run(lines.take())
+                    write(interpreter.prompt.toByteArray())
+                } catch (e: InterruptedException) {
+                    // ^C, or the stream closed
+                    if (streams.containsKey(id)) {
+                        write("^C\r\n${interpreter.prompt}".toByteArray())
+                    }
+                }
+            }
+        }, "fake_adbd_shell_$id").apply { isDaemon = true }
+
+        override fun onOpen() {
+            worker.start()
+        }
+
+        override fun onWrite(data: ByteArray) {
+            okay()
+            // the pty echoes typeahead as it arrives
+            write(String(data, Charsets.ISO_8859_1).replace("\n", "\r\n").replace("\u0003", "").toByteArray(Charsets.ISO_8859_1))
+            for (b in data) {
+                when (b) {
+                    0x03.toByte() -> {
+                        typed.setLength(0)
+                        lines.clear()
+                        worker.interrupt()
+                    }
+                    '\n'.toByte() -> {
+                        lines.add(typed.toString())
+                        typed.setLength(0)
+                    }
+                    else -> typed.append((b.toInt() and 0xff).toChar())
+                }
+            }
+        }
+
+        override fun onClose() {
+            worker.interrupt()
+        }
+    }
+
+    private inner class ExecStream(id: Int, remoteId: Int, private val commandLine: String) : DeviceStream(id, remoteId) {
+        /**
+         * lines of input, an empty string once the host closed the stream
+         */
+        private val input = LinkedBlockingQueue<String>()
+        private val pending = StringBuilder()
+
+        override fun onOpen() {
+            Thread({
+                val interpreter = Interpreter("\n", { if (it.isNotEmpty()) write(it.toByteArray(Charsets.ISO_8859_1)) }, { input.take().isNotEmpty() })
+                try {
+                    for (line in commandLine.split('\n')) {
+                        if (!interpreter.run(line)) {
+                            break
+                        }
+                    }
+                } catch (e: InterruptedException) {
+                }
+                if (streams.remove(id) != null) {
+                    send(A_CLSE, id, remoteId)
+                }
+            }, "fake_adbd_exec_$id").apply {
+                isDaemon = true
+                start()
+            }
+        }
+
+        override fun onWrite(data: ByteArray) {
+            okay()
+            for (b in data) {
+                if (b == '\n'.toByte()) {
+                    input.add(pending.toString() + "\n")
+                    pending.setLength(0)
+                } else {
+                    pending.append((b.toInt() and 0xff).toChar())
+                }
+            }
+        }
+
+        override fun onClose() {
+            input.add("")
+        }
+    }
+
+    private inner class SyncStream(id: Int, remoteId: Int) : DeviceStream(id, remoteId) {
+        private var pending = ByteArray(0)
+        private var dataLeft = 0
+
+        override fun onWrite(data: ByteArray) {
+            if (okayDelayMicros > 0) {
+                LockSupport.parkNanos(okayDelayMicros * 1000)
+            }
+            okay()
+            val buffer = pending + data
+            var i = 0
+            while (true) {
+                if (dataLeft > 0) {
+                    val count = minOf(dataLeft, buffer.size - i)
+                    dataLeft -= count
+                    pushedBytes.addAndGet(count.toLong())
+                    i += count
+                    if (dataLeft > 0) {
+                        break
+                    }
+                    continue
+                }
+                if (buffer.size - i < 8) {
+                    break
+                }
+                val request = String(buffer, i, 4, Charsets.US_ASCII)
+                val length = ByteBuffer.wrap(buffer, i + 4, 4).order(ByteOrder.LITTLE_ENDIAN).int
+                when (request) {
+                    "SEND" -> {
+                        if (buffer.size - i < 8 + length) {
+                            break
+                        }
+                        pushes.incrementAndGet()
+                        i += 8 + length
+                    }
+                    "DATA" -> {
+                        i += 8
+                        dataLeft = length
+                    }
+                    "DONE" -> {
+                        i += 8
+                        done()
+                    }
+                    "QUIT" -> i += 8
+                    else -> throw IllegalStateException("bad sync request $request")
+                }
+            }
+            pending = buffer.copyOfRange(i, buffer.size)
+        }
+
+        private fun done() {
+            val failure = failPush
+            if (failure == null) {
+                write(byteArrayOf('O'.toByte(), 'K'.toByte(), 'A'.toByte(), 'Y'.toByte(), 0, 0, 0, 0))
+                return
+            }
+            val message = failure.toByteArray()
+            val status = ByteBuffer.allocate(8 + message.size).order(ByteOrder.LITTLE_ENDIAN)
+            write(status.put("FAIL".toByteArray()).putInt(message.size).put(message).array())
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package remote.common.adb
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Assert.fail
+import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.io.InputStream
+import java.util.*
+
+class PushChunkRingTest {
+
+    companion object {
+        private const val PAYLOAD = 1000
+        private const val BUFFERS = 3
+    }
+
+    /**
+     * input returning at most [step] bytes per read, like a socket or a content provider
+     */
+    private class TrickleInputStream(private val content: ByteArray, private val step: Int, private val failAt: Int = -1) : InputStream() {
+        private var position = 0
+
+        override fun read(): Int {
+            val one = ByteArray(1)
+            return if (read(one, 0, 1) < 0) -1 else one[0].toInt() and 0xff
+        }
+
+        override fun read(b: ByteArray, off: Int, len: Int): Int {
+            if (failAt in 0..position) {
+                throw IOException("read failed at $position")
+            }
+            if (position == content.size) {
+                return -1
+            }
+            val count = minOf(len, step, content.size - position)
+            System.arraycopy(content, position, b, off, count)
+            position += count
+            return count
+        }
+    }
+
+    /**
+     * take every chunk, checking its header, and put the payloads back together
+     * @param buffers identities of the arrays the chunks came in
+     */
+    private fun drain(ring: PushChunkRing, buffers: MutableSet<ByteArray>): ByteArray {
+        val out = ByteArrayOutputStream()
+        while (true) {
+            val chunk = ring.take()
+            buffers.add(chunk.data)
+            assertEquals("DATA", String(chunk.data, 0, 4, Charsets.US_ASCII))
+            assertEquals(chunk.length, header(chunk.data))
+            out.write(chunk.data, PushChunkRing.HEADER_SIZE, chunk.length)
+            if (chunk.length < ring.payloadSize) {
+                return out.toByteArray()
+            }
+            ring.recycle(chunk)
+        }
+    }
+
+    private fun header(data: ByteArray): Int {
+        return (data[4].toInt() and 0xff) or (data[5].toInt() and 0xff shl 8) or
+                (data[6].toInt() and 0xff shl 16) or (data[7].toInt() and 0xff shl 24)
+    }
+
+    private fun content(size: Int) = ByteArray(size) { (it * 31 + it / 1000).toByte() }
+
+    @Test
+    fun keepsTheInputOrder() {
+        val content = content(10 * PAYLOAD + 500)
+        val ring = PushChunkRing(TrickleInputStream(content, 77), PAYLOAD, BUFFERS)
+        ring.start("test_push_reader")
+        val buffers = Collections.newSetFromMap(IdentityHashMap<ByteArray, Boolean>())
+        assertArrayEquals(content, drain(ring, buffers))
+        ring.close()
+    }
+
+    @Test
+    fun reusesItsBuffers() {
+        val content = content(50 * PAYLOAD)
+        val ring = PushChunkRing(ByteArrayInputStream(content), PAYLOAD, BUFFERS)
+        ring.start("test_push_reader")
+        val buffers = Collections.newSetFromMap(IdentityHashMap<ByteArray, Boolean>())
+        // an input of whole chunks ends with an empty one
+        assertArrayEquals(content, drain(ring, buffers))
+        assertEquals(BUFFERS, buffers.size)
+        ring.close()
+    }
+
+    @Test
+    fun readsAheadOnlyAsFarAsTheRing() {
+        val content = content(20 * PAYLOAD)
+        val input = ByteArrayInputStream(content)
+        val ring = PushChunkRing(input, PAYLOAD, BUFFERS)
+        ring.start("test_push_reader")
+        val first = ring.take()
+        Thread.sleep(200)
+        // the taken chunk and the ones waiting fill the ring
+        assertEquals(content.size - BUFFERS * PAYLOAD, input.available())
+        // each chunk handed back is filled again
+        ring.recycle(first)
+        Thread.sleep(200)
+        assertEquals(content.size - (BUFFERS + 1) * PAYLOAD, input.available())
+        ring.close()
+    }
+
+    @Test
+    fun reportsReadErrorsInOrder() {
+        val content = content(10 * PAYLOAD)
+        val ring = PushChunkRing(TrickleInputStream(content, 7, 2 * PAYLOAD + 10), PAYLOAD, BUFFERS)
+        ring.start("test_push_reader")
+        for (i in 0 until 2) {
+            val chunk = ring.take()
+            assertArrayEquals(content.copyOfRange(i * PAYLOAD, (i + 1) * PAYLOAD),
+                chunk.data.copyOfRange(PushChunkRing.HEADER_SIZE, PushChunkRing.HEADER_SIZE + PAYLOAD))
+            ring.recycle(chunk)
+        }
+        try {
+            ring.take()
+            fail("the read error must surface")
+        } catch (e: IOException) {
+            assertTrue(e.message!!.contains("read failed"))
+        }
+        ring.close()
+    }
+}
@@ -0,0 +1,163 @@
+package remote.common.adb
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Assert.fail
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+
+class ShellOutputParserTest {
+
+    companion object {
+        private const val RS = "\u001e"
+        private const val PROMPT = "shell@tv:/ $ "
+    }
+
+    /**
+     * events as text, output of consecutive calls merged
+     */
+    private class Recorder : ShellOutputParser.Listener {
+        val events = ArrayList<String>()
+        private val output = ByteArrayOutputStream()
+        private var outputId = -1
+
+        override fun onStart(id: Int) {
+            flush()
+            events.add("start $id")
+        }
+
+        override fun onOutput(id: Int, data: ByteArray, offset: Int, length: Int) {
+            if (id != outputId) {
+                flush()
+                outputId = id
+            }
+            output.write(data, offset, length)
+        }
+
+        override fun onEnd(id: Int, exitCode: Int) {
+            flush()
+            events.add("end $id $exitCode")
+        }
+
+        fun flush() {
+            if (output.size() > 0) {
+                events.add("output $outputId ${String(output.toByteArray(), Charsets.ISO_8859_1)}")
+                output.reset()
+            }
+        }
+    }
+
+    /**
+     * what the pty sends back for a typed command: the echo of its lines, the markers around the
+     * output, the prompt
+     */
+    private fun session(id: Int, command: String, output: String, exitCode: Int = 0): String {
+        val echo = ShellOutputParser.wrap(id, command).replace("\n", "\r\n")
+        return echo + "${RS}B$id$RS\r\n" + output + "${RS}E$id:$exitCode$RS\r\n" + PROMPT
+    }
+
+    private fun assertRejected(command: String) {
+        try {
+            ShellOutputParser.wrap(1, command)
+            fail("accepted: $command")
+        } catch (e: IllegalArgumentException) {
+        }
+    }
+
+    private fun parse(text: String, pieceSize: Int = text.length): List<String> {
+        val recorder = Recorder()
+        val parser = ShellOutputParser(recorder)
+        val bytes = text.toByteArray(Charsets.ISO_8859_1)
+        // reuse one buffer, as the shell reader does
+        val buffer = ByteArray(pieceSize + 3)
+        var i = 0
+        while (i < bytes.size) {
+            val count = minOf(pieceSize, bytes.size - i)
+            System.arraycopy(bytes, i, buffer, 0, count)
+            parser.feed(buffer, count)
+            i += count
+        }
+        recorder.flush()
+        return recorder.events
+    }
+
+    @Test
+    fun wrapsCommandsInMarkers() {
+        assertEquals("printf '\\036B7\\036\\n'; ls -l;\nprintf '\\036E7:%d\\036\\n' \$?\n", ShellOutputParser.wrap(7, " ls -l; "))
+        assertEquals("printf '\\036B8\\036\\n'; sleep 5 &\nprintf '\\036E8:%d\\036\\n' \$?\n", ShellOutputParser.wrap(8, "sleep 5 &"))
+        // the typed line holds no RS byte, so its echo can't pass for a marker
+        assertFalse(ShellOutputParser.wrap(9, "ls").contains(RS))
+    }
+
+    @Test
+    fun reportsOutputBetweenTheMarkers() {
+        val events = parse(PROMPT + session(3, "ls", "a.mp4\r\nb.mp4\r\n") + session(4, "false", "", 1))
+        assertEquals(listOf("start 3", "output 3 a.mp4\r\nb.mp4\r\n", "end 3 0", "start 4", "end 4 1"), events)
+    }
+
+    @Test
+    fun keepsMarkersSplitAcrossPackets() {
+        val text = session(12, "cat list", "first\r\nsecond\r\n", 127) + session(13, "echo", "\r\n")
+        val expected = listOf("start 12", "output 12 first\r\nsecond\r\n", "end 12 127", "start 13", "output 13 \r\n", "end 13 0")
+        for (pieceSize in listOf(1, 2, 3, 5, 8, 13)) {
+            assertEquals("pieces of $pieceSize", expected, parse(text, pieceSize))
+        }
+    }
+
+    @Test
+    fun passesOnRsBytesThatArentMarkers() {
+        val output = "x${RS}y${RS}z\r\n${RS}Bad:1$RS\r\n$RS" + "0123456789".repeat(3) + "\r\n"
+        for (pieceSize in listOf(1, 7, 1000)) {
+            assertEquals(listOf("start 5", "output 5 $output", "end 5 0"), parse(session(5, "cat raw", output), pieceSize))
+        }
+    }
+
+    @Test
+    fun dropsOutputAfterReset() {
+        val recorder = Recorder()
+        val parser = ShellOutputParser(recorder)
+        parser.feed("${RS}B1$RS\r\npartial".toByteArray())
+        parser.reset()
+        // the rest of the interrupted command, then the next one
+        parser.feed("more\r\n^C\r\n$PROMPT".toByteArray())
+        parser.feed(session(2, "ls", "ok\r\n").toByteArray())
+        recorder.flush()
+        assertEquals(listOf("start 1", "output 1 partial", "start 2", "output 2 ok\r\n", "end 2 0"), recorder.events)
+    }
+
+    @Test
+    fun keepsTheEndMarkerOutOfComments() {
+        val typed = ShellOutputParser.wrap(3, "ls /sdcard # it's the list")
+        assertTrue(typed.endsWith("list\nprintf '\\036E3:%d\\036\\n' \$?\n"))
+        // quotes in a comment don't count, a # inside a word isn't one
+        ShellOutputParser.wrap(4, "echo a#'b'  # don't\nls")
+        assertRejected("echo a#'b")
+    }
+
+    @Test
+    fun rejectsCommandsLeftOpen() {
+        assertRejected("echo 'unterminated")
+        assertRejected("echo \"unterminated")
+        assertRejected("echo \"escaped \\\"")
+        assertRejected("ls \\")
+        assertRejected("ls |")
+        assertRejected("true &&")
+        assertRejected("cat <<EOF\nno end")
+        assertRejected("cat <<-'END'\nbody\n  END")
+        // closed ones pass
+        ShellOutputParser.wrap(5, "echo 'it'\\''s' \"say \\\"hi\\\"\" \\'")
+        ShellOutputParser.wrap(6, "cat <<< 'word' | wc -c")
+    }
+
+    @Test
+    fun typesMultiLineCommands() {
+        for (command in listOf("cd /sdcard\nls", "cat > a.txt <<EOF\nline 'one\nEOF\ncat a.txt",
+                "cat <<-\\END <<\"TWO\"\n\tbody\n\tEND\nsecond\nTWO")) {
+            val typed = ShellOutputParser.wrap(9, command)
+            assertTrue(typed, typed.contains("; $command\nprintf '\\036E9"))
+        }
+        val events = parse(session(9, "cd /sdcard\nls", "a.mp4\r\n"))
+        assertEquals(listOf("start 9", "output 9 a.mp4\r\n", "end 9 0"), events)
+    }
+}
@@ -0,0 +1,104 @@
+package remote.common.media
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+import java.nio.channels.Channels
+
+class BlockCacheTest {
+
+    companion object {
+        private const val BLOCK = BlockCache.BLOCK_SIZE
+    }
+
+    private val source = CountingSource(ByteArray(64 * BLOCK) { (it / 7 + it % 13).toByte() }, "BlockCacheTest")
+
+    private fun transfer(cache: BlockCache, position: Long, count: Long): ByteArray {
+        val out = ByteArrayOutputStream()
+        source.open().use { reader ->
+            assertEquals(count, cache.transfer(source.key, reader, source.length, position, count, Channels.newChannel(out)))
+        }
+        return out.toByteArray()
+    }
+
+    private fun assertRegion(cache: BlockCache, position: Long, count: Long) {
+        val expected = source.content.copyOfRange(position.toInt(), (position + count).toInt())
+        assertArrayEquals(expected, transfer(cache, position, count))
+    }
+
+    @Test
+    fun sendsTheRequestedBytesWhetherCachedOrNot() {
+        val cache = BlockCache(8L * BLOCK)
+        for (round in 0 until 3) {
+            assertRegion(cache, 0, 3L * BLOCK + 5)
+            assertRegion(cache, 10L * BLOCK - 100, 2L * BLOCK + 200)
+            assertRegion(cache, source.length - BLOCK - 1, BLOCK + 1L)
+        }
+    }
+
+    @Test
+    fun admitsHeaderAndTailBlocksOnTheFirstMiss() {
+        val cache = BlockCache(8L * BLOCK)
+        transfer(cache, 0, 1000)
+        transfer(cache, source.length - 1000, 1000)
+        assertEquals(2L * BLOCK, source.bytesRead.get())
+        assertEquals(0L, source.bytesTransferred.get())
+
+        transfer(cache, 100, 1000)
+        transfer(cache, source.length - 500, 500)
+        assertEquals(2L, cache.hitCount)
+        assertEquals(2L * BLOCK, source.bytesRead.get())
+    }
+
+    @Test
+    fun admitsOtherBlocksOnTheSecondMiss() {
+        val cache = BlockCache(8L * BLOCK)
+        val middle = 20L * BLOCK
+        transfer(cache, middle, 1000)
+        // sent from the source, only remembered
+        assertEquals(0L, source.bytesRead.get())
+        assertEquals(1000L, source.bytesTransferred.get())
+
+        transfer(cache, middle, 1000)
+        assertEquals(BLOCK.toLong(), source.bytesRead.get())
+        transfer(cache, middle + 5000, 1000)
+        assertEquals(1L, cache.hitCount)
+        assertEquals(BLOCK.toLong(), source.bytesRead.get())
+    }
+
+    @Test
+    fun aSequentialPassDoesNotFlushTheHeader() {
+        val cache = BlockCache(4L * BLOCK)
+        transfer(cache, 0, 1000)
+        // one pass over the middle of the file, in request sized pieces
+        var position = 8L * BLOCK
+        while (position < 40L * BLOCK) {
+            transfer(cache, position, 64 * 1024)
+            position += 64 * 1024
+        }
+        assertEquals(0L, cache.evictionCount)
+        val hits = cache.hitCount
+        transfer(cache, 0, 1000)
+        assertEquals(hits + 1, cache.hitCount)
+    }
+
+    @Test
+    fun evictsProbationBlocksBeforeProtectedOnes() {
+        val cache = BlockCache(4L * BLOCK)
+        transfer(cache, 0, 1000)
+        // requested twice each, five middle blocks compete for the three free slots
+        for (index in 20L until 25L) {
+            transfer(cache, index * BLOCK, 1000)
+            transfer(cache, index * BLOCK, 1000)
+        }
+        assertEquals(2L, cache.evictionCount)
+        val hits = cache.hitCount
+        transfer(cache, 0, 1000)
+        transfer(cache, 24L * BLOCK, 1000)
+        assertEquals(hits + 2, cache.hitCount)
+        // the eldest middle block was evicted
+        transfer(cache, 20L * BLOCK, 1000)
+        assertEquals(hits + 2, cache.hitCount)
+    }
+}
@@ -0,0 +1,108 @@
+package remote.common.media
+
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import java.net.Socket
+import java.nio.ByteBuffer
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+class BoundedAsyncRunnerTest {
+
+    companion object {
+        /**
+         * workers plus queued connections of the server's default runner
+         */
+        private const val CAPACITY = 8 + 32
+    }
+
+    private lateinit var server: StreamWebServer
+    private val idle = ArrayList<Socket>()
+
+    @Before
+    fun setUp() {
+        server = StreamWebServer(port = 0)
+        server.start()
+    }
+
+    @After
+    fun tearDown() {
+        idle.forEach { it.close() }
+        server.stop()
+    }
+
+    private fun awaitHeld(count: Int) {
+        val deadline = System.currentTimeMillis() + 5000
+        while (server.workers.activeCount + server.workers.queuedCount < count) {
+            check(System.currentTimeMillis() < deadline) { "only ${server.workers.activeCount + server.workers.queuedCount} connections held" }
+            Thread.sleep(10)
+        }
+    }
+
+    @Test
+    fun turnsAwayConnectionsBeyondThePoolWith503() {
+        // idle keep-alive connections each hold a worker or a queue slot
+        repeat(CAPACITY) { idle.add(Socket("127.0.0.1", server.listeningPort)) }
+        awaitHeld(CAPACITY)
+
+        TestHttp(server.listeningPort).use { http ->
+            val reply = http.receive()
+            assertEquals(503, reply.status)
+            assertEquals("1", reply.header("Retry-After"))
+            assertEquals("close", reply.header("Connection"))
+        }
+        assertEquals(1L, server.workers.rejectedCount)
+    }
+
+    @Test
+    fun servesAgainOnceConnectionsClose() {
+        val path = server.publish(MemorySource("a.txt", "BoundedAsyncRunnerTest/a", ByteBuffer.wrap("hello".toByteArray())))
+        repeat(CAPACITY) { idle.add(Socket("127.0.0.1", server.listeningPort)) }
+        awaitHeld(CAPACITY)
+        idle.forEach { it.close() }
+        idle.clear()
+
+        val deadline = System.currentTimeMillis() + 5000
+        while (server.workers.activeCount + server.workers.queuedCount > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10)
+        }
+        TestHttp(server.listeningPort).use { http ->
+            val reply = http.request("GET", path)
+            assertEquals(200, reply.status)
+            assertArrayEquals("hello".toByteArray(), reply.body)
+        }
+        assertEquals(0L, server.workers.rejectedCount)
+    }
+
+    @Test
+    fun servesHundredsOfRangeRequestsAtCapacity() {
+        val content = ByteArray(4 * 1024 * 1024) { (it * 13 + it / 4093).toByte() }
+        val path = server.publish(MemorySource("movie.mp4", "BoundedAsyncRunnerTest/movie", ByteBuffer.wrap(content)))
+        val clients = Executors.newFixedThreadPool(CAPACITY)
+        // as many keep-alive connections as the pool and its queue hold, 400 requests in all
+        val results = (0 until CAPACITY).map { client ->
+            clients.submit<Int> {
+                TestHttp(server.listeningPort).use { http ->
+                    var served = 0
+                    for (i in 0 until 10) {
+                        val start = (client * 104_729L + i * 65_537L) % (content.size - 200_000)
+                        val reply = http.request("GET", path, mapOf("Range" to "bytes=$start-${start + 199_999}"))
+                        assertEquals(206, reply.status)
+                        assertArrayEquals(content.copyOfRange(start.toInt(), start.toInt() + 200_000), reply.body)
+                        served++
+                    }
+                    served
+                }
+            }
+        }
+        assertEquals(CAPACITY * 10, results.sumOf { it.get(60, TimeUnit.SECONDS) })
+        clients.shutdown()
+        assertEquals(0L, server.workers.rejectedCount)
+        val workers = Thread.getAllStackTraces().keys.count { it.name.matches(Regex("StreamWebServer-\\d+")) }
+        assertTrue("$workers workers", workers <= 8)
+    }
+}
@@ -0,0 +1,93 @@
+package remote.common.media
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Test
+import java.nio.ByteBuffer
+
+class ByteRangeTest {
+
+    private fun ranges(value: String, length: Long = 10_000): String? {
+        return ByteRange.parseList(value, length)?.joinToString(",")
+    }
+
+    @Test
+    fun parsesSpecs() {
+        assertEquals("0-499", ByteRange.parseSpec("0-499", 10_000).toString())
+        assertEquals("9500-9999", ByteRange.parseSpec("9500-", 10_000).toString())
+        assertEquals("9500-9999", ByteRange.parseSpec("-500", 10_000).toString())
+        // clamped to the resource
+        assertEquals("9000-9999", ByteRange.parseSpec("9000-20000", 10_000).toString())
+        assertEquals("0-9999", ByteRange.parseSpec("-20000", 10_000).toString())
+        assertEquals(500L, ByteRange.parseSpec(" 0 - 499 ", 10_000)?.length)
+    }
+
+    @Test
+    fun rejectsUnsatisfiableSpecs() {
+        assertNull(ByteRange.parseSpec("10000-", 10_000))
+        assertNull(ByteRange.parseSpec("500-100", 10_000))
+        assertNull(ByteRange.parseSpec("-0", 10_000))
+        assertNull(ByteRange.parseSpec("0-10", 0))
+        assertNull(ByteRange.parseSpec("a-b", 10_000))
+    }
+
+    @Test
+    fun coalescesOverlappingAndNearbyRanges() {
+        assertEquals("0-199", ranges("100-199,0-99"))
+        assertEquals("0-300", ranges("0-200,100-300"))
+        // 80 bytes apart or less is cheaper to send than another part
+        assertEquals("0-280", ranges("0-99,180-280"))
+        assertEquals("0-99,181-280", ranges("0-99,181-280"))
+        assertEquals("0-99,9500-9999", ranges("-500,0-99"))
+        assertEquals("0-9999", ranges("0-,100-200"))
+    }
+
+    @Test
+    fun dropsUnsatisfiableRangesFromAList() {
+        assertEquals("0-99", ranges("0-99,20000-30000"))
+        assertEquals("", ranges("20000-30000"))
+        assertEquals("0-99", ranges("0-99,,"))
+    }
+
+    @Test
+    fun rejectsMalformedLists() {
+        assertNull(ranges("0-99,100"))
+        assertNull(ranges("bogus"))
+    }
+
+    private fun withServer(content: ByteArray, test: (TestHttp, String) -> Unit) {
+        val server = StreamWebServer(port = 0)
+        server.start()
+        try {
+            val path = server.publish(MemorySource("clip.mp4", "ByteRangeTest/${content.size}", ByteBuffer.wrap(content)))
+            TestHttp(server.listeningPort).use { test(it, path) }
+        } finally {
+            server.stop()
+        }
+    }
+
+    @Test
+    fun sendsCoalescedRangesAsOneExactRegion() {
+        val content = ByteArray(100_000) { (it % 253).toByte() }
+        withServer(content) { http, path ->
+            val reply = http.request("GET", path, mapOf("Range" to "bytes=40000-49999,45000-59999"))
+            assertEquals(206, reply.status)
+            assertEquals("bytes 40000-59999/100000", reply.header("Content-Range"))
+            assertEquals("20000", reply.header("Content-Length"))
+            assertNull(reply.header("Transfer-Encoding"))
+            assertArrayEquals(content.copyOfRange(40_000, 60_000), reply.body)
+            // nothing was written past the region: the next reply starts right after it
+            assertEquals(206, http.request("GET", path, mapOf("Range" to "bytes=0-0")).status)
+        }
+    }
+
+    @Test
+    fun answersUnsatisfiableRangesWith416() {
+        withServer(ByteArray(1000)) { http, path ->
+            val reply = http.request("GET", path, mapOf("Range" to "bytes=5000-6000"))
+            assertEquals(416, reply.status)
+            assertEquals("bytes */1000", reply.header("Content-Range"))
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package remote.common.media
+
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.ByteArrayOutputStream
+import java.io.Closeable
+import java.io.File
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.Channels
+
+/**
+ * [ChannelSource.fromDescriptor] over a descriptor of a temp file standing in for the one a
+ * ContentResolver hands out, which a JVM test can't open.
+ */
+class ChannelSourceTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private lateinit var file: File
+    private lateinit var content: ByteArray
+    private lateinit var descriptor: RandomAccessFile
+    private var ownerClosed = false
+    private lateinit var source: ChannelSource
+
+    @Before
+    fun setUp() {
+        content = ByteArray(256 * 1024) { (it * 31 + it / 251).toByte() }
+        file = folder.newFile("picked.mp4")
+        file.writeBytes(content)
+        descriptor = RandomAccessFile(file, "r")
+        val owner = Closeable {
+            ownerClosed = true
+            descriptor.close()
+        }
+        source = ChannelSource.fromFileDescriptor("picked.mp4", "content://media/external/video/1", descriptor.fd, owner)
+    }
+
+    @After
+    fun tearDown() {
+        source.close()
+    }
+
+    private fun read(reader: MediaSource.Reader, position: Long, count: Int): ByteArray {
+        val buffer = ByteBuffer.allocate(count)
+        while (buffer.hasRemaining()) {
+            if (reader.read(buffer, position + buffer.position()) < 0) {
+                break
+            }
+        }
+        return buffer.array().copyOf(buffer.position())
+    }
+
+    @Test
+    fun readersShareTheDescriptorWithoutSharingAPosition() {
+        val first = source.open()
+        val second = source.open()
+        for (step in 0 until 16) {
+            val a = step * 8192L
+            val b = content.size - (step + 1) * 8192L
+            assertArrayEquals(content.copyOfRange(a.toInt(), a.toInt() + 8192), read(first, a, 8192))
+            assertArrayEquals(content.copyOfRange(b.toInt(), b.toInt() + 8192), read(second, b, 8192))
+        }
+        first.close()
+        second.close()
+        // closing a reader leaves the shared descriptor open
+        assertTrue(source.exists())
+        assertFalse(ownerClosed)
+    }
+
+    @Test
+    fun transfersARegion() {
+        val out = ByteArrayOutputStream()
+        source.open().use { reader ->
+            assertEquals(100_000L, reader.transferTo(12_345, 100_000, Channels.newChannel(out)))
+        }
+        assertArrayEquals(content.copyOfRange(12_345, 112_345), out.toByteArray())
+    }
+
+    @Test
+    fun readsEndAtTheContentLength() {
+        assertEquals(content.size.toLong(), source.length)
+        source.open().use { reader ->
+            assertEquals(-1, reader.read(ByteBuffer.allocate(16), source.length))
+            assertEquals(10, read(reader, source.length - 10, 16).size)
+        }
+    }
+
+    @Test
+    fun closingTheSourceClosesTheDescriptor() {
+        source.close()
+        assertTrue(ownerClosed)
+        assertFalse(source.exists())
+    }
+
+    @Test
+    fun publishedEntryRevalidatesTheDescriptor() {
+        val entry = MediaRegistry.Entry(source, MediaRegistry.PATH_PREFIX + "token/picked.mp4")
+        val eTag = entry.metadata.validator.eTag
+        assertEquals("video/mp4", entry.mimeType)
+
+        RandomAccessFile(file, "rw").use { it.seek(content.size.toLong()); it.write(ByteArray(4096)) }
+        // unchanged until the last check is stale
+        assertTrue(entry.refresh())
+        assertEquals(eTag, entry.metadata.validator.eTag)
+        Thread.sleep(1100)
+        assertTrue(entry.refresh())
+        assertEquals(content.size + 4096L, entry.metadata.validator.length)
+        assertNotEquals(eTag, entry.metadata.validator.eTag)
+
+        source.close()
+        Thread.sleep(1100)
+        assertFalse(entry.refresh())
+    }
+}
@@ -0,0 +1,186 @@
+package remote.common.media
+
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.nio.ByteBuffer
+import java.util.Random
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.zip.GZIPInputStream
+
+/**
+ * Accept-Encoding negotiation, the in-memory cache of [CompressedVariants], and gzip bodies as the
+ * server sends them.
+ */
+class CompressedVariantsTest {
+
+    private val server = StreamWebServer(port = 0)
+    private val opens = AtomicInteger()
+
+    @After
+    fun tearDown() {
+        server.stop()
+    }
+
+    private fun page(length: Int) = ByteArray(length) { "<p>hello</p>\n"[it % 13].toByte() }
+
+    /**
+     * [content] counting opens, each waiting for [release] first
+     */
+    private fun source(key: String, content: ByteArray, release: CountDownLatch? = null) = object : MediaSource {
+        private val inner = MemorySource("page.html", "CompressedVariantsTest/$key", ByteBuffer.wrap(content), 1000)
+
+        override val name: String
+            get() = inner.name
+
+        override val key: String
+            get() = inner.key
+
+        override val length: Long
+            get() = inner.length
+
+        override val lastModified: Long
+            get() = inner.lastModified
+
+        override fun open(): MediaSource.Reader {
+            opens.incrementAndGet()
+            release?.await(5, TimeUnit.SECONDS)
+            return inner.open()
+        }
+    }
+
+    private fun gunzip(bytes: ByteArray) = GZIPInputStream(ByteArrayInputStream(bytes)).use { it.readBytes() }
+
+    private fun bytesServed() = Regex("\"bytesServed\":(\\d+)").find(server.stats.toJson())!!.groupValues[1].toLong()
+
+    @Test
+    fun negotiatesGzipFromAcceptEncoding() {
+        assertTrue(CompressedVariants.acceptsGzip("gzip"))
+        assertTrue(CompressedVariants.acceptsGzip("x-gzip"))
+        assertTrue(CompressedVariants.acceptsGzip("deflate, GZIP;q=0.5"))
+        assertTrue(CompressedVariants.acceptsGzip("*"))
+        assertTrue(CompressedVariants.acceptsGzip("br, *;q=0.1"))
+        assertFalse(CompressedVariants.acceptsGzip("gzip;q=0"))
+        assertFalse(CompressedVariants.acceptsGzip("gzip; q=0.000"))
+        assertFalse(CompressedVariants.acceptsGzip("*;q=0"))
+        // gzip listed explicitly wins over the wildcard, either way round
+        assertFalse(CompressedVariants.acceptsGzip("gzip;q=0, *"))
+        assertTrue(CompressedVariants.acceptsGzip("*;q=0, gzip"))
+        assertFalse(CompressedVariants.acceptsGzip("identity"))
+        assertFalse(CompressedVariants.acceptsGzip(""))
+        assertFalse(CompressedVariants.acceptsGzip(null))
+    }
+
+    @Test
+    fun compressesOnceForConcurrentRequests() {
+        val variants = CompressedVariants()
+        val content = page(100_000)
+        val release = CountDownLatch(1)
+        val source = source("shared", content, release)
+        val pool = Executors.newFixedThreadPool(8)
+        val results = (0 until 8).map { pool.submit<ByteArray?> { variants.get("shared", source, source.length) } }
+        Thread.sleep(200)
+        release.countDown()
+        val first = results[0].get(5, TimeUnit.SECONDS)!!
+        for (result in results) {
+            assertSame(first, result.get(5, TimeUnit.SECONDS))
+        }
+        pool.shutdown()
+        assertEquals(1, opens.get())
+        assertArrayEquals(content, gunzip(first))
+
+        // and not again once cached
+        assertSame(first, variants.get("shared", source, source.length))
+        assertEquals(1, opens.get())
+    }
+
+    @Test
+    fun keepsOnlyWhatFits() {
+        val variants = CompressedVariants(maxBytes = 2500, maxInlineLength = 10_000)
+        val long = source("long", page(10_001))
+        assertNull(variants.get("long", long, long.length))
+        assertEquals(0, opens.get())
+
+        // random bytes barely compress, so each variant takes about 1 KB
+        val random = Random(1)
+        val sources = (0 until 3).map { i -> source("$i", ByteArray(1000).also { random.nextBytes(it) }) }
+        val compressed = sources.mapIndexed { i, source -> variants.get("$i", source, source.length)!! }
+        assertEquals(3, opens.get())
+        // the first was evicted to make room for the third
+        assertSame(compressed[2], variants.get("2", sources[2], sources[2].length))
+        assertSame(compressed[1], variants.get("1", sources[1], sources[1].length))
+        assertEquals(3, opens.get())
+        assertNotNull(variants.get("0", sources[0], sources[0].length))
+        assertEquals(4, opens.get())
+    }
+
+    @Test
+    fun sendsGzipOnlyWhenAccepted() {
+        server.start()
+        val content = page(50_000)
+        val path = server.publish(MemorySource("page.html", "CompressedVariantsTest/page", ByteBuffer.wrap(content), 1000))
+        TestHttp(server.listeningPort).use { http ->
+            val gzip = http.request("GET", path, mapOf("Accept-Encoding" to "gzip, deflate"))
+            assertEquals(200, gzip.status)
+            assertEquals("gzip", gzip.header("Content-Encoding"))
+            assertEquals("Accept-Encoding", gzip.header("Vary"))
+            assertEquals(gzip.body.size.toString(), gzip.header("Content-Length"))
+            assertTrue(gzip.body.size < content.size / 10)
+            assertArrayEquals(content, gunzip(gzip.body))
+
+            for (headers in listOf(emptyMap(), mapOf("Accept-Encoding" to "gzip;q=0, *"), mapOf("Accept-Encoding" to "identity"))) {
+                val identity = http.request("GET", path, headers)
+                assertEquals(200, identity.status)
+                assertNull(identity.header("Content-Encoding"))
+                assertEquals("Accept-Encoding", identity.header("Vary"))
+                assertArrayEquals(content, identity.body)
+            }
+
+            // ranges are of the identity body
+            val range = http.request("GET", path, mapOf("Accept-Encoding" to "gzip", "Range" to "bytes=0-99"))
+            assertEquals(206, range.status)
+            assertNull(range.header("Content-Encoding"))
+            assertArrayEquals(content.copyOf(100), range.body)
+        }
+    }
+
+    @Test
+    fun streamsAndCountsGzipTooLongToKeep() {
+        server.start()
+        val content = page(3 * 1024 * 1024)
+        val path = server.publish(MemorySource("big.html", "CompressedVariantsTest/big", ByteBuffer.wrap(content), 1000))
+        TestHttp(server.listeningPort).use { http ->
+            val before = bytesServed()
+            http.send("GET", path, mapOf("Accept-Encoding" to "gzip"))
+            val reply = http.receive()
+            assertEquals(200, reply.status)
+            assertEquals("gzip", reply.header("Content-Encoding"))
+            assertEquals("chunked", reply.header("Transfer-Encoding"))
+            assertEquals("Accept-Encoding", reply.header("Vary"))
+            assertArrayEquals(content, gunzip(reply.body))
+
+            // counted as sent, compressed and with the chunk framing, once the response is done
+            val deadline = System.currentTimeMillis() + 5000
+            while (bytesServed() == before && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10)
+            }
+            val counted = bytesServed() - before
+            assertTrue("$counted", counted > reply.body.size && counted < reply.body.size + 4096)
+
+            // HEAD gets the identity headers only
+            val head = http.request("HEAD", path, mapOf("Accept-Encoding" to "gzip"))
+            assertEquals(200, head.status)
+            assertNull(head.header("Content-Encoding"))
+        }
+    }
+}
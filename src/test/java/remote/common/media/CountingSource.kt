@@ -0,0 +1,42 @@
+package remote.common.media
+
+import java.nio.ByteBuffer
+import java.nio.channels.WritableByteChannel
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Source in memory that counts the bytes read into buffers and the bytes transferred straight to
+ * a channel.
+ */
+class CountingSource(val content: ByteArray, override val key: String) : MediaSource {
+    private val inner = MemorySource("video.mp4", key, ByteBuffer.wrap(content), 1000)
+
+    val bytesRead = AtomicLong()
+    val bytesTransferred = AtomicLong()
+
+    override val name: String
+        get() = inner.name
+
+    override val length: Long
+        get() = inner.length
+
+    override val lastModified: Long
+        get() = inner.lastModified
+
+    override fun open(): MediaSource.Reader {
+        val reader = inner.open()
+        return object : MediaSource.Reader {
+            override fun read(dst: ByteBuffer, position: Long): Int {
+                return reader.read(dst, position).also { if (it > 0) bytesRead.addAndGet(it.toLong()) }
+            }
+
+            override fun transferTo(position: Long, count: Long, target: WritableByteChannel): Long {
+                return reader.transferTo(position, count, target).also { bytesTransferred.addAndGet(it) }
+            }
+
+            override fun close() {
+                reader.close()
+            }
+        }
+    }
+}
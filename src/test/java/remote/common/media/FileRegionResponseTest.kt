@@ -0,0 +1,98 @@
+package remote.common.media
+
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+
+class FileRegionResponseTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private lateinit var server: StreamWebServer
+    private lateinit var content: ByteArray
+    private lateinit var path: String
+
+    @Before
+    fun setUp() {
+        content = ByteArray(3 * 1024 * 1024 + 17) { (it % 251).toByte() }
+        val file = File(folder.root, "movie.mp4")
+        file.writeBytes(content)
+        server = StreamWebServer(port = 0)
+        server.start()
+        path = server.registry.publish(file)
+    }
+
+    @After
+    fun tearDown() {
+        server.stop()
+    }
+
+    @Test
+    fun sendsTheWholeFileWithItsLength() {
+        TestHttp(server.listeningPort).use { http ->
+            val reply = http.request("GET", path)
+            assertEquals(200, reply.status)
+            assertEquals(content.size.toString(), reply.header("Content-Length"))
+            assertNull(reply.header("Transfer-Encoding"))
+            assertEquals("bytes", reply.header("Accept-Ranges"))
+            assertArrayEquals(content, reply.body)
+        }
+    }
+
+    @Test
+    fun sendsARange() {
+        TestHttp(server.listeningPort).use { http ->
+            val reply = http.request("GET", path, mapOf("Range" to "bytes=1000000-1999999"))
+            assertEquals(206, reply.status)
+            assertEquals("bytes 1000000-1999999/${content.size}", reply.header("Content-Range"))
+            assertEquals("1000000", reply.header("Content-Length"))
+            assertArrayEquals(content.copyOfRange(1_000_000, 2_000_000), reply.body)
+        }
+    }
+
+    @Test
+    fun sendsOpenAndSuffixRanges() {
+        TestHttp(server.listeningPort).use { http ->
+            val open = http.request("GET", path, mapOf("Range" to "bytes=3000000-"))
+            assertEquals(206, open.status)
+            assertArrayEquals(content.copyOfRange(3_000_000, content.size), open.body)
+
+            val suffix = http.request("GET", path, mapOf("Range" to "bytes=-500"))
+            assertEquals(206, suffix.status)
+            assertEquals("bytes ${content.size - 500}-${content.size - 1}/${content.size}", suffix.header("Content-Range"))
+            assertArrayEquals(content.copyOfRange(content.size - 500, content.size), suffix.body)
+        }
+    }
+
+    @Test
+    fun keepsTheConnectionAcrossRanges() {
+        TestHttp(server.listeningPort).use { http ->
+            for (i in 0 until 20) {
+                val start = i * 150_000
+                val reply = http.request("GET", path, mapOf("Range" to "bytes=$start-${start + 65_535}"))
+                assertEquals(206, reply.status)
+                assertArrayEquals(content.copyOfRange(start, start + 65_536), reply.body)
+            }
+        }
+    }
+
+    @Test
+    fun answersHeadWithoutABody() {
+        TestHttp(server.listeningPort).use { http ->
+            val reply = http.request("HEAD", path)
+            assertEquals(200, reply.status)
+            assertEquals(content.size.toString(), reply.header("Content-Length"))
+            // the connection is still usable, so nothing was sent after the headers
+            val next = http.request("GET", path, mapOf("Range" to "bytes=0-9"))
+            assertEquals(206, next.status)
+            assertArrayEquals(content.copyOf(10), next.body)
+        }
+    }
+}
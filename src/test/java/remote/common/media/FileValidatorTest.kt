@@ -0,0 +1,139 @@
+package remote.common.media
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotSame
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.nio.ByteBuffer
+
+class FileValidatorTest {
+
+    companion object {
+        private const val MODIFIED = 1_600_000_000_123L
+        private const val MODIFIED_HTTP = "Sun, 13 Sep 2020 12:26:40 GMT"
+    }
+
+    private val content = ByteArray(4096) { it.toByte() }
+
+    private fun source(key: String, length: Int = content.size, lastModified: Long = MODIFIED): MediaSource {
+        return MemorySource("clip.mp4", "FileValidatorTest/$key", ByteBuffer.wrap(content, 0, length), lastModified)
+    }
+
+    @Test
+    fun buildsStrongTagsFromSizeAndMtime() {
+        val validator = FileValidator.of(source("tags"))
+        assertEquals("\"1000-${MODIFIED.toString(16)}\"", validator.eTag)
+        assertEquals("\"1000-${MODIFIED.toString(16)}-gz\"", validator.gzipETag)
+        assertEquals(MODIFIED_HTTP, validator.lastModifiedHttp)
+    }
+
+    @Test
+    fun cachesPerKeyUntilTheContentChanges() {
+        val first = FileValidator.of(source("cache"))
+        assertSame(first, FileValidator.of(source("cache")))
+        assertNotSame(first, FileValidator.of(source("cache", length = 100)))
+        assertNotSame(first, FileValidator.of(source("cache", lastModified = MODIFIED + 1000)))
+    }
+
+    @Test
+    fun matchesIfNoneMatch() {
+        val validator = FileValidator.of(source("none-match"))
+        assertTrue(validator.matchesAny(validator.eTag))
+        assertTrue(validator.matchesAny("\"other\", ${validator.eTag}"))
+        assertTrue(validator.matchesAny("W/${validator.eTag}"))
+        assertTrue(validator.matchesAny("*"))
+        assertFalse(validator.matchesAny("\"other\""))
+        // the gzip representation has its own tag
+        assertFalse(validator.matchesAny(validator.eTag, validator.gzipETag))
+    }
+
+    @Test
+    fun comparesModifiedSinceToTheSecond() {
+        val validator = FileValidator.of(source("since"))
+        assertTrue(validator.isNotModifiedSince(MODIFIED_HTTP))
+        assertTrue(validator.isNotModifiedSince("Sun, 13 Sep 2020 12:30:00 GMT"))
+        assertFalse(validator.isNotModifiedSince("Sun, 13 Sep 2020 12:26:39 GMT"))
+        assertFalse(validator.isNotModifiedSince("yesterday"))
+    }
+
+    @Test
+    fun requiresAnExactIfRange() {
+        val validator = FileValidator.of(source("if-range"))
+        assertTrue(validator.matchesIfRange(validator.eTag))
+        assertFalse(validator.matchesIfRange("W/${validator.eTag}"))
+        assertTrue(validator.matchesIfRange(MODIFIED_HTTP))
+        assertFalse(validator.matchesIfRange("Sun, 13 Sep 2020 12:30:00 GMT"))
+    }
+
+    @Test
+    fun validatesNothingWithoutAnMtime() {
+        val validator = FileValidator.of(source("unknown", lastModified = 0))
+        assertFalse(validator.isKnown)
+        assertNull(validator.lastModifiedHttp)
+        assertFalse(validator.matchesAny(validator.eTag))
+        assertFalse(validator.matchesAny("*"))
+        assertFalse(validator.isNotModifiedSince(MODIFIED_HTTP))
+        assertFalse(validator.matchesIfRange(validator.eTag))
+        assertFalse(validator.matchesIfRange("Thu, 01 Jan 1970 00:00:00 GMT"))
+    }
+
+    @Test
+    fun answersConditionalRequests() {
+        val server = StreamWebServer(port = 0)
+        server.start()
+        try {
+            val path = server.publish(source("server"))
+            TestHttp(server.listeningPort).use { http ->
+                val full = http.request("GET", path)
+                assertEquals(200, full.status)
+                val eTag = full.header("ETag")!!
+                assertEquals(MODIFIED_HTTP, full.header("Last-Modified"))
+
+                val notModified = http.request("GET", path, mapOf("If-None-Match" to eTag))
+                assertEquals(304, notModified.status)
+                assertEquals(eTag, notModified.header("ETag"))
+                assertEquals(0, notModified.body.size)
+                assertEquals(304, http.request("GET", path, mapOf("If-Modified-Since" to MODIFIED_HTTP)).status)
+                // If-None-Match wins over If-Modified-Since
+                assertEquals(200, http.request("GET", path, mapOf("If-None-Match" to "\"old\"", "If-Modified-Since" to MODIFIED_HTTP)).status)
+
+                val range = http.request("GET", path, mapOf("Range" to "bytes=0-99", "If-Range" to eTag))
+                assertEquals(206, range.status)
+                assertArrayEquals(content.copyOf(100), range.body)
+                val stale = http.request("GET", path, mapOf("Range" to "bytes=0-99", "If-Range" to "\"old\""))
+                assertEquals(200, stale.status)
+                assertArrayEquals(content, stale.body)
+            }
+        } finally {
+            server.stop()
+        }
+    }
+
+    @Test
+    fun sendsNoValidatorsWithoutAnMtime() {
+        val server = StreamWebServer(port = 0)
+        server.start()
+        try {
+            val path = server.publish(source("server-unknown", lastModified = 0))
+            TestHttp(server.listeningPort).use { http ->
+                val full = http.request("GET", path)
+                assertEquals(200, full.status)
+                assertNull(full.header("ETag"))
+                assertNull(full.header("Last-Modified"))
+
+                assertEquals(200, http.request("GET", path, mapOf("If-Modified-Since" to MODIFIED_HTTP)).status)
+                val range = http.request("GET", path, mapOf("Range" to "bytes=0-99", "If-Range" to "Thu, 01 Jan 1970 00:00:00 GMT"))
+                assertEquals(200, range.status)
+                assertArrayEquals(content, range.body)
+                // a plain range is still served
+                assertEquals(206, http.request("GET", path, mapOf("Range" to "bytes=0-99")).status)
+            }
+        } finally {
+            server.stop()
+        }
+    }
+}
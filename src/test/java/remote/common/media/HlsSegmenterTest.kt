@@ -0,0 +1,248 @@
+package remote.common.media
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
+import java.nio.channels.WritableByteChannel
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+/**
+ * [HlsSegmenter] over synthetic transport streams: one PES per second of media, the tables
+ * repeated before some of them.
+ */
+class HlsSegmenterTest {
+
+    companion object {
+        private const val VIDEO_PID = 0x101
+        private const val AUDIO_PID = 0x102
+        private const val PMT_PID = 0x100
+        private const val SECOND = 90_000L
+        private const val TARGET_US = 3_000_000L
+    }
+
+    private class TsWriter {
+        private val out = ByteArrayOutputStream()
+        private val continuity = IntArray(0x2000)
+
+        val size: Long
+            get() = out.size().toLong()
+
+        fun toByteArray(): ByteArray = out.toByteArray()
+
+        private fun packet(pid: Int, unitStart: Boolean, randomAccess: Boolean, payload: ByteArray) {
+            val packet = ByteArray(188) { 0xFF.toByte() }
+            packet[0] = 0x47
+            packet[1] = ((if (unitStart) 0x40 else 0) or (pid shr 8)).toByte()
+            packet[2] = pid.toByte()
+            var i = 4
+            if (randomAccess) {
+                packet[3] = (0x30 or (continuity[pid]++ and 0x0F)).toByte()
+                packet[4] = 1
+                packet[5] = 0x40
+                i = 6
+            } else {
+                packet[3] = (0x10 or (continuity[pid]++ and 0x0F)).toByte()
+            }
+            System.arraycopy(payload, 0, packet, i, minOf(payload.size, 188 - i))
+            out.write(packet)
+        }
+
+        private fun section(tableId: Int, body: ByteArray): ByteArray {
+            val length = body.size + 4
+            // pointer field, header, body, a CRC the segmenter doesn't check
+            return byteArrayOf(0, tableId.toByte(), (0xB0 or (length shr 8)).toByte(), length.toByte()) + body + ByteArray(4)
+        }
+
+        /**
+         * @return offset of the PAT
+         */
+        fun tables(streams: List<Pair<Int, Int>>): Long {
+            val offset = size
+            packet(0, true, false, section(0x00, byteArrayOf(0, 1, 0xC1.toByte(), 0, 0,
+                0, 1, (0xE0 or (PMT_PID shr 8)).toByte(), PMT_PID.toByte())))
+            val pmt = ByteArrayOutputStream()
+            pmt.write(byteArrayOf(0, 1, 0xC1.toByte(), 0, 0, (0xE0 or (VIDEO_PID shr 8)).toByte(), VIDEO_PID.toByte(), 0xF0.toByte(), 0))
+            for ((type, pid) in streams) {
+                pmt.write(byteArrayOf(type.toByte(), (0xE0 or (pid shr 8)).toByte(), pid.toByte(), 0xF0.toByte(), 0))
+            }
+            packet(PMT_PID, true, false, section(0x02, pmt.toByteArray()))
+            return offset
+        }
+
+        /**
+         * a PES of [pid] stamped [pts], followed by [fill] packets continuing it
+         * @return offset of its first packet
+         */
+        fun pes(pid: Int, pts: Long, randomAccess: Boolean, fill: Int = 2): Long {
+            val offset = size
+            val header = byteArrayOf(0, 0, 1, 0xE0.toByte(), 0, 0, 0x80.toByte(), 0x80.toByte(), 5,
+                (0x21 or (pts shr 29 and 0x0E).toInt()).toByte(), (pts shr 22).toByte(), ((pts shr 14 and 0xFE) or 1).toInt().toByte(),
+                (pts shr 7).toByte(), ((pts shl 1 and 0xFE) or 1).toInt().toByte())
+            packet(pid, true, randomAccess, header)
+            repeat(fill) { packet(pid, false, false, ByteArray(184)) }
+            return offset
+        }
+    }
+
+    private fun source(data: ByteArray) = MemorySource("movie.ts", "HlsSegmenterTest", ByteBuffer.wrap(data))
+
+    private fun scan(data: ByteArray, targetUs: Long = TARGET_US) = HlsSegmenter.scan(source(data), data.size.toLong(), targetUs)
+
+    private fun durationsS(index: HlsSegmenter.SegmentIndex) = index.segments.map { it.durationUs / 1_000_000.0 }
+
+    @Test
+    fun timesSegmentsByTheVideoStream() {
+        val ts = TsWriter()
+        val patOffsets = ArrayList<Long>()
+        for (second in 0..10) {
+            if (second % 3 == 0) {
+                // audio is listed first, the video stream still times the cuts
+                patOffsets.add(ts.tables(listOf(0x0F to AUDIO_PID, 0x1B to VIDEO_PID)))
+            }
+            ts.pes(VIDEO_PID, second * SECOND, true)
+            ts.pes(AUDIO_PID, (second * 7 % 5) * SECOND, false, fill = 0)
+        }
+        val index = scan(ts.toByteArray())!!
+        assertEquals(listOf(3.0, 3.0, 3.0, 1.0), durationsS(index))
+        // each segment starts at the tables written just before its first frame
+        assertEquals(patOffsets, index.segments.map { it.offset })
+        assertEquals(3, index.targetDuration)
+    }
+
+    @Test
+    fun timesAudioOnlyStreamsByTheirOwnPes() {
+        val ts = TsWriter()
+        ts.tables(listOf(0x06 to 0x103, 0x0F to AUDIO_PID))
+        for (second in 0..7) {
+            ts.pes(AUDIO_PID, second * SECOND, false)
+        }
+        val index = scan(ts.toByteArray(), 2_000_000L)!!
+        assertEquals(listOf(2.0, 2.0, 2.0, 1.0), durationsS(index))
+    }
+
+    @Test
+    fun cutsOnlyAtRandomAccessPoints() {
+        val ts = TsWriter()
+        val keyFrames = ArrayList<Long>()
+        ts.tables(listOf(0x1B to VIDEO_PID))
+        for (second in 0..13) {
+            val offset = ts.pes(VIDEO_PID, second * SECOND, second % 4 == 0)
+            if (second % 4 == 0) {
+                keyFrames.add(offset)
+            }
+        }
+        val index = scan(ts.toByteArray())!!
+        assertEquals(listOf(4.0, 4.0, 4.0, 1.0), durationsS(index))
+        assertEquals(listOf(0L) + keyFrames.drop(1), index.segments.map { it.offset })
+    }
+
+    @Test
+    fun unwrapsThe33BitPts() {
+        val ts = TsWriter()
+        ts.tables(listOf(0x1B to VIDEO_PID))
+        val start = (1L shl 33) - 5 * SECOND / 2
+        for (second in 0..10) {
+            ts.pes(VIDEO_PID, (start + second * SECOND) % (1L shl 33), true)
+        }
+        val index = scan(ts.toByteArray())!!
+        assertEquals(listOf(3.0, 3.0, 3.0, 1.0), durationsS(index))
+    }
+
+    @Test
+    fun addressesSegmentsAsByteRangesOfTheFile() {
+        val ts = TsWriter()
+        for (second in 0..10) {
+            if (second % 3 == 0) {
+                ts.tables(listOf(0x1B to VIDEO_PID))
+            }
+            ts.pes(VIDEO_PID, second * SECOND, true)
+        }
+        val data = ts.toByteArray()
+        val playlist = scan(data)!!.toPlaylist("movie.ts")
+        val lines = playlist.lines()
+        assertEquals("#EXTM3U", lines[0])
+        assertTrue(lines.contains("#EXT-X-TARGETDURATION:3"))
+        assertTrue(lines.contains("#EXT-X-PLAYLIST-TYPE:VOD"))
+        assertEquals("#EXT-X-ENDLIST", lines[lines.size - 2])
+        assertEquals(listOf("#EXTINF:3.000,", "#EXTINF:3.000,", "#EXTINF:3.000,", "#EXTINF:1.000,"), lines.filter { it.startsWith("#EXTINF") })
+
+        // back to back ranges covering the whole file, each followed by the file's uri
+        var next = 0L
+        for ((i, line) in lines.withIndex()) {
+            if (line.startsWith("#EXT-X-BYTERANGE:")) {
+                val (length, offset) = line.removePrefix("#EXT-X-BYTERANGE:").split('@').map { it.toLong() }
+                assertEquals(next, offset)
+                next = offset + length
+                assertEquals("movie.ts", lines[i + 1])
+            }
+        }
+        assertEquals(data.size.toLong(), next)
+    }
+
+    @Test
+    fun skipsWhatCantBeSegmented() {
+        // 192 byte M2TS packets
+        assertNull(scan(MediaTypeTest.ts(100, 4)))
+        // packets but no timestamps
+        assertNull(scan(MediaTypeTest.ts(100)))
+        val ts = TsWriter()
+        ts.tables(listOf(0x1B to VIDEO_PID))
+        assertNull(scan(ts.toByteArray()))
+    }
+
+    @Test
+    fun servesTheSegmentsFoundSoFarWhileScanning() {
+        val ts = TsWriter()
+        ts.tables(listOf(0x1B to VIDEO_PID))
+        for (second in 0..3000) {
+            ts.pes(VIDEO_PID, second * SECOND, true)
+        }
+        val data = ts.toByteArray()
+        val memory = source(data)
+        val release = CountDownLatch(1)
+        // reads past the first part wait until the test lets them go, as slow storage would
+        val slow = object : MediaSource by memory {
+            override fun open(): MediaSource.Reader {
+                val reader = memory.open()
+                return object : MediaSource.Reader by reader {
+                    override fun read(dst: ByteBuffer, position: Long): Int {
+                        if (position > data.size / 4) {
+                            release.await(10, TimeUnit.SECONDS)
+                        }
+                        return reader.read(dst, position)
+                    }
+
+                    override fun transferTo(position: Long, count: Long, target: WritableByteChannel) = reader.transferTo(position, count, target)
+                }
+            }
+        }
+        val segmenter = HlsSegmenter(TARGET_US)
+        val started = System.nanoTime()
+        val partial = segmenter.index("slow", slow, data.size.toLong())!!
+        assertTrue((System.nanoTime() - started) / 1_000_000 < 5 * HlsSegmenter.SCAN_WAIT_MS)
+        assertFalse(partial.complete)
+        assertTrue(partial.segments.isNotEmpty())
+        val playlist = partial.toPlaylist("movie.ts")
+        assertTrue(playlist.contains("#EXT-X-PLAYLIST-TYPE:EVENT\n"))
+        assertFalse(playlist.contains("#EXT-X-ENDLIST"))
+
+        release.countDown()
+        var index = segmenter.index("slow", slow, data.size.toLong())
+        while (!index!!.complete) {
+            Thread.sleep(20)
+            index = segmenter.index("slow", slow, data.size.toLong())
+        }
+        val whole = scan(data)
+        assertNotNull(whole)
+        assertEquals(whole!!.segments.map { it.offset }, index.segments.map { it.offset })
+        // what the partial playlist held doesn't move
+        assertEquals(partial.segments.map { it.offset }, index.segments.take(partial.segments.size).map { it.offset })
+        assertTrue(index.toPlaylist("movie.ts").endsWith("#EXT-X-ENDLIST\n"))
+    }
+}
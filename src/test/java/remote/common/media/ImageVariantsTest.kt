@@ -0,0 +1,173 @@
+package remote.common.media
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+import java.nio.ByteBuffer
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Cache behaviour of [ImageVariants] with an encoder writing fixed size stand-ins per target,
+ * since the bitmap pipeline doesn't run on the JVM.
+ */
+class ImageVariantsTest {
+
+    companion object {
+        private val HD = ImageVariants.Target(1920, 1080)
+        private val UHD = ImageVariants.Target(3840, 2160)
+        private const val VARIANT_BYTES = 1000
+    }
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private val encodes = AtomicInteger()
+
+    private fun encoded(target: ImageVariants.Target) = ByteArray(VARIANT_BYTES) { (it + target.width).toByte() }
+
+    private fun variants(dir: File = folder.root, maxBytes: Long = 10L * VARIANT_BYTES,
+                         encoder: (MediaSource, ImageVariants.Target, File) -> Boolean? = { _, target, out ->
+                             encodes.incrementAndGet()
+                             out.writeBytes(encoded(target))
+                             false
+                         }): ImageVariants {
+        return ImageVariants(dir, maxBytes, encoder)
+    }
+
+    private fun photo(key: String, length: Int = 5000, lastModified: Long = 1_600_000_000_000) =
+        MemorySource("$key.jpg", "ImageVariantsTest/$key", ByteBuffer.wrap(ByteArray(length)), lastModified)
+
+    /**
+     * @return the variant's bytes, closing it
+     */
+    private fun ImageVariants.read(source: MediaSource, target: ImageVariants.Target): ByteArray? {
+        val variant = get(source, FileValidator.of(source), target) ?: return null
+        variant.source.use { channel ->
+            assertEquals("image/jpeg", variant.mimeType)
+            val buffer = ByteBuffer.allocate(channel.length.toInt())
+            channel.open().use { it.read(buffer, 0) }
+            return buffer.array()
+        }
+    }
+
+    private fun cachedFiles() = folder.root.list()!!.sorted()
+
+    @Test
+    fun namesVariantsAfterSourceContentAndTarget() {
+        val variants = variants()
+        val photo = photo("a")
+        assertArrayEquals(encoded(HD), variants.read(photo, HD))
+        assertArrayEquals(encoded(HD), variants.read(photo, HD))
+        assertEquals(1, encodes.get())
+        val name = cachedFiles().single()
+        assertTrue(name.matches(Regex("[0-9a-f]{40}\\.jpg")))
+
+        assertArrayEquals(encoded(UHD), variants.read(photo, UHD))
+        // the same key with another size or mtime is other content
+        variants.read(photo("a", length = 6000), HD)
+        variants.read(photo("a", lastModified = 1_600_000_001_000), HD)
+        assertEquals(4, encodes.get())
+        assertEquals(4, cachedFiles().size)
+        assertTrue(name in cachedFiles())
+    }
+
+    @Test
+    fun sendsPhotosThatFitAsTheyAre() {
+        val variants = variants(encoder = { _, _, _ -> null })
+        assertNull(variants.read(photo("small"), HD))
+        assertTrue(cachedFiles().isEmpty())
+    }
+
+    @Test
+    fun evictsTheLeastRecentlyUsedVariant() {
+        val variants = variants(maxBytes = 3L * VARIANT_BYTES)
+        val photos = (0 until 4).map { photo("lru$it") }
+        for (photo in photos.take(3)) {
+            variants.read(photo, HD)
+        }
+        variants.read(photos[0], HD)
+        variants.read(photos[3], HD)
+        assertEquals(4, encodes.get())
+        assertEquals(3, cachedFiles().size)
+
+        // the second photo was the least recently used
+        variants.read(photos[0], HD)
+        variants.read(photos[2], HD)
+        assertEquals(4, encodes.get())
+        variants.read(photos[1], HD)
+        assertEquals(5, encodes.get())
+    }
+
+    @Test
+    fun keepsRecencyAcrossRestarts() {
+        val dir = folder.newFolder("variants")
+        val first = variants(dir)
+        val photos = (0 until 3).map { photo("restart$it") }
+        for ((i, photo) in photos.withIndex()) {
+            first.read(photo, HD)
+            // recency is kept in the mtime, older than the new file's
+            for (file in dir.listFiles()!!) {
+                if (file.lastModified() > 1_500_000_000_000) {
+                    file.setLastModified(1_400_000_000_000L + i * 1000)
+                }
+            }
+        }
+        File(dir, "leftover.tmp").writeBytes(ByteArray(10))
+
+        // a smaller cache keeps the two newest
+        val second = variants(dir, maxBytes = 2L * VARIANT_BYTES)
+        assertEquals(2, dir.list()!!.size)
+        assertFalse(File(dir, "leftover.tmp").exists())
+        second.read(photos[1], HD)
+        second.read(photos[2], HD)
+        assertEquals(3, encodes.get())
+        second.read(photos[0], HD)
+        assertEquals(4, encodes.get())
+    }
+
+    @Test
+    fun encodesOnceForConcurrentRequests() {
+        val release = CountDownLatch(1)
+        val variants = variants(encoder = { _, target, out ->
+            encodes.incrementAndGet()
+            release.await(5, TimeUnit.SECONDS)
+            out.writeBytes(encoded(target))
+            false
+        })
+        val photo = photo("shared")
+        val pool = Executors.newFixedThreadPool(8)
+        val results = (0 until 8).map { pool.submit<ByteArray?> { variants.read(photo, HD) } }
+        Thread.sleep(200)
+        release.countDown()
+        for (result in results) {
+            assertArrayEquals(encoded(HD), result.get(5, TimeUnit.SECONDS))
+        }
+        pool.shutdown()
+        assertEquals(1, encodes.get())
+    }
+
+    @Test
+    fun openVariantsSurviveEviction() {
+        val variants = variants(maxBytes = VARIANT_BYTES.toLong())
+        val first = photo("open0")
+        val variant = variants.get(first, FileValidator.of(first), HD)!!
+        variants.read(photo("open1"), HD)
+        assertEquals(1, cachedFiles().size)
+        variant.source.use { channel ->
+            val buffer = ByteBuffer.allocate(VARIANT_BYTES)
+            channel.open().use { it.read(buffer, 0) }
+            assertArrayEquals(encoded(HD), buffer.array())
+        }
+        assertNotEquals(variant.source.key, File(folder.root, cachedFiles().single()).path)
+    }
+}
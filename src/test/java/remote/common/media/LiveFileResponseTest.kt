@@ -0,0 +1,160 @@
+package remote.common.media
+
+import android.os.FileObserver
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+import java.io.FileOutputStream
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.TimeUnit
+
+/**
+ * Live content and [GrowthWatcher] following a file appended from another thread. The
+ * FileObserver doesn't run on the JVM, so growth is seen by polling and writer events are
+ * delivered by hand.
+ */
+class LiveFileResponseTest {
+
+    companion object {
+        private const val WRITES = 5
+        private const val WRITE_SIZE = 10_000
+        private const val WRITE_INTERVAL_MILLIS = 50L
+    }
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private val threads = Executors.newCachedThreadPool()
+    private val content = ByteArray(WRITES * WRITE_SIZE) { (it % 251).toByte() }
+
+    @After
+    fun tearDown() {
+        threads.shutdownNow()
+    }
+
+    /**
+     * write [content] to [file] in [WRITES] appends, [WRITE_INTERVAL_MILLIS] apart
+     * @return when the last append was made, in nanos
+     */
+    private fun appendLater(file: File): Future<Long> = threads.submit<Long> {
+        FileOutputStream(file, true).use { out ->
+            for (i in 0 until WRITES) {
+                Thread.sleep(WRITE_INTERVAL_MILLIS)
+                out.write(content, i * WRITE_SIZE, WRITE_SIZE)
+                out.flush()
+            }
+        }
+        System.nanoTime()
+    }
+
+    private fun follow(file: File, headers: Map<String, String> = emptyMap()): Pair<TestHttp.Reply, Long> {
+        val server = StreamWebServer(port = 0)
+        server.liveIdleTimeoutMillis = 400
+        server.start()
+        try {
+            val path = server.publish(FileSource(file), live = true)
+            TestHttp(server.listeningPort).use { http ->
+                val lastWrite = appendLater(file)
+                val reply = http.request("GET", path, headers)
+                val ended = System.nanoTime()
+                return Pair(reply, (ended - lastWrite.get(1, TimeUnit.SECONDS)) / 1_000_000)
+            }
+        } finally {
+            server.stop()
+        }
+    }
+
+    @Test
+    fun followsTheFileUntilItStopsGrowing() {
+        val file = folder.newFile("recording.ts")
+        val (reply, idleMillis) = follow(file)
+        assertEquals(200, reply.status)
+        assertEquals("chunked", reply.header("Transfer-Encoding"))
+        assertNull(reply.header("Content-Length"))
+        assertEquals("no-cache", reply.header("Cache-Control"))
+        assertArrayEquals(content, reply.body)
+        // ended by the idle timeout, not before the writer was done
+        assertTrue("ended $idleMillis ms after the last write", idleMillis >= 350 && idleMillis < 2000)
+    }
+
+    @Test
+    fun rangesWaitForTheirStart() {
+        val file = folder.newFile("recording.ts")
+        val start = WRITE_SIZE * 2 + 100
+        val (reply, _) = follow(file, mapOf("Range" to "bytes=$start-"))
+        assertEquals(206, reply.status)
+        // what has been written once the start exists, of a length not known yet
+        val range = reply.header("Content-Range")!!
+        assertTrue(range, range.startsWith("bytes $start-") && range.endsWith("/*"))
+        assertArrayEquals(content.copyOfRange(start, start + reply.body.size), reply.body)
+        assertTrue(reply.body.isNotEmpty())
+    }
+
+    @Test
+    fun waitsForGrowth() {
+        val file = folder.newFile("recording.ts")
+        GrowthWatcher(FileSource(file), pollMillis = 20).use { watcher ->
+            val started = System.nanoTime()
+            appendLater(file)
+            assertTrue(watcher.awaitLength(0, 5000))
+            val waited = (System.nanoTime() - started) / 1_000_000
+            assertTrue("$waited ms", waited >= WRITE_INTERVAL_MILLIS && waited < 1000)
+            assertTrue(watcher.awaitLength(WRITE_SIZE * WRITES - 1L, 5000))
+            assertEquals(WRITE_SIZE * WRITES.toLong(), file.length())
+        }
+    }
+
+    @Test
+    fun stopsWaitingWhenIdle() {
+        val file = folder.newFile("recording.ts")
+        file.writeBytes(content)
+        GrowthWatcher(FileSource(file), pollMillis = 20).use { watcher ->
+            assertTrue(watcher.awaitLength(content.size - 1L, 0))
+            val started = System.nanoTime()
+            assertFalse(watcher.awaitLength(content.size.toLong(), 300))
+            val waited = (System.nanoTime() - started) / 1_000_000
+            assertTrue("$waited ms", waited >= 250 && waited < 1000)
+        }
+    }
+
+    @Test
+    fun stopsWaitingWhenTheWriterCloses() {
+        val file = folder.newFile("recording.ts")
+        file.writeBytes(content)
+        GrowthWatcher(FileSource(file)).use { watcher ->
+            threads.submit {
+                Thread.sleep(100)
+                watcher.onEvent(FileObserver.MODIFY)
+                Thread.sleep(100)
+                watcher.onEvent(FileObserver.CLOSE_WRITE)
+            }
+            val started = System.nanoTime()
+            assertFalse(watcher.awaitLength(content.size.toLong(), 10_000))
+            val waited = (System.nanoTime() - started) / 1_000_000
+            // a MODIFY doesn't end it, the CLOSE_WRITE does
+            assertTrue("$waited ms", waited >= 150 && waited < 2000)
+        }
+    }
+
+    @Test
+    fun stopsWaitingWhenTheFileIsGone() {
+        val file = folder.newFile("recording.ts")
+        GrowthWatcher(FileSource(file), pollMillis = 20).use { watcher ->
+            threads.submit {
+                Thread.sleep(100)
+                file.delete()
+            }
+            val started = System.nanoTime()
+            assertFalse(watcher.awaitLength(0, 10_000))
+            assertTrue((System.nanoTime() - started) / 1_000_000 < 2000)
+        }
+    }
+}
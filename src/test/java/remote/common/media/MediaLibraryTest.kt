@@ -0,0 +1,155 @@
+package remote.common.media
+
+import kotlinx.coroutines.runBlocking
+import org.junit.Assert.assertEquals
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import remote.common.media.MediaLibrary.MediaItem
+import java.io.File
+import java.util.*
+
+/**
+ * Scans of [MediaLibrary] against a table held in a map, with the same path range semantics as
+ * the Room queries.
+ */
+class MediaLibraryTest {
+
+    /**
+     * the DAO queries scans use, counting the rows written
+     */
+    private class MapDao : MediaLibrary.MediaItemDao {
+        val rows = TreeMap<String, MediaItem>()
+        val written = ArrayList<String>()
+
+        override suspend fun getStamps(from: String, to: String): List<MediaLibrary.Stamp> {
+            return rows.subMap(from, to).values.map { MediaLibrary.Stamp(it.path, it.lastModified) }
+        }
+
+        override suspend fun getTitles(): List<MediaLibrary.Title> = rows.values.map { MediaLibrary.Title(it.path, it.title) }
+
+        override suspend fun upsert(items: List<MediaItem>) {
+            for (item in items) {
+                rows[item.path] = item
+                written.add(item.path)
+            }
+        }
+
+        override suspend fun delete(paths: List<String>) {
+            paths.forEach { rows.remove(it) }
+        }
+
+        override suspend fun getPage(category: Int, afterTitle: String, afterPath: String, limit: Int): List<MediaItem> {
+            throw UnsupportedOperationException()
+        }
+
+        override suspend fun count(category: Int): Int = rows.values.count { it.category == category }
+    }
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private val dao = MapDao()
+    private lateinit var root: File
+
+    @Before
+    fun setUp() {
+        root = folder.newFolder("media")
+        MediaLibrary.init(dao, listOf(root))
+    }
+
+    private fun file(path: String, length: Int = 100): File {
+        return File(root, path).apply {
+            parentFile!!.mkdirs()
+            writeBytes(ByteArray(length))
+            setLastModified(1_600_000_000_000)
+        }
+    }
+
+    private fun scan(dir: File = root, recursive: Boolean = true) = runBlocking { MediaLibrary.scan(dir, recursive) }
+
+    private fun indexed() = dao.rows.keys.map { it.removePrefix(root.path + "/") }
+
+    @Test
+    fun writesOnlyChangedFiles() {
+        file("movie.mp4")
+        file("song.mp3")
+        file("photo.jpg")
+        file("notes.txt")
+        file("shows/episode.mkv")
+        assertEquals(4, scan())
+        assertEquals(listOf("movie.mp4", "photo.jpg", "shows/episode.mkv", "song.mp3"), indexed())
+        assertEquals(MediaLibrary.CATEGORY_VIDEO, dao.rows[File(root, "movie.mp4").path]!!.category)
+        assertEquals(MediaLibrary.CATEGORY_AUDIO, dao.rows[File(root, "song.mp3").path]!!.category)
+        assertEquals(MediaLibrary.CATEGORY_IMAGE, dao.rows[File(root, "photo.jpg").path]!!.category)
+        assertEquals("episode", dao.rows[File(root, "shows/episode.mkv").path]!!.title)
+
+        // nothing changed, nothing written
+        dao.written.clear()
+        assertEquals(0, scan())
+        assertEquals(emptyList<String>(), dao.written)
+
+        // a rewritten file is written again, with its new size
+        file("movie.mp4", 5000).setLastModified(1_600_000_010_000)
+        file("shows/new.mp4")
+        assertEquals(2, scan())
+        assertEquals(listOf(File(root, "movie.mp4").path, File(root, "shows/new.mp4").path), dao.written.sorted())
+        assertEquals(5000, dao.rows[File(root, "movie.mp4").path]!!.size)
+        assertEquals(5, dao.rows.size)
+    }
+
+    @Test
+    fun deletesRowsOfFilesThatAreGone() {
+        file("movie.mp4")
+        file("shows/episode.mkv")
+        file("shows/season2/finale.mkv")
+        file("media-old/kept.mp4")
+        assertEquals(4, scan())
+
+        File(root, "movie.mp4").delete()
+        File(root, "shows/season2").deleteRecursively()
+        assertEquals(2, scan())
+        assertEquals(listOf("media-old/kept.mp4", "shows/episode.mkv"), indexed())
+    }
+
+    @Test
+    fun keepsRowsOutsideTheScannedDirectory() {
+        // a sibling whose path starts with the directory's
+        val sibling = File(root.parentFile, "media-old/kept.mp4").apply {
+            parentFile!!.mkdirs()
+            writeBytes(ByteArray(10))
+        }
+        runBlocking { MediaLibrary.scan(sibling.parentFile!!, true) }
+        file("shows/episode.mkv")
+        file("movie.mp4")
+        scan()
+        assertEquals(3, dao.rows.size)
+
+        // a scan of the directory alone leaves the rows of its subdirectories
+        File(root, "shows/episode.mkv").delete()
+        File(root, "movie.mp4").delete()
+        assertEquals(1, scan(recursive = false))
+        assertEquals(listOf(sibling.path, File(root, "shows/episode.mkv").path), dao.rows.keys.toList())
+        assertEquals(1, scan(File(root, "shows"), recursive = false))
+        assertEquals(listOf(sibling.path), dao.rows.keys.toList())
+    }
+
+    @Test
+    fun skipsNoMediaDirectoriesAndHiddenFiles() {
+        file("movie.mp4")
+        file(".hidden.mp4")
+        file(".thumbnails/thumb.jpg")
+        file("private/.nomedia", 0)
+        file("private/secret.mp4")
+        file("private/inner/deeper.mp4")
+        file("shows/episode.mkv")
+        assertEquals(2, scan())
+        assertEquals(listOf("movie.mp4", "shows/episode.mkv"), indexed())
+
+        // a .nomedia added later drops what was indexed there
+        file("shows/.nomedia", 0)
+        assertEquals(1, scan())
+        assertEquals(listOf("movie.mp4"), indexed())
+    }
+}
@@ -0,0 +1,123 @@
+package remote.common.media
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotEquals
+import org.junit.Assert.assertNotSame
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+import java.io.RandomAccessFile
+
+class MediaRegistryTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private val content = ByteArray(64 * 1024) { (it * 7 + it / 509).toByte() }
+
+    /**
+     * a source over its own descriptor of [file], as opening a picked Uri again gives
+     */
+    private fun open(file: File, key: String): ChannelSource {
+        val descriptor = RandomAccessFile(file, "r")
+        return ChannelSource.fromFileDescriptor(file.name, key, descriptor.fd, descriptor)
+    }
+
+    @Test
+    fun servesASourceOpenedAgainAtTheSamePath() {
+        val file = folder.newFile("picked.mp4")
+        file.writeBytes(content)
+        val server = StreamWebServer(port = 0)
+        server.start()
+        try {
+            val first = open(file, "content://media/external/video/7")
+            val path = server.publish(first)
+            TestHttp(server.listeningPort).use { http ->
+                assertEquals(200, http.request("GET", path).status)
+            }
+            // the player went away, the picked content is opened again for the next cast
+            first.close()
+            val second = open(file, "content://media/external/video/7")
+            assertEquals(path, server.publish(second))
+            TestHttp(server.listeningPort).use { http ->
+                val reply = http.request("GET", path)
+                assertEquals(200, reply.status)
+                assertArrayEquals(content, reply.body)
+            }
+            second.close()
+        } finally {
+            server.stop()
+        }
+    }
+
+    @Test
+    fun keepsTheEntryOfTheSameSource() {
+        val registry = MediaRegistry()
+        val file = folder.newFile("clip.mp4")
+        file.writeBytes(content)
+        val source = open(file, "content://media/external/video/8")
+        val path = registry.publish(source)
+        val entry = registry.lookup(path)
+        assertSame(entry, registry.lookup(registry.publish(source)))
+        // another flag replaces the entry under the same path
+        assertEquals(path, registry.publish(source, live = true))
+        assertEquals(true, registry.lookup(path)?.live)
+        assertEquals(1, registry.size)
+        source.close()
+    }
+
+    @Test
+    fun addressesSourcesByUnguessableTokens() {
+        val registry = MediaRegistry()
+        val first = folder.newFile("a.mp4").apply { writeBytes(content) }
+        val second = folder.newFile("b.mp4").apply { writeBytes(content) }
+        val path = registry.publish(first)
+        val token = path.removePrefix(MediaRegistry.PATH_PREFIX).substringBefore('/')
+        assertTrue(path.startsWith(MediaRegistry.PATH_PREFIX))
+        assertTrue(token.matches(Regex("[0-9a-f]{24}")))
+        assertEquals(path, registry.publish(first))
+        assertNotEquals(token, registry.publish(second).removePrefix(MediaRegistry.PATH_PREFIX).substringBefore('/'))
+
+        // the token alone picks the entry, whatever name follows it
+        assertSame(first, (registry.lookup(MediaRegistry.PATH_PREFIX + token + "/other.mkv")?.source as FileSource).file)
+        assertSame(first, (registry.lookup(MediaRegistry.PATH_PREFIX + token)?.source as FileSource).file)
+        assertNull(registry.lookup(MediaRegistry.PATH_PREFIX + "0".repeat(24) + "/a.mp4"))
+        assertNull(registry.lookup(first.path))
+
+        registry.unpublish(path)
+        assertNull(registry.lookup(path))
+        assertEquals(1, registry.size)
+        // published again, it gets a new token
+        assertNotEquals(path, registry.publish(first))
+    }
+
+    @Test
+    fun revalidatesAtMostEverySecond() {
+        val registry = MediaRegistry()
+        val file = folder.newFile("growing.mp4")
+        file.writeBytes(content)
+        file.setLastModified(1_600_000_000_000)
+        val path = registry.publish(file)
+        val metadata = registry.lookup(path)!!.metadata
+        assertEquals(content.size.toLong(), metadata.validator.length)
+
+        file.appendBytes(content)
+        file.setLastModified(1_600_000_100_000)
+        assertSame(metadata, registry.lookup(path)!!.metadata)
+        Thread.sleep(1100)
+        val changed = registry.lookup(path)!!.metadata
+        assertNotSame(metadata, changed)
+        assertEquals(2L * content.size, changed.validator.length)
+        assertNotEquals(metadata.contentKey, changed.contentKey)
+
+        file.delete()
+        assertSame(changed, registry.lookup(path)!!.metadata)
+        Thread.sleep(1100)
+        assertNull(registry.lookup(path))
+    }
+}
@@ -0,0 +1,100 @@
+package remote.common.media
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Test
+import java.nio.ByteBuffer
+
+class MediaTypeTest {
+
+    companion object {
+        private var nextKey = 0
+
+        fun source(name: String, content: ByteArray): MediaSource {
+            return MemorySource(name, "MediaTypeTest/${nextKey++}/$name", ByteBuffer.wrap(content), 1000)
+        }
+
+        fun ftyp(brand: String): ByteArray = byteArrayOf(0, 0, 0, 0x18) + "ftyp$brand".toByteArray() + ByteArray(12)
+
+        fun ts(packets: Int, prefix: Int = 0): ByteArray {
+            val packet = 188 + prefix
+            val data = ByteArray(packets * packet)
+            for (i in 0 until packets) {
+                data[i * packet + prefix] = 0x47
+            }
+            return data
+        }
+
+        fun ebml(docType: String): ByteArray {
+            return byteArrayOf(0x1A, 0x45, 0xDF.toByte(), 0xA3.toByte(), 0x9F.toByte(), 0x42, 0x86.toByte(), 0x81.toByte(), 0x01,
+                0x42, 0x82.toByte(), (0x80 + docType.length).toByte()) + docType.toByteArray() + ByteArray(16)
+        }
+
+        /**
+         * [count] frames of [frameLength] bytes, each starting with [header]
+         */
+        fun frames(header: ByteArray, frameLength: Int, count: Int): ByteArray {
+            val data = ByteArray(frameLength * count)
+            for (i in 0 until count) {
+                System.arraycopy(header, 0, data, i * frameLength, header.size)
+            }
+            return data
+        }
+
+        // MPEG-1 layer III, 128 kbps, 44.1 kHz: 417 byte frames
+        val MP3_FRAMES = frames(byteArrayOf(0xFF.toByte(), 0xFB.toByte(), 0x90.toByte(), 0x64), 417, 3)
+        // ADTS, 44.1 kHz stereo, 200 byte frames
+        val ADTS_FRAMES = frames(byteArrayOf(0xFF.toByte(), 0xF1.toByte(), 0x50, 0x80.toByte(), 0x19, 0x1F, 0xFC.toByte()), 200, 4)
+
+        val PNG = byteArrayOf(0x89.toByte(), 0x50, 0x4E, 0x47, 0x0D, 0x0A, 0x1A, 0x0A) + ByteArray(24)
+    }
+
+    private fun fileType(name: String, content: ByteArray): Int? = MediaType.getFileType(source(name, content))?.fileType
+
+    @Test
+    fun extensionWinsWithinContainer() {
+        assertEquals(MediaType.FILE_TYPE_M4A, fileType("song.m4a", ftyp("isom")))
+        assertEquals(MediaType.FILE_TYPE_M4A, fileType("song.m4a", ftyp("mp42")))
+        assertEquals(MediaType.FILE_TYPE_3GPP, fileType("clip.3gp", ftyp("isom")))
+        assertEquals(MediaType.FILE_TYPE_HTML, fileType("page.html", "<?xml version=\"1.0\"?><html/>".toByteArray()))
+        assertEquals(MediaType.FILE_TYPE_TEXT, fileType("notes.txt", "<html><body/></html>".toByteArray()))
+        assertEquals(MediaType.FILE_TYPE_MKA, fileType("song.mka", ebml("matroska")))
+        assertEquals(MediaType.FILE_TYPE_AAC, fileType("song.aac", "ID3".toByteArray() + ByteArray(32)))
+        assertEquals(MediaType.FILE_TYPE_HTTPLIVE, fileType("list.m3u8", "#EXTM3U\n#EXTINF:10,\na.ts\n".toByteArray()))
+    }
+
+    @Test
+    fun contentWinsOverAnotherContainer() {
+        assertEquals(MediaType.FILE_TYPE_PNG, fileType("photo.jpg", PNG))
+        assertEquals(MediaType.FILE_TYPE_MP2TS, fileType("movie.mp4", ts(3)))
+        assertEquals(MediaType.FILE_TYPE_MP4, fileType("movie.mkv", ftyp("isom")))
+    }
+
+    @Test
+    fun contentWithoutKnownExtension() {
+        assertEquals(MediaType.FILE_TYPE_WEBM, fileType("clip", ebml("webm")))
+        assertEquals(MediaType.FILE_TYPE_MP2TS, fileType("stream.bin", ts(3, 4)))
+        assertEquals("audio/mp4", MediaType.getFileType(source("download", ftyp("M4A ")))?.mimeType)
+        assertEquals(MediaType.FILE_TYPE_MP3, fileType("track", MP3_FRAMES))
+        assertEquals(MediaType.FILE_TYPE_AAC, fileType("track", ADTS_FRAMES))
+    }
+
+    @Test
+    fun utf16TextIsNotMpegAudio() {
+        // FF FE passes the frame sync mask
+        val text = "\uFEFF#EXTM3U\n#EXTINF:10,\nsong one.mp3\n".repeat(8).toByteArray(Charsets.UTF_16LE)
+        assertEquals(MediaType.FILE_TYPE_M3U, fileType("list.m3u", text))
+        assertEquals(MediaType.FILE_TYPE_TEXT, fileType("notes.txt", "\uFEFFshopping list\n".repeat(40).toByteArray(Charsets.UTF_16LE)))
+        assertEquals(MediaType.FILE_TYPE_XML, fileType("data.xml", "\uFEFF<?xml version=\"1.0\"?><a/>".toByteArray(Charsets.UTF_16LE)))
+        assertNull(MediaSniffer.sniff(text, text.size))
+        // a frame header whose next frame doesn't follow
+        assertNull(MediaSniffer.sniff(MP3_FRAMES.copyOf(417) + ByteArray(100), 517))
+    }
+
+    @Test
+    fun extensionWhenContentUnknown() {
+        assertEquals(MediaType.FILE_TYPE_MP3, fileType("song.mp3", ByteArray(64)))
+        assertNull(fileType("blob", ByteArray(64)))
+        assertNull(fileType("image.heic", ftyp("heic")))
+    }
+}
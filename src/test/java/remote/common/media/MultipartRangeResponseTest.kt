@@ -0,0 +1,116 @@
+package remote.common.media
+
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import java.nio.ByteBuffer
+
+/**
+ * `multipart/byteranges` bodies as the server sends them: boundaries, part headers and bytes.
+ */
+class MultipartRangeResponseTest {
+
+    private val content = ByteArray(100_000) { (it % 251).toByte() }
+    private val server = StreamWebServer(port = 0)
+    private lateinit var path: String
+
+    @Before
+    fun setUp() {
+        server.start()
+        path = server.publish(MemorySource("clip.mp4", "MultipartRangeResponseTest/clip", ByteBuffer.wrap(content)))
+    }
+
+    @After
+    fun tearDown() {
+        server.stop()
+    }
+
+    private class Part(val headers: Map<String, String>, val body: ByteArray)
+
+    /**
+     * split [body] by [boundary], checking the delimiters between and after the parts
+     */
+    private fun parts(body: ByteArray, boundary: String): List<Part> {
+        val text = String(body, Charsets.ISO_8859_1)
+        val delimiter = "\r\n--$boundary"
+        assertTrue(text.startsWith("$delimiter\r\n"))
+        assertTrue(text.endsWith("$delimiter--\r\n"))
+        val parts = ArrayList<Part>()
+        var position = delimiter.length + 2
+        while (position < text.length - delimiter.length - 4) {
+            val headersEnd = text.indexOf("\r\n\r\n", position)
+            val headers = text.substring(position, headersEnd).split("\r\n").associate {
+                it.substringBefore(':').trim().lowercase() to it.substringAfter(':').trim()
+            }
+            val start = headersEnd + 4
+            val end = text.indexOf(delimiter, start)
+            parts.add(Part(headers, body.copyOfRange(start, end)))
+            position = end + delimiter.length + 2
+        }
+        return parts
+    }
+
+    @Test
+    fun sendsEachRangeAsAPart() {
+        TestHttp(server.listeningPort).use { http ->
+            val reply = http.request("GET", path, mapOf("Range" to "bytes=90000-90099, 0-99, -50"))
+            assertEquals(206, reply.status)
+            assertEquals(reply.body.size.toString(), reply.header("Content-Length"))
+            assertEquals("bytes", reply.header("Accept-Ranges"))
+            val contentType = reply.header("Content-Type")!!
+            assertTrue(contentType, contentType.startsWith("multipart/byteranges; boundary="))
+            val boundary = contentType.substringAfter("boundary=")
+
+            val parts = parts(reply.body, boundary)
+            // in the order of the file, whatever the order asked
+            assertEquals(listOf("bytes 0-99/100000", "bytes 90000-90099/100000", "bytes 99950-99999/100000"),
+                parts.map { it.headers["content-range"] })
+            for (part in parts) {
+                assertEquals("video/mp4", part.headers["content-type"])
+                assertEquals(2, part.headers.size)
+            }
+            assertArrayEquals(content.copyOfRange(0, 100), parts[0].body)
+            assertArrayEquals(content.copyOfRange(90_000, 90_100), parts[1].body)
+            assertArrayEquals(content.copyOfRange(99_950, 100_000), parts[2].body)
+
+            // nothing was written past the last delimiter: the next reply starts right after it
+            assertEquals(206, http.request("GET", path, mapOf("Range" to "bytes=0-0")).status)
+        }
+    }
+
+    @Test
+    fun mergesNearbyRangesIntoOnePart() {
+        TestHttp(server.listeningPort).use { http ->
+            val reply = http.request("GET", path, mapOf("Range" to "bytes=0-99,120-199,5000-5009"))
+            val parts = parts(reply.body, reply.header("Content-Type")!!.substringAfter("boundary="))
+            assertEquals(listOf("bytes 0-199/100000", "bytes 5000-5009/100000"), parts.map { it.headers["content-range"] })
+            assertArrayEquals(content.copyOfRange(0, 200), parts[0].body)
+            assertArrayEquals(content.copyOfRange(5000, 5010), parts[1].body)
+        }
+    }
+
+    @Test
+    fun answersHeadWithTheLengthOnly() {
+        TestHttp(server.listeningPort).use { http ->
+            val get = http.request("GET", path, mapOf("Range" to "bytes=0-9,1000-1009"))
+            val head = http.request("HEAD", path, mapOf("Range" to "bytes=0-9,1000-1009"))
+            assertEquals(206, head.status)
+            assertEquals(get.header("Content-Length"), head.header("Content-Length"))
+            assertEquals(0, head.body.size)
+            assertEquals(206, http.request("GET", path, mapOf("Range" to "bytes=0-0")).status)
+        }
+    }
+
+    @Test
+    fun sendsTheWholeFileForTooManyRanges() {
+        TestHttp(server.listeningPort).use { http ->
+            val ranges = (0 until 33).joinToString(",") { "${it * 1000}-${it * 1000 + 9}" }
+            val reply = http.request("GET", path, mapOf("Range" to "bytes=$ranges"))
+            assertEquals(200, reply.status)
+            assertArrayEquals(content, reply.body)
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package remote.common.media
+
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import java.nio.ByteBuffer
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+class NioHttpEngineTest {
+
+    private lateinit var server: StreamWebServer
+    private lateinit var engine: NioHttpEngine
+    private val content = ByteArray(2 * 1024 * 1024) { (it % 241).toByte() }
+    private lateinit var path: String
+
+    @Before
+    fun setUp() {
+        server = StreamWebServer(StreamWebServer.Engine.NIO, port = 0)
+        server.start()
+        engine = server.nioEngine!!
+        path = server.publish(MemorySource("movie.mp4", "NioHttpEngineTest/movie", ByteBuffer.wrap(content)))
+    }
+
+    @After
+    fun tearDown() {
+        server.stop()
+    }
+
+    private fun awaitCondition(condition: () -> Boolean) {
+        val deadline = System.currentTimeMillis() + 5000
+        while (!condition() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10)
+        }
+    }
+
+    @Test
+    fun servesRequestsOnAKeptAliveConnection() {
+        TestHttp(engine.listeningPort).use { http ->
+            val full = http.request("GET", path)
+            assertEquals(200, full.status)
+            assertArrayEquals(content, full.body)
+            // back on the selector between requests
+            Thread.sleep(200)
+            val range = http.request("GET", path, mapOf("Range" to "bytes=1000-1999"))
+            assertEquals(206, range.status)
+            assertArrayEquals(content.copyOfRange(1000, 2000), range.body)
+            assertEquals(404, http.request("GET", "/nothing").status)
+        }
+    }
+
+    @Test
+    fun idleConnectionsHoldNoWorker() {
+        val clients = (0 until 50).map { TestHttp(engine.listeningPort) }
+        try {
+            for (client in clients) {
+                assertEquals(206, client.request("GET", path, mapOf("Range" to "bytes=0-99")).status)
+            }
+            awaitCondition { engine.activeCount == 0 }
+            assertEquals(50, engine.connectionCount)
+            assertEquals(0, engine.activeCount)
+            assertEquals(0, engine.queuedCount)
+            // every parked connection is still served
+            for (client in clients) {
+                val reply = client.request("GET", path, mapOf("Range" to "bytes=100-199"))
+                assertArrayEquals(content.copyOfRange(100, 200), reply.body)
+            }
+        } finally {
+            clients.forEach { it.close() }
+        }
+        awaitCondition { engine.connectionCount == 0 }
+        assertEquals(0, engine.connectionCount)
+    }
+
+    @Test
+    fun servesPipelinedRequests() {
+        TestHttp(engine.listeningPort).use { http ->
+            http.send("GET", path, mapOf("Range" to "bytes=0-9"))
+            http.send("GET", path, mapOf("Range" to "bytes=10-19"))
+            assertArrayEquals(content.copyOfRange(0, 10), http.receive().body)
+            assertArrayEquals(content.copyOfRange(10, 20), http.receive().body)
+        }
+    }
+
+    @Test
+    fun servesHundredsOfConnectionsOnFourWorkers() {
+        val connections = 256
+        // requests in flight at once stay within the workers and their queue
+        val senders = 48
+        val clients = (0 until connections).map { TestHttp(engine.listeningPort) }
+        val pool = Executors.newFixedThreadPool(senders)
+        try {
+            val results = (0 until senders).map { sender ->
+                pool.submit<Int> {
+                    var served = 0
+                    for (round in 0 until 2) {
+                        for (c in sender until connections step senders) {
+                            val start = (c * 7919 + round * 500_000) % (content.size - 100_000)
+                            val reply = clients[c].request("GET", path, mapOf("Range" to "bytes=$start-${start + 99_999}"))
+                            assertEquals(206, reply.status)
+                            assertArrayEquals(content.copyOfRange(start, start + 100_000), reply.body)
+                            served++
+                        }
+                    }
+                    served
+                }
+            }
+            assertEquals(2 * connections, results.sumOf { it.get(60, TimeUnit.SECONDS) })
+            assertEquals(connections, engine.connectionCount)
+            val workers = Thread.getAllStackTraces().keys.count { it.name.startsWith("StreamWebServer-nio-") }
+            assertTrue("$workers workers", workers <= 4)
+        } finally {
+            pool.shutdown()
+            clients.forEach { it.close() }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package remote.common.media
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class ReadAheadTest {
+
+    companion object {
+        private const val MB = 1024L * 1024
+    }
+
+    private val source = CountingSource(ByteArray((32 * MB).toInt()), "ReadAheadTest")
+
+    private fun awaitRead(bytes: Long) {
+        val deadline = System.currentTimeMillis() + 5000
+        while (source.bytesRead.get() < bytes && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5)
+        }
+    }
+
+    @Test
+    fun readsAheadOfSequentialReadsWithAGrowingWindow() {
+        val readAhead = ReadAhead(MB, 4 * MB)
+        readAhead.onRead(source.key, source, 0, MB / 2)
+        Thread.sleep(100)
+        // a first read says nothing about the pattern yet
+        assertEquals(0L, source.bytesRead.get())
+
+        readAhead.onRead(source.key, source, MB / 2, MB)
+        awaitRead(MB)
+        assertEquals(MB, source.bytesRead.get())
+
+        // the window doubles, only what wasn't read ahead yet is read
+        readAhead.onRead(source.key, source, MB, 3 * MB / 2)
+        awaitRead(5 * MB / 2)
+        assertEquals(5 * MB / 2, source.bytesRead.get())
+    }
+
+    @Test
+    fun seeksReadNothingAhead() {
+        val readAhead = ReadAhead(MB, 4 * MB)
+        var position = 0L
+        for (i in 0 until 8) {
+            readAhead.onRead(source.key, source, position, position + 64 * 1024)
+            position = (position + 3 * MB + 12_345) % (28 * MB)
+        }
+        Thread.sleep(200)
+        assertEquals(0L, source.bytesRead.get())
+    }
+
+    @Test
+    fun staysWithinTheSource() {
+        val readAhead = ReadAhead(MB, 16 * MB)
+        var position = 24 * MB
+        while (position < source.length) {
+            readAhead.onRead(source.key, source, position, minOf(position + MB, source.length))
+            position += MB
+        }
+        Thread.sleep(300)
+        assertTrue(source.bytesRead.get() <= source.length - 25 * MB)
+    }
+
+    @Test
+    fun keepsAWindowForEachReaderOfAFile() {
+        val readAhead = ReadAhead(MB, 4 * MB)
+        // two players on the same file, their reads interleaved
+        var first = 0L
+        var second = 16 * MB
+        for (i in 0 until 3) {
+            readAhead.onRead(source.key, source, first, first + MB / 2)
+            readAhead.onRead(source.key, source, second, second + MB / 2)
+            first += MB / 2
+            second += MB / 2
+        }
+        // each read ahead of itself: a 1 MB window, then 2 MB of which 1.5 MB are new
+        awaitRead(5 * MB)
+        Thread.sleep(100)
+        assertEquals(5 * MB, source.bytesRead.get())
+    }
+}
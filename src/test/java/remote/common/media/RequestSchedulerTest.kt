@@ -0,0 +1,147 @@
+package remote.common.media
+
+import fi.iki.elonen.NanoHTTPD
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import remote.common.media.RequestScheduler.RequestClass
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+
+class RequestSchedulerTest {
+
+    private val threads = Executors.newCachedThreadPool()
+
+    @After
+    fun tearDown() {
+        threads.shutdownNow()
+    }
+
+    /**
+     * take a turn for [requestClass] on a thread of its own, adding it to [granted] once it has it
+     */
+    private fun RequestScheduler.acquireAs(requestClass: RequestClass, granted: LinkedBlockingQueue<RequestScheduler.Turn>? = null): Future<RequestScheduler.Turn?> {
+        val future = threads.submit<RequestScheduler.Turn?> {
+            enter(requestClass)
+            acquire().also { turn -> turn?.let { granted?.add(it) } }
+        }
+        // waiters queue in the order they were started
+        Thread.sleep(50)
+        return future
+    }
+
+    @Test
+    fun classifiesByContentAndPurpose() {
+        val get = NanoHTTPD.Method.GET
+        assertEquals(RequestClass.PLAYBACK, RequestScheduler.classify("video/mp4", get, emptyMap(), null))
+        assertEquals(RequestClass.PLAYBACK, RequestScheduler.classify("audio/mpeg", get, emptyMap(), null))
+        assertEquals(RequestClass.IMAGE, RequestScheduler.classify("image/jpeg", get, emptyMap(), null))
+        assertEquals(RequestClass.METADATA, RequestScheduler.classify("application/vnd.apple.mpegurl", get, emptyMap(), null))
+        assertEquals(RequestClass.METADATA, RequestScheduler.classify("", get, emptyMap(), null))
+        assertEquals(RequestClass.METADATA, RequestScheduler.classify("video/mp4", NanoHTTPD.Method.HEAD, emptyMap(), null))
+        assertEquals(RequestClass.BACKGROUND, RequestScheduler.classify("video/mp4", get, mapOf("sec-purpose" to "prefetch"), null))
+        assertEquals(RequestClass.BACKGROUND, RequestScheduler.classify("video/mp4", get, mapOf("purpose" to "Prefetch"), null))
+        assertEquals(RequestClass.BACKGROUND, RequestScheduler.classify("image/png", get, emptyMap(), mapOf("prefetch" to "1")))
+    }
+
+    @Test
+    fun leavesUnmarkedThreadsUnscheduled() {
+        val scheduler = RequestScheduler(maxActive = 1)
+        assertNull(scheduler.acquire())
+        scheduler.enter(null)
+        assertNull(scheduler.acquire())
+        scheduler.enter(RequestClass.PLAYBACK)
+        val turn = scheduler.acquire()
+        assertNotNull(turn)
+        scheduler.leave()
+        // past the limit, but no longer scheduled
+        assertNull(scheduler.acquire())
+        scheduler.release(turn)
+    }
+
+    @Test
+    fun grantsWaitingTurnsByClassThenArrival() {
+        val scheduler = RequestScheduler(maxActive = 1, lowPriorityActive = 1)
+        val first = scheduler.acquireAs(RequestClass.BACKGROUND).get(1, TimeUnit.SECONDS)
+        val granted = LinkedBlockingQueue<RequestScheduler.Turn>()
+        scheduler.acquireAs(RequestClass.BACKGROUND, granted)
+        scheduler.acquireAs(RequestClass.IMAGE, granted)
+        scheduler.acquireAs(RequestClass.METADATA, granted)
+        scheduler.acquireAs(RequestClass.PLAYBACK, granted)
+        scheduler.acquireAs(RequestClass.METADATA, granted)
+        assertTrue(granted.isEmpty())
+
+        scheduler.release(first)
+        val order = ArrayList<RequestClass>()
+        repeat(5) {
+            val turn = granted.poll(1, TimeUnit.SECONDS)!!
+            order.add(turn.requestClass)
+            scheduler.release(turn)
+        }
+        assertEquals(listOf(RequestClass.PLAYBACK, RequestClass.METADATA, RequestClass.METADATA, RequestClass.IMAGE,
+            RequestClass.BACKGROUND), order)
+    }
+
+    @Test
+    fun limitsLowPriorityStepsWhilePlaying() {
+        val scheduler = RequestScheduler(maxActive = 4, lowPriorityActive = 1, playbackIdleMillis = 300)
+        // nothing playing, images run freely
+        val images = (0 until 2).map { scheduler.acquireAs(RequestClass.IMAGE).get(1, TimeUnit.SECONDS) }
+        images.forEach { scheduler.release(it) }
+
+        scheduler.release(scheduler.acquireAs(RequestClass.PLAYBACK).get(1, TimeUnit.SECONDS))
+        val image = scheduler.acquireAs(RequestClass.IMAGE).get(1, TimeUnit.SECONDS)
+        val granted = LinkedBlockingQueue<RequestScheduler.Turn>()
+        val started = System.nanoTime()
+        scheduler.acquireAs(RequestClass.BACKGROUND, granted)
+        // other classes still pass
+        scheduler.release(scheduler.acquireAs(RequestClass.METADATA).get(1, TimeUnit.SECONDS))
+        assertTrue(granted.isEmpty())
+
+        // until the player goes quiet
+        val background = granted.poll(2, TimeUnit.SECONDS)
+        assertNotNull(background)
+        assertTrue((System.nanoTime() - started) / 1_000_000 >= 200)
+        scheduler.release(image)
+        scheduler.release(background)
+    }
+
+    @Test
+    fun stopsCountingStalledTurns() {
+        val scheduler = RequestScheduler(maxActive = 1, stallMillis = 200)
+        val stuck = scheduler.acquireAs(RequestClass.PLAYBACK).get(1, TimeUnit.SECONDS)
+        val next = scheduler.acquireAs(RequestClass.PLAYBACK)
+        assertFalse(next.isDone)
+        val turn = next.get(2, TimeUnit.SECONDS)
+        assertNotNull(turn)
+        // releasing the stalled turn late doesn't free a second slot
+        scheduler.release(stuck)
+        val third = scheduler.acquireAs(RequestClass.PLAYBACK)
+        assertFalse(third.isDone)
+        scheduler.release(turn)
+        assertNotNull(third.get(1, TimeUnit.SECONDS))
+    }
+
+    @Test
+    fun recordsTheWaitPerClass() {
+        val stats = ServerStats()
+        val scheduler = RequestScheduler(stats, maxActive = 1)
+        val first = scheduler.acquireAs(RequestClass.PLAYBACK).get(1, TimeUnit.SECONDS)
+        // the image waits at least the 50 ms acquireAs gives it to queue
+        val waiting = scheduler.acquireAs(RequestClass.IMAGE)
+        scheduler.release(first)
+        scheduler.release(waiting.get(1, TimeUnit.SECONDS))
+        val text = stats.toPrometheus()
+        assertTrue(text, text.contains("stream_queue_time_seconds_count{class=\"playback\"} 1\n"))
+        assertTrue(text, text.contains("stream_queue_time_seconds_count{class=\"image\"} 1\n"))
+        assertTrue(text, text.contains("stream_queue_time_seconds_count{class=\"background\"} 0\n"))
+        assertTrue(text, text.contains("stream_queue_time_seconds_bucket{class=\"image\",le=\"0.032768\"} 0\n"))
+        assertTrue(text, text.contains("stream_queue_time_seconds_bucket{class=\"playback\",le=\"0.032768\"} 1\n"))
+    }
+}
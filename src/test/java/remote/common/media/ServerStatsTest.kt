@@ -0,0 +1,114 @@
+package remote.common.media
+
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.nio.ByteBuffer
+
+/**
+ * The `/_stats` endpoint in both formats, after a known set of requests.
+ */
+class ServerStatsTest {
+
+    private val server = StreamWebServer(port = 0)
+    private val video = ByteArray(100_000) { (it % 251).toByte() }
+
+    @After
+    fun tearDown() {
+        server.stop()
+    }
+
+    /**
+     * a full, a ranged and a conditional request of a video, and a full one of a text file
+     */
+    private fun serveSome(http: TestHttp) {
+        val videoPath = server.publish(MemorySource("clip.mp4", "ServerStatsTest/clip", ByteBuffer.wrap(video), 1000))
+        val textPath = server.publish(MemorySource("notes.txt", "ServerStatsTest/notes", ByteBuffer.wrap("hello".toByteArray()), 1000))
+        val full = http.request("GET", videoPath)
+        assertEquals(200, full.status)
+        assertEquals(206, http.request("GET", videoPath, mapOf("Range" to "bytes=0-999")).status)
+        assertEquals(304, http.request("GET", videoPath, mapOf("If-None-Match" to full.header("ETag")!!)).status)
+        assertEquals(200, http.request("GET", textPath).status)
+    }
+
+    private fun stats(http: TestHttp, query: String = ""): TestHttp.Reply {
+        val reply = http.request("GET", StreamWebServer.STATS_PATH + query)
+        assertEquals(200, reply.status)
+        assertEquals("no-store", reply.header("Cache-Control"))
+        return reply
+    }
+
+    @Test
+    fun countsRequestsAsJson() {
+        server.start()
+        TestHttp(server.listeningPort).use { http ->
+            serveSome(http)
+            val reply = stats(http)
+            assertEquals("application/json", reply.header("Content-Type"))
+            val json = String(reply.body, Charsets.UTF_8)
+            // the connection asking is the one open
+            assertTrue(json, json.startsWith("{\"requests\":4,\"rangeRequests\":1,\"fullRequests\":3,\"notModified\":1," +
+                    "\"bytesServed\":101005,\"activeConnections\":1,"))
+            assertTrue(json, json.contains("\"requestsByMime\":{"))
+            assertTrue(json, json.contains("\"video/mp4\":3"))
+            assertTrue(json, json.contains("\"text/plain\":1"))
+            // three bodies were sent, the 304 had none
+            assertTrue(json, json.contains("\"timeToFirstByte\":{\"unit\":\"us\",\"count\":3,"))
+            assertTrue(json, json.contains("\"throughput\":{\"unit\":\"KiB/s\","))
+            assertTrue(json, json.contains("\"queueTime\":{\"playback\":{\"unit\":\"us\","))
+            assertTrue(json, json.endsWith("}}}"))
+            assertEquals(json.count { it == '{' }, json.count { it == '}' })
+
+            // reading the stats isn't counted
+            assertTrue(String(stats(http).body, Charsets.UTF_8).startsWith("{\"requests\":4,"))
+        }
+    }
+
+    @Test
+    fun countsRequestsAsPrometheusText() {
+        server.start()
+        TestHttp(server.listeningPort).use { http ->
+            serveSome(http)
+            val reply = stats(http, "?format=prometheus")
+            assertEquals("text/plain; version=0.0.4", reply.header("Content-Type"))
+            val text = String(reply.body, Charsets.UTF_8)
+            val lines = text.lines().dropLast(1)
+            assertEquals("", text.lines().last())
+
+            val samples = HashMap<String, Double>()
+            val types = HashMap<String, String>()
+            for (line in lines) {
+                if (line.startsWith("# TYPE ")) {
+                    val (name, type) = line.removePrefix("# TYPE ").split(' ')
+                    assertTrue(line, type in setOf("counter", "gauge", "histogram"))
+                    assertEquals(line, null, types.put(name, type))
+                    continue
+                }
+                assertTrue(line, line.matches(Regex("[a-z_]+(\\{([a-z]+=\"[^\"]*\",?)+})? [0-9.E+-]+|[a-z_]+\\{.*le=\"\\+Inf\"} [0-9]+")))
+                val series = line.substringBeforeLast(' ')
+                // every series follows the TYPE line of its metric
+                assertTrue(line, types.keys.any { series == it || series.startsWith("$it{") || series.startsWith(it + "_") })
+                samples[series] = line.substringAfterLast(' ').toDouble()
+            }
+            assertEquals(1.0, samples["stream_requests_total{kind=\"range\"}"])
+            assertEquals(3.0, samples["stream_requests_total{kind=\"full\"}"])
+            assertEquals(1.0, samples["stream_not_modified_total"])
+            assertEquals(101_005.0, samples["stream_bytes_served_total"])
+            assertEquals(1.0, samples["stream_active_connections"])
+            assertEquals(3.0, samples["stream_requests_by_mime_total{mime=\"video/mp4\"}"])
+            assertEquals(1.0, samples["stream_requests_by_mime_total{mime=\"text/plain\"}"])
+            assertEquals("histogram", types["stream_time_to_first_byte_seconds"])
+            assertEquals(3.0, samples["stream_time_to_first_byte_seconds_count"])
+
+            // buckets are cumulative and end with every sample
+            val buckets = lines.filter { it.startsWith("stream_time_to_first_byte_seconds_bucket{") }
+            assertEquals(25, buckets.size)
+            val counts = buckets.map { it.substringAfterLast(' ').toLong() }
+            assertEquals(counts.sorted(), counts)
+            assertTrue(buckets.last(), buckets.last().startsWith("stream_time_to_first_byte_seconds_bucket{le=\"+Inf\"}"))
+            assertEquals(3L, counts.last())
+            assertEquals(1, lines.count { it == "# TYPE stream_queue_time_seconds histogram" })
+        }
+    }
+}
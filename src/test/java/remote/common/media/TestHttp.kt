@@ -0,0 +1,108 @@
+package remote.common.media
+
+import java.io.BufferedInputStream
+import java.io.ByteArrayOutputStream
+import java.io.Closeable
+import java.io.IOException
+import java.net.Socket
+
+/**
+ * HTTP/1.1 client over one loopback connection that reads replies by hand, so tests see the
+ * exact status, headers and body bytes the server sent.
+ */
+class TestHttp(port: Int) : Closeable {
+
+    class Reply(val status: Int, val headers: Map<String, String>, val body: ByteArray) {
+        fun header(name: String): String? = headers[name.lowercase()]
+    }
+
+    val socket = Socket("127.0.0.1", port).apply { soTimeout = 10_000 }
+    private val input = BufferedInputStream(socket.getInputStream())
+
+    fun send(method: String, path: String, headers: Map<String, String> = emptyMap(), body: ByteArray? = null) {
+        val request = StringBuilder("$method $path HTTP/1.1\r\nHost: 127.0.0.1\r\n")
+        for ((name, value) in headers) {
+            request.append(name).append(": ").append(value).append("\r\n")
+        }
+        if (body != null) {
+            request.append("Content-Length: ").append(body.size).append("\r\n")
+        }
+        request.append("\r\n")
+        val out = socket.getOutputStream()
+        out.write(request.toString().toByteArray(Charsets.US_ASCII))
+        body?.let { out.write(it) }
+        out.flush()
+    }
+
+    /**
+     * @param hasBody false for replies to HEAD
+     */
+    fun receive(hasBody: Boolean = true): Reply {
+        val status = line().split(" ")[1].toInt()
+        val headers = HashMap<String, String>()
+        while (true) {
+            val line = line()
+            if (line.isEmpty()) {
+                break
+            }
+            headers[line.substringBefore(':').trim().lowercase()] = line.substringAfter(':').trim()
+        }
+        val body = ByteArrayOutputStream()
+        val length = headers["content-length"]?.toLong()
+        when {
+            !hasBody || status == 304 || status == 204 -> {}
+            headers["transfer-encoding"] == "chunked" -> {
+                while (true) {
+                    val size = line().substringBefore(';').trim().toInt(16)
+                    copy(size.toLong(), body)
+                    line()
+                    if (size == 0) {
+                        break
+                    }
+                }
+            }
+            length != null -> copy(length, body)
+            else -> copy(Long.MAX_VALUE, body)
+        }
+        return Reply(status, headers, body.toByteArray())
+    }
+
+    fun request(method: String, path: String, headers: Map<String, String> = emptyMap(), body: ByteArray? = null): Reply {
+        send(method, path, headers, body)
+        return receive(method != "HEAD")
+    }
+
+    override fun close() {
+        socket.close()
+    }
+
+    private fun copy(count: Long, out: ByteArrayOutputStream) {
+        val buffer = ByteArray(16 * 1024)
+        var left = count
+        while (left > 0) {
+            val read = input.read(buffer, 0, minOf(left, buffer.size.toLong()).toInt())
+            if (read < 0) {
+                if (count == Long.MAX_VALUE) {
+                    return
+                }
+                throw IOException("body ended $left bytes short")
+            }
+            out.write(buffer, 0, read)
+            left -= read
+        }
+    }
+
+    private fun line(): String {
+        val line = StringBuilder()
+        while (true) {
+            val c = input.read()
+            if (c < 0) {
+                throw IOException("connection closed")
+            }
+            if (c.toByte() == '\n'.toByte()) {
+                return line.toString().removeSuffix("\r")
+            }
+            line.append(c.toChar())
+        }
+    }
+}
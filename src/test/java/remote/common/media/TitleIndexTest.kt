@@ -0,0 +1,91 @@
+package remote.common.media
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class TitleIndexTest {
+
+    private fun index(vararg titles: String): TitleIndex {
+        val index = TitleIndex()
+        for (title in titles) {
+            index.add("/media/$title.mp4", title)
+        }
+        return index
+    }
+
+    private fun TitleIndex.titles(query: String, limit: Int = 10): List<String> = search(query, limit).map { it.title }
+
+    @Test
+    fun matchesWordPrefixes() {
+        val index = index("The Matrix", "Mad Max", "Finding Nemo", "Matilda")
+        assertEquals(setOf("The Matrix", "Mad Max", "Matilda"), index.titles("ma").toSet())
+        assertEquals(setOf("The Matrix", "Matilda"), index.titles("mat").toSet())
+        assertEquals(listOf("Finding Nemo"), index.titles("NEM"))
+        assertTrue(index.titles("").isEmpty())
+        assertTrue(index.titles("ma", 0).isEmpty())
+    }
+
+    @Test
+    fun requiresEveryQueryWord() {
+        val index = index("Star Wars", "Star Trek", "War Games", "Lone Star")
+        assertEquals(listOf("Star Wars"), index.titles("star war", 1))
+        assertEquals(listOf("Star Trek"), index.titles("tr st", 1))
+        // titles matching only some words come after, as fuzzy hits
+        assertEquals("Star Wars", index.titles("star war").first())
+    }
+
+    @Test
+    fun dropsAccentsAndPunctuation() {
+        val index = index("Amélie", "Léon: The Professional")
+        assertEquals(listOf("Amélie"), index.titles("amel"))
+        assertEquals(listOf("Léon: The Professional"), index.titles("LEON prof"))
+    }
+
+    @Test
+    fun ranksFirstWordsAndExactWordsHigher() {
+        val index = index("The Lion King", "Lion", "Lionheart", "Kingdom of Lions")
+        assertEquals(listOf("Lion", "Lionheart", "The Lion King", "Kingdom of Lions"), index.titles("lion"))
+        assertEquals(listOf("Kingdom of Lions", "The Lion King"), index.titles("king"))
+    }
+
+    @Test
+    fun toleratesTypos() {
+        val index = index("Interstellar", "Inception", "Gravity")
+        assertEquals(listOf("Interstellar"), index.titles("intrestellar"))
+        // prefix hits come before fuzzy ones
+        val hits = index.search("incep", 10)
+        assertEquals("Inception", hits[0].title)
+        assertTrue(hits.all { it.title != "Gravity" })
+    }
+
+    @Test
+    fun replacesAndRemovesTitles() {
+        val index = index("Alien", "Aliens")
+        index.add("/media/Alien.mp4", "Predator")
+        assertEquals(2, index.size)
+        assertEquals(listOf("Aliens"), index.titles("alien"))
+        assertEquals(listOf("/media/Alien.mp4"), index.search("pred", 10).map { it.path })
+
+        index.remove("/media/Aliens.mp4")
+        index.remove("/media/missing.mp4")
+        assertEquals(1, index.size)
+        assertTrue(index.titles("alien").isEmpty())
+    }
+
+    @Test
+    fun compactsAfterManyReplacements() {
+        val index = index("Up", "Cars", "Coco")
+        // each re-add of the same path leaves a dead entry, enough of them compact the postings
+        for (i in 0 until 3000) {
+            index.add("/media/episode.mp4", "Episode $i")
+        }
+        assertEquals(4, index.size)
+        assertEquals(listOf("Episode 2999"), index.titles("episode"))
+        assertEquals(listOf("Cars", "Coco"), index.titles("c"))
+
+        index.add("/media/Inside Out.mp4", "Inside Out")
+        assertEquals(5, index.size)
+        assertEquals(listOf("Inside Out"), index.titles("ins"))
+    }
+}
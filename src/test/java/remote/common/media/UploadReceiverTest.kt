@@ -0,0 +1,141 @@
+package remote.common.media
+
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import java.io.File
+
+class UploadReceiverTest {
+
+    private lateinit var server: StreamWebServer
+    private lateinit var dir: File
+    private lateinit var receiver: UploadReceiver
+    private val content = ByteArray(1024 * 1024 + 17) { (it % 251).toByte() }
+    private val uploaded = ArrayList<File>()
+
+    @Before
+    fun setUp() {
+        dir = File.createTempFile("uploads", "")
+        dir.delete()
+        server = StreamWebServer(port = 0)
+        receiver = server.enableUploads(dir)
+        receiver.onUploaded = { synchronized(uploaded) { uploaded.add(it) } }
+        server.start()
+    }
+
+    @After
+    fun tearDown() {
+        server.stop()
+        dir.deleteRecursively()
+    }
+
+    private fun upload(method: String, name: String, headers: Map<String, String>, body: ByteArray): TestHttp.Reply {
+        return TestHttp(server.listeningPort).use { it.request(method, receiver.path + name, headers, body) }
+    }
+
+    private fun awaitLength(file: File, length: Long) {
+        val deadline = System.currentTimeMillis() + 5000
+        while (file.length() < length && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10)
+        }
+    }
+
+    @Test
+    fun writesTheBodyToTheFile() {
+        val reply = upload("PUT", "clip.mp4", emptyMap(), content)
+        assertEquals(201, reply.status)
+        assertEquals(receiver.path + "clip.mp4", reply.header("Location"))
+        val file = File(dir, "clip.mp4")
+        assertArrayEquals(content, file.readBytes())
+        assertFalse(File(dir, "clip.mp4.part").exists())
+        assertEquals(listOf(file), uploaded)
+
+        // a new upload replaces the file, whatever was left before
+        assertEquals(201, upload("POST", "clip.mp4", emptyMap(), content.copyOf(100)).status)
+        assertArrayEquals(content.copyOf(100), file.readBytes())
+    }
+
+    @Test
+    fun resumesAnInterruptedUpload() {
+        val sent = 300 * 1024
+        TestHttp(server.listeningPort).use { http ->
+            http.socket.getOutputStream().apply {
+                write("PUT ${receiver.path}movie.mkv HTTP/1.1\r\nContent-Length: ${content.size}\r\n\r\n".toByteArray(Charsets.US_ASCII))
+                write(content, 0, sent)
+                flush()
+            }
+        }
+        val part = File(dir, "movie.mkv.part")
+        awaitLength(part, sent.toLong())
+
+        var status = upload("PUT", "movie.mkv", mapOf("Content-Range" to "bytes */${content.size}"), ByteArray(0))
+        // until the server sees the first connection end
+        while (status.status == 409) {
+            Thread.sleep(10)
+            status = upload("PUT", "movie.mkv", mapOf("Content-Range" to "bytes */${content.size}"), ByteArray(0))
+        }
+        assertEquals(308, status.status)
+        assertEquals("bytes=0-${sent - 1}", status.header("Range"))
+
+        val rest = upload("PUT", "movie.mkv", mapOf("Content-Range" to "bytes $sent-${content.size - 1}/${content.size}"),
+            content.copyOfRange(sent, content.size))
+        assertEquals(201, rest.status)
+        assertArrayEquals(content, File(dir, "movie.mkv").readBytes())
+        assertFalse(part.exists())
+    }
+
+    @Test
+    fun acceptsRangesInAnyPieces() {
+        val half = content.size / 2
+        val first = upload("PUT", "song.mp3", mapOf("Content-Range" to "bytes 0-${half - 1}/${content.size}"), content.copyOf(half))
+        assertEquals(308, first.status)
+        assertEquals("bytes=0-${half - 1}", first.header("Range"))
+        assertTrue(uploaded.isEmpty())
+
+        // a range past what arrived only reports the progress
+        val gap = upload("PUT", "song.mp3", mapOf("Content-Range" to "bytes ${half + 10}-${content.size - 1}/${content.size}"),
+            content.copyOfRange(half + 10, content.size))
+        assertEquals(308, gap.status)
+        assertEquals("bytes=0-${half - 1}", gap.header("Range"))
+
+        // overlapping what arrived is fine
+        val rest = upload("PUT", "song.mp3", mapOf("Content-Range" to "bytes ${half - 100}-${content.size - 1}/${content.size}"),
+            content.copyOfRange(half - 100, content.size))
+        assertEquals(201, rest.status)
+        assertArrayEquals(content, File(dir, "song.mp3").readBytes())
+    }
+
+    @Test
+    fun rejectsBadRequests() {
+        assertEquals(400, upload("PUT", "..", emptyMap(), content.copyOf(10)).status)
+        assertEquals(400, upload("PUT", "a.part", emptyMap(), content.copyOf(10)).status)
+        assertEquals(400, upload("PUT", "a", mapOf("Content-Range" to "bytes 5-1/10"), content.copyOf(10)).status)
+        assertEquals(400, upload("PUT", "a", mapOf("Content-Range" to "bytes 0-4/10"), content.copyOf(10)).status)
+        assertNull(dir.list()?.firstOrNull())
+    }
+
+    @Test
+    fun refusesPathsWithoutTheToken() {
+        val token = receiver.path.removePrefix(UploadReceiver.PATH_PREFIX).trimEnd('/')
+        assertTrue(token.matches(Regex("[0-9a-f]{24}")))
+        val other = "0".repeat(24)
+        for (path in listOf("a.mp4", "$other/a.mp4", "${token}a.mp4", "$token")) {
+            val reply = TestHttp(server.listeningPort).use { it.request("PUT", UploadReceiver.PATH_PREFIX + path, emptyMap(), content.copyOf(10)) }
+            assertEquals(path, 404, reply.status)
+        }
+        assertNull(dir.list()?.firstOrNull())
+
+        // a receiver enabled again takes uploads on a new path only
+        val previous = receiver.path
+        receiver = server.enableUploads(dir)
+        assertNotEquals(previous, receiver.path)
+        assertEquals(404, TestHttp(server.listeningPort).use { it.request("PUT", previous + "a.mp4", emptyMap(), content.copyOf(10)) }.status)
+        assertEquals(201, upload("PUT", "a.mp4", emptyMap(), content.copyOf(10)).status)
+    }
+}
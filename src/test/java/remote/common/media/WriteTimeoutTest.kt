@@ -0,0 +1,74 @@
+package remote.common.media
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Assert.fail
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+import java.io.Closeable
+import java.net.InetSocketAddress
+import java.net.SocketTimeoutException
+import java.nio.ByteBuffer
+import java.nio.channels.ServerSocketChannel
+import java.nio.channels.SocketChannel
+import java.util.concurrent.atomic.AtomicInteger
+
+class WriteTimeoutTest {
+
+    @Test
+    fun closesAConnectionWhoseClientStoppedReading() {
+        ServerSocketChannel.open().use { listener ->
+            listener.bind(InetSocketAddress("127.0.0.1", 0))
+            SocketChannel.open(listener.localAddress).use { client ->
+                val connection = listener.accept()
+                val started = System.currentTimeMillis()
+                try {
+                    WriteTimeout(300).run(connection) {
+                        // far more than the socket buffers hold, the client never reads
+                        val chunk = ByteBuffer.allocate(1024 * 1024)
+                        while (true) {
+                            chunk.clear()
+                            connection.write(chunk)
+                        }
+                    }
+                    fail("write returned")
+                } catch (e: SocketTimeoutException) {
+                    val elapsed = System.currentTimeMillis() - started
+                    assertTrue("gave up after $elapsed ms", elapsed in 300..5000)
+                }
+                assertFalse(connection.isOpen)
+                client.close()
+            }
+        }
+    }
+
+    @Test
+    fun leavesWritesThatFinishAlone() {
+        val out = ByteArrayOutputStream()
+        val timeout = WriteTimeout(300)
+        val wrapped = timeout.wrap(out)
+        wrapped.write("hello".toByteArray())
+        wrapped.flush()
+        Thread.sleep(500)
+        wrapped.write('!'.toByte().toInt())
+        assertEquals("hello!", out.toString())
+    }
+
+    @Test
+    fun pushesTheDeadlineBackWithEachWrite() {
+        val timeout = WriteTimeout(200)
+        val closes = AtomicInteger()
+        val connection = Closeable { closes.incrementAndGet() }
+        // each write returns in time, together they run far past the timeout
+        repeat(20) {
+            timeout.run(connection) { Thread.sleep(40) }
+        }
+        assertEquals(0, closes.get())
+        // one that doesn't is closed, only once
+        timeout.run(connection) { Thread.sleep(600) }
+        assertEquals(1, closes.get())
+        val other = Closeable { fail("closed a connection that wrote in time") }
+        timeout.run(other) { Thread.sleep(40) }
+    }
+}